@@ -0,0 +1,531 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Alternative routes between two vertices by the plateau method.
+ * <p>
+ * Two shortest-path trees are grown over the chain-compressed junction graph. The forward
+ * tree grows from the start in A* order, which finds the weight of the best route as
+ * <code>Router.shortestPath</code> would; it then keeps going, pruned to the junctions that
+ * could lie on a route at most <code>MAX_STRETCH</code> times as heavy as the best one by the
+ * straight-line lower bound. The backward tree grows from the destination and only visits
+ * junctions of the forward tree, pruned with their exact distances, which is much tighter.
+ * <p>
+ * A plateau is a run of search arcs that lies on both trees: every junction on it has a best
+ * route through it that follows the forward tree up to the plateau and the backward tree after
+ * it, and a long plateau means that route is locally optimal for a long stretch instead of
+ * detouring through an arbitrary vertex. The best route is read off the trees through the
+ * junction with the smallest sum of distances, and the candidates are ranked by plateau
+ * length, then by the weight of the route through them; a junction where the trees share no
+ * arc is a plateau of length zero, tried only after every longer plateau, which matters on
+ * sparse graphs whose roads have few junctions.
+ * <p>
+ * Each candidate is described by the chains it uses, read straight off the trees, and is kept
+ * if it uses no junction or chain twice and shares at most <code>MAX_SHARING</code> of its
+ * weight with every route kept before it. Only kept routes are expanded into vertices, and
+ * all candidates come out of the same two trees, so asking for more alternatives costs no
+ * further searches.
+ */
+class AlternativeRoutes {
+    /** Largest weight of an alternative as a multiple of the best route's weight. */
+    static final double MAX_STRETCH = 1.3;
+    /** Largest fraction of an alternative's weight that may lie on any route kept before it. */
+    static final double MAX_SHARING = 0.6;
+    /** Most candidates examined per requested route, bounding the work on dense areas. */
+    private static final int CANDIDATES_PER_ROUTE = 16;
+    /** Slack on the stretch bound for rounding in summed weights. */
+    private static final double EPSILON = 1e-9;
+
+    /*
+     * A route is described by the pieces of chains it covers, each a key of chain * 8 + kind.
+     * Whole chains have kind FULL; the chains holding the start and destination may be covered
+     * from the root vertex to the chain's first vertex (TO_FROM) or to its last (TO_TO).
+     */
+    private static final int FULL = 0;
+    private static final int START_TO_FROM = 1;
+    private static final int START_TO_TO = 2;
+    private static final int DEST_TO_FROM = 3;
+    private static final int DEST_TO_TO = 4;
+    /** The part of one chain between a start and destination that both lie inside it. */
+    private static final int DIRECT = 7;
+
+    private final GraphDB g;
+    private final CompactGraph cg;
+    private final CompactGraph.Weights cw;
+    private final Router.Metric metric;
+    private final Router.Profile profile;
+    private final int bit;
+    private final AvoidSet avoid;
+    private final int s;
+    private final int t;
+    /** Per-junction and per-chain marks of the candidate being examined. */
+    private final int[] junctionMark;
+    private final int[] chainMark;
+    private int mark;
+
+    private AlternativeRoutes(GraphDB g, Router.Metric metric, Router.Profile profile,
+                              AvoidSet avoid, int s, int t) {
+        this.g = g;
+        this.cg = g.getCompactGraph();
+        this.cw = cg.weights();
+        this.metric = profile.searchMetric(metric);
+        this.profile = profile;
+        this.bit = profile.bit();
+        this.avoid = avoid;
+        this.s = s;
+        this.t = t;
+        junctionMark = new int[cg.numJunctions()];
+        chainMark = new int[cg.chainFrom.length];
+    }
+
+    /**
+     * Returns up to <code>k</code> routes between two vertices, the best route first and the
+     * remaining ones in order of their plateau lengths.
+     *
+     * @param g       <code>GraphDB</code> data source.
+     * @param stID    The ID of the starting vertex.
+     * @param destID  The ID of the destination vertex.
+     * @param metric  Whether to minimize distance or travel time.
+     * @param profile Who is travelling.
+     * @param avoid   What to avoid, or null to use every road.
+     * @param k       The largest number of routes to return, counting the best one.
+     * @return The routes as lists of vertex IDs, or an empty list if there is no route.
+     */
+    static List<List<Long>> find(GraphDB g, long stID, long destID, Router.Metric metric,
+                                 Router.Profile profile, AvoidSet avoid, int k) {
+        CompactGraph cg = g.getCompactGraph();
+        int s = cg.indexOf(stID);
+        int t = cg.indexOf(destID);
+        if (k <= 1 || s == CompactGraph.NONE || t == CompactGraph.NONE || s == t) {
+            List<List<Long>> routes = new ArrayList<>();
+            List<Long> main = Router.shortestPath(g, stID, destID, metric, profile, avoid);
+            if (!main.isEmpty()) {
+                routes.add(main);
+            }
+            return routes;
+        }
+        if (avoid != null && avoid.isEmpty()) {
+            avoid = null;
+        }
+        if (!cg.allows(s, profile) || !cg.allows(t, profile)
+                || avoid != null && (avoid.blocksVertex(s) || avoid.blocksVertex(t))) {
+            return new ArrayList<>();
+        }
+        return new AlternativeRoutes(g, metric, profile, avoid, s, t).find(stID, k);
+    }
+
+    private List<List<Long>> find(long stID, int k) {
+        List<List<Long>> routes = new ArrayList<>();
+        Tree fwd = new Tree(this, s, t, null);
+        if (fwd.best == Double.POSITIVE_INFINITY) {
+            return routes;
+        }
+        Tree bwd = new Tree(this, t, s, fwd);
+        List<long[]> kept = new ArrayList<>();
+        if (fwd.direct) {
+            List<Long> path = new ArrayList<>();
+            path.add(stID);
+            int c = cg.vertexChain[s];
+            cg.appendChain(path, c, cg.vertexChainPos[s], cg.vertexChainPos[t]);
+            routes.add(path);
+            kept.add(new long[]{(long) c * 8 + DIRECT});
+        } else {
+            int via = CompactGraph.NONE;
+            for (int i = 0; i < bwd.numSettled; i += 1) {
+                int j = bwd.order[i];
+                if (via == CompactGraph.NONE
+                        || fwd.dist[j] + bwd.dist[j] < fwd.dist[via] + bwd.dist[via]) {
+                    via = j;
+                }
+            }
+            long[] pieces = via == CompactGraph.NONE ? null : pieces(fwd, bwd, via);
+            if (pieces == null) {
+                /* Only zero-weight loops can make the best route through the trees repeat. */
+                routes.add(Router.shortestPath(g, stID, cg.id(t), metric, profile, avoid));
+                return routes;
+            }
+            List<Long> path = new ArrayList<>();
+            path.add(stID);
+            fwd.appendFromRoot(path, via);
+            bwd.appendToRoot(path, via);
+            routes.add(path);
+            kept.add(pieces);
+        }
+
+        /* Link each search arc on both trees to the next one, in the direction of travel. */
+        int[] next = new int[cg.numJunctions()];
+        Arrays.fill(next, CompactGraph.NONE);
+        boolean[] hasPrev = new boolean[next.length];
+        for (int i = 0; i < bwd.numSettled; i += 1) {
+            int v = bwd.order[i];
+            int a = fwd.pred[v];
+            if (a < 0) {
+                continue;
+            }
+            int u = Router.sourceJunction(cg, a);
+            if (bwd.settled[u] && bwd.pred[u] >= 0
+                    && cg.jArcChain[bwd.pred[u]] == (cg.jArcChain[a] ^ 1)) {
+                next[u] = v;
+                hasPrev[v] = true;
+            }
+        }
+
+        /*
+         * Name each plateau by its first junction. Plateaus longer than zero sort first, longest
+         * first, by the bits of their length as a float, and the rest after them by the bits
+         * of their route weight; the junction is in the low bits.
+         */
+        long[] candidates = new long[bwd.numSettled];
+        int numCandidates = 0;
+        for (int i = 0; i < bwd.numSettled; i += 1) {
+            int u = bwd.order[i];
+            double weight = fwd.dist[u] + bwd.dist[u];
+            if (hasPrev[u] || weight > fwd.limit) {
+                continue;
+            }
+            int end = u;
+            while (next[end] != CompactGraph.NONE) {
+                end = next[end];
+            }
+            double plateau = fwd.dist[end] - fwd.dist[u];
+            long rank = plateau > 0
+                    ? (Integer.MAX_VALUE - Float.floatToIntBits((float) plateau)) >>> 1
+                    : 1 << 30 | Float.floatToIntBits((float) weight) >>> 1;
+            candidates[numCandidates] = rank << 32 | u;
+            numCandidates += 1;
+        }
+        Arrays.sort(candidates, 0, numCandidates);
+
+        int budget = CANDIDATES_PER_ROUTE * k;
+        for (int i = 0; i < numCandidates && routes.size() < k && budget > 0; i += 1) {
+            budget -= 1;
+            int via = (int) candidates[i];
+            long[] pieces = pieces(fwd, bwd, via);
+            if (pieces == null) {
+                continue;
+            }
+            double weight = fwd.dist[via] + bwd.dist[via];
+            boolean distinct = true;
+            for (long[] other : kept) {
+                if (sharedWeight(pieces, other) > MAX_SHARING * weight) {
+                    distinct = false;
+                    break;
+                }
+            }
+            if (distinct) {
+                kept.add(pieces);
+                List<Long> path = new ArrayList<>();
+                path.add(stID);
+                fwd.appendFromRoot(path, via);
+                bwd.appendToRoot(path, via);
+                routes.add(path);
+            }
+        }
+        return routes;
+    }
+
+    /**
+     * Returns the sorted pieces of the route through junction <code>via</code> along both
+     * trees, or null if the route would use a junction or chain twice. Routes that leave the
+     * start's chain and come back into it to reach the destination are rejected as well.
+     */
+    private long[] pieces(Tree fwd, Tree bwd, int via) {
+        mark += 1;
+        junctionMark[via] = mark;
+        long[] pieces = new long[16];
+        int n = 0;
+        for (Tree tree : new Tree[]{fwd, bwd}) {
+            int j = via;
+            while (true) {
+                int a = tree.pred[j];
+                int c;
+                int kind;
+                if (a >= 0) {
+                    c = cg.jArcChain[a] >> 1;
+                    kind = FULL;
+                } else if (a == Router.SEED_START) {
+                    break;
+                } else {
+                    c = tree.rootChain;
+                    kind = tree == fwd ? START_TO_FROM : DEST_TO_FROM;
+                    kind += a == Router.SEED_CHAIN_FROM ? 0 : 1;
+                }
+                if (chainMark[c] == mark) {
+                    return null;
+                }
+                chainMark[c] = mark;
+                if (n == pieces.length) {
+                    pieces = Arrays.copyOf(pieces, 2 * n);
+                }
+                pieces[n] = (long) c * 8 + kind;
+                n += 1;
+                if (a < 0) {
+                    break;
+                }
+                j = Router.sourceJunction(cg, a);
+                if (junctionMark[j] == mark) {
+                    return null;
+                }
+                junctionMark[j] = mark;
+            }
+        }
+        pieces = Arrays.copyOf(pieces, n);
+        Arrays.sort(pieces);
+        return pieces;
+    }
+
+    /** Returns the weight of the part of its chain that <code>piece</code> covers. */
+    private double pieceWeight(long piece) {
+        int c = (int) (piece >> 3);
+        int mi = metric.ordinal();
+        double[] offsets = cw.vertexChainOffset[mi];
+        switch ((int) (piece & 7)) {
+            case START_TO_FROM:
+                return offsets[s];
+            case START_TO_TO:
+                return cw.chainWeight[mi][c] - offsets[s];
+            case DEST_TO_FROM:
+                return offsets[t];
+            case DEST_TO_TO:
+                return cw.chainWeight[mi][c] - offsets[t];
+            case DIRECT:
+                return Math.abs(offsets[s] - offsets[t]);
+            default:
+                return cw.chainWeight[mi][c];
+        }
+    }
+
+    /**
+     * Returns the weight two routes have in common. Pieces of the same chain that start from
+     * different roots count as disjoint, which is exact except when the start and destination
+     * share a chain.
+     */
+    private double sharedWeight(long[] a, long[] b) {
+        double shared = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i += 1;
+            } else if (a[i] > b[j]) {
+                j += 1;
+            } else {
+                shared += pieceWeight(a[i]);
+                i += 1;
+                j += 1;
+            }
+        }
+        return shared;
+    }
+
+    /**
+     * A shortest-path tree over junctions grown from one vertex, reaching only junctions that
+     * could lie on a route within the stretch bound. Roads are two-way, so a tree grown from
+     * the destination holds the best paths to it as well as from it.
+     */
+    private static final class Tree {
+        private final CompactGraph cg;
+        private final int root;
+        final int rootChain;
+        final double[] dist;
+        /** The search arc each junction was reached through, or one of Router's seed markers. */
+        final int[] pred;
+        final boolean[] settled;
+        /** The settled junctions in the order they were settled. */
+        final int[] order;
+        int numSettled;
+        /** Weight of the best route, found by a forward tree. */
+        double best = Double.POSITIVE_INFINITY;
+        /** Whether the best route runs straight along the chain holding both ends. */
+        boolean direct;
+        /** Largest weight of any route worth considering. */
+        double limit;
+
+        /**
+         * Grows the tree from <code>root</code> towards <code>other</code>.
+         * <p>
+         * Without an <code>opposite</code> tree, junctions are settled in A* order until the
+         * best route to <code>other</code> is known, which sets the limit; after that a
+         * junction is only reached if its distance plus the lower bound to <code>other</code>
+         * is within the limit. With one, grown from <code>other</code>, a junction must be
+         * settled there and its distances from both ends must add up to the limit at most;
+         * every junction on the best path to such a junction meets that as well, so the
+         * distances that matter stay exact.
+         */
+        Tree(AlternativeRoutes search, int root, int other, Tree opposite) {
+            this.cg = search.cg;
+            this.root = root;
+            this.rootChain = cg.vertexChain[root];
+            CompactGraph.Weights cw = search.cw;
+            Router.Metric metric = search.metric;
+            AvoidSet avoid = search.avoid;
+            int numJunctions = cg.numJunctions();
+            dist = new double[numJunctions];
+            Arrays.fill(dist, Double.POSITIVE_INFINITY);
+            pred = new int[numJunctions];
+            settled = new boolean[numJunctions];
+            order = new int[numJunctions];
+            SearchHeap fringe = new SearchHeap(64);
+            int mi = metric.ordinal();
+            double[] weights = cw.jArcWeight[mi];
+            double[] offsets = cw.vertexChainOffset[mi];
+            double ox = cg.unitX[other];
+            double oy = cg.unitY[other];
+            double oz = cg.unitZ[other];
+            boolean forward = opposite == null;
+            limit = forward ? Double.POSITIVE_INFINITY : opposite.limit;
+
+            /* Where the forward tree may step off onto the other end, as Router does. */
+            int oc = cg.vertexChain[other];
+            int oj = cg.junctionOf[other];
+            int oFromJ = CompactGraph.NONE;
+            int oToJ = CompactGraph.NONE;
+            if (forward && oc != CompactGraph.NONE) {
+                int pos = cg.vertexChainPos[other];
+                if (avoid == null || !avoid.blocksChainBetween(oc, 0, pos)) {
+                    oFromJ = cg.junctionOf[cg.chainFrom[oc]];
+                }
+                if (avoid == null || !avoid.blocksChainBetween(oc, pos, cg.chainSize(oc))) {
+                    oToJ = cg.junctionOf[cg.chainTo[oc]];
+                }
+                if (oc == rootChain && (avoid == null || !avoid.blocksChainBetween(
+                        oc, cg.vertexChainPos[root], pos))) {
+                    best = Math.abs(offsets[root] - offsets[other]);
+                    direct = true;
+                }
+            }
+
+            if (rootChain == CompactGraph.NONE) {
+                int j = cg.junctionOf[root];
+                dist[j] = 0;
+                pred[j] = Router.SEED_START;
+                fringe.push(j, 0);
+            } else {
+                double toFrom = offsets[root];
+                double toTo = cw.chainWeight[mi][rootChain] - toFrom;
+                int fromJ = cg.junctionOf[cg.chainFrom[rootChain]];
+                int toJ = cg.junctionOf[cg.chainTo[rootChain]];
+                int pos = cg.vertexChainPos[root];
+                if (avoid == null || !avoid.blocksChainBetween(rootChain, 0, pos)) {
+                    dist[fromJ] = toFrom;
+                    pred[fromJ] = Router.SEED_CHAIN_FROM;
+                    fringe.push(fromJ, toFrom);
+                }
+                if (toTo < dist[toJ] && (avoid == null
+                        || !avoid.blocksChainBetween(rootChain, pos, cg.chainSize(rootChain)))) {
+                    dist[toJ] = toTo;
+                    pred[toJ] = Router.SEED_CHAIN_TO;
+                    fringe.push(toJ, toTo);
+                }
+            }
+
+            while (!fringe.isEmpty()) {
+                if (forward && limit == Double.POSITIVE_INFINITY && fringe.minKey() >= best) {
+                    limit = best * MAX_STRETCH + EPSILON;
+                }
+                if (fringe.minKey() > limit) {
+                    break;
+                }
+                int j = fringe.pop();
+                if (settled[j]) {
+                    continue;
+                }
+                settled[j] = true;
+                order[numSettled] = j;
+                numSettled += 1;
+                double d = dist[j];
+                if (forward) {
+                    double reach = j == oj ? d
+                            : j == oFromJ ? d + offsets[other]
+                            : j == oToJ ? d + cw.chainWeight[mi][oc] - offsets[other]
+                            : Double.POSITIVE_INFINITY;
+                    if (j == oFromJ && j == oToJ) {
+                        reach = d + Math.min(offsets[other],
+                                cw.chainWeight[mi][oc] - offsets[other]);
+                    }
+                    if (reach < best) {
+                        best = reach;
+                        direct = false;
+                    }
+                }
+                for (int a = cg.jArcStart[j]; a < cg.jArcStart[j + 1]; a += 1) {
+                    int c = cg.jArcChain[a] >> 1;
+                    if ((cg.chainAccess[c] & search.bit) == 0
+                            || avoid != null && avoid.blocksChain(c)) {
+                        continue;
+                    }
+                    int w = cg.jArcTarget[a];
+                    double nd = d + weights[a];
+                    if (settled[w] || nd >= dist[w]) {
+                        continue;
+                    }
+                    double key;
+                    if (forward) {
+                        key = nd + cw.lowerBound(cg.junctions[w], ox, oy, oz, metric);
+                    } else if (opposite.settled[w] && nd + opposite.dist[w] <= limit) {
+                        key = nd;
+                    } else {
+                        continue;
+                    }
+                    if (key <= limit) {
+                        dist[w] = nd;
+                        pred[w] = a;
+                        fringe.push(w, key);
+                    }
+                }
+            }
+            if (forward && limit == Double.POSITIVE_INFINITY) {
+                limit = best * MAX_STRETCH + EPSILON;
+            }
+        }
+
+        /**
+         * Appends the tree path from the root to junction <code>j</code> onto a path that ends
+         * at the root.
+         */
+        void appendFromRoot(List<Long> path, int j) {
+            List<Integer> arcs = new ArrayList<>();
+            while (pred[j] >= 0) {
+                arcs.add(pred[j]);
+                j = Router.sourceJunction(cg, pred[j]);
+            }
+            if (pred[j] == Router.SEED_CHAIN_FROM) {
+                cg.appendChain(path, rootChain, cg.vertexChainPos[root], 0);
+            } else if (pred[j] == Router.SEED_CHAIN_TO) {
+                cg.appendChain(path, rootChain, cg.vertexChainPos[root], cg.chainSize(rootChain));
+            }
+            for (int i = arcs.size() - 1; i >= 0; i -= 1) {
+                int code = cg.jArcChain[arcs.get(i)];
+                int c = code >> 1;
+                if ((code & 1) == 0) {
+                    cg.appendChain(path, c, 0, cg.chainSize(c));
+                } else {
+                    cg.appendChain(path, c, cg.chainSize(c), 0);
+                }
+            }
+        }
+
+        /**
+         * Appends the tree path from junction <code>j</code> back to the root onto a path that
+         * ends at <code>j</code>.
+         */
+        void appendToRoot(List<Long> path, int j) {
+            while (pred[j] >= 0) {
+                int code = cg.jArcChain[pred[j]];
+                int c = code >> 1;
+                if ((code & 1) == 0) {
+                    cg.appendChain(path, c, cg.chainSize(c), 0);
+                } else {
+                    cg.appendChain(path, c, 0, cg.chainSize(c));
+                }
+                j = Router.sourceJunction(cg, pred[j]);
+            }
+            if (pred[j] == Router.SEED_CHAIN_FROM) {
+                cg.appendChain(path, rootChain, 0, cg.vertexChainPos[root]);
+            } else if (pred[j] == Router.SEED_CHAIN_TO) {
+                cg.appendChain(path, rootChain, cg.chainSize(rootChain), cg.vertexChainPos[root]);
+            }
+        }
+    }
+}
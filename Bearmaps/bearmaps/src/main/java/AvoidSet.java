@@ -0,0 +1,160 @@
+/**
+ * The roads one route request must not use: closed ways and areas to stay out of, resolved
+ * into bitsets over the vertices, ways and chains of a <code>CompactGraph</code>.
+ * <p>
+ * A road segment is blocked if its way is closed or either of its ends lies in an avoided
+ * area, and a chain is blocked if any of its segments is. The search only tests the chain bit
+ * of each arc it relaxes, and walks the segments of a blocked chain only for the chains the
+ * start and destination lie on.
+ * <p>
+ * Sets are pooled per thread like <code>SearchWorkspace</code>, and only the words a request
+ * set are cleared for the next one, so resolving and searching allocate nothing once a thread
+ * has its set.
+ */
+class AvoidSet {
+    private static final ThreadLocal<AvoidSet> CURRENT = new ThreadLocal<>();
+
+    /** The graph these bitsets are sized for. */
+    final CompactGraph graph;
+    private final Bits vertices;
+    private final Bits ways;
+    private final Bits chains;
+
+    private AvoidSet(CompactGraph graph) {
+        this.graph = graph;
+        vertices = new Bits(graph.numVertices());
+        ways = new Bits(graph.wayIds.length);
+        chains = new Bits(graph.chainFrom.length);
+    }
+
+    /**
+     * Returns this thread's empty avoid set for <code>g</code>. It stays valid until the next
+     * call to <code>acquire</code> on the same thread.
+     */
+    static AvoidSet acquire(GraphDB g) {
+        CompactGraph cg = g.getCompactGraph();
+        AvoidSet set = CURRENT.get();
+        if (set == null || set.graph != cg) {
+            set = new AvoidSet(cg);
+            CURRENT.set(set);
+        }
+        set.vertices.clear();
+        set.ways.clear();
+        set.chains.clear();
+        return set;
+    }
+
+    /** Returns whether nothing is avoided. */
+    boolean isEmpty() {
+        return chains.isEmpty();
+    }
+
+    /**
+     * Closes a way. Unknown way IDs are ignored.
+     *
+     * @param g     <code>GraphDB</code> data source the set was acquired for.
+     * @param wayID The OSM id of the way.
+     */
+    void avoidWay(GraphDB g, long wayID) {
+        int k = g.wayIndex(wayID);
+        if (k < 0 || ways.get(k)) {
+            return;
+        }
+        ways.set(k);
+        for (int i = graph.wayArcStart[k]; i < graph.wayArcStart[k + 1]; i += 1) {
+            chains.set(graph.arcChain[graph.wayArcs[i]]);
+        }
+    }
+
+    /**
+     * Avoids every vertex inside a polygon, found through the spatial index of <code>g</code>.
+     *
+     * @param g    <code>GraphDB</code> data source the set was acquired for.
+     * @param lons The longitudes of the polygon's corners, in order.
+     * @param lats The latitudes of the polygon's corners, in order.
+     */
+    void avoidArea(GraphDB g, double[] lons, double[] lats) {
+        g.verticesInPolygon(lons, lats, id -> avoidVertex(graph.indexOf(id)));
+    }
+
+    /** Avoids vertex <code>v</code> and every segment touching it. */
+    void avoidVertex(int v) {
+        if (v == CompactGraph.NONE || vertices.get(v)) {
+            return;
+        }
+        vertices.set(v);
+        for (int a = graph.arcStart(v); a < graph.arcStart(v + 1); a += 1) {
+            chains.set(graph.arcChain[a]);
+        }
+    }
+
+    /** Returns whether vertex <code>v</code> is avoided. */
+    boolean blocksVertex(int v) {
+        return vertices.get(v);
+    }
+
+    /** Returns whether any segment of chain <code>c</code> is blocked. */
+    boolean blocksChain(int c) {
+        return chains.get(c);
+    }
+
+    /** Returns whether the road segment of arc <code>a</code> is blocked. */
+    boolean blocksArc(int a) {
+        return ways.get(graph.arcWay[a]) || vertices.get(graph.arcTarget(a))
+                || vertices.get(graph.arcTarget(graph.arcTwin[a]));
+    }
+
+    /**
+     * Returns whether any segment of chain <code>c</code> between positions <code>from</code>
+     * and <code>to</code> is blocked, in either order. Position 0 is the chain's first vertex.
+     */
+    boolean blocksChainBetween(int c, int from, int to) {
+        if (!chains.get(c)) {
+            return false;
+        }
+        int lo = Math.min(from, to);
+        int hi = Math.max(from, to);
+        for (int k = lo; k < hi; k += 1) {
+            if (blocksArc(graph.chainArcs[graph.chainStart[c] + k])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** A fixed-size bitset that remembers which words are non-zero, to clear only those. */
+    private static class Bits {
+        private final long[] words;
+        private final int[] dirty;
+        private int numDirty;
+
+        Bits(int size) {
+            words = new long[(size + 63) >>> 6];
+            dirty = new int[words.length];
+        }
+
+        boolean get(int i) {
+            return (words[i >>> 6] & (1L << i)) != 0;
+        }
+
+        void set(int i) {
+            int w = i >>> 6;
+            if (words[w] == 0) {
+                dirty[numDirty] = w;
+                numDirty += 1;
+            }
+            words[w] |= 1L << i;
+        }
+
+        boolean isEmpty() {
+            return numDirty == 0;
+        }
+
+        void clear() {
+            for (int k = 0; k < numDirty; k += 1) {
+                words[dirty[k]] = 0;
+            }
+            numDirty = 0;
+        }
+    }
+}
@@ -0,0 +1,290 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Finds the locations of a category, such as cafes or libraries, closest to a coordinate.
+ * <p>
+ * Category names are interned to dense ids when the index is built. Every (location,
+ * category) pair is an entry, and the entries of each category form one contiguous range of
+ * a few shared arrays. Each range is laid out as an implicit k-d tree in the projected plane:
+ * the middle entry of a range splits it, alternately by x and by y, and the halves on either
+ * side are the subtrees. A query reads only its own category's range, so its cost depends on
+ * how many locations the category has and not on how many categories there are. Instances
+ * are immutable.
+ */
+class CategoryIndex {
+    /** The most results one query may ask for. */
+    static final int MAX_K = 100;
+
+    private final HashMap<String, Integer> categoryIDs = new HashMap<>();
+    /** Entries of category c are at positions start[c] to start[c + 1]. */
+    private final int[] start;
+    /** Projected coordinates of each entry, in k-d tree order. */
+    private final double[] xs, ys;
+    /** Location of each entry. */
+    private final int[] entryLocation;
+    private final long[] locationIDs;
+    private final double[] locationLons, locationLats;
+    /** Name handle of each location, or <code>NameArena.NONE</code> if it has no name. */
+    private final int[] locationNames;
+    private final NameArena names;
+
+    /**
+     * Indexes locations by category.
+     *
+     * @param nodes      The location of each (location, category) pair; a location in several
+     *                   categories appears once per category.
+     * @param categories The category of each pair.
+     * @param names      The names the nodes' name handles refer to.
+     */
+    CategoryIndex(List<GraphDB.Node> nodes, List<String> categories, NameArena names) {
+        this.names = names;
+        int n = nodes.size();
+        HashMap<GraphDB.Node, Integer> locations = new HashMap<>();
+        List<GraphDB.Node> distinct = new ArrayList<>();
+        int[] category = new int[n];
+        int[] location = new int[n];
+        for (int i = 0; i < n; i += 1) {
+            Integer c = categoryIDs.get(categories.get(i));
+            if (c == null) {
+                c = categoryIDs.size();
+                categoryIDs.put(categories.get(i), c);
+            }
+            category[i] = c;
+            Integer l = locations.get(nodes.get(i));
+            if (l == null) {
+                l = distinct.size();
+                locations.put(nodes.get(i), l);
+                distinct.add(nodes.get(i));
+            }
+            location[i] = l;
+        }
+
+        int numLocations = distinct.size();
+        locationIDs = new long[numLocations];
+        locationLons = new double[numLocations];
+        locationLats = new double[numLocations];
+        locationNames = new int[numLocations];
+        for (int l = 0; l < numLocations; l += 1) {
+            GraphDB.Node node = distinct.get(l);
+            locationIDs[l] = node.id;
+            locationLons[l] = node.lon;
+            locationLats[l] = node.lat;
+            locationNames[l] = node.name;
+        }
+
+        /* Group the entries by category, as in a CSR graph. */
+        int numCategories = categoryIDs.size();
+        start = new int[numCategories + 1];
+        for (int i = 0; i < n; i += 1) {
+            start[category[i] + 1] += 1;
+        }
+        for (int c = 0; c < numCategories; c += 1) {
+            start[c + 1] += start[c];
+        }
+        int[] fill = Arrays.copyOf(start, numCategories);
+        entryLocation = new int[n];
+        xs = new double[n];
+        ys = new double[n];
+        for (int i = 0; i < n; i += 1) {
+            int e = fill[category[i]];
+            fill[category[i]] += 1;
+            int l = location[i];
+            entryLocation[e] = l;
+            xs[e] = GraphDB.projectToX(locationLons[l], locationLats[l]);
+            ys[e] = GraphDB.projectToY(locationLons[l], locationLats[l]);
+        }
+        for (int c = 0; c < numCategories; c += 1) {
+            build(start[c], start[c + 1], true);
+        }
+    }
+
+    /**
+     * Arranges entries lo to hi as a k-d tree: the middle entry gets the median coordinate,
+     * with smaller ones before it and larger ones after, and both halves are arranged in turn
+     * along the other coordinate.
+     */
+    private void build(int lo, int hi, boolean byX) {
+        if (hi - lo <= 1) {
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        select(lo, hi - 1, mid, byX);
+        build(lo, mid, !byX);
+        build(mid + 1, hi, !byX);
+    }
+
+    /** Moves the entry with rank <code>k</code> among entries lo to hi, inclusive, to k. */
+    private void select(int lo, int hi, int k, boolean byX) {
+        double[] keys = byX ? xs : ys;
+        while (lo < hi) {
+            double pivot = keys[(lo + hi) >>> 1];
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (keys[i] < pivot) {
+                    i += 1;
+                }
+                while (keys[j] > pivot) {
+                    j -= 1;
+                }
+                if (i <= j) {
+                    swap(i, j);
+                    i += 1;
+                    j -= 1;
+                }
+            }
+            if (k <= j) {
+                hi = j;
+            } else if (k >= i) {
+                lo = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private void swap(int i, int j) {
+        double x = xs[i];
+        xs[i] = xs[j];
+        xs[j] = x;
+        double y = ys[i];
+        ys[i] = ys[j];
+        ys[j] = y;
+        int l = entryLocation[i];
+        entryLocation[i] = entryLocation[j];
+        entryLocation[j] = l;
+    }
+
+    /** Returns the number of categories. */
+    int numCategories() {
+        return categoryIDs.size();
+    }
+
+    /**
+     * Returns the locations of a category closest to a coordinate, closest first.
+     *
+     * @param category The category, such as "cafe".
+     * @param lon      The longitude of the coordinate.
+     * @param lat      The latitude of the coordinate.
+     * @param k        The most locations to return.
+     * @return Up to <code>k</code> locations, or none if the category is unknown.
+     */
+    List<ReverseGeocoder.Match> nearest(String category, double lon, double lat, int k) {
+        Integer c = categoryIDs.get(category);
+        List<ReverseGeocoder.Match> result = new ArrayList<>();
+        if (c == null || k <= 0) {
+            return result;
+        }
+        double x = GraphDB.projectToX(lon, lat);
+        double y = GraphDB.projectToY(lon, lat);
+        Best best = new Best(Math.min(k, start[c + 1] - start[c]));
+        search(start[c], start[c + 1], true, x, y, best);
+        int[] order = best.sorted();
+        for (int e : order) {
+            int l = entryLocation[e];
+            String name = locationNames[l] == NameArena.NONE ? null
+                    : names.get(locationNames[l]);
+            double d = Math.hypot(xs[e] - x, ys[e] - y) * GraphDB.R;
+            result.add(new ReverseGeocoder.Match(locationIDs[l], name, locationLons[l],
+                    locationLats[l], d));
+        }
+        return result;
+    }
+
+    /** Returns the bytes the index takes, not counting object headers or the shared names. */
+    long bytes() {
+        return 4L * start.length + 20L * xs.length + 28L * locationIDs.length;
+    }
+
+    private void search(int lo, int hi, boolean byX, double x, double y, Best best) {
+        if (lo >= hi) {
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        double dx = xs[mid] - x;
+        double dy = ys[mid] - y;
+        best.offer(mid, dx * dx + dy * dy);
+        double toSplit = byX ? -dx : -dy;
+        if (toSplit < 0) {
+            search(lo, mid, !byX, x, y, best);
+            if (toSplit * toSplit < best.bound()) {
+                search(mid + 1, hi, !byX, x, y, best);
+            }
+        } else {
+            search(mid + 1, hi, !byX, x, y, best);
+            if (toSplit * toSplit < best.bound()) {
+                search(lo, mid, !byX, x, y, best);
+            }
+        }
+    }
+
+    /** The k closest entries seen so far, as a max-heap on squared distance. */
+    private static class Best {
+        private final int[] items;
+        private final double[] keys;
+        private int size;
+
+        Best(int k) {
+            items = new int[k];
+            keys = new double[k];
+        }
+
+        /** Returns the squared distance an entry must beat to be kept. */
+        double bound() {
+            return size < items.length ? Double.POSITIVE_INFINITY : keys[0];
+        }
+
+        void offer(int item, double key) {
+            if (size < items.length) {
+                int i = size;
+                size += 1;
+                while (i > 0 && keys[(i - 1) / 2] < key) {
+                    items[i] = items[(i - 1) / 2];
+                    keys[i] = keys[(i - 1) / 2];
+                    i = (i - 1) / 2;
+                }
+                items[i] = item;
+                keys[i] = key;
+            } else if (key < keys[0]) {
+                siftDown(item, key);
+            }
+        }
+
+        /** Replaces the root with (item, key) and restores the heap below it. */
+        private void siftDown(int item, double key) {
+            int i = 0;
+            while (2 * i + 1 < size) {
+                int child = 2 * i + 1;
+                if (child + 1 < size && keys[child + 1] > keys[child]) {
+                    child += 1;
+                }
+                if (keys[child] <= key) {
+                    break;
+                }
+                items[i] = items[child];
+                keys[i] = keys[child];
+                i = child;
+            }
+            items[i] = item;
+            keys[i] = key;
+        }
+
+        /** Empties the heap, returning its entries closest first. */
+        int[] sorted() {
+            int[] result = new int[size];
+            for (int i = size - 1; i >= 0; i -= 1) {
+                result[i] = items[0];
+                int lastItem = items[size - 1];
+                double lastKey = keys[size - 1];
+                size -= 1;
+                if (size > 0) {
+                    siftDown(lastItem, lastKey);
+                }
+            }
+            return result;
+        }
+    }
+}
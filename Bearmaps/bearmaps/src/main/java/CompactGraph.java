@@ -0,0 +1,995 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/**
+ * A read-only, array-backed copy of the cleaned <code>GraphDB</code> used by the
+ * <code>Router</code>. Vertices are numbered densely from 0 in the order a Hilbert curve over
+ * their projected coordinates visits them, so vertices close on the map are close in every
+ * per-vertex array, and the undirected road graph is stored as directed arcs in compressed
+ * sparse row (CSR) form. Arcs, junctions and chains are numbered in the order of the vertices
+ * they start from, so they inherit the same locality: the arcs a search relaxes next tend to
+ * lie on memory it has just read.
+ * <p>
+ * Most OSM vertices are shape points with exactly two neighbors. On top of the full graph this
+ * class therefore also builds a simplified search graph in which every maximal run of degree-2
+ * vertices (a <em>chain</em>) is collapsed into a single weighted edge between two junctions.
+ * Each chain keeps its original arcs in order, which serves as the polyline used to expand a
+ * junction-level route back into the full list of vertices.
+ * <p>
+ * The vertex IDs, coordinates and arcs are read through NIO buffers, which either wrap arrays
+ * or are mapped from a <code>NodeStore</code>, so a large map's vertices can live outside the
+ * heap; see <code>stored</code>.
+ */
+public class CompactGraph {
+    /** Marker for a vertex that is not the interior of a chain, or an arc with no twin. */
+    static final int NONE = -1;
+    /** Seconds in an hour, for travel times computed from speeds in miles per hour. */
+    static final double SECONDS_PER_HOUR = 3600.0;
+    /** Shrinks heuristic bounds slightly so float rounding of arc lengths cannot break them. */
+    private static final double BOUND_SLACK = 1 - 1e-6;
+    /** Bits per coordinate of the grid the Hilbert curve runs through. */
+    private static final int HILBERT_ORDER = 16;
+
+    /** OSM id of each vertex, indexed by vertex. */
+    private final LongBuffer ids;
+    /**
+     * The OSM ids sorted ascending, and the vertex with each, for <code>indexOf</code>; null
+     * if the graph is kept in a node store, which has its own.
+     */
+    private final long[] sortedIds;
+    private final int[] sortedVertex;
+    /** Vertex coordinates, indexed by vertex. */
+    private final DoubleBuffer lats, lons;
+
+    /** Arcs leaving vertex v are arcStart[v] (inclusive) to arcStart[v + 1] (exclusive). */
+    private final IntBuffer arcStart;
+    /** Head vertex of each arc. */
+    private final IntBuffer arcTarget;
+    /** The store the buffers above are mapped from, or null if they wrap heap arrays. */
+    private final NodeStore store;
+    /** The arc running the opposite way along the same road segment. */
+    final int[] arcTwin;
+    /*
+     * Packed per-arc attribute table, parallel to arcTarget and filled from the way each road
+     * segment was parsed from.
+     */
+    /** Great-circle length of each arc in miles. */
+    final float[] arcLength;
+    /** Speed limit of each arc in miles per hour, as an unsigned byte. */
+    final byte[] arcSpeed;
+    /** Highway class of each arc; see <code>GraphBuildingHandler.HIGHWAY_CLASSES</code>. */
+    final byte[] arcClass;
+    /** Index of the way each arc belongs to; see <code>GraphDB.way</code>. */
+    final int[] arcWay;
+    /** Profiles allowed on each arc, as a mask of <code>Router.Profile</code> bits. */
+    final byte[] arcAccess;
+    /** Initial bearing of each arc in degrees, for turn-by-turn directions. */
+    final float[] arcBearing;
+    /** Name handle of each way by way index, or <code>NameArena.NONE</code> if unnamed. */
+    final int[] wayNames;
+    private final NameArena names;
+    /** OSM id of each way by way index. */
+    final long[] wayIds;
+    /** Arcs of way k, in both directions, are wayArcs[wayArcStart[k]] to wayArcStart[k + 1]. */
+    final int[] wayArcStart;
+    final int[] wayArcs;
+    /** Unit vector of each vertex on the sphere, used for a trigonometry-free A* heuristic. */
+    final double[] unitX, unitY, unitZ;
+    /** Junction index of each vertex, or <code>NONE</code> if it is a chain interior. */
+    final int[] junctionOf;
+    /** Vertex of each junction. */
+    final int[] junctions;
+
+    /** Original arcs of chain c are chainArcs[chainStart[c]] to chainArcs[chainStart[c + 1]]. */
+    final int[] chainStart;
+    /** Original arcs of every chain, in order from the chain's first to its last vertex. */
+    final int[] chainArcs;
+    /** First and last vertex of each chain; both are junctions. */
+    final int[] chainFrom, chainTo;
+    /** Profiles allowed on every arc of each chain, as in <code>arcAccess</code>. */
+    final byte[] chainAccess;
+    /** Chain each arc belongs to, in either direction. */
+    final int[] arcChain;
+
+    /** Chain holding each interior vertex, or <code>NONE</code> for junctions. */
+    final int[] vertexChain;
+    /** Position k of each interior vertex within its chain, counting the first vertex as 0. */
+    final int[] vertexChainPos;
+
+    /** Search arcs leaving junction j are jArcStart[j] to jArcStart[j + 1]. */
+    final int[] jArcStart;
+    /** Head junction of each search arc. */
+    final int[] jArcTarget;
+    /** Chain of each search arc, shifted left once, with the low bit set if run backwards. */
+    final int[] jArcChain;
+    /** Self-loop chains at junction j are jLoopChain[jLoopStart[j]] to jLoopStart[j + 1]. */
+    final int[] jLoopStart;
+    /** Chains that start and end at the same junction, grouped by that junction. */
+    final int[] jLoopChain;
+
+    /** The weights as built from the speed limits, before any overrides. */
+    private final Weights base;
+    /** The weights searches currently read; replaced as a whole when overrides are applied. */
+    private volatile Weights weights;
+
+    /**
+     * Build the compact graph from the vertices and adjacency lists of <code>g</code>.
+     *
+     * @param g A cleaned <code>GraphDB</code>.
+     */
+    CompactGraph(GraphDB g) {
+        this(g, new Layout(g, Input.of(g)), null);
+    }
+
+    /**
+     * Builds the compact graph of <code>g</code> from vertices and edges gathered without a
+     * node map, and keeps its vertex IDs, coordinates and arcs in a <code>NodeStore</code>
+     * instead of on the heap. Only the per-arc attributes, chains and junction graph stay on
+     * the heap.
+     *
+     * @param g     The graph whose ways the edges of <code>input</code> come from.
+     * @param input The vertices and edges.
+     * @param file  The node store to write, replaced if it exists.
+     * @return The compact graph, whose <code>store</code> is mapped from <code>file</code>.
+     * @throws IOException If the node store cannot be written or mapped.
+     */
+    static CompactGraph stored(GraphDB g, Input input, File file) throws IOException {
+        Layout layout = new Layout(g, input);
+        NodeStore.write(file, layout.ids, layout.lons, layout.lats, layout.names,
+                layout.sortedIds, layout.sortedVertex, layout.arcStart, layout.arcTarget);
+        return new CompactGraph(g, layout, NodeStore.map(file));
+    }
+
+    /**
+     * Builds the rest of the graph on the vertices and arcs of <code>layout</code>, read from
+     * <code>store</code> if it is not null and from the arrays of <code>layout</code> if it is.
+     */
+    private CompactGraph(GraphDB g, Layout layout, NodeStore store) {
+        this.store = store;
+        if (store == null) {
+            ids = LongBuffer.wrap(layout.ids);
+            lats = DoubleBuffer.wrap(layout.lats);
+            lons = DoubleBuffer.wrap(layout.lons);
+            arcStart = IntBuffer.wrap(layout.arcStart);
+            arcTarget = IntBuffer.wrap(layout.arcTarget);
+            sortedIds = layout.sortedIds;
+            sortedVertex = layout.sortedVertex;
+        } else {
+            ids = store.ids;
+            lats = store.lats;
+            lons = store.lons;
+            arcStart = store.arcStart;
+            arcTarget = store.arcTarget;
+            sortedIds = null;
+            sortedVertex = null;
+        }
+        int n = layout.ids.length;
+        int m = layout.arcTarget.length;
+        arcWay = layout.arcWay;
+        arcAccess = layout.arcAccess;
+        unitX = new double[n];
+        unitY = new double[n];
+        unitZ = new double[n];
+        for (int v = 0; v < n; v += 1) {
+            double phi = Math.toRadians(lat(v));
+            double lambda = Math.toRadians(lon(v));
+            unitX[v] = Math.cos(phi) * Math.cos(lambda);
+            unitY[v] = Math.cos(phi) * Math.sin(lambda);
+            unitZ[v] = Math.sin(phi);
+        }
+        arcLength = new float[m];
+        arcSpeed = new byte[m];
+        arcClass = new byte[m];
+        arcBearing = new float[m];
+        for (int v = 0; v < n; v += 1) {
+            for (int a = arcStart(v); a < arcStart(v + 1); a += 1) {
+                GraphDB.Way way = g.way(arcWay[a]);
+                int w = arcTarget(a);
+                arcLength[a] = (float) distance(v, w);
+                arcSpeed[a] = (byte) way.speedMph;
+                arcClass[a] = way.highwayClass;
+                arcBearing[a] = (float) GraphDB.bearing(lon(v), lat(v), lon(w), lat(w));
+            }
+        }
+        names = g.getNames();
+        wayNames = new int[g.numWays()];
+        wayIds = new long[g.numWays()];
+        for (int k = 0; k < wayNames.length; k += 1) {
+            wayNames[k] = g.way(k).name;
+            wayIds[k] = g.way(k).id;
+        }
+        wayArcStart = new int[wayIds.length + 1];
+        for (int a = 0; a < m; a += 1) {
+            wayArcStart[arcWay[a] + 1] += 1;
+        }
+        for (int k = 0; k < wayIds.length; k += 1) {
+            wayArcStart[k + 1] += wayArcStart[k];
+        }
+        wayArcs = new int[m];
+        int[] wayFill = Arrays.copyOf(wayArcStart, wayIds.length);
+        for (int a = 0; a < m; a += 1) {
+            wayArcs[wayFill[arcWay[a]]++] = a;
+        }
+        arcTwin = new int[m];
+        for (int v = 0; v < n; v += 1) {
+            for (int a = arcStart(v); a < arcStart(v + 1); a += 1) {
+                arcTwin[a] = findArc(arcTarget(a), v);
+            }
+        }
+
+        /*
+         * Every vertex that is not of degree 2 is a junction, and so is every vertex where the
+         * profiles allowed on the road change, so all arcs of a chain allow the same profiles.
+         * Pure cycles get a junction added later.
+         */
+        boolean[] isJunction = new boolean[n];
+        for (int v = 0; v < n; v += 1) {
+            isJunction[v] = degree(v) != 2
+                    || arcAccess[arcStart(v)] != arcAccess[arcStart(v) + 1];
+        }
+        boolean[] arcUsed = new boolean[m];
+        boolean[] covered = new boolean[n];
+        List<int[]> chains = new ArrayList<>();
+        for (int v = 0; v < n; v += 1) {
+            if (isJunction[v]) {
+                walkChains(v, isJunction, arcUsed, covered, chains);
+            }
+        }
+        for (int v = 0; v < n; v += 1) {
+            if (!covered[v] && !isJunction[v]) {
+                isJunction[v] = true;
+                walkChains(v, isJunction, arcUsed, covered, chains);
+            }
+        }
+
+        junctionOf = new int[n];
+        int numJunctions = 0;
+        for (int v = 0; v < n; v += 1) {
+            junctionOf[v] = isJunction[v] ? numJunctions++ : NONE;
+        }
+        junctions = new int[numJunctions];
+        for (int v = 0; v < n; v += 1) {
+            if (isJunction[v]) {
+                junctions[junctionOf[v]] = v;
+            }
+        }
+
+        int numChains = chains.size();
+        chainStart = new int[numChains + 1];
+        for (int c = 0; c < numChains; c += 1) {
+            chainStart[c + 1] = chainStart[c] + chains.get(c).length;
+        }
+        chainArcs = new int[chainStart[numChains]];
+        chainFrom = new int[numChains];
+        chainTo = new int[numChains];
+        chainAccess = new byte[numChains];
+        int numMetrics = Router.Metric.values().length;
+        double[][] chainWeight = new double[numMetrics][numChains];
+        arcChain = new int[m];
+        vertexChain = new int[n];
+        vertexChainPos = new int[n];
+        double[][] vertexChainOffset = new double[numMetrics][n];
+        Arrays.fill(vertexChain, NONE);
+        for (int c = 0; c < numChains; c += 1) {
+            int[] arcs = chains.get(c);
+            System.arraycopy(arcs, 0, chainArcs, chainStart[c], arcs.length);
+            chainFrom[c] = arcTarget(arcTwin[arcs[0]]);
+            chainTo[c] = arcTarget(arcs[arcs.length - 1]);
+            chainAccess[c] = arcAccess[arcs[0]];
+            for (int k = 0; k < arcs.length; k += 1) {
+                arcChain[arcs[k]] = c;
+                arcChain[arcTwin[arcs[k]]] = c;
+            }
+            for (int k = 0; k < arcs.length - 1; k += 1) {
+                int v = arcTarget(arcs[k]);
+                vertexChain[v] = c;
+                vertexChainPos[v] = k + 1;
+            }
+            for (Router.Metric metric : Router.Metric.values()) {
+                int mi = metric.ordinal();
+                double weight = 0;
+                for (int k = 0; k < arcs.length; k += 1) {
+                    weight += arcWeight(arcs[k], metric);
+                    if (k < arcs.length - 1) {
+                        vertexChainOffset[mi][arcTarget(arcs[k])] = weight;
+                    }
+                }
+                chainWeight[mi][c] = weight;
+            }
+        }
+
+        /* Self-loop chains can never shorten a route between two junctions, so skip them. */
+        jArcStart = new int[numJunctions + 1];
+        for (int c = 0; c < numChains; c += 1) {
+            if (chainFrom[c] != chainTo[c]) {
+                jArcStart[junctionOf[chainFrom[c]] + 1] += 1;
+                jArcStart[junctionOf[chainTo[c]] + 1] += 1;
+            }
+        }
+        for (int j = 0; j < numJunctions; j += 1) {
+            jArcStart[j + 1] += jArcStart[j];
+        }
+        int[] fill = Arrays.copyOf(jArcStart, numJunctions);
+        jArcTarget = new int[jArcStart[numJunctions]];
+        jArcChain = new int[jArcTarget.length];
+        double[][] jArcWeight = new double[numMetrics][jArcTarget.length];
+        for (int c = 0; c < numChains; c += 1) {
+            if (chainFrom[c] == chainTo[c]) {
+                continue;
+            }
+            int from = junctionOf[chainFrom[c]];
+            int to = junctionOf[chainTo[c]];
+            int a = fill[from]++;
+            int back = fill[to]++;
+            jArcTarget[a] = to;
+            jArcChain[a] = c << 1;
+            jArcTarget[back] = from;
+            jArcChain[back] = (c << 1) | 1;
+            for (int mi = 0; mi < numMetrics; mi += 1) {
+                jArcWeight[mi][a] = chainWeight[mi][c];
+                jArcWeight[mi][back] = chainWeight[mi][c];
+            }
+        }
+
+        /* Self-loop chains are kept aside so searches that list reachable vertices see them. */
+        jLoopStart = new int[numJunctions + 1];
+        for (int c = 0; c < numChains; c += 1) {
+            if (chainFrom[c] == chainTo[c]) {
+                jLoopStart[junctionOf[chainFrom[c]] + 1] += 1;
+            }
+        }
+        for (int j = 0; j < numJunctions; j += 1) {
+            jLoopStart[j + 1] += jLoopStart[j];
+        }
+        fill = Arrays.copyOf(jLoopStart, numJunctions);
+        jLoopChain = new int[jLoopStart[numJunctions]];
+        for (int c = 0; c < numChains; c += 1) {
+            if (chainFrom[c] == chainTo[c]) {
+                jLoopChain[fill[junctionOf[chainFrom[c]]]++] = c;
+            }
+        }
+
+        float[] speeds = new float[m];
+        for (int a = 0; a < m; a += 1) {
+            speeds[a] = arcSpeed[a] & 0xFF;
+        }
+        base = new Weights(new long[numMetrics], speeds, chainWeight, vertexChainOffset,
+                jArcWeight);
+        weights = base;
+    }
+
+    /**
+     * Follow every unused arc out of junction <code>v</code> until the next junction, recording
+     * each walk as a new chain.
+     */
+    private void walkChains(int v, boolean[] isJunction, boolean[] arcUsed, boolean[] covered,
+                            List<int[]> chains) {
+        covered[v] = true;
+        for (int first = arcStart(v); first < arcStart(v + 1); first += 1) {
+            if (arcUsed[first]) {
+                continue;
+            }
+            List<Integer> arcs = new ArrayList<>();
+            int a = first;
+            while (true) {
+                arcs.add(a);
+                arcUsed[a] = true;
+                arcUsed[arcTwin[a]] = true;
+                int w = arcTarget(a);
+                covered[w] = true;
+                if (isJunction[w]) {
+                    break;
+                }
+                int back = arcTwin[a];
+                a = arcStart(w) == back ? arcStart(w) + 1 : arcStart(w);
+            }
+            int[] chain = new int[arcs.size()];
+            for (int k = 0; k < chain.length; k += 1) {
+                chain[k] = arcs.get(k);
+            }
+            chains.add(chain);
+        }
+    }
+
+    /**
+     * Returns the positions of the vertices with the given coordinates in the order a Hilbert
+     * curve visits them. The curve runs through a grid of 2^<code>HILBERT_ORDER</code> cells a
+     * side laid over the bounding box of the projected coordinates; vertices in one cell keep
+     * the order they are given in.
+     */
+    private static int[] hilbertOrder(double[] lons, double[] lats) {
+        int n = lons.length;
+        double[] xs = new double[n];
+        double[] ys = new double[n];
+        double minX = Double.POSITIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < n; i += 1) {
+            xs[i] = GraphDB.projectToX(lons[i], lats[i]);
+            ys[i] = GraphDB.projectToY(lons[i], lats[i]);
+            minX = Math.min(minX, xs[i]);
+            minY = Math.min(minY, ys[i]);
+            maxX = Math.max(maxX, xs[i]);
+            maxY = Math.max(maxY, ys[i]);
+        }
+        int cells = 1 << HILBERT_ORDER;
+        double extent = Math.max(Math.max(maxX - minX, maxY - minY), Double.MIN_VALUE);
+        double scale = (cells - 1) / extent;
+        long[] keys = new long[n];
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i += 1) {
+            int cx = (int) ((xs[i] - minX) * scale);
+            int cy = (int) ((ys[i] - minY) * scale);
+            keys[i] = hilbertIndex(cx, cy);
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> keys[a] != keys[b] ? Long.compare(keys[a], keys[b])
+                : Integer.compare(a, b));
+        int[] result = new int[n];
+        for (int i = 0; i < n; i += 1) {
+            result[i] = order[i];
+        }
+        return result;
+    }
+
+    /**
+     * Returns the position of cell (x, y) along the Hilbert curve through a grid of
+     * 2^<code>HILBERT_ORDER</code> cells a side.
+     *
+     * @source https://en.wikipedia.org/wiki/Hilbert_curve
+     */
+    static long hilbertIndex(int x, int y) {
+        long d = 0;
+        for (int s = 1 << (HILBERT_ORDER - 1); s > 0; s >>= 1) {
+            int rx = (x & s) > 0 ? 1 : 0;
+            int ry = (y & s) > 0 ? 1 : 0;
+            d += (long) s * s * ((3 * rx) ^ ry);
+            if (ry == 0) {
+                if (rx == 1) {
+                    x = (1 << HILBERT_ORDER) - 1 - x;
+                    y = (1 << HILBERT_ORDER) - 1 - y;
+                }
+                int t = x;
+                x = y;
+                y = t;
+            }
+        }
+        return d;
+    }
+
+    /**
+     * Returns the dense index of the vertex with OSM id <code>id</code>.
+     *
+     * @param id An OSM vertex id.
+     * @return The index of that vertex, or <code>NONE</code> if it is not in the graph.
+     */
+    int indexOf(long id) {
+        if (store != null) {
+            return store.indexOf(id);
+        }
+        int i = Arrays.binarySearch(sortedIds, id);
+        return i >= 0 ? sortedVertex[i] : NONE;
+    }
+
+    /** Returns the OSM id of vertex <code>v</code>. */
+    long id(int v) {
+        return ids.get(v);
+    }
+
+    /** Returns the longitude of vertex <code>v</code>. */
+    double lon(int v) {
+        return lons.get(v);
+    }
+
+    /** Returns the latitude of vertex <code>v</code>. */
+    double lat(int v) {
+        return lats.get(v);
+    }
+
+    /**
+     * Returns the first arc leaving vertex <code>v</code>; those leaving it end before
+     * <code>arcStart(v + 1)</code>.
+     */
+    int arcStart(int v) {
+        return arcStart.get(v);
+    }
+
+    /** Returns the head vertex of arc <code>a</code>. */
+    int arcTarget(int a) {
+        return arcTarget.get(a);
+    }
+
+    /** Returns the node store the vertices and arcs are read from, or null if on the heap. */
+    NodeStore store() {
+        return store;
+    }
+
+    /** Returns the number of vertices. */
+    int numVertices() {
+        return ids.capacity();
+    }
+
+    /** Returns the number of directed arcs; each road segment counts twice. */
+    int numArcs() {
+        return arcTarget.capacity();
+    }
+
+    /** Returns the number of junctions in the simplified search graph. */
+    int numJunctions() {
+        return junctions.length;
+    }
+
+    /** Returns the number of directed arcs in the simplified search graph. */
+    int numJunctionArcs() {
+        return jArcTarget.length;
+    }
+
+    /** Returns the name of the way arc <code>a</code> belongs to, or "" if it has none. */
+    String wayName(int a) {
+        int name = wayNames[arcWay[a]];
+        return name == NameArena.NONE ? "" : names.get(name);
+    }
+
+    /**
+     * Returns whether <code>profile</code> may travel from vertex <code>v</code>: whether it
+     * may use the chain <code>v</code> lies inside, or any arc leaving junction <code>v</code>.
+     */
+    boolean allows(int v, Router.Profile profile) {
+        if (v == NONE) {
+            return false;
+        }
+        int bit = profile.bit();
+        if (vertexChain[v] != NONE) {
+            return (chainAccess[vertexChain[v]] & bit) != 0;
+        }
+        for (int a = arcStart(v); a < arcStart(v + 1); a += 1) {
+            if ((arcAccess[a] & bit) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns whether a segment of way <code>a</code> should be kept over one of way
+     * <code>b</code> along the same pair of vertices: drivable ways first, then faster ones.
+     */
+    private static boolean preferred(GraphDB.Way a, GraphDB.Way b) {
+        int drive = Router.Profile.DRIVE.bit();
+        boolean aDrives = (a.access & drive) != 0;
+        boolean bDrives = (b.access & drive) != 0;
+        if (aDrives != bDrives) {
+            return aDrives;
+        }
+        return a.speedMph > b.speedMph;
+    }
+
+    /** Returns the number of distinct neighbors of vertex <code>v</code>. */
+    int degree(int v) {
+        return arcStart(v + 1) - arcStart(v);
+    }
+
+    /** Returns the arc from <code>v</code> to <code>w</code>, or <code>NONE</code>. */
+    int findArc(int v, int w) {
+        for (int a = arcStart(v); a < arcStart(v + 1); a += 1) {
+            if (arcTarget(a) == w) {
+                return a;
+            }
+        }
+        return NONE;
+    }
+
+    /** Returns the number of arcs in chain <code>c</code>. */
+    int chainSize(int c) {
+        return chainStart[c + 1] - chainStart[c];
+    }
+
+    /**
+     * Returns the k-th vertex of chain <code>c</code>, where vertex 0 is its first junction and
+     * vertex <code>chainSize(c)</code> is its last.
+     */
+    int chainVertex(int c, int k) {
+        if (k == 0) {
+            return chainFrom[c];
+        }
+        return arcTarget(chainArcs[chainStart[c] + k - 1]);
+    }
+
+    /**
+     * Append the OSM ids of the vertices of chain <code>c</code> from position <code>from</code>
+     * to position <code>to</code> onto <code>path</code>. The vertex at <code>from</code> is
+     * assumed to already be on the path and is not appended again.
+     */
+    void appendChain(List<Long> path, int c, int from, int to) {
+        int step = from < to ? 1 : -1;
+        for (int k = from + step; k != to + step; k += step) {
+            path.add(id(chainVertex(c, k)));
+        }
+    }
+
+    /**
+     * Returns the weight of arc <code>a</code> under <code>metric</code>: its length in miles,
+     * or the seconds needed to drive it at its speed limit.
+     */
+    double arcWeight(int a, Router.Metric metric) {
+        if (metric == Router.Metric.TIME) {
+            return (double) arcLength[a] / (arcSpeed[a] & 0xFF) * SECONDS_PER_HOUR;
+        }
+        return arcLength[a];
+    }
+
+    /** Returns the great-circle distance between vertices <code>v</code> and <code>w</code>. */
+    double distance(int v, int w) {
+        return GraphDB.distance(lon(v), lat(v), lon(w), lat(w));
+    }
+
+    /** Returns the current weights. A search should read them once and use them throughout. */
+    Weights weights() {
+        return weights;
+    }
+
+    /**
+     * Applies a batch of speed overrides on top of the current weights and atomically publishes
+     * the result. Only the chains containing a changed arc are re-weighed, in parallel, into
+     * copies of the travel-time arrays; searches already running keep the weights they started
+     * with. Batches are applied one at a time.
+     *
+     * @param batch The overrides to apply.
+     * @return The new weights, or the current ones if the batch changed nothing.
+     */
+    Weights applyOverrides(WeightOverrides batch) {
+        synchronized (base) {
+            Weights old = weights;
+            float[] speeds = old.arcSpeed.clone();
+            boolean[] chainChanged = new boolean[chainFrom.length];
+            float[] waySpeed = batch.waySpeeds(wayIds);
+            IntStream.range(0, speeds.length).parallel().forEach(a -> {
+                float speed = waySpeed[arcWay[a]];
+                if (!Float.isNaN(speed) && speed != speeds[a]) {
+                    speeds[a] = speed;
+                    chainChanged[arcChain[a]] = true;
+                }
+            });
+            batch.forEachEdge((from, to, speed) -> {
+                int a = findArc(indexOf(from), indexOf(to));
+                if (a != NONE && speed != speeds[a]) {
+                    speeds[a] = speed;
+                    speeds[arcTwin[a]] = speed;
+                    chainChanged[arcChain[a]] = true;
+                }
+            });
+            return publish(old, speeds, chainChanged);
+        }
+    }
+
+    /**
+     * Applies the speed overrides in force in <code>previous</code> to this graph, which a
+     * change file made from it, so they outlive the change. An overridden arc there passes its
+     * speed to the arc here that joins the same two vertices along the same way; arcs of ways
+     * the change removed or moved off those vertices lose theirs.
+     *
+     * @param previous The graph this one replaces.
+     * @return The number of arcs whose speed was carried over.
+     */
+    int carryOverrides(CompactGraph previous) {
+        Weights theirs = previous.weights;
+        if (theirs.arcSpeed == previous.base.arcSpeed) {
+            return 0;
+        }
+        synchronized (base) {
+            Weights old = weights;
+            float[] speeds = old.arcSpeed.clone();
+            boolean[] chainChanged = new boolean[chainFrom.length];
+            int carried = 0;
+            for (int pv = 0; pv < previous.numVertices(); pv += 1) {
+                for (int b = previous.arcStart(pv); b < previous.arcStart(pv + 1); b += 1) {
+                    float speed = theirs.arcSpeed[b];
+                    if (speed == previous.base.arcSpeed[b]) {
+                        continue;
+                    }
+                    int v = indexOf(previous.id(pv));
+                    int w = indexOf(previous.id(previous.arcTarget(b)));
+                    int a = v == NONE || w == NONE ? NONE : findArc(v, w);
+                    if (a == NONE || wayIds[arcWay[a]] != previous.wayIds[previous.arcWay[b]]) {
+                        continue;
+                    }
+                    carried += 1;
+                    if (speed != speeds[a]) {
+                        speeds[a] = speed;
+                        chainChanged[arcChain[a]] = true;
+                    }
+                }
+            }
+            publish(old, speeds, chainChanged);
+            return carried;
+        }
+    }
+
+    /**
+     * Publishes weights with the given arc speeds, re-weighing the marked chains, or keeps
+     * <code>old</code> if none is marked; holds the lock on <code>base</code>.
+     */
+    private Weights publish(Weights old, float[] speeds, boolean[] chainChanged) {
+        int[] changed = IntStream.range(0, chainChanged.length).parallel()
+                .filter(c -> chainChanged[c]).toArray();
+        if (changed.length == 0) {
+            return old;
+        }
+        weights = reweigh(old, speeds, changed);
+        return weights;
+    }
+
+    /** Drops every override and atomically publishes the weights built from speed limits. */
+    Weights clearOverrides() {
+        synchronized (base) {
+            Weights old = weights;
+            long[] versions = old.versions.clone();
+            for (int mi = 0; mi < versions.length; mi += 1) {
+                if (old.chainWeight[mi] != base.chainWeight[mi]) {
+                    versions[mi] += 1;
+                }
+            }
+            weights = new Weights(versions, base.arcSpeed, base.chainWeight,
+                    base.vertexChainOffset, base.jArcWeight);
+            return weights;
+        }
+    }
+
+    /**
+     * Returns new weights with the given arc speeds, re-weighing the listed chains under every
+     * metric that depends on speed. Arrays of other metrics are shared with <code>old</code>.
+     */
+    private Weights reweigh(Weights old, float[] speeds, int[] changed) {
+        int mi = Router.Metric.TIME.ordinal();
+        double[][] chainWeight = old.chainWeight.clone();
+        double[][] vertexChainOffset = old.vertexChainOffset.clone();
+        double[][] jArcWeight = old.jArcWeight.clone();
+        chainWeight[mi] = chainWeight[mi].clone();
+        vertexChainOffset[mi] = vertexChainOffset[mi].clone();
+        jArcWeight[mi] = jArcWeight[mi].clone();
+        long[] versions = old.versions.clone();
+        versions[mi] += 1;
+        Weights next = new Weights(versions, speeds, chainWeight, vertexChainOffset, jArcWeight);
+        Arrays.stream(changed).parallel().forEach(c -> {
+            double weight = 0;
+            for (int i = chainStart[c]; i < chainStart[c + 1]; i += 1) {
+                int a = chainArcs[i];
+                weight += next.arcWeight(a, Router.Metric.TIME);
+                if (i < chainStart[c + 1] - 1) {
+                    next.vertexChainOffset[mi][arcTarget(a)] = weight;
+                }
+            }
+            next.chainWeight[mi][c] = weight;
+            if (chainFrom[c] != chainTo[c]) {
+                setSearchArcWeight(next.jArcWeight[mi], junctionOf[chainFrom[c]], c << 1, weight);
+                setSearchArcWeight(next.jArcWeight[mi], junctionOf[chainTo[c]], (c << 1) | 1,
+                        weight);
+            }
+        });
+        return next;
+    }
+
+    /** Sets the weight of the search arc out of junction j that runs along the given chain. */
+    private void setSearchArcWeight(double[] jArcWeight, int j, int chainCode, double weight) {
+        for (int a = jArcStart[j]; a < jArcStart[j + 1]; a += 1) {
+            if (jArcChain[a] == chainCode) {
+                jArcWeight[a] = weight;
+            }
+        }
+    }
+
+    /**
+     * The vertices and edges a compact graph is built from, numbered in ascending order of
+     * OSM ID. The edges out of each vertex are in the order their ways were added, with the
+     * duplicates where ways share a segment.
+     */
+    static final class Input {
+        /** OSM ID of each vertex, ascending. */
+        final long[] ids;
+        final double[] lats, lons;
+        /** Name handle of each vertex, or <code>NameArena.NONE</code>. */
+        final int[] names;
+        /** Edges leaving vertex i are edgeStart[i] to edgeStart[i + 1]. */
+        final int[] edgeStart;
+        /** Head vertex of each edge, or <code>NONE</code> if its node is not a vertex. */
+        final int[] edgeTarget;
+        /** Index of the way each edge came from; see <code>GraphDB.way</code>. */
+        final int[] edgeWay;
+
+        Input(long[] ids, double[] lats, double[] lons, int[] names, int[] edgeStart,
+              int[] edgeTarget, int[] edgeWay) {
+            this.ids = ids;
+            this.lats = lats;
+            this.lons = lons;
+            this.names = names;
+            this.edgeStart = edgeStart;
+            this.edgeTarget = edgeTarget;
+            this.edgeWay = edgeWay;
+        }
+
+        /** Gathers the vertices and adjacency lists of the node map of <code>g</code>. */
+        static Input of(GraphDB g) {
+            Map<Long, GraphDB.Node> nodeMap = g.getNodeMap();
+            int n = nodeMap.size();
+            long[] ids = new long[n];
+            int i = 0;
+            for (long id : nodeMap.keySet()) {
+                ids[i] = id;
+                i += 1;
+            }
+            Arrays.sort(ids);
+            GraphDB.Node[] nodes = new GraphDB.Node[n];
+            double[] lats = new double[n];
+            double[] lons = new double[n];
+            int[] names = new int[n];
+            int[] edgeStart = new int[n + 1];
+            for (i = 0; i < n; i += 1) {
+                nodes[i] = nodeMap.get(ids[i]);
+                lats[i] = nodes[i].lat;
+                lons[i] = nodes[i].lon;
+                names[i] = nodes[i].name;
+                edgeStart[i + 1] = edgeStart[i] + nodes[i].neighbors.size();
+            }
+            int[] edgeTarget = new int[edgeStart[n]];
+            int[] edgeWay = new int[edgeStart[n]];
+            for (i = 0; i < n; i += 1) {
+                for (int k = 0; k < nodes[i].neighbors.size(); k += 1) {
+                    int w = Arrays.binarySearch(ids, nodes[i].neighbors.get(k));
+                    edgeTarget[edgeStart[i] + k] = w >= 0 ? w : NONE;
+                    edgeWay[edgeStart[i] + k] = nodes[i].neighborWays.get(k);
+                }
+            }
+            return new Input(ids, lats, lons, names, edgeStart, edgeTarget, edgeWay);
+        }
+    }
+
+    /**
+     * The vertices of a compact graph renumbered in Hilbert order, and its arcs, one per pair
+     * of neighbors, with the way and profiles each keeps: everything a node store holds, and
+     * what the rest of the graph is built on.
+     */
+    private static final class Layout {
+        final long[] ids;
+        final double[] lats, lons;
+        final int[] names;
+        final long[] sortedIds;
+        final int[] sortedVertex;
+        final int[] arcStart, arcTarget, arcWay;
+        final byte[] arcAccess;
+
+        Layout(GraphDB g, Input input) {
+            int n = input.ids.length;
+            int[] order = hilbertOrder(input.lons, input.lats);
+            ids = new long[n];
+            lats = new double[n];
+            lons = new double[n];
+            names = new int[n];
+            sortedIds = input.ids;
+            sortedVertex = new int[n];
+            for (int v = 0; v < n; v += 1) {
+                int i = order[v];
+                ids[v] = input.ids[i];
+                lats[v] = input.lats[i];
+                lons[v] = input.lons[i];
+                names[v] = input.names[i];
+                sortedVertex[i] = v;
+            }
+
+            /*
+             * Duplicate neighbors appear where two ways share a segment; keep one arc per pair,
+             * taken from the faster drivable way, that every profile allowed on either way may
+             * use.
+             */
+            arcStart = new int[n + 1];
+            int[] targets = new int[input.edgeTarget.length];
+            int[] ways = new int[targets.length];
+            byte[] access = new byte[targets.length];
+            int m = 0;
+            for (int v = 0; v < n; v += 1) {
+                int i = order[v];
+                for (int e = input.edgeStart[i]; e < input.edgeStart[i + 1]; e += 1) {
+                    int w = input.edgeTarget[e] == NONE ? NONE : sortedVertex[input.edgeTarget[e]];
+                    int way = input.edgeWay[e];
+                    if (w == NONE || w == v) {
+                        continue;
+                    }
+                    int seen = arcStart[v];
+                    while (seen < m && targets[seen] != w) {
+                        seen += 1;
+                    }
+                    if (seen == m) {
+                        targets[m] = w;
+                        ways[m] = way;
+                        access[m] = g.way(way).access;
+                        m += 1;
+                    } else {
+                        access[seen] |= g.way(way).access;
+                        if (preferred(g.way(way), g.way(ways[seen]))) {
+                            ways[seen] = way;
+                        }
+                    }
+                }
+                arcStart[v + 1] = m;
+            }
+            arcTarget = Arrays.copyOf(targets, m);
+            arcWay = Arrays.copyOf(ways, m);
+            arcAccess = Arrays.copyOf(access, m);
+        }
+    }
+
+    /**
+     * One immutable set of arc speeds and the weights derived from them under every metric.
+     * Each metric's arrays carry a version that changes whenever they do, so results computed
+     * from one set can be told apart from results of another.
+     */
+    final class Weights {
+        /** Version of the arrays of each metric, indexed by metric ordinal. */
+        private final long[] versions;
+        /** Speed of each arc in miles per hour, after overrides. */
+        final float[] arcSpeed;
+        /** Total weight of each chain, indexed by metric ordinal then chain. */
+        final double[][] chainWeight;
+        /**
+         * Weight of the path from the first vertex of its chain to each interior vertex,
+         * indexed by metric ordinal then vertex.
+         */
+        final double[][] vertexChainOffset;
+        /** Weight of each search arc, indexed by metric ordinal then arc. */
+        final double[][] jArcWeight;
+        /** Largest speed of any arc in miles per hour. */
+        final double maxSpeedMph;
+
+        private Weights(long[] versions, float[] arcSpeed, double[][] chainWeight,
+                        double[][] vertexChainOffset, double[][] jArcWeight) {
+            this.versions = versions;
+            this.arcSpeed = arcSpeed;
+            this.chainWeight = chainWeight;
+            this.vertexChainOffset = vertexChainOffset;
+            this.jArcWeight = jArcWeight;
+            double fastest = 1;
+            for (float speed : arcSpeed) {
+                fastest = Math.max(fastest, speed);
+            }
+            this.maxSpeedMph = fastest;
+        }
+
+        /** Returns the version of the weights under <code>metric</code>. */
+        long version(Router.Metric metric) {
+            return versions[metric.ordinal()];
+        }
+
+        /** Returns the weight of arc <code>a</code> under <code>metric</code>. */
+        double arcWeight(int a, Router.Metric metric) {
+            if (metric == Router.Metric.TIME) {
+                return (double) arcLength[a] / arcSpeed[a] * SECONDS_PER_HOUR;
+            }
+            return arcLength[a];
+        }
+
+        /**
+         * Returns a lower bound on the weight under <code>metric</code> of any path between
+         * vertex <code>v</code> and the point with unit vector (x, y, z). The straight chord
+         * through the Earth is never longer than the great-circle arc, so this needs only a
+         * square root.
+         */
+        double lowerBound(int v, double x, double y, double z, Router.Metric metric) {
+            double dx = unitX[v] - x;
+            double dy = unitY[v] - y;
+            double dz = unitZ[v] - z;
+            double miles = GraphDB.R * Math.sqrt(dx * dx + dy * dy + dz * dz) * BOUND_SLACK;
+            if (metric == Router.Metric.TIME) {
+                return miles / maxSpeedMph * SECONDS_PER_HOUR;
+            }
+            return miles;
+        }
+    }
+}
@@ -0,0 +1,200 @@
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Opens map files that may be compressed with gzip or bzip2, so an extract can be parsed
+ * without first being decompressed to disk.
+ * <p>
+ * The format is told by the first bytes of the file rather than by its name. A compressed
+ * file is decompressed on a thread of its own, which passes the bytes to the parser through
+ * a pipe of a fixed number of fixed-size chunks: the two overlap, and memory stays the same
+ * however large the file is. Chunks are handed back to the decompressing thread once read, so
+ * no garbage is made per chunk either.
+ */
+class DecompressingInput {
+    /** Bytes per chunk of the pipe, and chunks in it. */
+    static final int CHUNK_BYTES = 1 << 16;
+    static final int CHUNKS = 8;
+    private static final int GZIP_MAGIC_0 = 0x1f, GZIP_MAGIC_1 = 0x8b;
+
+    /**
+     * Opens a file for reading, decompressing it on another thread if it is gzip or bzip2.
+     *
+     * @param file The file.
+     * @return The bytes of the file, decompressed.
+     * @throws IOException If the file cannot be opened.
+     */
+    static InputStream open(File file) throws IOException {
+        BufferedInputStream in = new BufferedInputStream(new FileInputStream(file), CHUNK_BYTES);
+        in.mark(3);
+        int b0 = in.read();
+        int b1 = in.read();
+        int b2 = in.read();
+        in.reset();
+        if (b0 == GZIP_MAGIC_0 && b1 == GZIP_MAGIC_1) {
+            return new Pipe(new GZIPInputStream(in, CHUNK_BYTES), file.getName());
+        } else if (b0 == 'B' && b1 == 'Z' && b2 == 'h') {
+            /* Parallel bzip2 tools write one stream per block; read them all. */
+            return new Pipe(new BZip2CompressorInputStream(in, true), file.getName());
+        }
+        return in;
+    }
+
+    /** A chunk of the pipe, with the number of its bytes that hold data. */
+    private static class Chunk {
+        final byte[] data;
+        int length;
+
+        Chunk(int capacity) {
+            data = new byte[capacity];
+        }
+    }
+
+    /**
+     * Bytes read from a source stream by a thread of their own. The thread fills empty chunks
+     * and queues them as full; readers take full chunks and return them empty.
+     */
+    static class Pipe extends InputStream {
+        /** Queued after the last full chunk, when the source ends or fails. */
+        private static final Chunk END = new Chunk(0);
+
+        private final InputStream source;
+        private final BlockingQueue<Chunk> full = new ArrayBlockingQueue<>(CHUNKS + 1);
+        private final BlockingQueue<Chunk> empty = new ArrayBlockingQueue<>(CHUNKS);
+        private final Thread filler;
+        /** What the source threw, if it failed. */
+        private volatile Throwable failure;
+        private volatile boolean closed;
+        /** The chunk being read, and the position in it. */
+        private Chunk current;
+        private int pos;
+
+        /**
+         * Starts reading a source stream into the pipe.
+         *
+         * @param source The stream, closed when it ends or the pipe is closed.
+         * @param name   What the source is, to name the thread reading it.
+         */
+        Pipe(InputStream source, String name) {
+            this(source, name, CHUNK_BYTES);
+        }
+
+        /** Starts reading a source stream into a pipe of chunks of the given size. */
+        Pipe(InputStream source, String name, int chunkBytes) {
+            this.source = source;
+            for (int i = 0; i < CHUNKS; i += 1) {
+                empty.add(new Chunk(chunkBytes));
+            }
+            filler = new Thread(this::fill, "decompress " + name);
+            filler.setDaemon(true);
+            filler.start();
+        }
+
+        private void fill() {
+            try (InputStream in = source) {
+                while (!closed) {
+                    Chunk chunk = empty.take();
+                    int n = 0;
+                    while (n < chunk.data.length) {
+                        int got = in.read(chunk.data, n, chunk.data.length - n);
+                        if (got < 0) {
+                            break;
+                        }
+                        n += got;
+                    }
+                    if (n == 0) {
+                        break;
+                    }
+                    chunk.length = n;
+                    full.put(chunk);
+                    if (n < chunk.data.length) {
+                        break;
+                    }
+                }
+            } catch (InterruptedException e) {
+                /* Closed while waiting for the reader. */
+                return;
+            } catch (IOException | RuntimeException e) {
+                failure = e;
+            }
+            try {
+                full.put(END);
+            } catch (InterruptedException e) {
+                /* Closed; no one is reading. */
+            }
+        }
+
+        /** Makes the current chunk one with bytes left, returning false at the end. */
+        private boolean advance() throws IOException {
+            if (current != END && (current == null || pos == current.length)) {
+                if (current != null) {
+                    empty.add(current);
+                }
+                try {
+                    current = full.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted reading " + filler.getName());
+                }
+                pos = 0;
+            }
+            if (current == END) {
+                if (failure != null) {
+                    throw new IOException("Cannot " + filler.getName(), failure);
+                }
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (closed) {
+                throw new IOException("Pipe closed");
+            }
+            if (!advance()) {
+                return -1;
+            }
+            pos += 1;
+            return current.data[pos - 1] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("Pipe closed");
+            }
+            if (len == 0) {
+                return 0;
+            }
+            if (!advance()) {
+                return -1;
+            }
+            int n = Math.min(len, current.length - pos);
+            System.arraycopy(current.data, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return current == null || current == END ? 0 : current.length - pos;
+        }
+
+        /** Stops the reading thread, which closes the source once it has stopped. */
+        @Override
+        public void close() {
+            closed = true;
+            filler.interrupt();
+        }
+    }
+}
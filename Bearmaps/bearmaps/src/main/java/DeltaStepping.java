@@ -0,0 +1,324 @@
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.stream.IntStream;
+
+/**
+ * Parallel single-source shortest paths to every vertex, by delta-stepping over the
+ * chain-compressed junction graph.
+ * <p>
+ * Tentative distances are kept in buckets of width delta. The lowest non-empty bucket is
+ * emptied by repeatedly relaxing the light edges (weight at most delta) of its vertices, which
+ * may refill it, and then relaxing the heavy edges of every vertex it held once. Each phase
+ * relaxes all of its frontier in parallel on a <code>ForkJoinPool</code>; distances live in a
+ * primitive array updated with an atomic compare-and-set minimum, and the vertices a phase
+ * improved are gathered into a shared array for bucketing. Small frontiers are relaxed on the
+ * calling thread, since forking would cost more than it saves.
+ */
+class DeltaStepping {
+    /** Frontiers smaller than this are relaxed sequentially. */
+    private static final int PARALLEL_THRESHOLD = 256;
+    private static final long INFINITY_BITS = Double.doubleToRawLongBits(Double.POSITIVE_INFINITY);
+
+    private final CompactGraph cg;
+    private final Router.Profile profile;
+    private final int bit;
+    /** The weights every run of this search uses. */
+    private final CompactGraph.Weights cw;
+    private final double[] weights;
+    private final double delta;
+    private final ForkJoinPool pool;
+    /** Distances as raw double bits; non-negative doubles order like their bit patterns. */
+    private final AtomicLongArray dist;
+    private final AtomicIntegerArray changedFlag;
+    private final int[] changed;
+    private final AtomicInteger numChanged = new AtomicInteger();
+    /** Cyclic buckets; a distance d belongs in bucket floor(d / delta) mod buckets.length. */
+    private final int[][] buckets;
+    private final int[] bucketSizes;
+
+    /**
+     * Prepares a driving search.
+     *
+     * @param cg     The compact graph to search.
+     * @param metric The metric to minimize.
+     * @param delta  The bucket width; must be positive.
+     * @param pool   The pool that relaxes large frontiers.
+     */
+    DeltaStepping(CompactGraph cg, Router.Metric metric, double delta, ForkJoinPool pool) {
+        this(cg, metric, Router.Profile.DRIVE, delta, pool);
+    }
+
+    /**
+     * Prepares a search for <code>profile</code>, using only the chains it may use.
+     *
+     * @param cg      The compact graph to search.
+     * @param metric  The metric to minimize.
+     * @param profile Who is travelling.
+     * @param delta   The bucket width in weights under <code>profile.searchMetric(metric)</code>;
+     *                must be positive.
+     * @param pool    The pool that relaxes large frontiers.
+     */
+    DeltaStepping(CompactGraph cg, Router.Metric metric, Router.Profile profile, double delta,
+                  ForkJoinPool pool) {
+        this.cg = cg;
+        this.profile = profile;
+        this.bit = profile.bit();
+        this.cw = cg.weights();
+        metric = profile.searchMetric(metric);
+        this.weights = cw.jArcWeight[metric.ordinal()];
+        this.delta = delta;
+        this.pool = pool;
+        int n = cg.numJunctions();
+        dist = new AtomicLongArray(n);
+        changedFlag = new AtomicIntegerArray(n);
+        changed = new int[n];
+        /* Chain weights also bound the seeds of a source inside a self-loop chain. */
+        double maxWeight = 0;
+        for (double w : cw.chainWeight[metric.ordinal()]) {
+            maxWeight = Math.max(maxWeight, w);
+        }
+        int numBuckets = (int) Math.min(Math.ceil(maxWeight / delta) + 2, Integer.MAX_VALUE / 2);
+        buckets = new int[numBuckets][];
+        bucketSizes = new int[numBuckets];
+        for (int b = 0; b < numBuckets; b += 1) {
+            buckets[b] = new int[4];
+        }
+    }
+
+    /**
+     * Returns a bucket width that works well for <code>cg</code>: the mean search arc weight.
+     */
+    static double defaultDelta(CompactGraph cg, Router.Metric metric) {
+        double[] weights = cg.weights().jArcWeight[metric.ordinal()];
+        double total = 0;
+        for (double w : weights) {
+            total += w;
+        }
+        return weights.length == 0 || total == 0 ? 1 : total / weights.length;
+    }
+
+    /**
+     * Computes the best-path weight from a vertex to every vertex of the graph.
+     *
+     * @param g        <code>GraphDB</code> data source.
+     * @param sourceID The ID of the source vertex.
+     * @param metric   The metric to minimize.
+     * @param pool     The pool that relaxes large frontiers.
+     * @return The weights indexed by <code>CompactGraph</code> vertex index, with
+     * <code>Double.POSITIVE_INFINITY</code> for unreachable vertices.
+     */
+    static double[] distances(GraphDB g, long sourceID, Router.Metric metric, ForkJoinPool pool) {
+        return distances(g, sourceID, metric, Router.Profile.DRIVE, pool);
+    }
+
+    /**
+     * Computes the best-path weight for <code>profile</code> from a vertex to every vertex of
+     * the graph, as in <code>distances</code>.
+     *
+     * @param profile Who is travelling.
+     * @return The weights indexed by <code>CompactGraph</code> vertex index.
+     */
+    static double[] distances(GraphDB g, long sourceID, Router.Metric metric,
+                              Router.Profile profile, ForkJoinPool pool) {
+        CompactGraph cg = g.getCompactGraph();
+        double delta = defaultDelta(cg, profile.searchMetric(metric));
+        DeltaStepping search = new DeltaStepping(cg, metric, profile, delta, pool);
+        return search.vertexDistances(cg.indexOf(sourceID), metric);
+    }
+
+    /**
+     * Runs the search from vertex <code>source</code> and expands the junction distances to
+     * every vertex, including chain interiors, as weights under <code>metric</code>.
+     */
+    double[] vertexDistances(int source, Router.Metric metric) {
+        double scale = profile.scale(metric);
+        int mi = profile.searchMetric(metric).ordinal();
+        double[] junctionDist = run(source, metric);
+        double[] out = new double[cg.numVertices()];
+        Arrays.fill(out, Double.POSITIVE_INFINITY);
+        if (source == CompactGraph.NONE) {
+            return out;
+        }
+        out[source] = 0;
+        int sc = cg.vertexChain[source];
+        for (int v = 0; v < out.length; v += 1) {
+            int j = cg.junctionOf[v];
+            if (j != CompactGraph.NONE) {
+                out[v] = Math.min(out[v], junctionDist[j] * scale);
+                continue;
+            }
+            int c = cg.vertexChain[v];
+            if ((cg.chainAccess[c] & bit) == 0) {
+                continue;
+            }
+            double offset = cw.vertexChainOffset[mi][v];
+            double d = Math.min(
+                    junctionDist[cg.junctionOf[cg.chainFrom[c]]] + offset,
+                    junctionDist[cg.junctionOf[cg.chainTo[c]]] + cw.chainWeight[mi][c] - offset);
+            if (c == sc) {
+                d = Math.min(d, Math.abs(offset - cw.vertexChainOffset[mi][source]));
+            }
+            out[v] = d * scale;
+        }
+        return out;
+    }
+
+    /**
+     * Runs the search from vertex <code>source</code>.
+     *
+     * @return The best-path weight under <code>profile.searchMetric(metric)</code> to every
+     * junction, indexed by junction.
+     */
+    double[] run(int source, Router.Metric metric) {
+        int n = cg.numJunctions();
+        for (int j = 0; j < n; j += 1) {
+            dist.set(j, INFINITY_BITS);
+        }
+        Arrays.fill(bucketSizes, 0);
+        if (cg.allows(source, profile)) {
+            int mi = profile.searchMetric(metric).ordinal();
+            int sc = cg.vertexChain[source];
+            if (sc == CompactGraph.NONE) {
+                improve(cg.junctionOf[source], 0);
+            } else {
+                double offset = cw.vertexChainOffset[mi][source];
+                improve(cg.junctionOf[cg.chainFrom[sc]], offset);
+                improve(cg.junctionOf[cg.chainTo[sc]], cw.chainWeight[mi][sc] - offset);
+            }
+            bucketChanged();
+            search();
+        }
+        double[] out = new double[n];
+        for (int j = 0; j < n; j += 1) {
+            out[j] = Double.longBitsToDouble(dist.get(j));
+        }
+        return out;
+    }
+
+    private void search() {
+        int numBuckets = buckets.length;
+        boolean[] inRemoved = new boolean[cg.numJunctions()];
+        int[] removed = new int[16];
+        long index = 0;
+        int empty = 0;
+        while (empty < numBuckets) {
+            int b = (int) (index % numBuckets);
+            if (bucketSizes[b] == 0) {
+                empty += 1;
+                index += 1;
+                continue;
+            }
+            empty = 0;
+            int numRemoved = 0;
+            while (bucketSizes[b] > 0) {
+                int[] frontier = takeFrontier(b, index);
+                for (int v : frontier) {
+                    if (!inRemoved[v]) {
+                        inRemoved[v] = true;
+                        if (numRemoved == removed.length) {
+                            removed = Arrays.copyOf(removed, numRemoved * 2);
+                        }
+                        removed[numRemoved] = v;
+                        numRemoved += 1;
+                    }
+                }
+                relax(frontier, frontier.length, true);
+                bucketChanged();
+            }
+            relax(removed, numRemoved, false);
+            bucketChanged();
+            for (int i = 0; i < numRemoved; i += 1) {
+                inRemoved[removed[i]] = false;
+            }
+            index += 1;
+        }
+    }
+
+    /**
+     * Empties bucket <code>b</code> and returns the vertices in it whose distance still lies in
+     * bucket number <code>index</code>, without repeats.
+     */
+    private int[] takeFrontier(int b, long index) {
+        int size = bucketSizes[b];
+        int[] frontier = new int[size];
+        int count = 0;
+        for (int i = 0; i < size; i += 1) {
+            int v = buckets[b][i];
+            long at = (long) (Double.longBitsToDouble(dist.get(v)) / delta);
+            if (at == index && changedFlag.compareAndSet(v, 0, 1)) {
+                frontier[count] = v;
+                count += 1;
+            }
+        }
+        for (int i = 0; i < count; i += 1) {
+            changedFlag.set(frontier[i], 0);
+        }
+        bucketSizes[b] = 0;
+        return Arrays.copyOf(frontier, count);
+    }
+
+    /** Relaxes the light or heavy edges of the first <code>count</code> vertices. */
+    private void relax(int[] vertices, int count, boolean light) {
+        if (count < PARALLEL_THRESHOLD) {
+            for (int i = 0; i < count; i += 1) {
+                relaxVertex(vertices[i], light);
+            }
+            return;
+        }
+        try {
+            pool.submit(() -> IntStream.range(0, count).parallel()
+                    .forEach(i -> relaxVertex(vertices[i], light))).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted during delta-stepping.", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Delta-stepping relaxation failed.", e.getCause());
+        }
+    }
+
+    private void relaxVertex(int u, boolean light) {
+        double du = Double.longBitsToDouble(dist.get(u));
+        for (int a = cg.jArcStart[u]; a < cg.jArcStart[u + 1]; a += 1) {
+            double w = weights[a];
+            if ((w <= delta) == light && (cg.chainAccess[cg.jArcChain[a] >> 1] & bit) != 0) {
+                improve(cg.jArcTarget[a], du + w);
+            }
+        }
+    }
+
+    /** Atomically lowers the distance of junction v to d, recording v if it improved. */
+    private void improve(int v, double d) {
+        long bits = Double.doubleToRawLongBits(d);
+        long current = dist.get(v);
+        while (bits < current) {
+            if (dist.compareAndSet(v, current, bits)) {
+                if (changedFlag.compareAndSet(v, 0, 1)) {
+                    changed[numChanged.getAndIncrement()] = v;
+                }
+                return;
+            }
+            current = dist.get(v);
+        }
+    }
+
+    /** Moves every vertex improved since the last call into the bucket of its new distance. */
+    private void bucketChanged() {
+        int count = numChanged.getAndSet(0);
+        for (int i = 0; i < count; i += 1) {
+            int v = changed[i];
+            changedFlag.set(v, 0);
+            double d = Double.longBitsToDouble(dist.get(v));
+            int b = (int) ((long) (d / delta) % buckets.length);
+            int size = bucketSizes[b];
+            if (size == buckets[b].length) {
+                buckets[b] = Arrays.copyOf(buckets[b], size * 2);
+            }
+            buckets[b][size] = v;
+            bucketSizes[b] = size + 1;
+        }
+    }
+}
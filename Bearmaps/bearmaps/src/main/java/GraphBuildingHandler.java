@@ -3,7 +3,7 @@ import org.xml.sax.SAXException;
 import org.xml.sax.helpers.DefaultHandler;
 
 import java.util.ArrayList;
-import java.util.Set;
+import java.util.List;
 
 /**
  * Parses OSM XML files using an XML SAX parser. Used to construct the graph of roads for
@@ -21,27 +21,66 @@ import java.util.Set;
  * override method tells Java what to do every time it gets to the next element in the file. This
  * is a very common but strange-when-you-first-see it pattern. It is similar to the Visitor pattern
  * we discussed for graphs.
+ * <p>
+ * Each element is handed on to one of the entity methods, <code>node</code>,
+ * <code>nodeTag</code>, <code>startWay</code>, <code>wayNode</code>, <code>wayTag</code> and
+ * <code>endWay</code>, which hold everything that decides what goes into the graph. Readers of
+ * other file formats, such as <code>PbfReader</code>, call those in file order to build the
+ * same graph.
  *
  * @author Alan Yao, Maurice Lee
  */
 public class GraphBuildingHandler extends DefaultHandler {
     /**
-     * Only allow for non-service roads; this prevents going on pedestrian streets as much as
-     * possible. Note that in Berkeley, many of the campus roads are tagged as motor vehicle
-     * roads, but in practice we walk all over them with such impunity that we forget cars can
-     * actually drive on them.
+     * Every highway type, in the order used to number the highway class of an edge. Types not in
+     * this list are stored as class <code>OTHER_CLASS</code>.
      */
-    private static final Set<String> ALLOWED_HIGHWAY_TYPES = Set.of(
+    static final List<String> HIGHWAY_CLASSES = List.of(
             "motorway", "trunk", "primary", "secondary", "tertiary", "unclassified", "residential",
             "living_street", "motorway_link", "trunk_link", "primary_link", "secondary_link",
-            "tertiary_link"
+            "tertiary_link", "service", "track", "cycleway", "path", "footway", "pedestrian",
+            "steps"
     );
+    /** Highway class of ways with a missing or unlisted highway tag. */
+    static final byte OTHER_CLASS = (byte) HIGHWAY_CLASSES.size();
+    /**
+     * Speed in miles per hour assumed for each highway class when a way has no usable maxspeed
+     * tag, indexed by highway class.
+     */
+    private static final int[] DEFAULT_SPEEDS_MPH = {
+        65, 55, 35, 30, 25, 25, 25, 15, 45, 40, 30, 25, 25, 15, 10, 10, 10, 5, 5, 5, 25
+    };
+    /**
+     * Keys of node tags that file the node under a category for <code>/nearby</code>; see
+     * <a href="http://wiki.openstreetmap.org/wiki/Key:amenity">the amenity tag</a>.
+     */
+    static final List<String> CATEGORY_KEYS = List.of("amenity", "shop", "tourism");
+    /** Access bits of each profile; these match <code>Router.Profile.bit</code>. */
+    private static final byte DRIVE = 1, BIKE = 2, WALK = 4;
+    /**
+     * Profiles allowed on each highway class, indexed by highway class; the way's tags may
+     * narrow cycling and walking, but never driving. Driving is kept off service roads; this
+     * prevents going on pedestrian streets as much as possible. Note that in Berkeley, many of
+     * the campus roads are tagged as motor vehicle roads, but in practice we walk all over them
+     * with such impunity that we forget cars can actually drive on them. Ways of no profile are
+     * not added to the graph.
+     */
+    private static final byte[] DEFAULT_ACCESS = {
+        DRIVE, DRIVE, DRIVE | BIKE | WALK, DRIVE | BIKE | WALK, DRIVE | BIKE | WALK,
+        DRIVE | BIKE | WALK, DRIVE | BIKE | WALK, DRIVE | BIKE | WALK, DRIVE, DRIVE,
+        DRIVE | BIKE | WALK, DRIVE | BIKE | WALK, DRIVE | BIKE | WALK, BIKE | WALK, BIKE | WALK,
+        BIKE, BIKE | WALK, WALK, WALK, WALK, 0
+    };
     private final GraphDB g;
     private String activeState = "";
-    private boolean tempFlag = true;
     private String tempName2;
     private Long tempID;
     private Long tempWay;
+    private String tempHighway;
+    private String tempMaxSpeed;
+    private String tempAccess;
+    private String tempFoot;
+    private String tempBicycle;
     private ArrayList<Long> nodesInWay = new ArrayList<>();
 
 
@@ -84,23 +123,19 @@ public class GraphBuildingHandler extends DefaultHandler {
 
             /* ODO: Use the above information to save a "node" to somewhere.
              * Hint: A graph-like structure would be nice. */
-            long id = Long.parseLong(attributes.getValue("id"));
-            double lat = Double.parseDouble(attributes.getValue("lat"));
-            double lon = Double.parseDouble(attributes.getValue("lon"));
-            GraphDB.Node n = new GraphDB.Node(id, lat, lon);
-            g.addNode(n);
-            tempID = id;
+            node(Long.parseLong(attributes.getValue("id")),
+                    Double.parseDouble(attributes.getValue("lat")),
+                    Double.parseDouble(attributes.getValue("lon")));
 
         } else if (qName.equals("way")) {
             /* Encountering a new <way...> tag. */
             activeState = "way";
-            Long wayID = Long.parseLong(attributes.getValue("id"));
-            tempWay = wayID;
+            startWay(Long.parseLong(attributes.getValue("id")));
             // System.out.println("Beginning a way...");
         } else if (activeState.equals("way") && qName.equals("nd")) {
             /* While looking at a way, found a <nd...> tag. */
             // System.out.println("Node id in this way: " + attributes.getValue("ref"));
-            nodesInWay.add(Long.parseLong(attributes.getValue("ref")));
+            wayNode(Long.parseLong(attributes.getValue("ref")));
             /* ODO: Use the above id to make "possible" connections between the nodes in this way.
              * Hint 1: It would be useful to remember what was the last node in this way.
              * Hint 2: Not all ways are valid. So, directly connecting the nodes here would be
@@ -110,42 +145,11 @@ public class GraphBuildingHandler extends DefaultHandler {
 
         } else if (activeState.equals("way") && qName.equals("tag")) {
             /* While looking at a way, found a <tag...> tag. */
-            String k = attributes.getValue("k");
-            String v = attributes.getValue("v");
-            if (k.equals("maxspeed")) {
-                // System.out.println("Max Speed: " + v);
-                int asd = 0;
-
-            } else if (k.equals("highway")) {
-                // System.out.println("Highway type: " + v);
-
-                /* ODO: Figure out whether this way and its connections are valid.
-                 * Hint: Set a "flag". */
-                if (!(ALLOWED_HIGHWAY_TYPES.contains(v))) {
-                    tempFlag = false;
-                } else {
-                    tempFlag = true;
-                }
-
-            } else if (k.equals("name")) {
-                // System.out.println("Way Name: " + v);
-                int dasad = 0;
-            }
+            wayTag(attributes.getValue("k"), attributes.getValue("v"));
             // System.out.println("Tag with k=" + k + ", v=" + v + ".");
-        } else if (activeState.equals("node") && qName.equals("tag") && attributes.getValue("k")
-                .equals("name")) {
-            /* While looking at a node, found a <tag...> with k="name". */
-
-            g.getNodeMap().get(tempID).hisNameIs(attributes.getValue("v"));
-            g.getLocationMap().put(attributes.getValue("v"), g.getNodeMap().get(tempID));
-
-            /* TOD: Create a location.
-             * Hint: Since we found this <tag...> INSIDE a node, we should probably remember which
-             * node this tag belongs to. Remember XML is parsed top-to-bottom, so probably it's the
-             * last node that you looked at (check the first if-case). */
-
-
-            // System.out.println("Node's name: " + attributes.getValue("v"));
+        } else if (activeState.equals("node") && qName.equals("tag")) {
+            /* While looking at a node, found a <tag...> tag. */
+            nodeTag(attributes.getValue("k"), attributes.getValue("v"));
         }
     }
 
@@ -165,13 +169,7 @@ public class GraphBuildingHandler extends DefaultHandler {
     @Override
     public void endElement(String uri, String localName, String qName) throws SAXException {
         if (qName.equals("way")) {
-            if (tempFlag) {
-                g.addNodeEdge(tempWay, nodesInWay);
-                tempFlag = false;
-                nodesInWay = new ArrayList<>();
-            } else {
-                nodesInWay = new ArrayList<>();
-            }
+            endWay();
             /* Done looking at a way. (Finished looking at the nodes, speeds, etc.) */
 
             /* Hint: If you have stored the possible connections for this way, here's your chance to
@@ -183,4 +181,180 @@ public class GraphBuildingHandler extends DefaultHandler {
 
     }
 
+    /**
+     * Adds a node to the graph. Tags given to <code>nodeTag</code> until the next node or way
+     * are the new node's.
+     *
+     * @param id  The OSM id of the node.
+     * @param lat The latitude of the node.
+     * @param lon The longitude of the node.
+     */
+    void node(long id, double lat, double lon) {
+        g.addNode(new GraphDB.Node(id, lat, lon));
+        tempID = id;
+    }
+
+    /**
+     * Applies a tag of the node last added: a name makes it a location, and an amenity, shop
+     * or tourism tag files it under a category.
+     *
+     * @param k The key of the tag.
+     * @param v The value of the tag.
+     */
+    void nodeTag(String k, String v) {
+        if (k.equals("name")) {
+            g.nameLocation(tempID, v);
+        } else if (CATEGORY_KEYS.contains(k)) {
+            /* A point of interest, filed under its value, or under its key for "yes". */
+            g.addCategory(tempID, v.equals("yes") ? k : v);
+        }
+    }
+
+    /**
+     * Starts a way. Its nodes and tags follow through <code>wayNode</code> and
+     * <code>wayTag</code>, and <code>endWay</code> adds it to the graph if it is routable.
+     *
+     * @param id The OSM id of the way.
+     */
+    void startWay(long id) {
+        tempWay = id;
+        tempName2 = null;
+        tempHighway = null;
+        tempMaxSpeed = null;
+        tempAccess = null;
+        tempFoot = null;
+        tempBicycle = null;
+    }
+
+    /** Appends the node with OSM id <code>ref</code> to the current way. */
+    void wayNode(long ref) {
+        nodesInWay.add(ref);
+    }
+
+    /**
+     * Applies a tag of the current way.
+     *
+     * @param k The key of the tag.
+     * @param v The value of the tag.
+     */
+    void wayTag(String k, String v) {
+        if (k.equals("maxspeed")) {
+            tempMaxSpeed = v;
+        } else if (k.equals("highway")) {
+            /* Whether the way is valid is decided from all of its tags once it ends. */
+            tempHighway = v;
+        } else if (k.equals("access")) {
+            tempAccess = v;
+        } else if (k.equals("foot")) {
+            tempFoot = v;
+        } else if (k.equals("bicycle")) {
+            tempBicycle = v;
+        } else if (k.equals("name")) {
+            tempName2 = v;
+        }
+    }
+
+    /** Ends the current way, connecting its nodes if the profiles allowed on it are any. */
+    void endWay() {
+        byte highwayClass = highwayClass(tempHighway);
+        byte access = access(highwayClass, tempAccess, tempFoot, tempBicycle);
+        if (access != 0) {
+            g.addNodeEdge(tempWay, nodesInWay, tempName2, highwayClass,
+                    speedMph(tempMaxSpeed, highwayClass), access);
+        }
+        nodesInWay = new ArrayList<>();
+    }
+
+    /**
+     * Returns the highway class number of an OSM highway type.
+     *
+     * @param highway The value of a way's highway tag, or null if it had none.
+     * @return The index of the type in <code>HIGHWAY_CLASSES</code>, or <code>OTHER_CLASS</code>.
+     */
+    static byte highwayClass(String highway) {
+        int i = highway == null ? -1 : HIGHWAY_CLASSES.indexOf(highway);
+        return i < 0 ? OTHER_CLASS : (byte) i;
+    }
+
+    /**
+     * Returns the profiles allowed on a way. Driving is allowed on exactly the highway classes
+     * the graph has always been built from, whatever the way's tags say, so the drivable graph
+     * and every driving route stay as they were. Cycling and walking start from the default of
+     * the highway class, are all removed by an access tag of "no" or "private", and are then
+     * allowed or denied by their own tags. See the OSM documentation on
+     * <a href="http://wiki.openstreetmap.org/wiki/Key:access">the access tag</a>.
+     *
+     * @param highwayClass The highway class of the way.
+     * @param access       The value of the way's access tag, or null if it had none.
+     * @param foot         The value of its foot tag, or null.
+     * @param bicycle      The value of its bicycle tag, or null.
+     * @return A mask of <code>Router.Profile</code> bits; 0 if the way is not routable.
+     */
+    static byte access(byte highwayClass, String access, String foot, String bicycle) {
+        int mask = DEFAULT_ACCESS[highwayClass];
+        if (mask == 0) {
+            return 0;
+        }
+        int drive = mask & DRIVE;
+        if ("no".equals(access) || "private".equals(access)) {
+            mask = 0;
+        }
+        mask = applyAccess(mask, WALK, foot);
+        mask = applyAccess(mask, BIKE, bicycle);
+        return (byte) ((mask & ~DRIVE) | drive);
+    }
+
+    /** Sets or clears <code>bit</code> of <code>mask</code> as one profile's tag says. */
+    private static int applyAccess(int mask, int bit, String value) {
+        if (value == null) {
+            return mask;
+        }
+        switch (value) {
+            case "yes":
+            case "designated":
+            case "permissive":
+                return mask | bit;
+            case "no":
+            case "private":
+            case "use_sidepath":
+                return mask & ~bit;
+            default:
+                return mask;
+        }
+    }
+
+    /**
+     * Parses an OSM maxspeed tag into miles per hour. Plain numbers are in km/h and values with
+     * an "mph" suffix are in miles per hour; anything else, such as "none" or "signals", falls
+     * back to the default speed of the highway class.
+     *
+     * @param maxSpeed     The value of a way's maxspeed tag, or null if it had none.
+     * @param highwayClass The highway class of the way.
+     * @return The speed in miles per hour, between 1 and 255.
+     */
+    static int speedMph(String maxSpeed, byte highwayClass) {
+        int fallback = DEFAULT_SPEEDS_MPH[highwayClass];
+        if (maxSpeed == null) {
+            return fallback;
+        }
+        String v = maxSpeed.trim();
+        boolean mph = v.endsWith("mph");
+        if (mph) {
+            v = v.substring(0, v.length() - 3).trim();
+        }
+        double speed;
+        try {
+            speed = Double.parseDouble(v);
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+        if (!mph) {
+            speed /= KM_PER_MILE;
+        }
+        int rounded = (int) Math.round(speed);
+        return rounded < 1 || rounded > 255 ? fallback : rounded;
+    }
+
+    /** Kilometers in a mile, for converting metric maxspeed tags. */
+    private static final double KM_PER_MILE = 1.609344;
 }
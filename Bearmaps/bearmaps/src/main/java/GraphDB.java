@@ -4,14 +4,25 @@ import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+import java.util.function.Predicate;
 
 /**
  * Graph for storing all of the intersection (vertex) and road (edge) information.
@@ -26,7 +37,7 @@ public class GraphDB {
     /**
      * Radius of the Earth in miles.
      */
-    private static final int R = 3963;
+    static final int R = 3963;
     /**
      * Latitude centered on Berkeley.
      */
@@ -41,38 +52,506 @@ public class GraphDB {
      * @source https://gis.stackexchange.com/a/7298
      */
     private static final double K0 = 1.0;
+    /** The most names returned by an infix search. */
+    static final int MAX_SUBSTRING_RESULTS = 50;
     KDtree myKDtree;
+    /** Array-backed copy of the cleaned graph, including its chain-compressed search graph. */
+    private CompactGraph compactGraph;
+    /** Index of named ways and locations for reverse geocoding. */
+    private ReverseGeocoder reverseGeocoder;
+    /** Index of amenity, shop and tourism locations by category. */
+    private CategoryIndex categoryIndex;
+    /** Index of location names for infix search. */
+    private SubstringIndex substringIndex;
+    /** Index of location names for prefix search, with short prefixes precomputed. */
+    private PrefixIndex prefixIndex;
+    /** Names of ways and locations, each stored once, with their cleaned forms. */
+    private final NameArena names;
+    /**
+     * Each (location, category) pair seen while parsing, kept once indexed so a change file
+     * can index them again with its own changes.
+     */
+    private ArrayList<Node> categoryNodes = new ArrayList<>();
+    private ArrayList<String> categoryNames = new ArrayList<>();
+    /** Optional hub-label distance oracles, indexed by metric ordinal. */
+    private final HubLabels[] hubLabels = new HubLabels[Router.Metric.values().length];
+    /** Version of the weights each attached oracle answers for; guarded by hubLabels. */
+    private final long[] hubLabelsVersion = new long[Router.Metric.values().length];
+    /** Whether labels for each metric are being rebuilt after a weight change. */
+    private final AtomicBoolean[] hubLabelsRebuilding =
+            new AtomicBoolean[Router.Metric.values().length];
     /**
      * This constructor creates and starts an XML parser, cleans the nodes, and prepares the
      * data structures for processing. Modify this constructor to initialize your data structures.
+     * A path ending in <code>.pbf</code> is read as OSM PBF instead, its blocks decoded in
+     * parallel on the common fork-join pool. XML compressed with gzip or bzip2 is decompressed
+     * as it is parsed.
      *
-     * @param dbPath Path to the XML file to be parsed.
+     * @param dbPath Path to the XML, compressed XML or PBF file to be parsed.
      */
 
     //made
+    /** Hands out graph versions, so every graph built has a higher one than the last. */
+    private static final AtomicLong VERSIONS = new AtomicLong();
+    private final long version = VERSIONS.incrementAndGet();
     private HashMap<Long, Node> nodeMap;
     private HashMap<Long, Way> wayMap;
-    private HashMap<String, Node> locationMap;
+    /** Every way added to the graph, in parsing order; an edge's way index points in here. */
+    private ArrayList<Way> ways;
+    /** The location last given each name, by name handle, or null for other handles. */
+    private Node[] locationByName;
+    /** Handles of the names of locations, each once. */
+    private int[] locationNames;
     private HashSet<Long> deleteThese;
+    /** The store the vertices are kept in, or null if they are in nodeMap. */
+    private NodeStore nodeStore;
+    /**
+     * While a map is parsed into a node store, the coordinates of its nodes, the last node
+     * parsed, which tags that follow belong to, and the named nodes by ID; null otherwise.
+     */
+    private NodeSpill spill;
+    private Node lastNode;
+    private HashMap<Long, Node> namedNodes;
+    /**
+     * While a change file is applied, the IDs of the nodes it has touched, whose nodes are
+     * copies of the base graph's; null otherwise.
+     */
+    private HashSet<Long> copied;
+    /** What applying a change file did, for a graph made by one; null otherwise. */
+    private ChangeStats changeStats;
 
     public GraphDB(String dbPath) {
+        this(dbPath, phase -> { });
+    }
+
+    /**
+     * Parses and prepares a graph like <code>GraphDB(dbPath)</code>, reporting each phase of
+     * the work as it starts, so a graph built in the background can show how far it has got.
+     *
+     * @param dbPath   Path to the XML, compressed XML or PBF file to be parsed.
+     * @param progress Told "parsing", "cleaning" and then "indexing".
+     */
+    GraphDB(String dbPath, Consumer<String> progress) {
+        progress.accept("parsing");
+        names = new NameArena();
         nodeMap = new HashMap<>();
         wayMap = new HashMap<>();
-        locationMap = new HashMap<>();
+        ways = new ArrayList<>();
+        locationByName = new Node[64];
         deleteThese = new HashSet<>();
+        for (int mi = 0; mi < hubLabelsRebuilding.length; mi += 1) {
+            hubLabelsRebuilding[mi] = new AtomicBoolean();
+        }
+        parse(dbPath);
+        progress.accept("cleaning");
+        clean();
+        collectLocationNames();
+        progress.accept("indexing");
+        myKDtree = new KDtree(nodeMap.values());
+        compactGraph = new CompactGraph(this);
+        buildIndexes();
+    }
 
+    /** Parses a map into this graph, printing why if the file cannot be read. */
+    private void parse(String dbPath) {
         File inputFile = new File(dbPath);
-        try (FileInputStream inputStream = new FileInputStream(inputFile)) {
-            SAXParserFactory factory = SAXParserFactory.newInstance();
-            SAXParser saxParser = factory.newSAXParser();
-            saxParser.parse(inputStream, new GraphBuildingHandler(this));
-        } catch (ParserConfigurationException | SAXException | IOException e) {
-            e.printStackTrace();
+        if (dbPath.endsWith(".pbf")) {
+            try {
+                PbfReader.read(inputFile, new GraphBuildingHandler(this),
+                        ForkJoinPool.commonPool());
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        } else {
+            try (InputStream inputStream = DecompressingInput.open(inputFile)) {
+                SAXParserFactory factory = SAXParserFactory.newInstance();
+                SAXParser saxParser = factory.newSAXParser();
+                saxParser.parse(inputStream, new GraphBuildingHandler(this));
+            } catch (ParserConfigurationException | SAXException | IOException e) {
+                e.printStackTrace();
+            }
         }
-        clean();
-        myKDtree = new KDtree();
+    }
+
+    /** Builds the indexes that need the vertices and the compact graph. */
+    private void buildIndexes() {
+        reverseGeocoder = new ReverseGeocoder(this);
+        categoryIndex = new CategoryIndex(categoryNodes, categoryNames, names);
+        categoryNodes.trimToSize();
+        categoryNames.trimToSize();
+        substringIndex = new SubstringIndex(names, locationNames);
+        prefixIndex = new PrefixIndex(names, locationNames);
+        names.trim();
+    }
+
+    /**
+     * Parses and prepares a graph like <code>GraphDB(dbPath)</code>, keeping its vertices in
+     * a memory-mapped <code>NodeStore</code> instead of a node map.
+     *
+     * @param dbPath    Path to the XML, compressed XML or PBF file to be parsed.
+     * @param nodeStore The file to keep the vertices in, replaced if it exists.
+     * @throws IOException If the node store cannot be written or mapped.
+     */
+    public GraphDB(String dbPath, File nodeStore) throws IOException {
+        this(dbPath, nodeStore, phase -> { });
+    }
+
+    /**
+     * Parses and prepares a graph whose nodes never go on the heap. Their coordinates are
+     * spilled to sorted runs on disk as they are parsed; once the ways are known, those of the
+     * nodes on them are found in one merge of the runs, and the compact graph is built
+     * straight into a memory-mapped <code>NodeStore</code>, which it then reads the vertex
+     * IDs, coordinates and arcs from. Only the ways, the named and categorized nodes, the
+     * spatial index and the per-arc attributes stay on the heap.
+     * <p>
+     * Every query works as on a graph with a node map, but <code>getNodeMap</code> returns
+     * null and <code>withChanges</code> throws, as there are no vertices to copy; such a graph
+     * is reloaded instead. A way over a node the map does not have is left out.
+     *
+     * @param dbPath    Path to the XML, compressed XML or PBF file to be parsed.
+     * @param nodeStore The file to keep the vertices in, replaced if it exists. The runs are
+     *                  written next to it and deleted once the store is built.
+     * @param progress  Told "parsing", "cleaning" and then "indexing".
+     * @throws IOException If the runs or the node store cannot be written or read.
+     */
+    GraphDB(String dbPath, File nodeStore, Consumer<String> progress) throws IOException {
+        progress.accept("parsing");
+        names = new NameArena();
+        wayMap = new HashMap<>();
+        ways = new ArrayList<>();
+        locationByName = new Node[64];
+        namedNodes = new HashMap<>();
+        for (int mi = 0; mi < hubLabelsRebuilding.length; mi += 1) {
+            hubLabelsRebuilding[mi] = new AtomicBoolean();
+        }
+        CompactGraph.Input input;
+        try (NodeSpill nodes = new NodeSpill(nodeStore.getAbsoluteFile().getParentFile(),
+                NodeSpill.RUN_SIZE)) {
+            spill = nodes;
+            try {
+                parse(dbPath);
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            } finally {
+                spill = null;
+                lastNode = null;
+            }
+            progress.accept("cleaning");
+            input = storedVertices(nodes);
+        }
+        collectLocationNames();
+        progress.accept("indexing");
+        compactGraph = CompactGraph.stored(this, input, nodeStore);
+        this.nodeStore = compactGraph.store();
+        namedNodes = null;
+        myKDtree = new KDtree(compactGraph);
+        buildIndexes();
+    }
+
+    /**
+     * Finds the coordinates of the nodes on the parsed ways, leaves out the ways over nodes
+     * the map does not have, and gathers the vertices and edges that remain, as
+     * <code>addNodeEdge</code> and <code>clean</code> do with a node map.
+     */
+    private CompactGraph.Input storedVertices(NodeSpill nodes) throws IOException {
+        long[] refs = wayNodes();
+        double[] refLats = new double[refs.length];
+        double[] refLons = new double[refs.length];
+        nodes.lookup(refs, refLats, refLons);
+        for (int k = 0; k < ways.size(); k += 1) {
+            Way way = ways.get(k);
+            if (way.nodes.size() < 2) {
+                continue;
+            }
+            for (long ref : way.nodes) {
+                if (Double.isNaN(refLats[Arrays.binarySearch(refs, ref)])) {
+                    Way stub = new Way(way.id, Collections.emptyList(), NameArena.NONE,
+                            GraphBuildingHandler.OTHER_CLASS, 0, (byte) 0, way.index);
+                    ways.set(k, stub);
+                    wayMap.put(way.id, stub);
+                    break;
+                }
+            }
+        }
+
+        long[] ids = wayNodes();
+        int n = ids.length;
+        double[] lats = new double[n];
+        double[] lons = new double[n];
+        int[] vertexNames = new int[n];
+        for (int i = 0; i < n; i += 1) {
+            int r = Arrays.binarySearch(refs, ids[i]);
+            lats[i] = refLats[r];
+            lons[i] = refLons[r];
+            Node named = namedNodes.get(ids[i]);
+            vertexNames[i] = named == null ? NameArena.NONE : named.name;
+        }
+        int[] edgeStart = new int[n + 1];
+        for (Way way : ways) {
+            for (int k = 0; k < way.nodes.size() - 1; k += 1) {
+                edgeStart[Arrays.binarySearch(ids, way.nodes.get(k)) + 1] += 1;
+                edgeStart[Arrays.binarySearch(ids, way.nodes.get(k + 1)) + 1] += 1;
+            }
+        }
+        for (int i = 0; i < n; i += 1) {
+            edgeStart[i + 1] += edgeStart[i];
+        }
+        int[] edgeTarget = new int[edgeStart[n]];
+        int[] edgeWay = new int[edgeStart[n]];
+        int[] fill = Arrays.copyOf(edgeStart, n);
+        for (Way way : ways) {
+            for (int k = 0; k < way.nodes.size() - 1; k += 1) {
+                int v = Arrays.binarySearch(ids, way.nodes.get(k));
+                int w = Arrays.binarySearch(ids, way.nodes.get(k + 1));
+                edgeTarget[fill[v]] = w;
+                edgeWay[fill[v]] = way.index;
+                fill[v] += 1;
+                edgeTarget[fill[w]] = v;
+                edgeWay[fill[w]] = way.index;
+                fill[w] += 1;
+            }
+        }
+        return new CompactGraph.Input(ids, lats, lons, vertexNames, edgeStart, edgeTarget,
+                edgeWay);
+    }
+
+    /** Returns the OSM IDs of the nodes on ways of two nodes or more, ascending, each once. */
+    private long[] wayNodes() {
+        int total = 0;
+        for (Way way : ways) {
+            total += way.nodes.size() > 1 ? way.nodes.size() : 0;
+        }
+        long[] refs = new long[total];
+        int i = 0;
+        for (Way way : ways) {
+            if (way.nodes.size() > 1) {
+                for (long ref : way.nodes) {
+                    refs[i] = ref;
+                    i += 1;
+                }
+            }
+        }
+        Arrays.sort(refs);
+        int distinct = 0;
+        for (i = 0; i < total; i += 1) {
+            if (distinct == 0 || refs[i] != refs[distinct - 1]) {
+                refs[distinct] = refs[i];
+                distinct += 1;
+            }
+        }
+        return Arrays.copyOf(refs, distinct);
+    }
+
+    /**
+     * Returns the graph this one becomes with the changes of an OSM change file, leaving this
+     * one as it was, so requests can go on using it while the new one is made.
+     * <p>
+     * The new graph shares whatever the changes leave alone. A vertex is copied, adjacency
+     * list and all, only when the change file names it or changes one of its edges, and the
+     * rest are the same objects in both graphs. The spatial index shares all but the paths to
+     * the vertices added, moved or removed, and the category, substring and prefix indexes
+     * are kept unless locations they hold changed. The compact graph and the reverse geocoder
+     * are built again in full, and the node and way maps are copied, so this still takes time
+     * in proportion to the whole graph, if much less than loading it; patching the compact
+     * graph chain by chain for the ways a change touches would remove most of that.
+     * <p>
+     * Speed overrides in force on this graph when the new compact graph is built are carried
+     * over, arc by arc, wherever the same way still joins the same two vertices. Hub labels
+     * are not; the new graph needs its own, as a reloaded one does.
+     * <p>
+     * Only nodes on roads are kept once a map is loaded, so a way is added only if each of
+     * its nodes is in the new graph or in the change file, and a node is not deleted while a
+     * way still uses it. Both are counted in <code>changeStats</code>.
+     *
+     * @param change   The changes.
+     * @param progress Told "applying" and then "indexing".
+     * @return The new graph, which has a higher version.
+     * @throws IllegalStateException If the vertices are kept in a node store.
+     */
+    GraphDB withChanges(OsmChange change, Consumer<String> progress) {
+        if (nodeMap == null) {
+            throw new IllegalStateException(
+                    "Cannot apply changes to a graph kept in a node store; reload it instead.");
+        }
+        return new GraphDB(this, change, progress);
+    }
+
+    private GraphDB(GraphDB base, OsmChange change, Consumer<String> progress) {
+        progress.accept("applying");
+        names = base.names.copy();
+        nodeMap = new HashMap<>(base.nodeMap);
+        wayMap = new HashMap<>(base.wayMap);
+        ways = new ArrayList<>(base.ways);
+        locationByName = base.locationByName.clone();
+        categoryNodes = new ArrayList<>(base.categoryNodes);
+        categoryNames = new ArrayList<>(base.categoryNames);
+        deleteThese = new HashSet<>();
+        copied = new HashSet<>();
+        changeStats = new ChangeStats(change.size());
+        for (int mi = 0; mi < hubLabelsRebuilding.length; mi += 1) {
+            hubLabelsRebuilding[mi] = new AtomicBoolean();
+        }
+
+        /* Ways come off first, since a change file may delete a node before its way. */
+        for (OsmChange.WayChange w : change.ways()) {
+            Way old = wayMap.remove(w.id);
+            if (old != null) {
+                removeEdges(old);
+            }
+        }
+        HashSet<Long> replaced = new HashSet<>();
+        for (OsmChange.NodeChange n : change.nodes()) {
+            Node node = nodeMap.get(n.id);
+            if (n.deleted && node != null && !node.neighbors.isEmpty()) {
+                changeStats.skippedDeletions += 1;
+            } else {
+                replaced.add(n.id);
+            }
+        }
+        removeLocations(replaced);
+        GraphBuildingHandler handler = new GraphBuildingHandler(this);
+        for (OsmChange.NodeChange n : change.nodes()) {
+            if (!replaced.contains(n.id)) {
+                continue;
+            }
+            if (n.deleted) {
+                nodeMap.remove(n.id);
+                copied.add(n.id);
+                continue;
+            }
+            handler.node(n.id, n.lat, n.lon);
+            for (int i = 0; i + 1 < n.tags.size(); i += 2) {
+                handler.nodeTag(n.tags.get(i), n.tags.get(i + 1));
+            }
+        }
+        for (OsmChange.WayChange w : change.ways()) {
+            if (w.deleted) {
+                continue;
+            }
+            handler.startWay(w.id);
+            for (long ref : w.refs) {
+                handler.wayNode(ref);
+            }
+            for (int i = 0; i + 1 < w.tags.size(); i += 2) {
+                handler.wayTag(w.tags.get(i), w.tags.get(i + 1));
+            }
+            handler.endWay();
+        }
+
+        progress.accept("indexing");
+        myKDtree = updateKDtree(base);
+        changeStats.copiedNodes = copied.size();
+        copied = null;
+        collectLocationNames();
+        compactGraph = new CompactGraph(this);
+        changeStats.carriedOverrides = compactGraph.carryOverrides(base.compactGraph);
+        reverseGeocoder = new ReverseGeocoder(this);
+        if (categoryNodes.equals(base.categoryNodes) && categoryNames.equals(base.categoryNames)) {
+            categoryIndex = base.categoryIndex;
+        } else {
+            categoryIndex = new CategoryIndex(categoryNodes, categoryNames, names);
+            changeStats.rebuiltIndexes.add("category");
+        }
+        if (Arrays.equals(locationNames, base.locationNames)) {
+            substringIndex = base.substringIndex;
+            prefixIndex = base.prefixIndex;
+        } else {
+            substringIndex = new SubstringIndex(names, locationNames);
+            prefixIndex = new PrefixIndex(names, locationNames);
+            changeStats.rebuiltIndexes.add("substring");
+            changeStats.rebuiltIndexes.add("prefix");
+        }
+        names.trim();
+    }
+
+    /**
+     * Drops the locations and categories of the nodes with the given IDs, which a change file
+     * gives again with the tags they are to have, or deletes.
+     */
+    private void removeLocations(HashSet<Long> ids) {
+        for (int h = 0; h < locationByName.length; h += 1) {
+            if (locationByName[h] != null && ids.contains(locationByName[h].id)) {
+                locationByName[h] = null;
+            }
+        }
+        ArrayList<Node> keptNodes = new ArrayList<>(categoryNodes.size());
+        ArrayList<String> keptNames = new ArrayList<>(categoryNames.size());
+        for (int i = 0; i < categoryNodes.size(); i += 1) {
+            if (!ids.contains(categoryNodes.get(i).id)) {
+                keptNodes.add(categoryNodes.get(i));
+                keptNames.add(categoryNames.get(i));
+            }
+        }
+        categoryNodes = keptNodes;
+        categoryNames = keptNames;
+    }
 
+    /**
+     * Cleans the nodes a change file touched, as <code>clean</code> does a new graph, and
+     * returns the base graph's spatial index with the vertices added, moved and removed.
+     */
+    private KDtree updateKDtree(GraphDB base) {
+        KDtree tree = base.myKDtree;
+        for (long id : copied) {
+            Node now = nodeMap.get(id);
+            if (now != null && now.neighbors.isEmpty()) {
+                nodeMap.remove(id);
+                now = null;
+            }
+            Node was = base.nodeMap.get(id);
+            boolean moved = was != null && now != null
+                    && (was.lat != now.lat || was.lon != now.lon);
+            if (was != null && (now == null || moved)) {
+                tree = tree.without(was);
+            }
+            if (now != null && (was == null || moved)) {
+                tree = tree.with(now);
+            }
+            if (moved) {
+                changeStats.movedVertices += 1;
+            } else if (was == null && now != null) {
+                changeStats.addedVertices += 1;
+            } else if (was != null && now == null) {
+                changeStats.removedVertices += 1;
+            }
+        }
+        if (tree.needsRebuild()) {
+            changeStats.rebuiltIndexes.add("kd-tree");
+            return new KDtree(nodeMap.values());
+        }
+        return tree;
+    }
 
+    /** Returns what applying a change file did, if this graph was made by one, or null. */
+    ChangeStats changeStats() {
+        return changeStats;
+    }
+
+    /**
+     * Returns the version of this graph. Graphs built later have higher versions, so caches
+     * of results for one graph can tell whether another is newer or older.
+     */
+    long version() {
+        return version;
+    }
+
+    /** Lists the handles of location names and shrinks the table of locations by name. */
+    private void collectLocationNames() {
+        locationByName = Arrays.copyOf(locationByName, names.size());
+        int n = 0;
+        for (Node node : locationByName) {
+            if (node != null) {
+                n += 1;
+            }
+        }
+        locationNames = new int[n];
+        n = 0;
+        for (int h = 0; h < locationByName.length; h += 1) {
+            if (locationByName[h] != null) {
+                locationNames[n] = h;
+                n += 1;
+            }
+        }
     }
 
     /**
@@ -81,8 +560,17 @@ public class GraphDB {
      * @param s Input string.
      * @return Cleaned string.
      */
-    private static String cleanString(String s) {
-        return s.replaceAll("[^a-zA-Z ]", "").toLowerCase();
+    static String cleanString(String s) {
+        StringBuilder cleaned = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i += 1) {
+            char c = s.charAt(i);
+            if (c == ' ' || c >= 'a' && c <= 'z') {
+                cleaned.append(c);
+            } else if (c >= 'A' && c <= 'Z') {
+                cleaned.append((char) (c - 'A' + 'a'));
+            }
+        }
+        return cleaned.toString();
     }
 
     /**
@@ -117,31 +605,340 @@ public class GraphDB {
         return K0 * (con - Math.toRadians(ROOT_LAT));
     }
 
+    /**
+     * Return the longitude of the point whose Transverse Mercator coordinates, as computed by
+     * <code>projectToX</code> and <code>projectToY</code>, are (x, y).
+     *
+     * @param x The Euclidean x-value of the point.
+     * @param y The Euclidean y-value of the point.
+     * @return The longitude of the point.
+     */
+    static double unprojectLon(double x, double y) {
+        double d = y / K0 + Math.toRadians(ROOT_LAT);
+        return ROOT_LON + Math.toDegrees(Math.atan2(Math.sinh(x / K0), Math.cos(d)));
+    }
+
+    /**
+     * Return the latitude of the point whose Transverse Mercator coordinates are (x, y).
+     *
+     * @param x The Euclidean x-value of the point.
+     * @param y The Euclidean y-value of the point.
+     * @return The latitude of the point.
+     */
+    static double unprojectLat(double x, double y) {
+        double d = y / K0 + Math.toRadians(ROOT_LAT);
+        return Math.toDegrees(Math.asin(Math.sin(d) / Math.cosh(x / K0)));
+    }
+
+    /** Returns the vertices by OSM ID, or null if they are kept in a node store. */
     public HashMap<Long, Node> getNodeMap() {
         return nodeMap;
     }
 
-    public HashMap<String, Node> getLocationMap() {
-        return locationMap;
+    /** Returns the store the vertices are kept in, or null if they are in the node map. */
+    NodeStore getNodeStore() {
+        return nodeStore;
+    }
+
+    /** Returns the names of ways and locations, shared by the indexes built on them. */
+    NameArena getNames() {
+        return names;
+    }
+
+    /**
+     * Gives a node a name, making it the location found by that name.
+     *
+     * @param id   The node's OSM ID.
+     * @param name The name.
+     */
+    void nameLocation(long id, String name) {
+        Node node = parsedNode(id);
+        if (namedNodes != null) {
+            namedNodes.put(id, node);
+        }
+        int h = names.intern(name);
+        node.hisNameIs(h);
+        if (h >= locationByName.length) {
+            locationByName = Arrays.copyOf(locationByName,
+                    Math.max(2 * locationByName.length, h + 1));
+        }
+        locationByName[h] = node;
+    }
+
+    /** Returns the named locations, one per distinct name. */
+    List<Node> namedLocations() {
+        List<Node> result = new ArrayList<>(locationNames.length);
+        for (int h : locationNames) {
+            result.add(locationByName[h]);
+        }
+        return result;
+    }
+
+    /** Returns the full names of the named locations, each once. */
+    List<String> locationNames() {
+        return names.view(locationNames, 0, locationNames.length);
+    }
+
+    CompactGraph getCompactGraph() {
+        return compactGraph;
+    }
+
+    ReverseGeocoder getReverseGeocoder() {
+        return reverseGeocoder;
+    }
+
+    CategoryIndex getCategoryIndex() {
+        return categoryIndex;
+    }
+
+    /**
+     * Returns the node with OSM ID <code>id</code>, which is being parsed. Tags follow their
+     * node, so while a map is parsed into a node store it is the last node added.
+     */
+    private Node parsedNode(long id) {
+        return spill != null ? lastNode : nodeMap.get(id);
+    }
+
+    /**
+     * Files a node under a category, such as "cafe". The node is kept for the category index
+     * even if cleaning later removes it from the graph.
+     *
+     * @param id       The node's OSM ID.
+     * @param category The category.
+     */
+    void addCategory(long id, String category) {
+        categoryNodes.add(parsedNode(id));
+        categoryNames.add(category);
+    }
+
+    /**
+     * Returns the hub labels for <code>metric</code> if they answer for weights
+     * <code>cw</code>, or null if none are attached or they are out of date.
+     */
+    HubLabels getHubLabels(Router.Metric metric, CompactGraph.Weights cw) {
+        int mi = metric.ordinal();
+        synchronized (hubLabels) {
+            return hubLabelsVersion[mi] == cw.version(metric) ? hubLabels[mi] : null;
+        }
+    }
+
+    /**
+     * Attaches hub labels so <code>Router.distanceOnly</code> can answer from them.
+     *
+     * @throws IllegalArgumentException If the labels were built for a different graph or for
+     *                                  weights other than the current ones.
+     */
+    void setHubLabels(HubLabels labels) {
+        CompactGraph.Weights cw = compactGraph.weights();
+        if (!labels.matches(compactGraph, cw)) {
+            throw new IllegalArgumentException("Hub labels do not match this graph.");
+        }
+        attachHubLabels(labels, cw);
+    }
+
+    private void attachHubLabels(HubLabels labels, CompactGraph.Weights cw) {
+        int mi = labels.metric().ordinal();
+        synchronized (hubLabels) {
+            hubLabels[mi] = labels;
+            hubLabelsVersion[mi] = cw.version(labels.metric());
+        }
+    }
+
+    /**
+     * Applies a batch of speed overrides to the routing weights. The new weights replace the
+     * old ones atomically, so searches already running finish on the weights they started
+     * with and later ones see the whole batch. Hub labels for changed metrics stop being used
+     * at once and are rebuilt in the background, with distance-only queries searching the
+     * graph until they are ready.
+     *
+     * @param batch The overrides to apply.
+     */
+    public void applyWeightOverrides(WeightOverrides batch) {
+        CompactGraph.Weights old = compactGraph.weights();
+        refreshHubLabels(old, compactGraph.applyOverrides(batch));
+    }
+
+    /** Drops every speed override, going back to the speed limits from the map. */
+    public void clearWeightOverrides() {
+        CompactGraph.Weights old = compactGraph.weights();
+        refreshHubLabels(old, compactGraph.clearOverrides());
+    }
+
+    private void refreshHubLabels(CompactGraph.Weights old, CompactGraph.Weights next) {
+        for (Router.Metric metric : Router.Metric.values()) {
+            boolean attached;
+            synchronized (hubLabels) {
+                attached = hubLabels[metric.ordinal()] != null;
+            }
+            if (attached && old.version(metric) != next.version(metric)) {
+                rebuildHubLabels(metric);
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the hub labels for <code>metric</code> on a background thread, again and again
+     * until they are built from the current weights. At most one rebuild per metric runs.
+     */
+    private void rebuildHubLabels(Router.Metric metric) {
+        AtomicBoolean rebuilding = hubLabelsRebuilding[metric.ordinal()];
+        if (!rebuilding.compareAndSet(false, true)) {
+            return;
+        }
+        CompletableFuture.runAsync(() -> {
+            try {
+                CompactGraph.Weights cw;
+                do {
+                    cw = compactGraph.weights();
+                    attachHubLabels(HubLabels.build(compactGraph, cw, metric), cw);
+                } while (compactGraph.weights().version(metric) != cw.version(metric));
+            } finally {
+                rebuilding.set(false);
+            }
+            /* Weights changed after the last check but before the flag was cleared. */
+            if (getHubLabels(metric, compactGraph.weights()) == null) {
+                rebuildHubLabels(metric);
+            }
+        });
     }
 
     public void addNode(Node vertex) {
+        if (spill != null) {
+            /* Only the coordinates are kept, and the node itself while its tags are read. */
+            spill.add(vertex.id, vertex.lat, vertex.lon);
+            lastNode = vertex;
+            return;
+        }
 
-        nodeMap.put(vertex.id, vertex);
+        Node old = nodeMap.put(vertex.id, vertex);
+        if (copied != null) {
+            /* A node a change file gives again keeps the edges of the ways it is on. */
+            copied.add(vertex.id);
+            if (old != null) {
+                vertex.neighbors.addAll(old.neighbors);
+                vertex.neighborWays.addAll(old.neighborWays);
+            }
+        }
 
     }
 
-    public void addNodeEdge(Long id, List<Long> list) {
-        wayMap.put(id, new Way(id, list));
+    /**
+     * Returns the node with OSM ID <code>id</code>, ready to be changed. While a change file
+     * is applied, the first change to a node of the base graph replaces it with a copy.
+     */
+    private Node mutable(long id) {
+        Node node = nodeMap.get(id);
+        if (copied != null && copied.add(id)) {
+            node = node.copy();
+            nodeMap.put(id, node);
+        }
+        return node;
+    }
+
+    /**
+     * Add a way to the graph and connect each pair of consecutive nodes along it. Every edge
+     * records the index of the way it came from, so its attributes can be looked up later.
+     *
+     * @param id           The OSM id of the way.
+     * @param list         The OSM ids of the nodes along the way, in order.
+     * @param name         The name of the way, or null if it has none.
+     * @param highwayClass The highway class number of the way.
+     * @param speedMph     The speed limit of the way in miles per hour.
+     * @param access       The <code>Router.Profile</code> bits of the profiles allowed on it.
+     */
+    public void addNodeEdge(Long id, List<Long> list, String name, byte highwayClass,
+                            int speedMph, byte access) {
+        if (copied != null && !nodeMap.keySet().containsAll(list)) {
+            /* A change file's way over nodes the graph no longer has. */
+            changeStats.skippedWays += 1;
+            return;
+        }
+        Way way = new Way(id, spill != null ? longList(list) : list,
+                name == null ? NameArena.NONE : names.intern(name), highwayClass, speedMph,
+                access, ways.size());
+        wayMap.put(id, way);
+        ways.add(way);
+        if (spill != null) {
+            /* The edges are gathered once the nodes' coordinates are known. */
+            return;
+        }
 
         for (int i = 0; i < list.size() - 1; i += 1) {
             long var1 = list.get(i);
             long var2 = list.get(i + 1);
-            nodeMap.get(var1).neighbors.add(var2);
-            nodeMap.get(var2).neighbors.add(var1);
+            mutable(var1).neighbors.add(var2);
+            mutable(var1).neighborWays.add(way.index);
+            mutable(var2).neighbors.add(var1);
+            mutable(var2).neighborWays.add(way.index);
+        }
+    }
+
+    /** Returns the IDs in an array of primitives, boxed only as they are read. */
+    private static List<Long> longList(List<Long> ids) {
+        long[] values = new long[ids.size()];
+        for (int i = 0; i < values.length; i += 1) {
+            values[i] = ids.get(i);
+        }
+        return new AbstractList<Long>() {
+            @Override
+            public Long get(int i) {
+                return values[i];
+            }
+
+            @Override
+            public int size() {
+                return values.length;
+            }
+        };
+    }
+
+    /**
+     * Takes the edges of a way off its nodes, and puts an empty way with no profiles in its
+     * place, so the way indexes of the others stay as they are.
+     */
+    private void removeEdges(Way way) {
+        for (int i = 0; i < way.nodes.size() - 1; i += 1) {
+            long var1 = way.nodes.get(i);
+            long var2 = way.nodes.get(i + 1);
+            removeEdge(mutable(var1), var2, way.index);
+            removeEdge(mutable(var2), var1, way.index);
+        }
+        ways.set(way.index, new Way(way.id, Collections.emptyList(), NameArena.NONE,
+                GraphBuildingHandler.OTHER_CLASS, 0, (byte) 0, way.index));
+    }
+
+    /** Removes one edge from <code>node</code> to <code>neighbor</code> along a way. */
+    private static void removeEdge(Node node, long neighbor, int way) {
+        for (int k = 0; k < node.neighbors.size(); k += 1) {
+            if (node.neighbors.get(k) == neighbor && node.neighborWays.get(k) == way) {
+                node.neighbors.remove(k);
+                node.neighborWays.remove(k);
+                return;
+            }
         }
     }
 
+    /**
+     * Returns the way with the given way index.
+     *
+     * @param index A way index, as stored on each edge.
+     * @return The way that was added <code>index</code>-th.
+     */
+    Way way(int index) {
+        return ways.get(index);
+    }
+
+    /** Returns the index of the way with OSM id <code>wayID</code>, or -1 if there is none. */
+    int wayIndex(long wayID) {
+        Way way = wayMap.get(wayID);
+        return way == null ? -1 : way.index;
+    }
+
+    /** Returns the number of ways added to the graph. */
+    int numWays() {
+        return ways.size();
+    }
+
     /**
      * Remove nodes with no connections from the graph.
      * While this does not guarantee that any two nodes in the remaining graph are connected,
@@ -167,7 +964,9 @@ public class GraphDB {
      * @return The longitude of that vertex, or 0.0 if the vertex is not in the graph.
      */
     double lon(long v) {
-        // TOD
+        if (nodeStore != null) {
+            return nodeStore.lon(nodeStore.indexOf(v));
+        }
         double x = nodeMap.get(v).lon;
         return x;
     }
@@ -179,7 +978,9 @@ public class GraphDB {
      * @return The latitude of that vertex, or 0.0 if the vertex is not in the graph.
      */
     double lat(long v) {
-        // TOD
+        if (nodeStore != null) {
+            return nodeStore.lat(nodeStore.indexOf(v));
+        }
         double x = nodeMap.get(v).lat;
         return x;
     }
@@ -190,7 +991,9 @@ public class GraphDB {
      * @return An iterable of all vertex IDs in the graph.
      */
     Iterable<Long> vertices() {
-
+        if (nodeStore != null) {
+            return nodeStore.ids();
+        }
         Iterable x = this.nodeMap.keySet();
         return x;
     }
@@ -203,7 +1006,9 @@ public class GraphDB {
      * iterable if the vertex is not in the graph.
      */
     Iterable<Long> adjacent(long v) {
-        // TOD
+        if (nodeStore != null) {
+            return nodeStore.adjacent(nodeStore.indexOf(v));
+        }
         Iterable x;
         x = this.nodeMap.get(v).neighbors;
         return x;
@@ -219,10 +1024,25 @@ public class GraphDB {
      * @source https://www.movable-type.co.uk/scripts/latlong.html
      */
     public double distance(long v, long w) {
-        double phi1 = Math.toRadians(lat(v));
-        double phi2 = Math.toRadians(lat(w));
-        double dphi = Math.toRadians(lat(w) - lat(v));
-        double dlambda = Math.toRadians(lon(w) - lon(v));
+        return distance(lon(v), lat(v), lon(w), lat(w));
+    }
+
+    /**
+     * Returns the great-circle distance between two points given by their longitudes and
+     * latitudes, in miles.
+     *
+     * @param lonV The longitude of the first point.
+     * @param latV The latitude of the first point.
+     * @param lonW The longitude of the second point.
+     * @param latW The latitude of the second point.
+     * @return The great-circle distance between the two points.
+     * @source https://www.movable-type.co.uk/scripts/latlong.html
+     */
+    static double distance(double lonV, double latV, double lonW, double latW) {
+        double phi1 = Math.toRadians(latV);
+        double phi2 = Math.toRadians(latW);
+        double dphi = Math.toRadians(latW - latV);
+        double dlambda = Math.toRadians(lonW - lonV);
 
         double a = Math.sin(dphi / 2.0) * Math.sin(dphi / 2.0);
         a += Math.cos(phi1) * Math.cos(phi2) * Math.sin(dlambda / 2.0) * Math.sin(dlambda / 2.0);
@@ -243,6 +1063,93 @@ public class GraphDB {
 
     }
 
+    /**
+     * Returns the ID of the vertex closest to the given longitude and latitude that
+     * <code>profile</code> may travel from.
+     *
+     * @param lon     The given longitude.
+     * @param lat     The given latitude.
+     * @param profile Who is travelling.
+     * @return The ID of that vertex, or the closest vertex of any kind if no vertex allows
+     * <code>profile</code>.
+     */
+    public long closest(double lon, double lat, Router.Profile profile) {
+        CompactGraph cg = compactGraph;
+        KDtree.KdTreeNode best = myKDtree.closestWhere(projectToX(lon, lat),
+                projectToY(lon, lat), myKDtree.root, null,
+                node -> cg.allows(cg.indexOf(node.id), profile));
+        return best == null ? closest(lon, lat) : best.id;
+    }
+
+    /**
+     * Passes the ID of every vertex inside a polygon to <code>out</code>. The polygon is given
+     * by the longitudes and latitudes of its corners, and the test is done in the projected
+     * plane of <code>projectToX</code> and <code>projectToY</code>. Only the part of the
+     * spatial index overlapping the polygon's bounding box is visited.
+     *
+     * @param lons The longitudes of the polygon's corners, in order.
+     * @param lats The latitudes of the polygon's corners, in order.
+     * @param out  Receives the IDs of the vertices inside the polygon.
+     */
+    void verticesInPolygon(double[] lons, double[] lats, LongConsumer out) {
+        int n = lons.length;
+        double[] xs = new double[n];
+        double[] ys = new double[n];
+        double minX = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < n; i += 1) {
+            xs[i] = projectToX(lons[i], lats[i]);
+            ys[i] = projectToY(lons[i], lats[i]);
+            minX = Math.min(minX, xs[i]);
+            maxX = Math.max(maxX, xs[i]);
+            minY = Math.min(minY, ys[i]);
+            maxY = Math.max(maxY, ys[i]);
+        }
+        myKDtree.inBox(myKDtree.root, minX, maxX, minY, maxY, node -> {
+            if (insidePolygon(xs, ys, node.x, node.y)) {
+                out.accept(node.id);
+            }
+        });
+    }
+
+    /**
+     * Passes the ID of every vertex within <code>radius</code> miles of a coordinate to
+     * <code>out</code>, measured in the projected plane of <code>projectToX</code> and
+     * <code>projectToY</code>. Only the part of the spatial index overlapping the circle's
+     * bounding box is visited.
+     *
+     * @param lon    The longitude of the center.
+     * @param lat    The latitude of the center.
+     * @param radius The radius in miles.
+     * @param out    Receives the IDs of the vertices inside the circle.
+     */
+    void verticesWithin(double lon, double lat, double radius, LongConsumer out) {
+        double x = projectToX(lon, lat);
+        double y = projectToY(lon, lat);
+        double r = radius / R;
+        myKDtree.inBox(myKDtree.root, x - r, x + r, y - r, y + r, node -> {
+            if (myKDtree.euclidean(node.x, x, node.y, y) <= r) {
+                out.accept(node.id);
+            }
+        });
+    }
+
+    /**
+     * Returns whether (x, y) is inside the polygon, by counting crossings of a ray to its right.
+     */
+    private static boolean insidePolygon(double[] xs, double[] ys, double x, double y) {
+        boolean inside = false;
+        for (int i = 0, j = xs.length - 1; i < xs.length; j = i, i += 1) {
+            if ((ys[i] > y) != (ys[j] > y)
+                    && x < (xs[j] - xs[i]) * (y - ys[i]) / (ys[j] - ys[i]) + xs[i]) {
+                inside = !inside;
+            }
+        }
+        return inside;
+    }
+
     /**
      * In linear time, collect all the names of OSM locations that prefix-match the query string.
      *
@@ -252,7 +1159,56 @@ public class GraphDB {
      * cleaned <code>prefix</code>.
      */
     public List<String> getLocationsByPrefix(String prefix) {
-        return Collections.emptyList();
+        return getLocationsByPrefix(prefix, () -> false);
+    }
+
+    /**
+     * Collects the names of OSM locations that prefix-match the query string, giving up early
+     * once <code>cancelled</code> returns true. Prefixes of up to
+     * <code>PrefixIndex.HOT_PREFIX_LENGTH</code> characters are answered from results
+     * computed when the graph was built.
+     *
+     * @param prefix    Prefix string to be searched for.
+     * @param cancelled Checked now and then during long searches.
+     * @return An unmodifiable <code>List</code> of the full names of locations whose cleaned
+     * name matches the cleaned <code>prefix</code>, possibly cut short if cancelled.
+     */
+    public List<String> getLocationsByPrefix(String prefix, BooleanSupplier cancelled) {
+        return prefixIndex.search(prefix, cancelled);
+    }
+
+    /**
+     * Collects the names of OSM locations whose cleaned name contains the cleaned query
+     * anywhere, such as "Wheeler Hall" for "heeler". Names starting with the query come first,
+     * then names with a word starting with it, shorter names before longer ones.
+     *
+     * @param query String to be searched for. Could be any case, with or without punctuation.
+     * @return A <code>List</code> of at most <code>MAX_SUBSTRING_RESULTS</code> full names of
+     * locations, best first.
+     */
+    public List<String> getLocationsBySubstring(String query) {
+        return getLocationsBySubstring(query, () -> false);
+    }
+
+    /**
+     * Collects the names of OSM locations whose cleaned name contains the cleaned query,
+     * giving up early once <code>cancelled</code> returns true.
+     *
+     * @param query     String to be searched for.
+     * @param cancelled Checked now and then during the search.
+     * @return A <code>List</code> of at most <code>MAX_SUBSTRING_RESULTS</code> full names of
+     * locations, best first, possibly cut short if cancelled.
+     */
+    public List<String> getLocationsBySubstring(String query, BooleanSupplier cancelled) {
+        return substringIndex.search(query, MAX_SUBSTRING_RESULTS, cancelled);
+    }
+
+    SubstringIndex getSubstringIndex() {
+        return substringIndex;
+    }
+
+    PrefixIndex getPrefixIndex() {
+        return prefixIndex;
     }
 
     /**
@@ -279,10 +1235,25 @@ public class GraphDB {
      * @source https://www.movable-type.co.uk/scripts/latlong.html
      */
     double bearing(long v, long w) {
-        double phi1 = Math.toRadians(lat(v));
-        double phi2 = Math.toRadians(lat(w));
-        double lambda1 = Math.toRadians(lon(v));
-        double lambda2 = Math.toRadians(lon(w));
+        return bearing(lon(v), lat(v), lon(w), lat(w));
+    }
+
+    /**
+     * Returns the initial bearing in degrees from one point to another, each given by its
+     * longitude and latitude.
+     *
+     * @param lonV The longitude of the first point.
+     * @param latV The latitude of the first point.
+     * @param lonW The longitude of the second point.
+     * @param latW The latitude of the second point.
+     * @return The bearing from the first point to the second in degrees.
+     * @source https://www.movable-type.co.uk/scripts/latlong.html
+     */
+    static double bearing(double lonV, double latV, double lonW, double latW) {
+        double phi1 = Math.toRadians(latV);
+        double phi2 = Math.toRadians(latW);
+        double lambda1 = Math.toRadians(lonV);
+        double lambda2 = Math.toRadians(lonW);
 
         double y = Math.sin(lambda2 - lambda1) * Math.cos(phi2);
         double x = Math.cos(phi1) * Math.sin(phi2);
@@ -291,88 +1262,271 @@ public class GraphDB {
     }
 
     public static class Node {
-        private static Comparator<Node> xComparator = new Comparator<Node>() {
-            @Override
-            public int compare(Node o1, Node o2) {
-                double x1 = projectToX(o1.lon, o1.lat);
-                double x2 = projectToX(o2.lon, o2.lat);
-                return Double.compare(x1, x2);
-            }
-        };
-        private static Comparator<Node> yComparator = new Comparator<Node>() {
-            @Override
-            public int compare(Node o1, Node o2) {
-                double y1 = projectToY(o1.lon, o1.lat);
-                double y2 = projectToY(o2.lon, o2.lat);
-                return Double.compare(y1, y2);
-            }
-        };
         long id;
         double lat;
         double lon;
-        String name = "No Name";
+        /** Handle of the node's name in the graph's <code>NameArena</code>, if it has one. */
+        int name = NameArena.NONE;
         List<Long> neighbors;
+        /** Index of the way each edge came from, parallel to <code>neighbors</code>. */
+        List<Integer> neighborWays;
 
         Node(long id, double lat, double lon) {
             this.id = id;
             this.lat = lat;
             this.lon = lon;
             this.neighbors = new ArrayList<>();
+            this.neighborWays = new ArrayList<>();
         }
 
-        public void hisNameIs(String n) {
+        public void hisNameIs(int n) {
             this.name = n;
         }
+
+        /** Returns a copy with lists of its own, which can change while this node is read. */
+        Node copy() {
+            Node copy = new Node(id, lat, lon);
+            copy.name = name;
+            copy.neighbors.addAll(neighbors);
+            copy.neighborWays.addAll(neighborWays);
+            return copy;
+        }
     }
 
 
     public static class Way {
         long id;
         List<Long> nodes;
-
-        Way(long id, List<Long> nodes) {
+        /** Handle of the way's name in the graph's <code>NameArena</code>, if it has one. */
+        int name;
+        byte highwayClass;
+        int speedMph;
+        /** The <code>Router.Profile</code> bits of the profiles allowed on the way. */
+        byte access;
+        int index;
+
+        Way(long id, List<Long> nodes, int name, byte highwayClass, int speedMph, byte access,
+            int index) {
             this.id = id;
             this.nodes = nodes;
+            this.name = name;
+            this.highwayClass = highwayClass;
+            this.speedMph = speedMph;
+            this.access = access;
+            this.index = index;
         }
     }
 
 
-    public class KDtree {
+    /** What applying a change file did, ready for serialization by Gson. */
+    static class ChangeStats {
+        /** Nodes and ways the change file changes. */
+        final int elements;
+        /** Nodes copied from the base graph or added to the new one. */
+        int copiedNodes;
+        int addedVertices;
+        int movedVertices;
+        int removedVertices;
+        /** Ways left out for nodes neither graph nor change file has. */
+        int skippedWays;
+        /** Deleted nodes kept because ways still use them. */
+        int skippedDeletions;
+        /** Arcs whose speed override was carried over from the base graph. */
+        int carriedOverrides;
+        /** Indexes built again in full, beyond the compact graph and the reverse geocoder. */
+        final List<String> rebuiltIndexes = new ArrayList<>();
+
+        ChangeStats(int elements) {
+            this.elements = elements;
+        }
+    }
 
-        KdTreeNode root;
+    /**
+     * A k-d tree of the vertices in the projected plane. A tree can make a new tree with a
+     * vertex added or removed that shares every subtree off the path to that vertex, so the
+     * graph a change file makes can have an index of its own without building one. Removed
+     * vertices stay in the tree, marked deleted and skipped by every query, until they are a
+     * quarter of it, when it is built again.
+     */
+    static class KDtree {
 
-        public KDtree() {
-            List<Node> verticesList = new ArrayList<>(nodeMap.values());
-            root = build(verticesList, true);
+        KdTreeNode root;
+        /** Nodes in the tree, and how many of them are deleted. */
+        private final int size;
+        private final int deleted;
+
+        public KDtree(Collection<Node> vertices) {
+            List<KdTreeNode> points = new ArrayList<>(vertices.size());
+            for (Node vertex : vertices) {
+                points.add(new KdTreeNode(vertex.id, vertex.lon, vertex.lat));
+            }
+            root = build(points, true);
+            size = points.size();
+            deleted = 0;
         }
 
-        public KdTreeNode build(List<Node> m, boolean vertical) {
-            if (vertical) {
-                Collections.sort(m, Node.xComparator);
-            } else {
-                Collections.sort(m, Node.yComparator);
+        /** Builds a tree of the vertices of <code>cg</code>, read from its buffers. */
+        KDtree(CompactGraph cg) {
+            List<KdTreeNode> points = new ArrayList<>(cg.numVertices());
+            for (int v = 0; v < cg.numVertices(); v += 1) {
+                points.add(new KdTreeNode(cg.id(v), cg.lon(v), cg.lat(v)));
             }
+            root = build(points, true);
+            size = points.size();
+            deleted = 0;
+        }
 
+        private KDtree(KdTreeNode root, int size, int deleted) {
+            this.root = root;
+            this.size = size;
+            this.deleted = deleted;
+        }
+
+        /**
+         * Links the points of <code>m</code> into a balanced tree that splits on x at its root
+         * if <code>vertical</code>, and returns the root. The list is sorted in place.
+         */
+        public KdTreeNode build(List<KdTreeNode> m, boolean vertical) {
             if (m.isEmpty()) {
                 return null;
             }
-            if (m.size() == 1) {
-                return new KdTreeNode(m.get(0).id, null, null, vertical);
+            if (vertical) {
+                m.sort((a, b) -> Double.compare(a.x, b.x));
+            } else {
+                m.sort((a, b) -> Double.compare(a.y, b.y));
             }
 
             int median = m.size() / 2;
-            Node medianNode = m.get(median);
+            KdTreeNode medianNode = m.get(median);
+            medianNode.vertical = vertical;
+            medianNode.left = build(m.subList(0, median), !vertical);
+            medianNode.right = build(m.subList(median + 1, m.size()), !vertical);
+            return medianNode;
+        }
+
+        /**
+         * Returns a tree that also has <code>vertex</code>, hung below the leaf a search for
+         * it ends at. Only the nodes on the way there are copied.
+         */
+        KDtree with(Node vertex) {
+            return new KDtree(insert(root, vertex, true), size + 1, deleted);
+        }
+
+        private static KdTreeNode insert(KdTreeNode node, Node vertex, boolean vertical) {
+            if (node == null) {
+                return new KdTreeNode(vertex, null, null, vertical);
+            }
+            double x = projectToX(vertex.lon, vertex.lat);
+            double y = projectToY(vertex.lon, vertex.lat);
+            /* The same side closestHelper searches first for a point on the split. */
+            if (node.vertical ? x < node.x : y < node.y) {
+                return node.copy(insert(node.left, vertex, !node.vertical), node.right,
+                        node.deleted);
+            }
+            return node.copy(node.left, insert(node.right, vertex, !node.vertical),
+                    node.deleted);
+        }
+
+        /**
+         * Returns a tree in which <code>vertex</code> is marked deleted, found by its OSM ID
+         * and the coordinates it had when it was added. Only the nodes on the way to it are
+         * copied.
+         */
+        KDtree without(Node vertex) {
+            KdTreeNode next = delete(root, vertex.id, projectToX(vertex.lon, vertex.lat),
+                    projectToY(vertex.lon, vertex.lat));
+            return next == root ? this : new KDtree(next, size, deleted + 1);
+        }
+
+        /** Returns whether a quarter of the tree is deleted, so it is time to build it again. */
+        boolean needsRebuild() {
+            return 4 * deleted > size;
+        }
+
+        private static KdTreeNode delete(KdTreeNode node, long id, double x, double y) {
+            if (node == null) {
+                return null;
+            }
+            if (node.id == id && !node.deleted && node.x == x && node.y == y) {
+                return node.copy(node.left, node.right, true);
+            }
+            /* Points on the split may be on either side of it. */
+            double p = node.vertical ? x : y;
+            double split = node.vertical ? node.x : node.y;
+            if (p <= split) {
+                KdTreeNode left = delete(node.left, id, x, y);
+                if (left != node.left) {
+                    return node.copy(left, node.right, node.deleted);
+                }
+            }
+            if (p >= split) {
+                KdTreeNode right = delete(node.right, id, x, y);
+                if (right != node.right) {
+                    return node.copy(node.left, right, node.deleted);
+                }
+            }
+            return node;
+        }
 
-            KdTreeNode leftChild = build(m.subList(0, median), !vertical);
-            KdTreeNode rightChild = build(m.subList(median + 1, m.size()), !vertical);
+        /**
+         * Passes every node of the subtree at <code>node</code> whose projected point lies in
+         * the box to <code>out</code>. Points equal to a splitting coordinate may sit on either
+         * side of it, so both sides are searched when the box touches the split.
+         */
+        void inBox(KdTreeNode node, double minX, double maxX, double minY, double maxY,
+                   Consumer<KdTreeNode> out) {
+            if (node == null) {
+                return;
+            }
+            if (node.x >= minX && node.x <= maxX && node.y >= minY && node.y <= maxY
+                    && !node.deleted) {
+                out.accept(node);
+            }
+            double split = node.vertical ? node.x : node.y;
+            double lo = node.vertical ? minX : minY;
+            double hi = node.vertical ? maxX : maxY;
+            if (lo <= split) {
+                inBox(node.left, minX, maxX, minY, maxY, out);
+            }
+            if (hi >= split) {
+                inBox(node.right, minX, maxX, minY, maxY, out);
+            }
+        }
 
-            return new KdTreeNode(medianNode.id, leftChild, rightChild, vertical);
+        /**
+         * Returns the node of the subtree at <code>node</code> closest to the projected point
+         * (x, y) among those that pass <code>filter</code>, or <code>best</code> if none is
+         * closer than it.
+         */
+        KdTreeNode closestWhere(double x, double y, KdTreeNode node, KdTreeNode best,
+                                Predicate<KdTreeNode> filter) {
+            if (node == null) {
+                return best;
+            }
+            double d = euclidean(node.x, x, node.y, y);
+            if ((best == null || d < euclidean(best.x, x, best.y, y)) && !node.deleted
+                    && filter.test(node)) {
+                best = node;
+            }
+            double toSplit = node.vertical ? x - node.x : y - node.y;
+            KdTreeNode near = toSplit < 0 ? node.left : node.right;
+            KdTreeNode far = toSplit < 0 ? node.right : node.left;
+            best = closestWhere(x, y, near, best, filter);
+            if (best == null || Math.abs(toSplit) < euclidean(best.x, x, best.y, y)) {
+                best = closestWhere(x, y, far, best, filter);
+            }
+            return best;
         }
 
         double euclidean(double x1, double x2, double y1, double y2) {
             return Math.sqrt(Math.pow(x1 - x2, 2) + Math.pow(y1 - y2, 2));
         }
 
+        /** Returns how far a node is from (x, y), or infinitely far if it is deleted. */
+        private double distanceTo(KdTreeNode node, double x, double y) {
+            return node.deleted ? Double.POSITIVE_INFINITY : euclidean(node.x, x, node.y, y);
+        }
+
         //public class nearestNeighbor {
         //    public kdTreeNode winner = root;
 
@@ -396,10 +1550,8 @@ public class GraphDB {
                 rootsXorY = node.y;
             }
 
-            double currentDistance = euclidean(closestNode.x, projX,
-                    closestNode.y, projY);
-            double distToRoot = euclidean(node.x, projX,
-                    node.y, projY);
+            double currentDistance = distanceTo(closestNode, projX, projY);
+            double distToRoot = distanceTo(node, projX, projY);
 //currentDistance > euclidean(root.left.x, x, root.left.y, y
             //currentDistance > euclidean(root.left.x, x, root.left.y, y)
             boolean left = false;
@@ -428,8 +1580,7 @@ public class GraphDB {
             //currentDistance
             if (Math.abs(rootsXorY - pointsXorY)
                     >=
-                    euclidean(closestNode.x, projX,
-                            closestNode.y, projY)) {
+                    distanceTo(closestNode, projX, projY)) {
                 return closestNode;
             } else {
                 if (left) {
@@ -456,7 +1607,8 @@ public class GraphDB {
 
         }
 
-        public class KdTreeNode {
+        /** A node of the tree; trees made from one another share nodes, so none is changed. */
+        public static class KdTreeNode {
 
             long id;
             KdTreeNode left;
@@ -464,19 +1616,42 @@ public class GraphDB {
             double x;
             double y;
             boolean vertical;
+            /** Whether the vertex was removed from the tree after it was built. */
+            boolean deleted;
 
-            public KdTreeNode(long id, KdTreeNode left,
+            public KdTreeNode(Node vertex, KdTreeNode left,
                               KdTreeNode right, boolean vertical) {
-                this.id = id;
+                this.id = vertex.id;
                 this.left = left;
                 this.right = right;
-                this.y = projectToY(nodeMap.get(id).lon, nodeMap.get(id).lat);
-                this.x = projectToX(nodeMap.get(id).lon, nodeMap.get(id).lat);
+                this.y = projectToY(vertex.lon, vertex.lat);
+                this.x = projectToX(vertex.lon, vertex.lat);
                 this.vertical = vertical;
             }
+
+            /** Makes a leaf, yet to be linked into a tree, for a vertex. */
+            KdTreeNode(long id, double lon, double lat) {
+                this.id = id;
+                this.x = projectToX(lon, lat);
+                this.y = projectToY(lon, lat);
+            }
+
+            private KdTreeNode(KdTreeNode node, KdTreeNode left, KdTreeNode right,
+                               boolean deleted) {
+                this.id = node.id;
+                this.left = left;
+                this.right = right;
+                this.x = node.x;
+                this.y = node.y;
+                this.vertical = node.vertical;
+                this.deleted = deleted;
+            }
+
+            /** Returns a copy with other children, deleted or not. */
+            KdTreeNode copy(KdTreeNode newLeft, KdTreeNode newRight, boolean isDeleted) {
+                return new KdTreeNode(this, newLeft, newRight, isDeleted);
+            }
         }
 
     }
 }
-
-
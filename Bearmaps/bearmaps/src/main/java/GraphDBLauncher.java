@@ -29,6 +29,12 @@ public class GraphDBLauncher {
         System.out.print("The vertex number closest to -122.258207, 37.875352 is " + v + ", which");
         System.out.println(" has longitude, latitude of: " + g.lon(v) + ", " + g.lat(v));
 
+        CompactGraph cg = g.getCompactGraph();
+        System.out.println("The full graph has " + cg.numVertices() + " vertices and "
+                + cg.numArcs() / 2 + " edges.");
+        System.out.println("After chain compression, routing searches " + cg.numJunctions()
+                + " junctions and " + cg.numJunctionArcs() / 2 + " edges.");
+
         System.out.println("To get started, uncomment print statements in GraphBuildingHandler.");
     }
 }
@@ -0,0 +1,276 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Holds the graph a server answers from, and replaces it with a freshly built one without
+ * stopping. A reload parses the map and builds every index of a new <code>GraphDB</code> on a
+ * thread of its own while requests keep using the current graph, then publishes the new one
+ * with a single volatile write. Each request reads the graph once and uses that snapshot to
+ * the end, so requests in flight finish on the version they started with, and the old graph
+ * is collected once the last of them lets go of it. Caches of results tell the versions apart
+ * with <code>GraphDB.version</code>.
+ * <p>
+ * A change file can be applied the same way: the new graph is made from the current one by
+ * <code>GraphDB.withChanges</code>, which is much quicker than reading the whole map again,
+ * and published like a reloaded one.
+ * <p>
+ * One reload or change file runs at a time. Change files asked for while another runs wait
+ * their turn and are applied in the order they came, each to the graph the one before left,
+ * so none is dropped. Asking for a reload while another reload is running or waiting returns
+ * that one instead, as both would read the same file; otherwise it waits its turn too. One
+ * that fails leaves the current graph in place for those after it.
+ * <p>
+ * Given a directory for node stores, each reload keeps the new graph's vertices in a store of
+ * its own there, and the old graph's store file is deleted once the new graph is published;
+ * requests still on the old graph keep reading the pages they have mapped. Change files
+ * cannot be applied to such graphs, as they have no vertices on the heap to copy, and are
+ * refused at once.
+ */
+class GraphReloader {
+    /** What a reload is doing. */
+    enum State { IDLE, RUNNING, DONE, FAILED }
+
+    private final String path;
+    /** Where reloads keep their graphs' node stores, or null to keep vertices on the heap. */
+    private final File nodeStoreDir;
+    /** Run on each new graph before it is published, for example to attach hub labels. */
+    private final Consumer<GraphDB> prepare;
+    private volatile GraphDB graph;
+    /**
+     * The last reload or change file asked for, running, waiting or done, or null before the
+     * first; guarded by this.
+     */
+    private CompletableFuture<GraphDB> last;
+    /** Whether <code>last</code> is a reload; guarded by this. */
+    private boolean lastIsReload;
+    /** How many reloads and change files wait for the running one; written under this. */
+    private volatile int waiting;
+    private volatile Status status;
+    /** When the running or last reload started, by <code>System.nanoTime</code>. */
+    private volatile long startNanos;
+
+    /**
+     * Holds a graph built from <code>path</code>, which reloads read again.
+     *
+     * @param path    The map file.
+     * @param graph   The graph built from it.
+     * @param prepare Run on each reloaded graph before it is published.
+     */
+    GraphReloader(String path, GraphDB graph, Consumer<GraphDB> prepare) {
+        this(path, null, graph, prepare);
+    }
+
+    /**
+     * Holds a graph built from <code>path</code>, which reloads read again, keeping the
+     * vertices of each reloaded graph in a node store in <code>nodeStoreDir</code>.
+     *
+     * @param path         The map file.
+     * @param nodeStoreDir The directory for node stores, or null to keep vertices on the heap.
+     * @param graph        The graph built from it, typically by <code>load</code>.
+     * @param prepare      Run on each reloaded graph before it is published.
+     */
+    GraphReloader(String path, File nodeStoreDir, GraphDB graph, Consumer<GraphDB> prepare) {
+        this.path = path;
+        this.nodeStoreDir = nodeStoreDir;
+        this.graph = graph;
+        this.prepare = prepare;
+        this.status = new Status(State.IDLE, null, graph.version(), 0, null, null, 0);
+    }
+
+    /**
+     * Builds a graph from a map file, keeping its vertices in a new node store in
+     * <code>nodeStoreDir</code> if that is not null. The store file is deleted when the JVM
+     * exits, if not before.
+     *
+     * @param path         The map file.
+     * @param nodeStoreDir The directory for the node store, or null to keep vertices on the
+     *                     heap.
+     * @param progress     Told each phase of the work as it starts.
+     * @return The graph.
+     * @throws UncheckedIOException If the node store cannot be written.
+     */
+    static GraphDB load(String path, File nodeStoreDir, Consumer<String> progress) {
+        if (nodeStoreDir == null) {
+            return new GraphDB(path, progress);
+        }
+        try {
+            File store = File.createTempFile("graph", ".nodes", nodeStoreDir);
+            store.deleteOnExit();
+            boolean built = false;
+            try {
+                GraphDB graph = new GraphDB(path, store, progress);
+                built = true;
+                return graph;
+            } finally {
+                if (!built) {
+                    store.delete();
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** Deletes the file of a graph's node store, if it has one. */
+    private static void discard(GraphDB g) {
+        if (g.getNodeStore() != null) {
+            g.getNodeStore().file().delete();
+        }
+    }
+
+    /**
+     * Returns the current graph. Callers should read it once per request and use the same
+     * graph throughout, since a reload may publish another at any time.
+     */
+    GraphDB graph() {
+        return graph;
+    }
+
+    /**
+     * Starts rebuilding the graph from the map file in the background once whatever is running
+     * is done, unless a reload is already running or waiting.
+     *
+     * @return The reload, which completes with the new graph once it is published, or
+     * exceptionally if building it failed.
+     */
+    synchronized CompletableFuture<GraphDB> reload() {
+        if (lastIsReload && !last.isDone()) {
+            return last;
+        }
+        lastIsReload = true;
+        return enqueue("reload " + path, progress -> {
+            GraphDB next = load(path, nodeStoreDir, progress);
+            /* GraphDB reports unreadable files and carries on, so check for a map. */
+            if (next.getCompactGraph().numVertices() == 0) {
+                discard(next);
+                throw new IllegalStateException("No vertices in " + path);
+            }
+            return next;
+        });
+    }
+
+    /**
+     * Starts applying a change file in the background once whatever is running is done, to
+     * the graph being served then.
+     *
+     * @param change The changes.
+     * @return The change file's run, which completes with the new graph once it is
+     * published, or exceptionally if making it failed.
+     * @throws IllegalStateException If graphs are kept in node stores, so changes cannot be
+     *                               applied to them.
+     */
+    synchronized CompletableFuture<GraphDB> apply(OsmChange change) {
+        if (nodeStoreDir != null || graph.getNodeStore() != null) {
+            throw new IllegalStateException("Change files cannot be applied to a graph kept in"
+                    + " a node store; reload the map instead.");
+        }
+        lastIsReload = false;
+        return enqueue("apply changes to " + path,
+                progress -> graph.withChanges(change, progress));
+    }
+
+    /** Starts <code>build</code> once the last reload or change file is done; holds this. */
+    private CompletableFuture<GraphDB> enqueue(String name,
+                                               Function<Consumer<String>, GraphDB> build) {
+        CompletableFuture<GraphDB> future = new CompletableFuture<>();
+        CompletableFuture<GraphDB> previous = last;
+        last = future;
+        if (previous == null || previous.isDone()) {
+            start(name, build, future);
+        } else {
+            waiting += 1;
+            /* Runs on the previous builder's thread once it has published or failed. */
+            previous.whenComplete((g, e) -> {
+                synchronized (this) {
+                    waiting -= 1;
+                }
+                start(name, build, future);
+            });
+        }
+        return future;
+    }
+
+    /**
+     * Makes a new graph on a thread named <code>name</code>, publishes it and completes
+     * <code>future</code> with it.
+     */
+    private void start(String name, Function<Consumer<String>, GraphDB> build,
+                       CompletableFuture<GraphDB> future) {
+        long start = System.nanoTime();
+        startNanos = start;
+        status = new Status(State.RUNNING, "starting", graph.version(), 0, null, null, 0);
+        Thread builder = new Thread(() -> {
+            try {
+                GraphDB next = build.apply(phase -> status = new Status(State.RUNNING, phase,
+                        graph.version(), millisSince(start), null, null, 0));
+                status = new Status(State.RUNNING, "preparing", graph.version(),
+                        millisSince(start), null, null, 0);
+                prepare.accept(next);
+                GraphDB old = graph;
+                graph = next;
+                /* Unlinking a mapped file leaves its pages readable until they are unmapped. */
+                discard(old);
+                status = new Status(State.DONE, null, next.version(), millisSince(start),
+                        null, next.changeStats(), 0);
+                future.complete(next);
+            } catch (RuntimeException | Error e) {
+                /* Running out of memory building the new graph leaves the old one serving. */
+                status = new Status(State.FAILED, null, graph.version(), millisSince(start),
+                        e.toString(), null, 0);
+                future.completeExceptionally(e);
+            }
+        }, name);
+        builder.setDaemon(true);
+        builder.start();
+    }
+
+    /**
+     * Returns the progress of the running or last reload or change file, and how many wait
+     * after it, ready for serialization by Gson.
+     */
+    Status status() {
+        Status s = status;
+        long elapsed = s.state == State.RUNNING ? millisSince(startNanos) : s.elapsedMillis;
+        return new Status(s.state, s.phase, s.graphVersion, elapsed, s.error, s.changes,
+                waiting);
+    }
+
+    private static long millisSince(long start) {
+        return (System.nanoTime() - start) / 1_000_000;
+    }
+
+    /** A snapshot of the progress of a reload or change file. */
+    static class Status {
+        final State state;
+        /**
+         * What a running reload is doing: parsing, cleaning, indexing or preparing; or a
+         * change file: applying, indexing or preparing.
+         */
+        final String phase;
+        /** The version of the graph being served. */
+        final long graphVersion;
+        /** How long the running reload has taken so far, or the last one took. */
+        final long elapsedMillis;
+        /** Why the last reload failed, if it did. */
+        final String error;
+        /** What the last change file did, once it is published. */
+        final GraphDB.ChangeStats changes;
+        /** How many reloads and change files wait to run after this one. */
+        final int waiting;
+
+        Status(State state, String phase, long graphVersion, long elapsedMillis, String error,
+               GraphDB.ChangeStats changes, int waiting) {
+            this.state = state;
+            this.phase = phase;
+            this.graphVersion = graphVersion;
+            this.elapsedMillis = elapsedMillis;
+            this.error = error;
+            this.changes = changes;
+            this.waiting = waiting;
+        }
+    }
+}
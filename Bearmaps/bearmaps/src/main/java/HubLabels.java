@@ -0,0 +1,523 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * A hub-label distance oracle over the junction graph of a <code>CompactGraph</code>, built by
+ * pruned landmark labeling.
+ * <p>
+ * Every junction gets a label: a list of (hub, weight) pairs such that any two junctions share
+ * a hub on some best path between them. A distance query is then a merge of two labels sorted
+ * by hub, with no graph search at all. The labels are built by running one Dijkstra search
+ * from every junction in order of importance, where a search stops at any junction whose
+ * distance the labels found so far already answer.
+ * <p>
+ * Labels answer driving distances only: the searches that build them skip every chain drivers
+ * may not use.
+ * <p>
+ * Labels are stored in compressed sparse row form as sorted <code>int</code> hub ranks and
+ * <code>float</code> weights, and can be written to and memory-mapped from a file so a server
+ * does not have to rebuild them on start-up.
+ */
+class HubLabels {
+    private static final int MAGIC = 0x484C4231;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 32;
+    /** Number of shortest-path trees sampled to order the junctions. */
+    private static final int ORDER_SAMPLES = 32;
+    private static final long ORDER_SEED = 33;
+    /** Most roots labeled in one parallel batch. */
+    private static final int MAX_BATCH = 64;
+    /** Batches hold one root per this many roots already labeled, up to MAX_BATCH. */
+    private static final int BATCH_GROWTH = 16;
+
+    private final Router.Metric metric;
+    private final int numJunctions;
+    private final long fingerprint;
+    /** Entries of the label of junction j are labelStart[j] to labelStart[j + 1]. */
+    private final IntBuffer labelStart;
+    /** Hub of each label entry, as its rank in the labeling order; ascending in each label. */
+    private final IntBuffer labelHub;
+    /** Weight from the junction to the hub of each label entry. */
+    private final FloatBuffer labelDist;
+
+    private HubLabels(Router.Metric metric, int numJunctions, long fingerprint,
+                      IntBuffer labelStart, IntBuffer labelHub, FloatBuffer labelDist) {
+        this.metric = metric;
+        this.numJunctions = numJunctions;
+        this.fingerprint = fingerprint;
+        this.labelStart = labelStart;
+        this.labelHub = labelHub;
+        this.labelDist = labelDist;
+    }
+
+    /**
+     * Builds the labels of every junction of <code>cg</code> from its current weights.
+     * <p>
+     * Roots are labeled in batches that search in parallel. A search only prunes with labels
+     * from earlier batches, which keeps every label correct but can add a few entries a
+     * sequential build would have pruned; batches therefore start at one root and grow as the
+     * important early hubs are done.
+     *
+     * @param cg     The compact graph to label.
+     * @param metric The metric the labels answer.
+     */
+    static HubLabels build(CompactGraph cg, Router.Metric metric) {
+        return build(cg, cg.weights(), metric);
+    }
+
+    /** Builds the labels of every junction of <code>cg</code> from weights <code>cw</code>. */
+    static HubLabels build(CompactGraph cg, CompactGraph.Weights cw, Router.Metric metric) {
+        int n = cg.numJunctions();
+        double[] weights = cw.jArcWeight[metric.ordinal()];
+        int[] order = order(cg, weights);
+
+        int[][] hubs = new int[n][];
+        float[][] dists = new float[n][];
+        int[] sizes = new int[n];
+        for (int j = 0; j < n; j += 1) {
+            hubs[j] = new int[4];
+            dists[j] = new float[4];
+        }
+
+        ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(() -> new Scratch(n));
+        int lo = 0;
+        while (lo < n) {
+            int hi = Math.min(n, lo + Math.max(1, Math.min(MAX_BATCH, lo / BATCH_GROWTH)));
+            int first = lo;
+            Found[] found = new Found[hi - lo];
+            IntStream.range(lo, hi).parallel().forEach(r -> {
+                Scratch sc = scratch.get();
+                sc.search(cg, weights, order[r], hubs, dists, sizes);
+                found[r - first] = sc.takeFound();
+            });
+            for (int r = lo; r < hi; r += 1) {
+                Found f = found[r - lo];
+                for (int i = 0; i < f.vertex.length; i += 1) {
+                    append(hubs, dists, sizes, f.vertex[i], r, f.dist[i]);
+                }
+            }
+            lo = hi;
+        }
+
+        int[] start = new int[n + 1];
+        for (int j = 0; j < n; j += 1) {
+            start[j + 1] = start[j] + sizes[j];
+        }
+        int[] hub = new int[start[n]];
+        float[] weight = new float[start[n]];
+        for (int j = 0; j < n; j += 1) {
+            System.arraycopy(hubs[j], 0, hub, start[j], sizes[j]);
+            System.arraycopy(dists[j], 0, weight, start[j], sizes[j]);
+        }
+        return new HubLabels(metric, n, fingerprint(cg, cw, metric), IntBuffer.wrap(start),
+                IntBuffer.wrap(hub), FloatBuffer.wrap(weight));
+    }
+
+    /** Per-thread arrays for the pruned searches of one build. */
+    private static class Scratch {
+        /** Weight from the current root to each hub rank, read off the root's own label. */
+        private final float[] rootDist;
+        private final double[] dist;
+        private final boolean[] settled;
+        private final int[] touched;
+        private final RadixHeap fringe = new RadixHeap();
+        /** Junctions the last search labeled, with their weights from the root. */
+        private int[] foundVertex = new int[16];
+        private float[] foundDist = new float[16];
+        private int numFound;
+
+        Scratch(int n) {
+            rootDist = new float[n];
+            Arrays.fill(rootDist, Float.POSITIVE_INFINITY);
+            dist = new double[n];
+            Arrays.fill(dist, Double.POSITIVE_INFINITY);
+            settled = new boolean[n];
+            touched = new int[n];
+        }
+
+        /** Runs the pruned search from <code>root</code>, recording the junctions it labels. */
+        void search(CompactGraph cg, double[] weights, int root, int[][] hubs, float[][] dists,
+                    int[] sizes) {
+            int rootSize = sizes[root];
+            for (int e = 0; e < rootSize; e += 1) {
+                rootDist[hubs[root][e]] = dists[root][e];
+            }
+            numFound = 0;
+            int numTouched = 0;
+            fringe.clear();
+            dist[root] = 0;
+            touched[numTouched] = root;
+            numTouched += 1;
+            fringe.push(root, 0);
+            while (!fringe.isEmpty()) {
+                int u = fringe.pop();
+                if (settled[u]) {
+                    continue;
+                }
+                settled[u] = true;
+                double d = dist[u];
+                if (covered(rootDist, hubs[u], dists[u], sizes[u], d)) {
+                    continue;
+                }
+                if (numFound == foundVertex.length) {
+                    foundVertex = Arrays.copyOf(foundVertex, numFound * 2);
+                    foundDist = Arrays.copyOf(foundDist, numFound * 2);
+                }
+                foundVertex[numFound] = u;
+                foundDist[numFound] = (float) d;
+                numFound += 1;
+                for (int a = cg.jArcStart[u]; a < cg.jArcStart[u + 1]; a += 1) {
+                    if (!drivable(cg, a)) {
+                        continue;
+                    }
+                    int w = cg.jArcTarget[a];
+                    double nd = d + weights[a];
+                    if (!settled[w] && nd < dist[w]) {
+                        if (dist[w] == Double.POSITIVE_INFINITY) {
+                            touched[numTouched] = w;
+                            numTouched += 1;
+                        }
+                        dist[w] = nd;
+                        fringe.push(w, nd);
+                    }
+                }
+            }
+            for (int i = 0; i < numTouched; i += 1) {
+                dist[touched[i]] = Double.POSITIVE_INFINITY;
+                settled[touched[i]] = false;
+            }
+            for (int e = 0; e < rootSize; e += 1) {
+                rootDist[hubs[root][e]] = Float.POSITIVE_INFINITY;
+            }
+        }
+
+        /** Returns a copy of what the last search found, so this scratch can be reused. */
+        Found takeFound() {
+            return new Found(Arrays.copyOf(foundVertex, numFound),
+                    Arrays.copyOf(foundDist, numFound));
+        }
+    }
+
+    /** The junctions one pruned search labeled, with their weights from its root. */
+    private static class Found {
+        private final int[] vertex;
+        private final float[] dist;
+
+        Found(int[] vertex, float[] dist) {
+            this.vertex = vertex;
+            this.dist = dist;
+        }
+    }
+
+    /**
+     * Orders the junctions by decreasing importance, estimated as the number of junctions
+     * below each one in the shortest-path trees of a few sampled roots: a junction many best
+     * paths run through is a good hub and prunes the most searches when labeled early. Ties
+     * go to the junction of higher degree.
+     */
+    private static int[] order(CompactGraph cg, double[] weights) {
+        int n = cg.numJunctions();
+        long[] score = new long[n];
+        double[] dist = new double[n];
+        int[] parent = new int[n];
+        int[] settledOrder = new int[n];
+        long[] below = new long[n];
+        boolean[] settled = new boolean[n];
+        RadixHeap fringe = new RadixHeap();
+        Random random = new Random(ORDER_SEED);
+        int samples = Math.min(n, ORDER_SAMPLES);
+        for (int s = 0; s < samples; s += 1) {
+            Arrays.fill(dist, Double.POSITIVE_INFINITY);
+            Arrays.fill(settled, false);
+            int root = random.nextInt(n);
+            fringe.clear();
+            dist[root] = 0;
+            parent[root] = CompactGraph.NONE;
+            fringe.push(root, 0);
+            int numSettled = 0;
+            while (!fringe.isEmpty()) {
+                int u = fringe.pop();
+                if (settled[u]) {
+                    continue;
+                }
+                settled[u] = true;
+                settledOrder[numSettled] = u;
+                numSettled += 1;
+                for (int a = cg.jArcStart[u]; a < cg.jArcStart[u + 1]; a += 1) {
+                    if (!drivable(cg, a)) {
+                        continue;
+                    }
+                    int w = cg.jArcTarget[a];
+                    double nd = dist[u] + weights[a];
+                    if (!settled[w] && nd < dist[w]) {
+                        dist[w] = nd;
+                        parent[w] = u;
+                        fringe.push(w, nd);
+                    }
+                }
+            }
+            /* Children settle after their parents, so a reverse pass sums whole subtrees. */
+            for (int i = numSettled - 1; i >= 0; i -= 1) {
+                int u = settledOrder[i];
+                below[u] += 1;
+                score[u] += below[u];
+                if (parent[u] != CompactGraph.NONE) {
+                    below[parent[u]] += below[u];
+                }
+                below[u] = 0;
+            }
+        }
+        return IntStream.range(0, n).boxed()
+                .sorted(Comparator.comparingLong((Integer j) -> -score[j])
+                        .thenComparingInt(j -> -cg.degree(cg.junctions[j])))
+                .mapToInt(Integer::intValue).toArray();
+    }
+
+    /** Returns whether the labels built so far already give a weight of at most d. */
+    private static boolean covered(float[] rootDist, int[] hub, float[] dist, int size,
+                                   double d) {
+        for (int e = 0; e < size; e += 1) {
+            if ((double) rootDist[hub[e]] + dist[e] <= d) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void append(int[][] hubs, float[][] dists, int[] sizes, int j, int hub,
+                               float d) {
+        int size = sizes[j];
+        if (size == hubs[j].length) {
+            hubs[j] = Arrays.copyOf(hubs[j], size * 2);
+            dists[j] = Arrays.copyOf(dists[j], size * 2);
+        }
+        hubs[j][size] = hub;
+        dists[j][size] = d;
+        sizes[j] = size + 1;
+    }
+
+    /**
+     * Returns a hash of the junction graph and its weights, so labels written for one graph
+     * are not used with another.
+     */
+    static long fingerprint(CompactGraph cg, CompactGraph.Weights cw, Router.Metric metric) {
+        long h = 1125899906842597L;
+        for (int j = 0; j < cg.numJunctions(); j += 1) {
+            h = 31 * h + cg.id(cg.junctions[j]);
+            h = 31 * h + cg.jArcStart[j + 1];
+        }
+        double[] weights = cw.jArcWeight[metric.ordinal()];
+        for (int a = 0; a < weights.length; a += 1) {
+            h = 31 * h + (drivable(cg, a) ? cg.jArcTarget[a] : CompactGraph.NONE);
+            h = 31 * h + Float.floatToIntBits((float) weights[a]);
+        }
+        return h;
+    }
+
+    /** Returns whether search arc <code>a</code> may be driven; labels only cover driving. */
+    private static boolean drivable(CompactGraph cg, int a) {
+        return (cg.chainAccess[cg.jArcChain[a] >> 1] & Router.Profile.DRIVE.bit()) != 0;
+    }
+
+    /** Returns the metric these labels answer. */
+    Router.Metric metric() {
+        return metric;
+    }
+
+    /** Returns whether these labels were built for <code>cg</code> with weights <code>cw</code>. */
+    boolean matches(CompactGraph cg, CompactGraph.Weights cw) {
+        return numJunctions == cg.numJunctions() && fingerprint == fingerprint(cg, cw, metric);
+    }
+
+    /** Returns the total number of label entries. */
+    int numEntries() {
+        return labelStart.get(numJunctions);
+    }
+
+    /** Returns the mean number of entries per junction label. */
+    double averageLabelSize() {
+        return numJunctions == 0 ? 0 : (double) numEntries() / numJunctions;
+    }
+
+    /** Returns the number of bytes the labels take, in memory or on disk. */
+    long sizeBytes() {
+        return HEADER_BYTES + 4L * (numJunctions + 1) + 8L * numEntries();
+    }
+
+    /**
+     * Returns the weight of the best path between two junctions by merging their labels, or
+     * infinity if they are not connected.
+     */
+    double junctionDistance(int s, int t) {
+        int i = labelStart.get(s);
+        int iEnd = labelStart.get(s + 1);
+        int k = labelStart.get(t);
+        int kEnd = labelStart.get(t + 1);
+        double best = Double.POSITIVE_INFINITY;
+        while (i < iEnd && k < kEnd) {
+            int hi = labelHub.get(i);
+            int hk = labelHub.get(k);
+            if (hi == hk) {
+                best = Math.min(best, (double) labelDist.get(i) + labelDist.get(k));
+                i += 1;
+                k += 1;
+            } else if (hi < hk) {
+                i += 1;
+            } else {
+                k += 1;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Returns the weight of the best path between two vertices of <code>cg</code>, which with
+     * weights <code>cw</code> must be what these labels were built for. A vertex inside a chain
+     * is reached through either end of its chain, or directly along it when both vertices
+     * share the chain.
+     *
+     * @return The weight, or infinity if either vertex is missing or they are not connected.
+     */
+    double distance(CompactGraph cg, CompactGraph.Weights cw, int s, int t) {
+        if (s == CompactGraph.NONE || t == CompactGraph.NONE) {
+            return Double.POSITIVE_INFINITY;
+        }
+        int mi = metric.ordinal();
+        int sc = cg.vertexChain[s];
+        int tc = cg.vertexChain[t];
+        double best = Double.POSITIVE_INFINITY;
+        if (sc != CompactGraph.NONE && sc == tc) {
+            best = Math.abs(cw.vertexChainOffset[mi][s] - cw.vertexChainOffset[mi][t]);
+        }
+        int[] sEnds = ends(cg, s);
+        int[] tEnds = ends(cg, t);
+        for (int a = 0; a < sEnds.length; a += 1) {
+            double sOffset = endOffset(cg, cw, s, a, mi);
+            for (int b = 0; b < tEnds.length; b += 1) {
+                double tOffset = endOffset(cg, cw, t, b, mi);
+                best = Math.min(best,
+                        sOffset + junctionDistance(sEnds[a], tEnds[b]) + tOffset);
+            }
+        }
+        return best;
+    }
+
+    /** Returns the junctions vertex v is reached through: itself, or its chain's two ends. */
+    private static int[] ends(CompactGraph cg, int v) {
+        int c = cg.vertexChain[v];
+        if (c == CompactGraph.NONE) {
+            return new int[]{cg.junctionOf[v]};
+        }
+        return new int[]{cg.junctionOf[cg.chainFrom[c]], cg.junctionOf[cg.chainTo[c]]};
+    }
+
+    /** Returns the weight between vertex v and the k-th junction returned by ends. */
+    private static double endOffset(CompactGraph cg, CompactGraph.Weights cw, int v, int k,
+                                    int mi) {
+        int c = cg.vertexChain[v];
+        if (c == CompactGraph.NONE) {
+            return 0;
+        }
+        double offset = cw.vertexChainOffset[mi][v];
+        return k == 0 ? offset : cw.chainWeight[mi][c] - offset;
+    }
+
+    /**
+     * Writes the labels to <code>file</code> in the little-endian layout read by
+     * <code>map</code>: a header, then the label starts, hubs and weights as flat arrays.
+     */
+    void write(File file) throws IOException {
+        long size = sizeBytes();
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Hub labels too large to map: " + size + " bytes.");
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+             FileChannel channel = raf.getChannel()) {
+            raf.setLength(size);
+            MappedByteBuffer out = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            out.order(ByteOrder.LITTLE_ENDIAN);
+            out.putInt(MAGIC).putInt(VERSION).putInt(metric.ordinal()).putInt(numJunctions);
+            out.putLong(fingerprint).putLong(numEntries());
+            for (int j = 0; j <= numJunctions; j += 1) {
+                out.putInt(labelStart.get(j));
+            }
+            int entries = numEntries();
+            for (int e = 0; e < entries; e += 1) {
+                out.putInt(labelHub.get(e));
+            }
+            for (int e = 0; e < entries; e += 1) {
+                out.putFloat(labelDist.get(e));
+            }
+            out.force();
+        }
+    }
+
+    /**
+     * Memory-maps labels written by <code>write</code>. The pages are loaded lazily by the
+     * operating system and shared between processes mapping the same file.
+     *
+     * @throws IOException If the file cannot be read or is not a hub label file.
+     */
+    static HubLabels map(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            long size = channel.size();
+            if (size < HEADER_BYTES || size > Integer.MAX_VALUE) {
+                throw new IOException("Not a hub label file: " + file);
+            }
+            ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, size)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+                throw new IOException("Not a hub label file: " + file);
+            }
+            int metricOrdinal = in.getInt();
+            int n = in.getInt();
+            long fingerprint = in.getLong();
+            long entries = in.getLong();
+            if (metricOrdinal < 0 || metricOrdinal >= Router.Metric.values().length || n < 0
+                    || size != HEADER_BYTES + 4L * (n + 1) + 8L * entries) {
+                throw new IOException("Corrupt hub label file: " + file);
+            }
+            IntBuffer start = slice(in, HEADER_BYTES, 4L * (n + 1)).asIntBuffer();
+            long hubAt = HEADER_BYTES + 4L * (n + 1);
+            IntBuffer hub = slice(in, hubAt, 4 * entries).asIntBuffer();
+            FloatBuffer dist = slice(in, hubAt + 4 * entries, 4 * entries).asFloatBuffer();
+            return new HubLabels(Router.Metric.values()[metricOrdinal], n, fingerprint,
+                    start, hub, dist);
+        }
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, long offset, long length) {
+        ByteBuffer view = buffer.duplicate();
+        view.position((int) offset);
+        view.limit((int) (offset + length));
+        return view.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Builds hub labels for an OSM file and writes them out.
+     * Usage: <code>HubLabels osm-file output-file [DISTANCE|TIME]</code>.
+     */
+    public static void main(String[] args) throws IOException {
+        Router.Metric metric = args.length > 2
+                ? Router.Metric.valueOf(args[2]) : Router.Metric.DISTANCE;
+        GraphDB g = new GraphDB(args[0]);
+        long start = System.nanoTime();
+        HubLabels labels = build(g.getCompactGraph(), metric);
+        System.out.printf("Built %s hub labels in %.0f ms: %.1f entries per junction, "
+                        + "%d bytes.%n", metric, (System.nanoTime() - start) / 1e6,
+                labels.averageLabelSize(), labels.sizeBytes());
+        labels.write(new File(args[1]));
+    }
+}
@@ -0,0 +1,272 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The set of vertices reachable from an origin within a distance or travel-time budget.
+ * <p>
+ * The search is a Dijkstra over the chain-compressed junction graph that never pushes a
+ * junction beyond the budget, so it stops as soon as the budget is exhausted. It uses a radix
+ * heap and this thread's <code>SearchWorkspace</code>, so repeated isochrones allocate nothing
+ * proportional to the size of the graph. Chain interiors are then read off from the settled
+ * distances of their two ends.
+ */
+public class Isochrone {
+    /** The number of angular sectors used to outline the reachable area. */
+    private static final int POLYGON_SECTORS = 72;
+
+    private final CompactGraph cg;
+    /** Vertex index of the origin, or <code>CompactGraph.NONE</code> for an empty graph. */
+    private final int origin;
+    /** Vertex indices of every reachable vertex, origin included. */
+    private final int[] reachable;
+
+    private Isochrone(CompactGraph cg, int origin, int[] reachable) {
+        this.cg = cg;
+        this.origin = origin;
+        this.reachable = reachable;
+    }
+
+    /**
+     * Computes the isochrone around the vertex closest to the given coordinate.
+     *
+     * @param g      <code>GraphDB</code> data source.
+     * @param lon    The longitude of the origin.
+     * @param lat    The latitude of the origin.
+     * @param budget The largest weight allowed, in miles or seconds depending on the metric.
+     * @param metric Whether the budget limits distance or travel time.
+     * @return The reachable vertices.
+     */
+    public static Isochrone compute(GraphDB g, double lon, double lat, double budget,
+                                    Router.Metric metric) {
+        return compute(g, lon, lat, budget, metric, Router.Profile.DRIVE);
+    }
+
+    /**
+     * Computes the isochrone for <code>profile</code> around the closest vertex to the given
+     * coordinate that the profile may use.
+     *
+     * @param g       <code>GraphDB</code> data source.
+     * @param lon     The longitude of the origin.
+     * @param lat     The latitude of the origin.
+     * @param budget  The largest weight allowed, in miles or seconds depending on the metric.
+     * @param metric  Whether the budget limits distance or travel time.
+     * @param profile Who is travelling.
+     * @return The reachable vertices.
+     */
+    public static Isochrone compute(GraphDB g, double lon, double lat, double budget,
+                                    Router.Metric metric, Router.Profile profile) {
+        return compute(g, g.closest(lon, lat, profile), budget, metric, profile);
+    }
+
+    /**
+     * Computes the isochrone around a vertex.
+     *
+     * @param g        <code>GraphDB</code> data source.
+     * @param originID The ID of the origin vertex.
+     * @param budget   The largest weight allowed, in miles or seconds depending on the metric.
+     * @param metric   Whether the budget limits distance or travel time.
+     * @return The reachable vertices.
+     */
+    static Isochrone compute(GraphDB g, long originID, double budget, Router.Metric metric) {
+        return compute(g, originID, budget, metric, Router.Profile.DRIVE);
+    }
+
+    /**
+     * Computes the isochrone for <code>profile</code> around a vertex, using only the roads
+     * the profile may use.
+     *
+     * @param g        <code>GraphDB</code> data source.
+     * @param originID The ID of the origin vertex.
+     * @param budget   The largest weight allowed, in miles or seconds depending on the metric.
+     * @param metric   Whether the budget limits distance or travel time.
+     * @param profile  Who is travelling.
+     * @return The reachable vertices.
+     */
+    static Isochrone compute(GraphDB g, long originID, double budget, Router.Metric metric,
+                             Router.Profile profile) {
+        CompactGraph cg = g.getCompactGraph();
+        int s = cg.indexOf(originID);
+        if (s == CompactGraph.NONE || budget < 0) {
+            return new Isochrone(cg, s, new int[0]);
+        }
+        if (!cg.allows(s, profile)) {
+            return new Isochrone(cg, s, new int[]{s});
+        }
+        budget /= profile.scale(metric);
+        int mi = profile.searchMetric(metric).ordinal();
+        int bit = profile.bit();
+        CompactGraph.Weights cw = cg.weights();
+        double[] weights = cw.jArcWeight[mi];
+        double[] offsets = cw.vertexChainOffset[mi];
+        SearchWorkspace ws = SearchWorkspace.acquire(cg);
+        RadixHeap heap = ws.heap;
+
+        int sc = cg.vertexChain[s];
+        if (sc == CompactGraph.NONE) {
+            int sj = cg.junctionOf[s];
+            ws.setDist(sj, 0);
+            heap.push(sj, 0);
+        } else {
+            seed(ws, cg.junctionOf[cg.chainFrom[sc]], offsets[s], budget);
+            seed(ws, cg.junctionOf[cg.chainTo[sc]], cw.chainWeight[mi][sc] - offsets[s], budget);
+        }
+
+        int[] settled = new int[16];
+        int numSettled = 0;
+        while (!heap.isEmpty()) {
+            int j = heap.pop();
+            if (ws.isSettled(j)) {
+                continue;
+            }
+            ws.settle(j);
+            if (numSettled == settled.length) {
+                settled = Arrays.copyOf(settled, numSettled * 2);
+            }
+            settled[numSettled] = j;
+            numSettled += 1;
+            double d = heap.lastKey();
+            for (int a = cg.jArcStart[j]; a < cg.jArcStart[j + 1]; a += 1) {
+                if ((cg.chainAccess[cg.jArcChain[a] >> 1] & bit) == 0) {
+                    continue;
+                }
+                int w = cg.jArcTarget[a];
+                double nd = d + weights[a];
+                if (nd <= budget && !ws.isSettled(w) && nd < ws.dist(w)) {
+                    ws.setDist(w, nd);
+                    heap.push(w, nd);
+                }
+            }
+        }
+
+        /* Every chain touching a settled junction is read once, from its lower-numbered end. */
+        VertexList out = new VertexList();
+        if (sc != CompactGraph.NONE) {
+            addChain(cg, cw, ws, sc, s, mi, budget, out);
+        }
+        for (int i = 0; i < numSettled; i += 1) {
+            int j = settled[i];
+            out.add(cg.junctions[j]);
+            for (int a = cg.jArcStart[j]; a < cg.jArcStart[j + 1]; a += 1) {
+                int c = cg.jArcChain[a] >> 1;
+                int other = cg.jArcTarget[a];
+                if (c != sc && (cg.chainAccess[c] & bit) != 0
+                        && (!ws.isSettled(other) || j < other)) {
+                    addChain(cg, cw, ws, c, s, mi, budget, out);
+                }
+            }
+            for (int e = cg.jLoopStart[j]; e < cg.jLoopStart[j + 1]; e += 1) {
+                int c = cg.jLoopChain[e];
+                if (c != sc && (cg.chainAccess[c] & bit) != 0) {
+                    addChain(cg, cw, ws, c, s, mi, budget, out);
+                }
+            }
+        }
+        return new Isochrone(cg, s, out.toArray());
+    }
+
+    private static void seed(SearchWorkspace ws, int j, double d, double budget) {
+        if (d <= budget && d < ws.dist(j)) {
+            ws.setDist(j, d);
+            ws.heap.push(j, d);
+        }
+    }
+
+    /** Adds the interior vertices of chain <code>c</code> that are within the budget. */
+    private static void addChain(CompactGraph cg, CompactGraph.Weights cw, SearchWorkspace ws,
+                                 int c, int s, int mi, double budget, VertexList out) {
+        int fromJ = cg.junctionOf[cg.chainFrom[c]];
+        int toJ = cg.junctionOf[cg.chainTo[c]];
+        double dFrom = ws.isSettled(fromJ) ? ws.dist(fromJ) : Double.POSITIVE_INFINITY;
+        double dTo = ws.isSettled(toJ) ? ws.dist(toJ) : Double.POSITIVE_INFINITY;
+        double length = cw.chainWeight[mi][c];
+        boolean own = cg.vertexChain[s] == c;
+        for (int k = 1; k < cg.chainSize(c); k += 1) {
+            int v = cg.chainVertex(c, k);
+            double offset = cw.vertexChainOffset[mi][v];
+            double d = Math.min(dFrom + offset, dTo + length - offset);
+            if (own) {
+                d = Math.min(d, Math.abs(offset - cw.vertexChainOffset[mi][s]));
+            }
+            if (d <= budget) {
+                out.add(v);
+            }
+        }
+    }
+
+    /** Returns the number of reachable vertices. */
+    public int size() {
+        return reachable.length;
+    }
+
+    /** Returns the IDs of every reachable vertex, including the origin. */
+    public long[] vertices() {
+        long[] ids = new long[reachable.length];
+        for (int i = 0; i < ids.length; i += 1) {
+            ids[i] = cg.id(reachable[i]);
+        }
+        return ids;
+    }
+
+    /**
+     * Returns an outline of the reachable area as a concave, star-shaped polygon around the
+     * origin. The plane around the origin is split into equal angular sectors and the reachable
+     * vertex farthest from the origin in each non-empty sector becomes a corner, in angle order.
+     *
+     * @return The corners as {lon, lat} pairs, or an empty list if fewer than three sectors
+     * contain a reachable vertex.
+     */
+    public List<double[]> polygon() {
+        List<double[]> corners = new ArrayList<>();
+        if (origin == CompactGraph.NONE) {
+            return corners;
+        }
+        double ox = GraphDB.projectToX(cg.lon(origin), cg.lat(origin));
+        double oy = GraphDB.projectToY(cg.lon(origin), cg.lat(origin));
+        int[] farthest = new int[POLYGON_SECTORS];
+        double[] farthestDist = new double[POLYGON_SECTORS];
+        Arrays.fill(farthest, CompactGraph.NONE);
+        for (int v : reachable) {
+            double dx = GraphDB.projectToX(cg.lon(v), cg.lat(v)) - ox;
+            double dy = GraphDB.projectToY(cg.lon(v), cg.lat(v)) - oy;
+            double d = dx * dx + dy * dy;
+            if (d == 0) {
+                continue;
+            }
+            double angle = Math.atan2(dy, dx) + Math.PI;
+            int sector = Math.min((int) (angle / (2 * Math.PI) * POLYGON_SECTORS),
+                    POLYGON_SECTORS - 1);
+            if (farthest[sector] == CompactGraph.NONE || d > farthestDist[sector]) {
+                farthest[sector] = v;
+                farthestDist[sector] = d;
+            }
+        }
+        for (int v : farthest) {
+            if (v != CompactGraph.NONE) {
+                corners.add(new double[]{cg.lon(v), cg.lat(v)});
+            }
+        }
+        if (corners.size() < 3) {
+            corners.clear();
+        }
+        return corners;
+    }
+
+    /** A growable list of vertex indices. */
+    private static class VertexList {
+        private int[] items = new int[16];
+        private int size;
+
+        void add(int v) {
+            if (size == items.length) {
+                items = Arrays.copyOf(items, size * 2);
+            }
+            items[size] = v;
+            size += 1;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(items, size);
+        }
+    }
+}
@@ -0,0 +1,145 @@
+import java.util.Map;
+
+/**
+ * The IsochroneRequestParams contains the fields received from the browser in an isochrone
+ * request: the origin, the budget in miles (or seconds for the time metric), and whether to
+ * return the reachable vertices or an outline polygon.
+ *
+ * This class can either be instantiated through a Spark request query map, or through the Builder
+ * class for mocking requests during unit testing.
+ */
+public class IsochroneRequestParams {
+    /** The origin latitude. */
+    public final double lat;
+    /** The origin longitude. */
+    public final double lon;
+    /** The largest distance in miles, or travel time in seconds, to include. */
+    public final double budget;
+    /** Whether the budget limits distance or travel time. */
+    public final Router.Metric metric;
+    /** Who is travelling: a driver, a cyclist or a pedestrian. */
+    public final Router.Profile profile;
+    /** Whether to return every reachable vertex instead of an outline polygon. */
+    public final boolean vertices;
+
+    /**
+     * Validate and return a parameter map of the required request parameters.
+     * Requires that all required input parameters are doubles.
+     * @param req The queryParams map from a Spark HTTP Request.
+     * @return The parsed request parameters.
+     */
+    public static IsochroneRequestParams from(Map<String, String[]> req) {
+        Builder builder = new Builder();
+        for (String param : REQUIRED_PARAMS) {
+            if (!req.containsKey(param)) {
+                String msg = String.format("Request failed: %s not found.", param);
+                throw new IllegalArgumentException(msg);
+            }
+            try {
+                builder.set(param, Double.parseDouble(req.get(param)[0]));
+            } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+                String msg = String.format("Incorrect parameters: unable to parse %s.", param);
+                throw new IllegalArgumentException(msg);
+            }
+        }
+        if (req.containsKey("metric")) {
+            try {
+                builder.setMetric(Router.Metric.valueOf(req.get("metric")[0].toUpperCase()));
+            } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+                throw new IllegalArgumentException("Incorrect parameters: unknown metric.");
+            }
+        }
+        if (req.containsKey("profile")) {
+            try {
+                builder.setProfile(Router.Profile.valueOf(req.get("profile")[0].toUpperCase()));
+            } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+                throw new IllegalArgumentException("Incorrect parameters: unknown profile.");
+            }
+        }
+        if (req.containsKey("format") && req.get("format").length > 0) {
+            builder.setVertices("vertices".equals(req.get("format")[0]));
+        }
+        return builder.create();
+    }
+
+    private IsochroneRequestParams(double lat, double lon, double budget, Router.Metric metric,
+                                   Router.Profile profile, boolean vertices) {
+        this.lat = lat;
+        this.lon = lon;
+        this.budget = budget;
+        this.metric = metric;
+        this.profile = profile;
+        this.vertices = vertices;
+    }
+
+    public static class Builder {
+        private double lat, lon, budget;
+        private Router.Metric metric = Router.Metric.DISTANCE;
+        private Router.Profile profile = Router.Profile.DRIVE;
+        private boolean vertices;
+
+        /**
+         * Creates an IsochroneRequestParams.Builder instance that can be used to build
+         * an IsochroneRequestParams with various fields pre-set.
+         */
+        public Builder() {
+        }
+
+        public IsochroneRequestParams create() {
+            return new IsochroneRequestParams(lat, lon, budget, metric, profile, vertices);
+        }
+
+        public Builder setLat(double value) {
+            this.lat = value;
+            return this;
+        }
+
+        public Builder setLon(double value) {
+            this.lon = value;
+            return this;
+        }
+
+        public Builder setBudget(double value) {
+            this.budget = value;
+            return this;
+        }
+
+        public Builder setMetric(Router.Metric value) {
+            this.metric = value;
+            return this;
+        }
+
+        public Builder setProfile(Router.Profile value) {
+            this.profile = value;
+            return this;
+        }
+
+        public Builder setVertices(boolean value) {
+            this.vertices = value;
+            return this;
+        }
+
+        private Builder set(String field, double value) {
+            switch (field) {
+                case "lat":
+                    this.lat = value;
+                    break;
+                case "lon":
+                    this.lon = value;
+                    break;
+                case "budget":
+                    this.budget = value;
+                    break;
+                default:
+                    String msg = String.format("%s is not a valid field for %f.%n", field, value);
+                    throw new IllegalArgumentException(msg);
+            }
+            return this;
+        }
+    }
+
+    /** Isochrone requests to the server must have the following keys in the params map. */
+    private static final String[] REQUIRED_PARAMS = {
+        "lat", "lon", "budget"
+    };
+}
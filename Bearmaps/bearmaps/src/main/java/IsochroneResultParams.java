@@ -0,0 +1,28 @@
+import java.util.List;
+
+/**
+ * The IsochroneResultParams contains an isochrone computed by Isochrone.compute, either as the
+ * reachable vertex IDs or as an outline polygon, for serialization by Gson.
+ *
+ * The fields in this class cannot be accessed as it is only used to serialize results in MapServer.
+ */
+class IsochroneResultParams {
+    /** The number of reachable vertices. */
+    private final int size;
+    /** The IDs of the reachable vertices, or null if the polygon was requested. */
+    private final long[] vertices;
+    /** The corners of the outline as {lon, lat} pairs, or null if vertices were requested. */
+    private final List<double[]> polygon;
+
+    /**
+     * Constructs an IsochroneResultParams.
+     * @param size The number of reachable vertices.
+     * @param vertices The reachable vertex IDs, or null.
+     * @param polygon The outline polygon, or null.
+     */
+    IsochroneResultParams(int size, long[] vertices, List<double[]> polygon) {
+        this.size = size;
+        this.vertices = vertices;
+        this.polygon = polygon;
+    }
+}
@@ -0,0 +1,446 @@
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Matches a stream of GPS points to vertices of the road graph with a hidden Markov model,
+ * decoded incrementally by the Viterbi algorithm.
+ * <p>
+ * The candidates of a point are the vertices its profile may use within a fixed radius, and
+ * a candidate is more likely the closer it is to the point. Moving from a candidate of one
+ * point to a candidate of the next is more likely the closer the length of the road route
+ * between them is to the straight-line distance between the two points. Those routes come
+ * from Dijkstra searches that give up past a multiple of the straight-line distance, and
+ * their lengths are kept in a small least-recently-used cache, since slow or stopped traces
+ * ask about the same pairs of candidates again and again.
+ * <p>
+ * Only the points whose match is still undecided are kept. As soon as every likely path
+ * through them agrees on the match of some point, that point and all before it are reported
+ * and dropped. If the window still grows past <code>MAX_WINDOW</code> points, the most likely
+ * path so far is committed, so memory stays bounded however long the trace is. A point with
+ * no candidates, or one that no candidate of the previous point can reach, ends the current
+ * path and starts a new one.
+ */
+public class MapMatcher {
+    /** Reported instead of a vertex ID for a point with no road near it. */
+    public static final long UNMATCHED = -1;
+    /** The most points whose match may be undecided at once. */
+    static final int MAX_WINDOW = 32;
+    private static final double METERS_PER_MILE = 1609.344;
+    /** How far from a point its candidates may be, in miles. */
+    private static final double SEARCH_RADIUS = 50 / METERS_PER_MILE;
+    /** The most candidates kept for a point; the closest ones are kept. */
+    private static final int MAX_CANDIDATES = 8;
+    /** Standard deviation of GPS error, in miles. */
+    private static final double SIGMA = 10 / METERS_PER_MILE;
+    /** Scale of the difference between route and straight-line distance, in miles. */
+    private static final double BETA = 20 / METERS_PER_MILE;
+    /** Routes longer than this multiple of the straight-line distance are not searched for. */
+    private static final double MAX_ROUTE_STRETCH = 2;
+    /** The most route lengths kept between candidates. */
+    private static final int ROUTE_CACHE_ENTRIES = 4096;
+
+    /** Receives the match of every point, in the order the points were added. */
+    public interface Listener {
+        /**
+         * Called once the match of a point is final.
+         *
+         * @param index The position of the point in the trace, starting at 0.
+         * @param id    The ID of the matched vertex, or <code>UNMATCHED</code>.
+         */
+        void matched(int index, long id);
+    }
+
+    /** One point whose match may still be undecided, with the Viterbi state of its candidates. */
+    private static class Column {
+        final int index;
+        final double lon, lat;
+        /** Vertex indices of the candidates, closest first. */
+        final int[] vertices;
+        /** Log-probability of the most likely path ending at each candidate. */
+        final double[] score;
+        /** Candidate of the previous point on that path, or -1 if the path starts here. */
+        final int[] back;
+
+        Column(int index, double lon, double lat, int[] vertices) {
+            this.index = index;
+            this.lon = lon;
+            this.lat = lat;
+            this.vertices = vertices;
+            this.score = new double[vertices.length];
+            this.back = new int[vertices.length];
+        }
+    }
+
+    private final GraphDB g;
+    private final CompactGraph cg;
+    /** The weights every route search uses, fixed when the matcher is created. */
+    private final CompactGraph.Weights cw;
+    private final Router.Profile profile;
+    private final Listener listener;
+    /** Points whose match is undecided, oldest first. */
+    private final ArrayDeque<Column> window = new ArrayDeque<>();
+    /** The most recently added point with candidates, even if its match is already final. */
+    private Column last;
+    private int numPoints;
+    /** Route lengths in miles between pairs of candidates, keyed by both vertex indices. */
+    private final LinkedHashMap<Long, Float> routes =
+            new LinkedHashMap<Long, Float>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, Float> eldest) {
+                    return size() > ROUTE_CACHE_ENTRIES;
+                }
+            };
+    private long routeLookups;
+    private long routeMisses;
+
+    /**
+     * Creates a matcher for one trace.
+     *
+     * @param g        <code>GraphDB</code> data source.
+     * @param profile  Who made the trace; only roads the profile may use are matched.
+     * @param listener Receives the matches.
+     */
+    public MapMatcher(GraphDB g, Router.Profile profile, Listener listener) {
+        this.g = g;
+        this.cg = g.getCompactGraph();
+        this.cw = cg.weights();
+        this.profile = profile;
+        this.listener = listener;
+    }
+
+    /**
+     * Adds the next point of the trace. The listener may be called for this point and for
+     * earlier ones whose match became final.
+     *
+     * @param lon The longitude of the point.
+     * @param lat The latitude of the point.
+     */
+    public void add(double lon, double lat) {
+        int index = numPoints;
+        numPoints += 1;
+        Column col = new Column(index, lon, lat, candidates(lon, lat));
+        if (col.vertices.length == 0) {
+            finish();
+            last = null;
+            listener.matched(index, UNMATCHED);
+            return;
+        }
+        if (last == null || !transition(last, col)) {
+            finish();
+            for (int i = 0; i < col.vertices.length; i += 1) {
+                col.score[i] = emission(col, i);
+                col.back[i] = -1;
+            }
+        }
+        last = col;
+        window.addLast(col);
+        decide();
+    }
+
+    /** Reports every undecided point along the most likely path so far. */
+    public void finish() {
+        if (window.isEmpty()) {
+            return;
+        }
+        Column newest = window.peekLast();
+        emit(window.size() - 1, best(newest));
+    }
+
+    /** Returns the number of points whose match is undecided. */
+    int windowSize() {
+        return window.size();
+    }
+
+    /** Returns the fraction of route lengths between candidates that needed a search. */
+    double routeMissRate() {
+        return routeLookups == 0 ? 0 : (double) routeMisses / routeLookups;
+    }
+
+    /** Returns the closest vertices to a point that the profile may use, closest first. */
+    private int[] candidates(double lon, double lat) {
+        int[] found = new int[MAX_CANDIDATES];
+        double[] dist = new double[MAX_CANDIDATES];
+        int[] size = new int[1];
+        g.verticesWithin(lon, lat, SEARCH_RADIUS, id -> {
+            int v = cg.indexOf(id);
+            if (v == CompactGraph.NONE || !cg.allows(v, profile)) {
+                return;
+            }
+            double d = GraphDB.distance(lon, lat, cg.lon(v), cg.lat(v));
+            int k = size[0];
+            if (k == MAX_CANDIDATES) {
+                if (d >= dist[k - 1]) {
+                    return;
+                }
+                k -= 1;
+            } else {
+                size[0] += 1;
+            }
+            while (k > 0 && dist[k - 1] > d) {
+                found[k] = found[k - 1];
+                dist[k] = dist[k - 1];
+                k -= 1;
+            }
+            found[k] = v;
+            dist[k] = d;
+        });
+        return Arrays.copyOf(found, size[0]);
+    }
+
+    private double emission(Column col, int i) {
+        int v = col.vertices[i];
+        double d = GraphDB.distance(col.lon, col.lat, cg.lon(v), cg.lat(v)) / SIGMA;
+        return -0.5 * d * d;
+    }
+
+    /**
+     * Fills in the Viterbi state of <code>next</code> from that of <code>prev</code>.
+     *
+     * @return Whether any candidate of <code>next</code> can be reached.
+     */
+    private boolean transition(Column prev, Column next) {
+        double straight = GraphDB.distance(prev.lon, prev.lat, next.lon, next.lat);
+        double limit = straight * MAX_ROUTE_STRETCH + 2 * SEARCH_RADIUS;
+        int m = next.vertices.length;
+        Arrays.fill(next.score, Double.NEGATIVE_INFINITY);
+        Arrays.fill(next.back, -1);
+        double[] lengths = new double[m];
+        for (int s = 0; s < prev.vertices.length; s += 1) {
+            if (prev.score[s] == Double.NEGATIVE_INFINITY) {
+                continue;
+            }
+            routeLengths(prev.vertices[s], next.vertices, limit, lengths);
+            for (int t = 0; t < m; t += 1) {
+                double score = prev.score[s] - Math.abs(lengths[t] - straight) / BETA;
+                if (score > next.score[t]) {
+                    next.score[t] = score;
+                    next.back[t] = s;
+                }
+            }
+        }
+        double max = Double.NEGATIVE_INFINITY;
+        for (int t = 0; t < m; t += 1) {
+            next.score[t] += emission(next, t);
+            max = Math.max(max, next.score[t]);
+        }
+        if (max == Double.NEGATIVE_INFINITY) {
+            return false;
+        }
+        /* Keep scores near zero so long traces cannot run them out of range. */
+        for (int t = 0; t < m; t += 1) {
+            next.score[t] -= max;
+        }
+        return true;
+    }
+
+    /**
+     * Fills <code>lengths</code> with the route length from vertex <code>s</code> to each
+     * target, or infinity for targets farther than <code>limit</code>, using cached lengths
+     * where possible. A cached miss stores the negated limit it was searched with, so it
+     * answers later lookups with a limit no larger.
+     */
+    private void routeLengths(int s, int[] targets, double limit, double[] lengths) {
+        int[] missing = new int[targets.length];
+        int numMissing = 0;
+        for (int t = 0; t < targets.length; t += 1) {
+            routeLookups += 1;
+            Float cached = routes.get((long) s << 32 | targets[t]);
+            if (cached != null && cached >= 0) {
+                lengths[t] = cached;
+            } else if (cached != null && -cached >= limit) {
+                lengths[t] = Double.POSITIVE_INFINITY;
+            } else {
+                missing[numMissing] = t;
+                numMissing += 1;
+            }
+        }
+        if (numMissing == 0) {
+            return;
+        }
+        routeMisses += numMissing;
+        int[] searched = new int[numMissing];
+        for (int k = 0; k < numMissing; k += 1) {
+            searched[k] = targets[missing[k]];
+        }
+        double[] found = search(s, searched, limit);
+        for (int k = 0; k < numMissing; k += 1) {
+            lengths[missing[k]] = found[k];
+            float stored = found[k] == Double.POSITIVE_INFINITY ? (float) -limit : (float) found[k];
+            routes.put((long) s << 32 | searched[k], stored);
+        }
+    }
+
+    /**
+     * Returns the distance from vertex <code>s</code> to each target, searching the junction
+     * graph no farther than <code>limit</code> miles. Targets beyond the limit get infinity.
+     */
+    private double[] search(int s, int[] targets, double limit) {
+        int mi = profile.searchMetric(Router.Metric.DISTANCE).ordinal();
+        int bit = profile.bit();
+        double[] weights = cw.jArcWeight[mi];
+        double[] offsets = cw.vertexChainOffset[mi];
+        int n = targets.length;
+        double[] dist = new double[n];
+        Arrays.fill(dist, Double.POSITIVE_INFINITY);
+        /* Each target is reached through its own junction or through either end of its chain. */
+        int[] fromJ = new int[n];
+        int[] toJ = new int[n];
+        double[] fromOffset = new double[n];
+        double[] toOffset = new double[n];
+        int sc = cg.vertexChain[s];
+        for (int k = 0; k < n; k += 1) {
+            int t = targets[k];
+            int tc = cg.vertexChain[t];
+            if (tc == CompactGraph.NONE) {
+                fromJ[k] = cg.junctionOf[t];
+                toJ[k] = CompactGraph.NONE;
+            } else {
+                fromJ[k] = cg.junctionOf[cg.chainFrom[tc]];
+                toJ[k] = cg.junctionOf[cg.chainTo[tc]];
+                fromOffset[k] = offsets[t];
+                toOffset[k] = cw.chainWeight[mi][tc] - offsets[t];
+            }
+            if (t == s) {
+                dist[k] = 0;
+            } else if (sc != CompactGraph.NONE && tc == sc) {
+                dist[k] = Math.abs(offsets[s] - offsets[t]);
+            }
+        }
+
+        SearchWorkspace ws = SearchWorkspace.acquire(cg);
+        RadixHeap heap = ws.heap;
+        if (sc == CompactGraph.NONE) {
+            ws.setDist(cg.junctionOf[s], 0);
+            heap.push(cg.junctionOf[s], 0);
+        } else {
+            seed(ws, cg.junctionOf[cg.chainFrom[sc]], offsets[s], limit);
+            seed(ws, cg.junctionOf[cg.chainTo[sc]], cw.chainWeight[mi][sc] - offsets[s], limit);
+        }
+        while (!heap.isEmpty()) {
+            int j = heap.pop();
+            if (ws.isSettled(j)) {
+                continue;
+            }
+            ws.settle(j);
+            double d = heap.lastKey();
+            /* Every target at most d away is final, since later junctions are farther. */
+            boolean done = true;
+            for (int k = 0; k < n; k += 1) {
+                if (fromJ[k] == j) {
+                    dist[k] = Math.min(dist[k], d + fromOffset[k]);
+                }
+                if (toJ[k] == j) {
+                    dist[k] = Math.min(dist[k], d + toOffset[k]);
+                }
+                done &= dist[k] <= d;
+            }
+            if (done) {
+                break;
+            }
+            for (int a = cg.jArcStart[j]; a < cg.jArcStart[j + 1]; a += 1) {
+                if ((cg.chainAccess[cg.jArcChain[a] >> 1] & bit) == 0) {
+                    continue;
+                }
+                int w = cg.jArcTarget[a];
+                double nd = d + weights[a];
+                if (nd <= limit && !ws.isSettled(w) && nd < ws.dist(w)) {
+                    ws.setDist(w, nd);
+                    heap.push(w, nd);
+                }
+            }
+        }
+        for (int k = 0; k < n; k += 1) {
+            if (dist[k] > limit) {
+                dist[k] = Double.POSITIVE_INFINITY;
+            }
+        }
+        return dist;
+    }
+
+    private static void seed(SearchWorkspace ws, int j, double d, double limit) {
+        if (d <= limit && d < ws.dist(j)) {
+            ws.setDist(j, d);
+            ws.heap.push(j, d);
+        }
+    }
+
+    /**
+     * Reports the points that every likely path agrees on. Walking back from the newest
+     * point, the candidates that some likely path passes through are followed until only one
+     * is left; that candidate and its ancestors are final. If none is found and the window is
+     * full, only paths through the most likely path's second-newest candidate are kept.
+     */
+    private void decide() {
+        Column[] cols = window.toArray(new Column[0]);
+        int newest = cols.length - 1;
+        boolean[] live = new boolean[cols[newest].vertices.length];
+        for (int i = 0; i < live.length; i += 1) {
+            live[i] = cols[newest].score[i] != Double.NEGATIVE_INFINITY;
+        }
+        for (int c = newest; c >= 0; c -= 1) {
+            int only = -1;
+            int count = 0;
+            for (int i = 0; i < live.length; i += 1) {
+                if (live[i]) {
+                    only = i;
+                    count += 1;
+                }
+            }
+            if (count == 1) {
+                emit(c, only);
+                return;
+            }
+            if (c == 0) {
+                break;
+            }
+            boolean[] prevLive = new boolean[cols[c - 1].vertices.length];
+            for (int i = 0; i < live.length; i += 1) {
+                if (live[i] && cols[c].back[i] >= 0) {
+                    prevLive[cols[c].back[i]] = true;
+                }
+            }
+            live = prevLive;
+        }
+        if (cols.length > MAX_WINDOW) {
+            Column col = cols[newest];
+            int keep = col.back[best(col)];
+            for (int i = 0; i < col.vertices.length; i += 1) {
+                if (col.back[i] != keep) {
+                    col.score[i] = Double.NEGATIVE_INFINITY;
+                }
+            }
+            emit(newest - 1, keep);
+        }
+    }
+
+    /** Returns the candidate of <code>col</code> with the highest score. */
+    private static int best(Column col) {
+        int best = 0;
+        for (int i = 1; i < col.vertices.length; i += 1) {
+            if (col.score[i] > col.score[best]) {
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Reports the oldest <code>count + 1</code> points of the window along the path that
+     * ends at candidate <code>state</code> of the point at position <code>count</code>, and
+     * drops them from the window.
+     */
+    private void emit(int count, int state) {
+        Column[] cols = window.toArray(new Column[0]);
+        long[] ids = new long[count + 1];
+        for (int c = count; c >= 0; c -= 1) {
+            ids[c] = cg.id(cols[c].vertices[state]);
+            state = cols[c].back[state];
+        }
+        for (int c = 0; c <= count; c += 1) {
+            window.removeFirst();
+            listener.matched(cols[c].index, ids[c]);
+        }
+    }
+}
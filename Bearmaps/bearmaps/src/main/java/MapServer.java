@@ -2,18 +2,32 @@ import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.BasicStroke;
 import java.awt.Color;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.awt.image.BufferedImage;
 import javax.imageio.ImageIO;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.util.Base64;
 import java.util.Collections;
 import java.util.List;
+import java.util.Scanner;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
 
 import com.google.gson.FieldNamingPolicy;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.reflect.TypeToken;
+
+import spark.Request;
 
 import static spark.Spark.*;
 
@@ -44,31 +58,85 @@ public class MapServer {
     /** The difference between the upper-most and lower-most latitudes of the map. */
     public static final double ROOT_LAT_DELTA = Math.abs(ROOT_ULLAT - ROOT_LRLAT);
 
-    /** The <code>GraphDB</code>responsible for managing map data. */
-    private static GraphDB graph;
+    /**
+     * Holds the <code>GraphDB</code> responsible for managing map data, and swaps in a new one
+     * when the map is reloaded. Each request reads the graph once and keeps that snapshot.
+     */
+    private static GraphReloader reloader;
     /** The <code>Rasterer</code> responsible for computing the shortest path and directions. */
     private static Rasterer rasterer;
     /**
      * The most recently-requested shortest-paths route. The <code>renderImage</code> method redraws
-     * this route every time a new rastering result is requested from the browser.
+     * this route every time a new rastering result is requested from the browser. Requests
+     * replace it whole, so a reader never sees a route from one graph with another's vertices.
      */
-    private static List<Long> route;
+    private static volatile DrawnRoute drawnRoute;
+    /**
+     * The outline of the most recently-requested isochrone, as {lon, lat} corners. The
+     * <code>renderImage</code> method shades it in like the route.
+     */
+    private static List<double[]> isochrone;
     /** The configured Gson Java serializer. */
     private static Gson gson;
+    /** Recently computed routes, keyed by snapped start and destination vertices. */
+    private static RouteCache routeCache;
 
     /**
      * Code responsible for initializing variables. These objects must be instantiated
-     * independently of the main method for the tests to function properly.
+     * independently of the main method for the tests to function properly. If the
+     * <code>bearmaps.nodeStoreDir</code> system property names a directory, the map's vertices
+     * are kept in node stores there instead of on the heap, for this graph and every reload.
      */
     public static void initialize() {
-        graph = new GraphDB(OSM_DB_PATH);
+        String storeDir = System.getProperty(NODE_STORE_DIR_PROPERTY);
+        File nodeStoreDir = storeDir == null || storeDir.isEmpty() ? null : new File(storeDir);
+        GraphDB graph = GraphReloader.load(OSM_DB_PATH, nodeStoreDir, phase -> { });
+        loadHubLabels(graph);
+        reloader = new GraphReloader(OSM_DB_PATH, nodeStoreDir, graph,
+                MapServer::loadHubLabels);
         rasterer = new Rasterer();
-        route = Collections.emptyList();
+        drawnRoute = new DrawnRoute(graph, Collections.emptyList(), Collections.emptyList());
+        isochrone = Collections.emptyList();
+        routeCache = new RouteCache(ROUTE_CACHE_MAX_ENTRIES, ROUTE_CACHE_MAX_BYTES);
         gson = new GsonBuilder()
                 .setFieldNamingPolicy(FieldNamingPolicy.LOWER_CASE_WITH_UNDERSCORES)
                 .create();
     }
 
+    /** A route, the alternatives returned with it and the graph they were found in. */
+    private static class DrawnRoute {
+        /** The graph whose vertices the route and alternatives pass through. */
+        final GraphDB graph;
+        final List<Long> route;
+        /** The alternatives, drawn underneath the route. */
+        final List<List<Long>> alternatives;
+
+        DrawnRoute(GraphDB graph, List<Long> route, List<List<Long>> alternatives) {
+            this.graph = graph;
+            this.route = route;
+            this.alternatives = alternatives;
+        }
+    }
+
+    /**
+     * Attaches any hub label files built for the map with <code>HubLabels.main</code>, one per
+     * metric, so distance-only queries skip the graph search. Missing or stale files are
+     * skipped and those queries fall back to searching.
+     */
+    private static void loadHubLabels(GraphDB g) {
+        for (Router.Metric metric : Router.Metric.values()) {
+            File file = new File(HUB_LABELS_PATH_PREFIX + metric.name().toLowerCase() + ".hl");
+            if (!file.exists()) {
+                continue;
+            }
+            try {
+                g.setHubLabels(HubLabels.map(file));
+            } catch (IOException | IllegalArgumentException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
     /**
      * Launch the <code>mapServer</code>, register server routes, and listen on the default port.
      * @param args Ignored
@@ -76,12 +144,25 @@ public class MapServer {
     public static void main(String[] args) {
         initialize();
         staticFileLocation("/page");
-        /* Allow for all origin requests since this is not an authenticated server. */
+        /*
+         * Allow for all origin requests to the map itself, which needs no authentication. The
+         * admin endpoints are left out, so browsers keep other sites' pages from calling them.
+         */
         before((request, response) -> {
+            if (request.pathInfo().startsWith(ADMIN_PATH_PREFIX)) {
+                return;
+            }
             response.header("Access-Control-Allow-Origin", "*");
             response.header("Access-Control-Request-Method", "*");
             response.header("Access-Control-Allow-Headers", "*");
         });
+        /* Only let administrators reach the endpoints that replace the graph. */
+        String adminToken = adminToken();
+        before(ADMIN_PATH_PREFIX + "*", (request, response) -> {
+            if (!adminAllowed(adminToken, request)) {
+                halt(HALT_RESPONSE, "Admin endpoints need the admin token.");
+            }
+        });
 
         /* Define the raster endpoint for HTTP GET requests. */
         get("/raster", (req, res) -> {
@@ -110,37 +191,250 @@ public class MapServer {
 
         /* Define the routing endpoint for HTTP GET requests. */
         get("/route", (req, res) -> {
+            GraphDB graph = reloader.graph();
             RouteRequestParams  params = null;
             try {
                 params = RouteRequestParams.from(req.queryMap().toMap());
             } catch (IllegalArgumentException e) {
                 halt(HALT_RESPONSE, e.getMessage());
             }
-            route = Router.shortestPath(graph,
-                    params.startLon, params.startLat, params.endLon, params.endLat);
+            /* Routes around closures depend on the whole request, so they skip the cache. */
+            String[] alternatives = null;
+            int[] waypointOrder = null;
+            List<Long> route;
+            List<List<Long>> alternativeRoutes = Collections.emptyList();
+            if (params.hasWaypoints()) {
+                MultiStopRoute multiStop = MultiStopRoute.compute(graph, params);
+                route = multiStop.path();
+                waypointOrder = multiStop.order();
+            } else if (params.alternatives > 0) {
+                List<List<Long>> routes = Router.alternatives(graph, params,
+                        params.alternatives + 1);
+                route = routes.isEmpty() ? Collections.emptyList() : routes.get(0);
+                alternativeRoutes = routes.isEmpty() ? Collections.emptyList()
+                        : routes.subList(1, routes.size());
+                alternatives = new String[alternativeRoutes.size()];
+                for (int i = 0; i < alternatives.length; i += 1) {
+                    alternatives[i] = getDirectionsText(
+                            Router.routeDirections(graph, alternativeRoutes.get(i)));
+                }
+            } else if (params.hasAvoid()) {
+                route = Router.shortestPath(graph, params);
+            } else {
+                route = routeCache.shortestPath(graph, params.startLon, params.startLat,
+                        params.endLon, params.endLat, params.metric, params.profile);
+            }
+            drawnRoute = new DrawnRoute(graph, route, alternativeRoutes);
             String directions = getDirectionsText(Router.routeDirections(graph, route));
-            RouteResultParams routeParams = new RouteResultParams(!route.isEmpty(), directions);
+            RouteResultParams routeParams = new RouteResultParams(!route.isEmpty(), directions,
+                    alternatives, waypointOrder);
             return gson.toJson(routeParams);
         });
 
+        /* Define the many-to-many distance matrix endpoint for HTTP GET requests. */
+        get("/matrix", (req, res) -> {
+            GraphDB graph = reloader.graph();
+            MatrixRequestParams params = null;
+            try {
+                params = MatrixRequestParams.from(req.queryMap().toMap());
+            } catch (IllegalArgumentException e) {
+                halt(HALT_RESPONSE, e.getMessage());
+            }
+            float[] matrix = Router.distanceMatrix(graph, params.startLons, params.startLats,
+                    params.endLons, params.endLats, params.metric, params.profile);
+            int rows = params.startLons.length;
+            int cols = params.endLons.length;
+            if (params.binary) {
+                ByteBuffer buffer = ByteBuffer.allocate(4 * matrix.length)
+                        .order(ByteOrder.LITTLE_ENDIAN);
+                buffer.asFloatBuffer().put(matrix);
+                res.type("application/octet-stream");
+                res.header("X-Matrix-Rows", Integer.toString(rows));
+                res.header("X-Matrix-Cols", Integer.toString(cols));
+                return buffer.array();
+            }
+            return gson.toJson(new MatrixResultParams(rows, cols, matrix));
+        });
+
+        /* Define the isochrone endpoint for HTTP GET requests. */
+        get("/isochrone", (req, res) -> {
+            GraphDB graph = reloader.graph();
+            IsochroneRequestParams params = null;
+            try {
+                params = IsochroneRequestParams.from(req.queryMap().toMap());
+            } catch (IllegalArgumentException e) {
+                halt(HALT_RESPONSE, e.getMessage());
+            }
+            Isochrone result = Isochrone.compute(graph, params.lon, params.lat, params.budget,
+                    params.metric, params.profile);
+            if (params.vertices) {
+                return gson.toJson(new IsochroneResultParams(result.size(), result.vertices(),
+                        null));
+            }
+            isochrone = result.polygon();
+            return gson.toJson(new IsochroneResultParams(result.size(), null, isochrone));
+        });
+
+        /* Define the API endpoint for clearing the current isochrone. */
+        get("/clear_isochrone", (req, res) -> {
+            isochrone = Collections.emptyList();
+            return true;
+        });
+
+        /*
+         * Define the map matching endpoint for HTTP POST requests. The body is a GPS trace of
+         * lon,lat points separated by newlines or semicolons. A chunked body is read as it
+         * arrives, and matches are written back as one JSON object per line once they are final.
+         */
+        post("/match", (req, res) -> {
+            Router.Profile profile = Router.Profile.DRIVE;
+            if (req.queryParams("profile") != null) {
+                try {
+                    profile = Router.Profile.valueOf(req.queryParams("profile").toUpperCase());
+                } catch (IllegalArgumentException e) {
+                    halt(HALT_RESPONSE, "Incorrect parameters: unknown profile.");
+                }
+            }
+            GraphDB g = reloader.graph();
+            res.type("application/x-ndjson");
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(res.raw().getOutputStream(),
+                    StandardCharsets.UTF_8));
+            MapMatcher matcher = new MapMatcher(g, profile, (index, id) -> {
+                MatchResultParams match = id == MapMatcher.UNMATCHED
+                        ? new MatchResultParams(index, null, null, null)
+                        : new MatchResultParams(index, id, g.lon(id), g.lat(id));
+                out.println(gson.toJson(match));
+                out.flush();
+            });
+            Scanner in = new Scanner(req.raw().getInputStream(), "UTF-8")
+                    .useDelimiter("[;\\s]+");
+            int index = 0;
+            while (in.hasNext()) {
+                String[] parts = in.next().split(",");
+                try {
+                    matcher.add(Double.parseDouble(parts[0]), Double.parseDouble(parts[1]));
+                } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+                    matcher.finish();
+                    out.println(gson.toJson(new MatchResultParams(index,
+                            "Incorrect parameters: unable to parse point.")));
+                    break;
+                }
+                index += 1;
+            }
+            matcher.finish();
+            out.flush();
+            return "";
+        });
+
+        /* Define the reverse geocoding endpoint for HTTP GET requests. */
+        get("/reverse", (req, res) -> {
+            double lon = 0;
+            double lat = 0;
+            try {
+                lon = Double.parseDouble(req.queryParams("lon"));
+                lat = Double.parseDouble(req.queryParams("lat"));
+            } catch (NullPointerException | NumberFormatException e) {
+                halt(HALT_RESPONSE, "Incorrect parameters: unable to parse lon and lat.");
+            }
+            ReverseGeocoder geocoder = reloader.graph().getReverseGeocoder();
+            return gson.toJson(new ReverseResultParams(geocoder.nearestWay(lon, lat),
+                    geocoder.nearestLocation(lon, lat)));
+        });
+
+        /* Define the category search endpoint for HTTP GET requests. */
+        get("/nearby", (req, res) -> {
+            String category = req.queryParams("category");
+            double lon = 0;
+            double lat = 0;
+            int k = NEARBY_DEFAULT_K;
+            try {
+                lon = Double.parseDouble(req.queryParams("lon"));
+                lat = Double.parseDouble(req.queryParams("lat"));
+                if (req.queryParams("k") != null) {
+                    k = Integer.parseInt(req.queryParams("k"));
+                }
+            } catch (NullPointerException | NumberFormatException e) {
+                halt(HALT_RESPONSE, "Incorrect parameters: unable to parse lon, lat and k.");
+            }
+            if (category == null || k < 1 || k > CategoryIndex.MAX_K) {
+                halt(HALT_RESPONSE, "Incorrect parameters: need a category and k from 1 to "
+                        + CategoryIndex.MAX_K + ".");
+            }
+            return gson.toJson(new NearbyResultParams(category,
+                    reloader.graph().getCategoryIndex().nearest(category, lon, lat, k)));
+        });
+
+        /* Define the API endpoint for route cache hit rates and memory usage. */
+        get("/route_cache", (req, res) -> gson.toJson(routeCache.stats()));
+
+        /*
+         * Define the admin endpoints for reloading the map file without a restart: POST starts
+         * a reload unless one is already running or waiting, and both report its progress.
+         * Like every endpoint under /admin/, they answer only requests with the admin token,
+         * or from this machine if no token is set.
+         */
+        post("/admin/reload", (req, res) -> {
+            reloader.reload();
+            return gson.toJson(reloader.status());
+        });
+        get("/admin/reload", (req, res) -> gson.toJson(reloader.status()));
+
+        /*
+         * Define the admin endpoint for applying an OSM change file, sent as the body, to the
+         * graph being served. It runs like a reload, after any reload or change file sent
+         * before it, and GET /admin/reload reports on it and how many wait.
+         */
+        post("/admin/changes", (req, res) -> {
+            OsmChange change = null;
+            try {
+                change = OsmChange.read(new ByteArrayInputStream(req.bodyAsBytes()));
+            } catch (IOException e) {
+                halt(HALT_RESPONSE, e.getMessage());
+            }
+            try {
+                reloader.apply(change);
+            } catch (IllegalStateException e) {
+                halt(HALT_RESPONSE, e.getMessage());
+            }
+            return gson.toJson(reloader.status());
+        });
+
         /* Define the API endpoint for clearing the current route. */
         get("/clear_route", (req, res) -> {
-            route = Collections.emptyList();
+            drawnRoute = new DrawnRoute(reloader.graph(), Collections.emptyList(),
+                    Collections.emptyList());
             return true;
         });
 
         /* Define the API endpoint for search */
         get("/search", (req, res) -> {
+            GraphDB graph = reloader.graph();
             String term = req.queryParams("term");
             /* Search for actual location data. */
             if (req.queryParams().contains("full")) {
                 List<LocationParams> data = graph.getLocations(term);
                 return gson.toJson(data);
+            }
+            /*
+             * Autocomplete asks again on every keystroke, so a newer request from the same
+             * session makes this one moot: stop searching and skip sending the results.
+             */
+            AtomicLong latest = searchGeneration(req);
+            long generation = latest.incrementAndGet();
+            BooleanSupplier superseded = () -> latest.get() != generation;
+            List<String> matches;
+            if (req.queryParams().contains("infix")) {
+                /* Search for strings containing the term anywhere, best first. */
+                matches = graph.getLocationsBySubstring(term, superseded);
             } else {
                 /* Search for prefix matching strings. */
-                List<String> matches = graph.getLocationsByPrefix(term);
-                return gson.toJson(matches);
+                matches = graph.getLocationsByPrefix(term, superseded);
             }
+            if (superseded.getAsBoolean()) {
+                halt(SUPERSEDED_RESPONSE);
+            }
+            /* Results may be views of the index, which Gson cannot build by their own class. */
+            return gson.toJson(matches, SEARCH_RESULTS_TYPE);
         });
 
         /* Define map application redirect */
@@ -150,6 +444,50 @@ public class MapServer {
         });
     }
 
+    /**
+     * Returns the admin token, from the <code>bearmaps.adminToken</code> system property or
+     * else the <code>BEARMAPS_ADMIN_TOKEN</code> environment variable, or null if neither is
+     * set.
+     */
+    private static String adminToken() {
+        String token = System.getProperty(ADMIN_TOKEN_PROPERTY, System.getenv(ADMIN_TOKEN_ENV));
+        return token == null || token.isEmpty() ? null : token;
+    }
+
+    /**
+     * Returns whether a request may use the admin endpoints. With a token configured, it must
+     * send the token as <code>Authorization: Bearer &lt;token&gt;</code>, compared in time
+     * independent of where it differs. Without one, only requests from this machine may.
+     */
+    private static boolean adminAllowed(String token, Request req) {
+        if (token == null) {
+            String ip = req.ip();
+            return "127.0.0.1".equals(ip) || "0:0:0:0:0:0:0:1".equals(ip) || "::1".equals(ip);
+        }
+        String authorization = req.headers("Authorization");
+        if (authorization == null || !authorization.startsWith(BEARER)) {
+            return false;
+        }
+        return MessageDigest.isEqual(token.getBytes(StandardCharsets.UTF_8),
+                authorization.substring(BEARER.length()).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Returns the number of the latest <code>/search</code> request in the session of
+     * <code>req</code>, creating the session if it has none yet. Keeping it in the session
+     * lets it expire along with the session.
+     */
+    private static AtomicLong searchGeneration(Request req) {
+        synchronized (MapServer.class) {
+            AtomicLong latest = req.session().attribute(SEARCH_GENERATION_ATTRIBUTE);
+            if (latest == null) {
+                latest = new AtomicLong();
+                req.session().attribute(SEARCH_GENERATION_ATTRIBUTE, latest);
+            }
+            return latest;
+        }
+    }
+
     /**
      * Return the image defined by the <code>resultParams</code>.
      * @param resultParams <code>RasterResultParams</code> from <code>Rasterer.getMapRaster</code>
@@ -174,29 +512,58 @@ public class MapServer {
                 }
             }
         }
-        /* If there is a route, draw it. */
-        if (route != null && !route.isEmpty()) {
+        /* If there is an isochrone, shade it in underneath the route. */
+        List<double[]> outline = isochrone;
+        if (outline != null && !outline.isEmpty()) {
             double ullon = resultParams.rasterUlLon;
             double ullat = resultParams.rasterUlLat;
-            double lrlon = resultParams.rasterLrLon;
-            double lrlat = resultParams.rasterLrLat;
-            double wdpp = (lrlon - ullon) / img.getWidth();
-            double hdpp = (ullat - lrlat) / img.getHeight();
+            double wdpp = (resultParams.rasterLrLon - ullon) / img.getWidth();
+            double hdpp = (ullat - resultParams.rasterLrLat) / img.getHeight();
+            int[] xs = new int[outline.size()];
+            int[] ys = new int[outline.size()];
+            for (int i = 0; i < xs.length; i += 1) {
+                xs[i] = (int) ((outline.get(i)[0] - ullon) * (1 / wdpp));
+                ys[i] = (int) ((ullat - outline.get(i)[1]) * (1 / hdpp));
+            }
             Graphics2D g2d = (Graphics2D) graphic;
-            g2d.setColor(MapServer.ROUTE_STROKE_COLOR);
-            g2d.setStroke(new BasicStroke(MapServer.ROUTE_STROKE_WIDTH_PX,
-                    BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
-            route.stream().reduce((v, w) -> {
-                g2d.drawLine((int) ((graph.lon(v) - ullon) * (1 / wdpp)),
-                        (int) ((ullat - graph.lat(v)) * (1 / hdpp)),
-                        (int) ((graph.lon(w) - ullon) * (1 / wdpp)),
-                        (int) ((ullat - graph.lat(w)) * (1 / hdpp)));
-                return w;
-            });
+            g2d.setColor(MapServer.ISOCHRONE_FILL_COLOR);
+            g2d.fillPolygon(xs, ys, xs.length);
+        }
+        /* If there are alternatives, draw them underneath the route. */
+        DrawnRoute drawn = drawnRoute;
+        for (List<Long> alternative : drawn.alternatives) {
+            drawRoute((Graphics2D) graphic, drawn.graph, resultParams, img, alternative,
+                    MapServer.ALTERNATIVE_STROKE_COLOR);
+        }
+        /* If there is a route, draw it. */
+        if (drawn.route != null && !drawn.route.isEmpty()) {
+            drawRoute((Graphics2D) graphic, drawn.graph, resultParams, img, drawn.route,
+                    MapServer.ROUTE_STROKE_COLOR);
         }
         return img;
     }
 
+    /** Draws <code>path</code>, a route in <code>graph</code>, in <code>color</code>. */
+    private static void drawRoute(Graphics2D g2d, GraphDB graph, RasterResultParams resultParams,
+                                  BufferedImage img, List<Long> path, Color color) {
+        double ullon = resultParams.rasterUlLon;
+        double ullat = resultParams.rasterUlLat;
+        double lrlon = resultParams.rasterLrLon;
+        double lrlat = resultParams.rasterLrLat;
+        double wdpp = (lrlon - ullon) / img.getWidth();
+        double hdpp = (ullat - lrlat) / img.getHeight();
+        g2d.setColor(color);
+        g2d.setStroke(new BasicStroke(MapServer.ROUTE_STROKE_WIDTH_PX,
+                BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+        path.stream().reduce((v, w) -> {
+            g2d.drawLine((int) ((graph.lon(v) - ullon) * (1 / wdpp)),
+                    (int) ((ullat - graph.lat(v)) * (1 / hdpp)),
+                    (int) ((graph.lon(w) - ullon) * (1 / wdpp)),
+                    (int) ((ullat - graph.lat(w)) * (1 / hdpp)));
+            return w;
+        });
+    }
+
     /**
      * Returns the image found at the given <code>imgPath</code>.
      * @param imgPath <code>String</code> path to the image.
@@ -219,21 +586,50 @@ public class MapServer {
      * @return An HTML-encoded <code>String</code> of the list of navigation directions.
      */
     private static String getDirectionsText(List<Router.NavigationDirection> directions) {
-        StringBuilder sb = new StringBuilder();
+        StringBuilder sb = DIRECTIONS_BUILDER.get();
+        sb.setLength(0);
         int step = 1;
         for (Router.NavigationDirection d: directions) {
-            sb.append(String.format("%d. %s <br>", step, d));
+            sb.append(step).append(". ");
+            d.appendTo(sb).append(" <br>");
             step += 1;
         }
         return sb.toString();
     }
 
+    /** A per-thread builder reused by <code>getDirectionsText</code> across requests. */
+    private static final ThreadLocal<StringBuilder> DIRECTIONS_BUILDER =
+            ThreadLocal.withInitial(() -> new StringBuilder(1024));
+
+    /** The most routes kept by the route cache. */
+    private static final int ROUTE_CACHE_MAX_ENTRIES = 10000;
+    /** The most estimated bytes of paths kept by the route cache. */
+    private static final long ROUTE_CACHE_MAX_BYTES = 64L * 1024 * 1024;
+    /** Locations returned by <code>/nearby</code> when no k is given. */
+    private static final int NEARBY_DEFAULT_K = 10;
+    /** HTTP response to a search superseded by a newer one from the same session. */
+    private static final int SUPERSEDED_RESPONSE = 204;
+    /** The declared type of <code>/search</code> autocomplete results. */
+    private static final Type SEARCH_RESULTS_TYPE = new TypeToken<List<String>>() { }.getType();
+    /** Session attribute holding the number of the session's latest search. */
+    private static final String SEARCH_GENERATION_ATTRIBUTE = "searchGeneration";
     /** HTTP failed response. */
     private static final int HALT_RESPONSE = 403;
+    /** The path under which every admin endpoint lies. */
+    private static final String ADMIN_PATH_PREFIX = "/admin/";
+    /** The system property, and the environment variable after it, holding the admin token. */
+    private static final String ADMIN_TOKEN_PROPERTY = "bearmaps.adminToken";
+    private static final String ADMIN_TOKEN_ENV = "BEARMAPS_ADMIN_TOKEN";
+    /** The scheme of the <code>Authorization</code> header carrying the admin token. */
+    private static final String BEARER = "Bearer ";
     /** Route stroke information: typically roads are not more than 5px wide. */
     private static final float ROUTE_STROKE_WIDTH_PX = 5.0f;
     /** Route stroke information: semi-transparent cyan. */
     private static final Color ROUTE_STROKE_COLOR = new Color(108, 181, 230, 200);
+    /** Alternative route stroke information: semi-transparent gray. */
+    private static final Color ALTERNATIVE_STROKE_COLOR = new Color(150, 150, 150, 170);
+    /** Isochrone fill information: semi-transparent orange. */
+    private static final Color ISOCHRONE_FILL_COLOR = new Color(230, 150, 60, 90);
     /** The directory where tile images can be found. */
     private static final String IMG_ROOT = "../library-su18/bearmaps/img/";
     /**
@@ -241,6 +637,10 @@ public class MapServer {
      * using custom region selection.
      */
     private static final String OSM_DB_PATH = "../library-su18/bearmaps/berkeley-2018.osm.xml";
+    /** The system property naming the directory to keep node stores in, if any. */
+    private static final String NODE_STORE_DIR_PROPERTY = "bearmaps.nodeStoreDir";
+    /** Hub label files are this prefix followed by the metric name and ".hl". */
+    private static final String HUB_LABELS_PATH_PREFIX = "../library-su18/bearmaps/berkeley-2018.";
 
     /** An adapter class for extending RasterResultParams with the final image. */
     private static class RenderedRasterResultParams {
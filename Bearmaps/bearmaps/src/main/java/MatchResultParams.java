@@ -0,0 +1,46 @@
+/**
+ * The MatchResultParams contains the match of one GPS point found by MapMatcher, for
+ * serialization by Gson. The /match endpoint writes one of these per line as the matches
+ * become final.
+ *
+ * The fields in this class cannot be accessed as it is only used to serialize results in MapServer.
+ */
+class MatchResultParams {
+    /** The position of the point in the trace, starting at 0. */
+    private final int index;
+    /** The ID of the matched vertex, or null if no road is near the point. */
+    private final Long id;
+    /** The coordinates of the matched vertex, or null if there is none. */
+    private final Double lon, lat;
+    /** Why the trace could not be read, or null. */
+    private final String error;
+
+    /**
+     * Constructs a MatchResultParams for a matched or unmatched point.
+     * @param index The position of the point in the trace.
+     * @param id The ID of the matched vertex, or null.
+     * @param lon The longitude of the matched vertex, or null.
+     * @param lat The latitude of the matched vertex, or null.
+     */
+    MatchResultParams(int index, Long id, Double lon, Double lat) {
+        this.index = index;
+        this.id = id;
+        this.lon = lon;
+        this.lat = lat;
+        this.error = null;
+    }
+
+    /**
+     * Constructs a MatchResultParams reporting that the point at <code>index</code> could not
+     * be parsed, which ends the trace.
+     * @param index The position of the bad point in the trace.
+     * @param error The error message.
+     */
+    MatchResultParams(int index, String error) {
+        this.index = index;
+        this.id = null;
+        this.lon = null;
+        this.lat = null;
+        this.error = error;
+    }
+}
@@ -0,0 +1,149 @@
+import java.util.Map;
+
+/**
+ * The MatrixRequestParams contains the fields received from the browser in a distance matrix
+ * request. The sources and destinations are each sent as a list of points in the form
+ * <code>lon,lat;lon,lat;...</code>.
+ *
+ * This class can either be instantiated through a Spark request query map, or through the Builder
+ * class for mocking requests during unit testing of Router.distanceMatrix.
+ */
+public class MatrixRequestParams {
+    /** The source point longitudes and latitudes. */
+    public final double[] startLons, startLats;
+    /** The destination point longitudes and latitudes. */
+    public final double[] endLons, endLats;
+    /** Whether the matrix should hold distances or travel times. */
+    public final Router.Metric metric;
+    /** Who is travelling: a driver, a cyclist or a pedestrian. */
+    public final Router.Profile profile;
+    /** Whether the matrix should be returned as raw little-endian floats instead of JSON. */
+    public final boolean binary;
+
+    /**
+     * Validate and return a parameter map of the required request parameters.
+     * @param req The queryParams map from a Spark HTTP Request.
+     * @return The parsed request parameters.
+     */
+    public static MatrixRequestParams from(Map<String, String[]> req) {
+        Builder builder = new Builder();
+        for (String param : REQUIRED_PARAMS) {
+            if (!req.containsKey(param) || req.get(param).length == 0) {
+                String msg = String.format("Request failed: %s not found.", param);
+                throw new IllegalArgumentException(msg);
+            }
+        }
+        double[][] sources = parsePoints("sources", req.get("sources")[0]);
+        double[][] destinations = parsePoints("destinations", req.get("destinations")[0]);
+        builder.setStarts(sources[0], sources[1]).setEnds(destinations[0], destinations[1]);
+        if (req.containsKey("metric")) {
+            try {
+                builder.setMetric(Router.Metric.valueOf(req.get("metric")[0].toUpperCase()));
+            } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+                throw new IllegalArgumentException("Incorrect parameters: unknown metric.");
+            }
+        }
+        if (req.containsKey("profile")) {
+            try {
+                builder.setProfile(Router.Profile.valueOf(req.get("profile")[0].toUpperCase()));
+            } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+                throw new IllegalArgumentException("Incorrect parameters: unknown profile.");
+            }
+        }
+        if (req.containsKey("format") && req.get("format").length > 0) {
+            builder.setBinary("binary".equals(req.get("format")[0]));
+        }
+        return builder.create();
+    }
+
+    /**
+     * Parses a list of points of the form <code>lon,lat;lon,lat</code>.
+     * @return The longitudes and latitudes of the points, in that order.
+     */
+    private static double[][] parsePoints(String param, String value) {
+        String[] points = value.split(";");
+        if (points.length > MAX_POINTS) {
+            String msg = String.format("Request failed: more than %d %s.", MAX_POINTS, param);
+            throw new IllegalArgumentException(msg);
+        }
+        double[] lons = new double[points.length];
+        double[] lats = new double[points.length];
+        for (int i = 0; i < points.length; i += 1) {
+            String[] parts = points[i].split(",");
+            try {
+                lons[i] = Double.parseDouble(parts[0]);
+                lats[i] = Double.parseDouble(parts[1]);
+            } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+                String msg = String.format("Incorrect parameters: unable to parse %s.", param);
+                throw new IllegalArgumentException(msg);
+            }
+        }
+        return new double[][]{lons, lats};
+    }
+
+    private MatrixRequestParams(double[] startLons, double[] startLats, double[] endLons,
+                                double[] endLats, Router.Metric metric, Router.Profile profile,
+                                boolean binary) {
+        this.startLons = startLons;
+        this.startLats = startLats;
+        this.endLons = endLons;
+        this.endLats = endLats;
+        this.metric = metric;
+        this.profile = profile;
+        this.binary = binary;
+    }
+
+    public static class Builder {
+        private double[] startLons = new double[0], startLats = new double[0];
+        private double[] endLons = new double[0], endLats = new double[0];
+        private Router.Metric metric = Router.Metric.DISTANCE;
+        private Router.Profile profile = Router.Profile.DRIVE;
+        private boolean binary;
+
+        /**
+         * Creates a MatrixRequestParams.Builder instance that can be used to build
+         * a MatrixRequestParams with various fields pre-set.
+         */
+        public Builder() {
+        }
+
+        public MatrixRequestParams create() {
+            return new MatrixRequestParams(startLons, startLats, endLons, endLats, metric, profile,
+                    binary);
+        }
+
+        public Builder setStarts(double[] lons, double[] lats) {
+            this.startLons = lons;
+            this.startLats = lats;
+            return this;
+        }
+
+        public Builder setEnds(double[] lons, double[] lats) {
+            this.endLons = lons;
+            this.endLats = lats;
+            return this;
+        }
+
+        public Builder setMetric(Router.Metric value) {
+            this.metric = value;
+            return this;
+        }
+
+        public Builder setProfile(Router.Profile value) {
+            this.profile = value;
+            return this;
+        }
+
+        public Builder setBinary(boolean value) {
+            this.binary = value;
+            return this;
+        }
+    }
+
+    /** The most sources or destinations allowed in one request. */
+    private static final int MAX_POINTS = 1000;
+    /** Matrix requests to the server must have the following keys in the params map. */
+    private static final String[] REQUIRED_PARAMS = {
+        "sources", "destinations"
+    };
+}
@@ -0,0 +1,32 @@
+/**
+ * The MatrixResultParams contains the distance matrix computed by Router.distanceMatrix for
+ * serialization by Gson.
+ *
+ * The fields in this class cannot be accessed as it is only used to serialize results in MapServer.
+ */
+class MatrixResultParams {
+    /** The number of sources, which is the number of rows. */
+    private final int rows;
+    /** The number of destinations, which is the number of columns. */
+    private final int cols;
+    /** The weights in row-major order, with -1 for unreachable pairs. */
+    private final float[] weights;
+
+    /**
+     * Constructs a MatrixResultParams from a row-major matrix, replacing the infinite weights of
+     * unreachable pairs, which JSON cannot represent, with -1.
+     * @param rows The number of rows.
+     * @param cols The number of columns.
+     * @param weights The weights in row-major order; modified in place.
+     */
+    MatrixResultParams(int rows, int cols, float[] weights) {
+        for (int i = 0; i < weights.length; i += 1) {
+            if (Float.isInfinite(weights[i])) {
+                weights[i] = -1;
+            }
+        }
+        this.rows = rows;
+        this.cols = cols;
+        this.weights = weights;
+    }
+}
@@ -0,0 +1,271 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * A route from a start to an end through a set of stops, visited in the order that keeps the
+ * total weight low.
+ * <p>
+ * The start, the stops and the end are snapped to the graph once, and the weights between all
+ * of them come from one distance matrix whose rows are searched in parallel. The visiting
+ * order is built by nearest insertion and then improved by 2-opt (reversing a run of stops)
+ * and Or-opt (moving a run of one to three stops elsewhere) until no move helps or the time
+ * budget runs out. Every move is priced exactly on the matrix, so the order stays correct even
+ * if weights differ by direction. Finally the legs between consecutive points are routed in
+ * parallel and stitched into one path.
+ */
+public class MultiStopRoute {
+    /** Time the order may be improved for before the best order so far is used. */
+    static final long IMPROVE_BUDGET_NANOS = 20_000_000L;
+    /** Longest run of stops Or-opt moves at once. */
+    private static final int OR_OPT_MAX_RUN = 3;
+    /** Slack below which a move does not count as an improvement, so rounding cannot loop. */
+    private static final double EPSILON = 1e-6;
+
+    private final List<Long> path;
+    private final int[] order;
+    private final double weight;
+
+    private MultiStopRoute(List<Long> path, int[] order, double weight) {
+        this.path = path;
+        this.order = order;
+        this.weight = weight;
+    }
+
+    /**
+     * Computes the route for a request with waypoints: from its start, through every waypoint
+     * in the best order found, to its end.
+     *
+     * @param g      <code>GraphDB</code> data source.
+     * @param params The route request; its waypoints are the stops.
+     * @return The route, with an empty path if some stop cannot be reached.
+     */
+    public static MultiStopRoute compute(GraphDB g, RouteRequestParams params) {
+        int numStops = params.waypoints.length / 2;
+        int n = numStops + 2;
+        double[] lons = new double[n];
+        double[] lats = new double[n];
+        lons[0] = params.startLon;
+        lats[0] = params.startLat;
+        for (int k = 0; k < numStops; k += 1) {
+            lons[k + 1] = params.waypoints[2 * k];
+            lats[k + 1] = params.waypoints[2 * k + 1];
+        }
+        lons[n - 1] = params.endLon;
+        lats[n - 1] = params.endLat;
+        long[] ids = Router.snap(g, lons, lats, params.profile);
+        return compute(g, ids, params.metric, params.profile, IMPROVE_BUDGET_NANOS);
+    }
+
+    /**
+     * Computes the route from <code>ids[0]</code> through every vertex in between to the last
+     * vertex of <code>ids</code>.
+     *
+     * @param g           <code>GraphDB</code> data source.
+     * @param ids         The start, the stops and the end.
+     * @param metric      Whether to minimize distance or travel time.
+     * @param profile     Who is travelling.
+     * @param budgetNanos Time allowed for improving the order after nearest insertion.
+     * @return The route, with an empty path if some stop cannot be reached.
+     */
+    static MultiStopRoute compute(GraphDB g, long[] ids, Router.Metric metric,
+                                  Router.Profile profile, long budgetNanos) {
+        int n = ids.length;
+        float[] matrix = Router.distanceMatrix(g, ids, ids, metric, profile);
+        int[] tour = solve(matrix, n, budgetNanos);
+        int[] order = new int[n - 2];
+        for (int k = 0; k < order.length; k += 1) {
+            order[k] = tour[k + 1] - 1;
+        }
+        double weight = tourWeight(matrix, n, tour);
+        if (weight == Double.POSITIVE_INFINITY) {
+            return new MultiStopRoute(Collections.emptyList(), order, weight);
+        }
+
+        List<List<Long>> legs = new ArrayList<>(Collections.nCopies(n - 1, null));
+        IntStream.range(0, n - 1).parallel().forEach(k -> legs.set(k, Router.shortestPath(
+                g, ids[tour[k]], ids[tour[k + 1]], metric, profile, null)));
+        List<Long> path = new ArrayList<>();
+        path.add(ids[0]);
+        for (List<Long> leg : legs) {
+            if (leg.isEmpty()) {
+                return new MultiStopRoute(Collections.emptyList(), order, weight);
+            }
+            path.addAll(leg.subList(1, leg.size()));
+        }
+        return new MultiStopRoute(path, order, weight);
+    }
+
+    /** Returns the vertex IDs along the whole route, or an empty list if it failed. */
+    public List<Long> path() {
+        return path;
+    }
+
+    /** Returns the order the stops are visited in, as indices into the request's waypoints. */
+    public int[] order() {
+        return order.clone();
+    }
+
+    /** Returns the total weight of the route in miles or seconds. */
+    public double weight() {
+        return weight;
+    }
+
+    /**
+     * Returns a low-weight order visiting points 0 to n - 1, starting at 0 and ending at
+     * n - 1.
+     *
+     * @param matrix      The n-by-n weights in row-major order.
+     * @param n           The number of points.
+     * @param budgetNanos Time allowed for improving the order after nearest insertion.
+     * @return The points in visiting order.
+     */
+    static int[] solve(float[] matrix, int n, long budgetNanos) {
+        int[] tour = nearestInsertion(matrix, n);
+        long deadline = System.nanoTime() + budgetNanos;
+        boolean improved = true;
+        while (improved && System.nanoTime() < deadline) {
+            improved = twoOpt(matrix, n, tour) | orOpt(matrix, n, tour);
+        }
+        return tour;
+    }
+
+    /**
+     * Builds an order by repeatedly taking the stop closest to any point already in the order
+     * and inserting it where it adds the least weight.
+     */
+    static int[] nearestInsertion(float[] matrix, int n) {
+        int[] tour = new int[n];
+        tour[0] = 0;
+        tour[1] = n - 1;
+        int size = 2;
+        /* Weight between each stop and the closest point in the order, either way. */
+        double[] nearest = new double[n];
+        boolean[] placed = new boolean[n];
+        placed[0] = true;
+        placed[n - 1] = true;
+        for (int k = 1; k < n - 1; k += 1) {
+            nearest[k] = Math.min(Math.min(w(matrix, n, 0, k), w(matrix, n, k, 0)),
+                    Math.min(w(matrix, n, n - 1, k), w(matrix, n, k, n - 1)));
+        }
+        for (int round = 1; round < n - 1; round += 1) {
+            int next = -1;
+            for (int k = 1; k < n - 1; k += 1) {
+                if (!placed[k] && (next < 0 || nearest[k] < nearest[next])) {
+                    next = k;
+                }
+            }
+            int at = 1;
+            double bestAdded = Double.POSITIVE_INFINITY;
+            for (int i = 1; i < size; i += 1) {
+                double added = w(matrix, n, tour[i - 1], next) + w(matrix, n, next, tour[i])
+                        - w(matrix, n, tour[i - 1], tour[i]);
+                if (added < bestAdded) {
+                    bestAdded = added;
+                    at = i;
+                }
+            }
+            System.arraycopy(tour, at, tour, at + 1, size - at);
+            tour[at] = next;
+            size += 1;
+            placed[next] = true;
+            for (int k = 1; k < n - 1; k += 1) {
+                if (!placed[k]) {
+                    nearest[k] = Math.min(nearest[k],
+                            Math.min(w(matrix, n, next, k), w(matrix, n, k, next)));
+                }
+            }
+        }
+        return tour;
+    }
+
+    /**
+     * Applies every improving 2-opt move: reversing the run of stops from position i to
+     * position j. Returns whether any move was applied.
+     */
+    static boolean twoOpt(float[] matrix, int n, int[] tour) {
+        boolean improved = false;
+        for (int i = 1; i < n - 2; i += 1) {
+            for (int j = i + 1; j < n - 1; j += 1) {
+                double before = w(matrix, n, tour[i - 1], tour[i])
+                        + w(matrix, n, tour[j], tour[j + 1]);
+                double after = w(matrix, n, tour[i - 1], tour[j])
+                        + w(matrix, n, tour[i], tour[j + 1]);
+                for (int k = i; k < j; k += 1) {
+                    before += w(matrix, n, tour[k], tour[k + 1]);
+                    after += w(matrix, n, tour[k + 1], tour[k]);
+                }
+                if (after < before - EPSILON) {
+                    for (int a = i, b = j; a < b; a += 1, b -= 1) {
+                        int tmp = tour[a];
+                        tour[a] = tour[b];
+                        tour[b] = tmp;
+                    }
+                    improved = true;
+                }
+            }
+        }
+        return improved;
+    }
+
+    /**
+     * Applies every improving Or-opt move: taking a run of up to three consecutive stops out
+     * and putting it back, in the same direction, between two other points. Returns whether
+     * any move was applied.
+     */
+    static boolean orOpt(float[] matrix, int n, int[] tour) {
+        boolean improved = false;
+        int[] run = new int[OR_OPT_MAX_RUN];
+        for (int len = 1; len <= OR_OPT_MAX_RUN; len += 1) {
+            for (int i = 1; i + len < n; i += 1) {
+                int first = tour[i];
+                int last = tour[i + len - 1];
+                int prev = tour[i - 1];
+                int next = tour[i + len];
+                double removed = w(matrix, n, prev, first) + w(matrix, n, last, next)
+                        - w(matrix, n, prev, next);
+                /* Try every gap between positions p - 1 and p outside the run. */
+                int bestGap = -1;
+                double bestGain = EPSILON;
+                for (int p = 1; p < n; p += 1) {
+                    if (p >= i && p <= i + len) {
+                        continue;
+                    }
+                    double added = w(matrix, n, tour[p - 1], first) + w(matrix, n, last, tour[p])
+                            - w(matrix, n, tour[p - 1], tour[p]);
+                    if (removed - added > bestGain) {
+                        bestGain = removed - added;
+                        bestGap = p;
+                    }
+                }
+                if (bestGap < 0) {
+                    continue;
+                }
+                System.arraycopy(tour, i, run, 0, len);
+                if (bestGap < i) {
+                    System.arraycopy(tour, bestGap, tour, bestGap + len, i - bestGap);
+                    System.arraycopy(run, 0, tour, bestGap, len);
+                } else {
+                    System.arraycopy(tour, i + len, tour, i, bestGap - i - len);
+                    System.arraycopy(run, 0, tour, bestGap - len, len);
+                }
+                improved = true;
+            }
+        }
+        return improved;
+    }
+
+    /** Returns the total weight of visiting the points in <code>tour</code> order. */
+    static double tourWeight(float[] matrix, int n, int[] tour) {
+        double total = 0;
+        for (int k = 1; k < tour.length; k += 1) {
+            total += w(matrix, n, tour[k - 1], tour[k]);
+        }
+        return total;
+    }
+
+    private static double w(float[] matrix, int n, int from, int to) {
+        return matrix[from * n + to];
+    }
+}
@@ -0,0 +1,278 @@
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Strings stored back to back as UTF-8 in one byte array and referred to by <code>int</code>
+ * handles, so a large number of names costs two arrays instead of one <code>String</code>
+ * object, its character array and a reference each. Names are appended while a map is
+ * loaded and decoded again only when one is returned to a caller.
+ * <p>
+ * Names added with <code>intern</code> are stored once however often they are added: the
+ * many ways that make up one street share a handle. Each interned name also gets the handle
+ * of its cleaned form, as <code>GraphDB.cleanString</code> would make it, interned in turn,
+ * so searches compare stored bytes with the helpers here instead of cleaning names again.
+ * Cleaned forms are ASCII, so their bytes compare the same way their characters do.
+ */
+class NameArena {
+    /** The handle of no name. */
+    static final int NONE = -1;
+    /** Slots in the intern table start at this and stay at most half full. */
+    private static final int MIN_TABLE_SIZE = 64;
+
+    private byte[] bytes = new byte[1024];
+    /** Name h occupies bytes[offsets[h]] up to bytes[offsets[h + 1]]. */
+    private int[] offsets = new int[64];
+    /** Handle of the cleaned form of each interned name, or NONE for names only added. */
+    private int[] cleanedOf = new int[64];
+    private int count;
+    /** Open-addressing table of interned handles by hash, with NONE for empty slots. */
+    private int[] table = newTable(MIN_TABLE_SIZE);
+    private int interned;
+
+    private static int[] newTable(int size) {
+        int[] t = new int[size];
+        Arrays.fill(t, NONE);
+        return t;
+    }
+
+    /**
+     * Appends a name, even if it is already stored.
+     *
+     * @param name The name to store.
+     * @return The handle of the stored name.
+     */
+    int add(String name) {
+        byte[] utf8 = name.getBytes(StandardCharsets.UTF_8);
+        return append(utf8, 0, utf8.length, NONE);
+    }
+
+    private int append(byte[] src, int from, int length, int cleaned) {
+        int end = offsets[count];
+        if (end + length > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, end + length));
+        }
+        System.arraycopy(src, from, bytes, end, length);
+        if (count + 2 > offsets.length) {
+            offsets = Arrays.copyOf(offsets, offsets.length * 2);
+            cleanedOf = Arrays.copyOf(cleanedOf, offsets.length);
+        }
+        offsets[count + 1] = end + length;
+        cleanedOf[count] = cleaned;
+        count += 1;
+        return count - 1;
+    }
+
+    /**
+     * Returns the handle of a name, storing it and its cleaned form only if they are not
+     * stored already.
+     *
+     * @param name The name.
+     * @return The handle shared by every interned copy of the name.
+     */
+    int intern(String name) {
+        byte[] utf8 = name.getBytes(StandardCharsets.UTF_8);
+        int h = intern(utf8, utf8.length);
+        if (cleanedOf[h] == NONE) {
+            /* Drop every byte but ASCII letters and spaces, as cleanString drops characters. */
+            int length = 0;
+            for (byte b : utf8) {
+                if (b == ' ' || b >= 'a' && b <= 'z') {
+                    utf8[length] = b;
+                    length += 1;
+                } else if (b >= 'A' && b <= 'Z') {
+                    utf8[length] = (byte) (b - 'A' + 'a');
+                    length += 1;
+                }
+            }
+            int c = intern(utf8, length);
+            cleanedOf[c] = c;
+            cleanedOf[h] = c;
+        }
+        return h;
+    }
+
+    /**
+     * Interns every name of a list.
+     *
+     * @param names The names.
+     * @return The handle of each name, in list order.
+     */
+    int[] internAll(List<String> names) {
+        int[] handles = new int[names.size()];
+        for (int i = 0; i < handles.length; i += 1) {
+            handles[i] = intern(names.get(i));
+        }
+        return handles;
+    }
+
+    /** Returns the handle of the first <code>length</code> bytes, stored if they are new. */
+    private int intern(byte[] utf8, int length) {
+        int mask = table.length - 1;
+        int slot = hash(utf8, 0, length) & mask;
+        while (table[slot] != NONE) {
+            int h = table[slot];
+            if (equals(h, utf8, length)) {
+                return h;
+            }
+            slot = (slot + 1) & mask;
+        }
+        int h = append(utf8, 0, length, NONE);
+        table[slot] = h;
+        interned += 1;
+        if (2 * interned > table.length) {
+            rehash();
+        }
+        return h;
+    }
+
+    private void rehash() {
+        int[] old = table;
+        table = newTable(old.length * 2);
+        int mask = table.length - 1;
+        for (int h : old) {
+            if (h == NONE) {
+                continue;
+            }
+            int slot = hash(bytes, offsets[h], offsets[h + 1] - offsets[h]) & mask;
+            while (table[slot] != NONE) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = h;
+        }
+    }
+
+    private static int hash(byte[] b, int from, int length) {
+        int hash = 1;
+        for (int i = from; i < from + length; i += 1) {
+            hash = 31 * hash + b[i];
+        }
+        /* Spread the bits, since the table takes the low ones. */
+        return hash ^ (hash >>> 16);
+    }
+
+    private boolean equals(int h, byte[] utf8, int length) {
+        int from = offsets[h];
+        return offsets[h + 1] - from == length
+                && Arrays.equals(bytes, from, from + length, utf8, 0, length);
+    }
+
+    /** Returns the name with handle <code>h</code>. */
+    String get(int h) {
+        return new String(bytes, offsets[h], offsets[h + 1] - offsets[h], StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns a read-only list that decodes the names with the given handles as they are
+     * read, so results can be handed out without decoding names nobody looks at.
+     *
+     * @param handles The handles.
+     * @param from    The first position of <code>handles</code> in the list.
+     * @param to      The position after the last one.
+     */
+    List<String> view(int[] handles, int from, int to) {
+        return new AbstractList<String>() {
+            @Override
+            public String get(int i) {
+                return NameArena.this.get(handles[from + i]);
+            }
+
+            @Override
+            public int size() {
+                return to - from;
+            }
+        };
+    }
+
+    /** Returns the handle of the cleaned form of interned name <code>h</code>. */
+    int cleaned(int h) {
+        return cleanedOf[h];
+    }
+
+    /** Returns the length of name <code>h</code> in bytes, which is its length if ASCII. */
+    int length(int h) {
+        return offsets[h + 1] - offsets[h];
+    }
+
+    /** Returns byte <code>i</code> of name <code>h</code>. */
+    byte byteAt(int h, int i) {
+        return bytes[offsets[h] + i];
+    }
+
+    /**
+     * Compares two names byte by byte, which for UTF-8 is the order of their code points.
+     *
+     * @return A negative number, zero or a positive number as name <code>a</code> comes
+     * before, is equal to or comes after name <code>b</code>.
+     */
+    int compare(int a, int b) {
+        return Arrays.compareUnsigned(bytes, offsets[a], offsets[a + 1],
+                bytes, offsets[b], offsets[b + 1]);
+    }
+
+    /** Compares name <code>h</code> with a byte string as <code>compare</code> does. */
+    int compare(int h, byte[] s) {
+        return Arrays.compareUnsigned(bytes, offsets[h], offsets[h + 1], s, 0, s.length);
+    }
+
+    /** Returns whether name <code>h</code> starts with the byte string <code>s</code>. */
+    boolean startsWith(int h, byte[] s) {
+        int from = offsets[h];
+        return offsets[h + 1] - from >= s.length
+                && Arrays.equals(bytes, from, from + s.length, s, 0, s.length);
+    }
+
+    /**
+     * Returns where the byte string <code>s</code> first occurs in name <code>h</code>, or -1
+     * if it does not.
+     */
+    int indexOf(int h, byte[] s) {
+        if (s.length == 0) {
+            return 0;
+        }
+        int from = offsets[h];
+        int last = offsets[h + 1] - s.length;
+        for (int i = from; i <= last; i += 1) {
+            if (bytes[i] == s[0] && Arrays.equals(bytes, i, i + s.length, s, 0, s.length)) {
+                return i - from;
+            }
+        }
+        return -1;
+    }
+
+    /** Returns the number of names stored. */
+    int size() {
+        return count;
+    }
+
+    /** Returns the bytes the arena's arrays take, not counting object headers. */
+    long bytes() {
+        return bytes.length + 4L * (offsets.length + cleanedOf.length + table.length);
+    }
+
+    /**
+     * Returns a copy with the same names under the same handles, which can take names of its
+     * own while this arena is read on other threads.
+     */
+    NameArena copy() {
+        NameArena copy = new NameArena();
+        copy.bytes = bytes.clone();
+        copy.offsets = offsets.clone();
+        copy.cleanedOf = cleanedOf.clone();
+        copy.count = count;
+        copy.table = table.clone();
+        copy.interned = interned;
+        return copy;
+    }
+
+    /**
+     * Shrinks the arrays to what the stored names need, once loading is done. Names may still
+     * be added afterwards; the arrays grow again as they would have.
+     */
+    void trim() {
+        bytes = Arrays.copyOf(bytes, Math.max(offsets[count], 1));
+        offsets = Arrays.copyOf(offsets, count + 2);
+        cleanedOf = Arrays.copyOf(cleanedOf, count + 1);
+    }
+}
@@ -0,0 +1,24 @@
+import java.util.List;
+
+/**
+ * The NearbyResultParams contains the locations of one category closest to a coordinate,
+ * found by CategoryIndex, for serialization by Gson.
+ *
+ * The fields in this class cannot be accessed as it is only used to serialize results in MapServer.
+ */
+class NearbyResultParams {
+    /** The category looked up. */
+    private final String category;
+    /** Up to k locations of the category, closest first; unnamed ones have no name. */
+    private final List<ReverseGeocoder.Match> results;
+
+    /**
+     * Constructs a NearbyResultParams.
+     * @param category The category looked up.
+     * @param results The closest locations of the category, closest first.
+     */
+    NearbyResultParams(String category, List<ReverseGeocoder.Match> results) {
+        this.category = category;
+        this.results = results;
+    }
+}
@@ -0,0 +1,206 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * The coordinates of every node of a map as it is parsed, kept on disk instead of the heap.
+ * Nodes are gathered into a run of fixed size, which is sorted by OSM ID and written to a file
+ * of its own once full, so the heap holds one run at a time however large the map. Once the
+ * ways are known, <code>lookup</code> merges the runs in a single pass to find the coordinates
+ * of just the nodes the ways use, which for a typical extract are a small part of them.
+ * <p>
+ * A node given more than once keeps its last coordinates, as it would in a map from IDs.
+ * The run files are deleted by <code>close</code>.
+ *
+ * @source https://en.wikipedia.org/wiki/External_sorting
+ */
+class NodeSpill implements Closeable {
+    /** Nodes per run by default: 24 MB of IDs and coordinates. */
+    static final int RUN_SIZE = 1 << 20;
+
+    private final File dir;
+    private final long[] ids;
+    private final double[] lats, lons;
+    private int size;
+    private final List<File> runs = new ArrayList<>();
+
+    /**
+     * Makes an empty spill that writes its runs to <code>dir</code>.
+     *
+     * @param dir     The directory for the run files.
+     * @param runSize The most nodes held on the heap at once.
+     */
+    NodeSpill(File dir, int runSize) {
+        this.dir = dir;
+        ids = new long[runSize];
+        lats = new double[runSize];
+        lons = new double[runSize];
+    }
+
+    /**
+     * Adds a node, writing out the current run if it is full.
+     *
+     * @throws UncheckedIOException If a run cannot be written, since parsers call this from
+     *                              handlers that cannot throw <code>IOException</code>.
+     */
+    void add(long id, double lat, double lon) {
+        if (size == ids.length) {
+            try {
+                spill();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        ids[size] = id;
+        lats[size] = lat;
+        lons[size] = lon;
+        size += 1;
+    }
+
+    /** Sorts the current run by ID, keeping nodes with equal IDs in order, and writes it. */
+    private void spill() throws IOException {
+        int[] order = new int[size];
+        for (int i = 0; i < size; i += 1) {
+            order[i] = i;
+        }
+        sortById(order, new int[size], 0, size);
+        File run = File.createTempFile("nodes", ".run", dir);
+        run.deleteOnExit();
+        runs.add(run);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(run), 1 << 16))) {
+            for (int i : order) {
+                out.writeLong(ids[i]);
+                out.writeDouble(lats[i]);
+                out.writeDouble(lons[i]);
+            }
+        }
+        size = 0;
+    }
+
+    /** Merge sorts order[from, to) by the IDs the entries point at; stable. */
+    private void sortById(int[] order, int[] scratch, int from, int to) {
+        if (to - from < 2) {
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        sortById(order, scratch, from, mid);
+        sortById(order, scratch, mid, to);
+        if (ids[order[mid - 1]] <= ids[order[mid]]) {
+            /* Already in order, as the nodes of most map files are. */
+            return;
+        }
+        System.arraycopy(order, from, scratch, from, to - from);
+        int i = from;
+        int j = mid;
+        for (int k = from; k < to; k += 1) {
+            if (j >= to || i < mid && ids[scratch[i]] <= ids[scratch[j]]) {
+                order[k] = scratch[i];
+                i += 1;
+            } else {
+                order[k] = scratch[j];
+                j += 1;
+            }
+        }
+    }
+
+    /**
+     * Finds the coordinates of the nodes with the given IDs, merging the runs in one pass.
+     * No node can be added afterwards.
+     *
+     * @param wanted OSM IDs, ascending and each once.
+     * @param lats   Receives the latitude of each wanted node, or NaN if it was not added.
+     * @param lons   Receives the longitude of each wanted node, or NaN if it was not added.
+     * @throws IOException If a run cannot be written or read.
+     */
+    void lookup(long[] wanted, double[] lats, double[] lons) throws IOException {
+        if (size > 0) {
+            spill();
+        }
+        Arrays.fill(lats, Double.NaN);
+        Arrays.fill(lons, Double.NaN);
+        /* Ties go to the later run, which holds the later version of the node. */
+        PriorityQueue<Run> queue = new PriorityQueue<>((a, b) -> a.id != b.id
+                ? Long.compare(a.id, b.id) : Integer.compare(a.number, b.number));
+        List<Run> open = new ArrayList<>();
+        try {
+            for (int r = 0; r < runs.size(); r += 1) {
+                Run run = new Run(runs.get(r), r);
+                open.add(run);
+                if (run.next()) {
+                    queue.add(run);
+                }
+            }
+            int w = 0;
+            while (!queue.isEmpty() && w < wanted.length) {
+                Run run = queue.poll();
+                while (w < wanted.length && wanted[w] < run.id) {
+                    w += 1;
+                }
+                if (w < wanted.length && wanted[w] == run.id) {
+                    lats[w] = run.lat;
+                    lons[w] = run.lon;
+                }
+                if (run.next()) {
+                    queue.add(run);
+                }
+            }
+        } finally {
+            for (Run run : open) {
+                run.in.close();
+            }
+        }
+    }
+
+    /** Returns the number of runs written so far. */
+    int numRuns() {
+        return runs.size();
+    }
+
+    /** Deletes the run files. */
+    @Override
+    public void close() {
+        for (File run : runs) {
+            run.delete();
+        }
+        runs.clear();
+    }
+
+    /** A run being read back, positioned at its current node. */
+    private static class Run {
+        final DataInputStream in;
+        final int number;
+        long id;
+        double lat, lon;
+
+        Run(File file, int number) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file),
+                    1 << 16));
+            this.number = number;
+        }
+
+        /** Reads the next node, returning false at the end of the run. */
+        boolean next() throws IOException {
+            try {
+                id = in.readLong();
+            } catch (EOFException e) {
+                return false;
+            }
+            lat = in.readDouble();
+            lon = in.readDouble();
+            return true;
+        }
+    }
+}
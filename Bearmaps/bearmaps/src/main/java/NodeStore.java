@@ -0,0 +1,265 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * The vertices of a graph kept outside the Java heap, in a memory-mapped file: their OSM IDs,
+ * coordinates, name handles and arcs, with nothing per vertex for the garbage collector to
+ * trace.
+ * <p>
+ * Vertices are numbered as in the <code>CompactGraph</code> that writes the store, which reads
+ * its coordinates and arcs straight from these buffers instead of keeping copies. An ID is
+ * found by binary search over the IDs in ascending order, kept alongside, instead of through
+ * a hash map of boxed keys. Arcs are in compressed sparse row form, one per neighbor. Each
+ * array is mapped as its own buffer, so the file may exceed the 2 GB a single buffer can
+ * address as long as no one array does. Every read goes through an absolute <code>get</code>
+ * of an NIO buffer, so an index out of range throws <code>IndexOutOfBoundsException</code>
+ * rather than reading another vertex's bytes. Names stay in the graph's
+ * <code>NameArena</code>, which already stores each of them once; the store holds their
+ * handles. Instances are immutable.
+ */
+class NodeStore {
+    private static final int MAGIC = 0x4E4F4431;
+    private static final int VERSION = 2;
+    private static final int HEADER_BYTES = 32;
+
+    private final File file;
+    private final int numNodes;
+    /** OSM ID of each vertex. */
+    final LongBuffer ids;
+    final DoubleBuffer lons, lats;
+    /** Name handle of each vertex, or <code>NameArena.NONE</code>. */
+    private final IntBuffer names;
+    /** The OSM IDs in ascending order, and the vertex with each. */
+    private final LongBuffer sortedIds;
+    private final IntBuffer sortedVertex;
+    /** Arcs leaving vertex i are arcStart[i] to arcStart[i + 1]. */
+    final IntBuffer arcStart;
+    /** Head vertex of each arc. */
+    final IntBuffer arcTarget;
+
+    private NodeStore(File file, int numNodes, LongBuffer ids, DoubleBuffer lons,
+                      DoubleBuffer lats, IntBuffer names, LongBuffer sortedIds,
+                      IntBuffer sortedVertex, IntBuffer arcStart, IntBuffer arcTarget) {
+        this.file = file;
+        this.numNodes = numNodes;
+        this.ids = ids;
+        this.lons = lons;
+        this.lats = lats;
+        this.names = names;
+        this.sortedIds = sortedIds;
+        this.sortedVertex = sortedVertex;
+        this.arcStart = arcStart;
+        this.arcTarget = arcTarget;
+    }
+
+    /** Returns the size of a store of n vertices and m arcs. */
+    private static long fileSize(int n, int m) {
+        return HEADER_BYTES + 40L * n + 4L * (n + 1) + 4L * m;
+    }
+
+    /**
+     * Writes vertices to <code>file</code> in the little-endian layout read by
+     * <code>map</code>: a header, then the IDs, longitudes, latitudes, name handles, sorted
+     * IDs, their vertices, arc starts and arc targets as flat arrays. Every array is indexed
+     * by vertex, apart from the sorted ones and <code>arcTarget</code>.
+     *
+     * @param file The file to write, replaced if it exists.
+     * @throws IOException If the file cannot be written.
+     */
+    static void write(File file, long[] ids, double[] lons, double[] lats, int[] names,
+                      long[] sortedIds, int[] sortedVertex, int[] arcStart, int[] arcTarget)
+            throws IOException {
+        int n = ids.length;
+        int m = arcTarget.length;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+             FileChannel channel = raf.getChannel()) {
+            raf.setLength(fileSize(n, m));
+            FileChannel.MapMode mode = FileChannel.MapMode.READ_WRITE;
+            ByteBuffer header = section(channel, mode, 0, HEADER_BYTES);
+            header.putInt(MAGIC).putInt(VERSION).putInt(n).putInt(m);
+            long at = HEADER_BYTES;
+            section(channel, mode, at, 8L * n).asLongBuffer().put(ids);
+            at += 8L * n;
+            section(channel, mode, at, 8L * n).asDoubleBuffer().put(lons);
+            at += 8L * n;
+            section(channel, mode, at, 8L * n).asDoubleBuffer().put(lats);
+            at += 8L * n;
+            section(channel, mode, at, 4L * n).asIntBuffer().put(names);
+            at += 4L * n;
+            section(channel, mode, at, 8L * n).asLongBuffer().put(sortedIds);
+            at += 8L * n;
+            section(channel, mode, at, 4L * n).asIntBuffer().put(sortedVertex);
+            at += 4L * n;
+            section(channel, mode, at, 4L * (n + 1)).asIntBuffer().put(arcStart);
+            at += 4L * (n + 1);
+            section(channel, mode, at, 4L * m).asIntBuffer().put(arcTarget);
+        }
+    }
+
+    /**
+     * Memory-maps vertices written by <code>write</code>. The pages are loaded lazily by the
+     * operating system and shared between processes mapping the same file.
+     *
+     * @throws IOException If the file cannot be read or is not a node store.
+     */
+    static NodeStore map(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            long size = channel.size();
+            if (size < HEADER_BYTES) {
+                throw new IOException("Not a node store: " + file);
+            }
+            FileChannel.MapMode mode = FileChannel.MapMode.READ_ONLY;
+            ByteBuffer header = section(channel, mode, 0, HEADER_BYTES);
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+                throw new IOException("Not a node store: " + file);
+            }
+            int n = header.getInt();
+            int m = header.getInt();
+            if (n < 0 || m < 0 || size != fileSize(n, m)) {
+                throw new IOException("Corrupt node store: " + file);
+            }
+            long at = HEADER_BYTES;
+            LongBuffer ids = section(channel, mode, at, 8L * n).asLongBuffer();
+            at += 8L * n;
+            DoubleBuffer lons = section(channel, mode, at, 8L * n).asDoubleBuffer();
+            at += 8L * n;
+            DoubleBuffer lats = section(channel, mode, at, 8L * n).asDoubleBuffer();
+            at += 8L * n;
+            IntBuffer names = section(channel, mode, at, 4L * n).asIntBuffer();
+            at += 4L * n;
+            LongBuffer sortedIds = section(channel, mode, at, 8L * n).asLongBuffer();
+            at += 8L * n;
+            IntBuffer sortedVertex = section(channel, mode, at, 4L * n).asIntBuffer();
+            at += 4L * n;
+            IntBuffer arcStart = section(channel, mode, at, 4L * (n + 1)).asIntBuffer();
+            at += 4L * (n + 1);
+            IntBuffer arcTarget = section(channel, mode, at, 4L * m).asIntBuffer();
+            return new NodeStore(file, n, ids, lons, lats, names, sortedIds, sortedVertex,
+                    arcStart, arcTarget);
+        }
+    }
+
+    /** Maps <code>length</code> bytes of a file from <code>offset</code> as one buffer. */
+    private static ByteBuffer section(FileChannel channel, FileChannel.MapMode mode, long offset,
+                                      long length) throws IOException {
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Node store array too large to map: " + length + " bytes.");
+        }
+        return channel.map(mode, offset, length).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /** Returns the file the store is mapped from. */
+    File file() {
+        return file;
+    }
+
+    /** Returns the number of vertices. */
+    int size() {
+        return numNodes;
+    }
+
+    /**
+     * Returns the number of the vertex with OSM ID <code>id</code>.
+     *
+     * @param id An OSM ID.
+     * @return The vertex number, or -1 if no vertex has that ID.
+     */
+    int indexOf(long id) {
+        int lo = 0;
+        int hi = numNodes - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            long x = sortedIds.get(mid);
+            if (x < id) {
+                lo = mid + 1;
+            } else if (x > id) {
+                hi = mid - 1;
+            } else {
+                return sortedVertex.get(mid);
+            }
+        }
+        return -1;
+    }
+
+    /** Returns the OSM ID of vertex <code>i</code>. */
+    long id(int i) {
+        return ids.get(i);
+    }
+
+    /** Returns the longitude of vertex <code>i</code>. */
+    double lon(int i) {
+        return lons.get(i);
+    }
+
+    /** Returns the latitude of vertex <code>i</code>. */
+    double lat(int i) {
+        return lats.get(i);
+    }
+
+    /** Returns the name handle of vertex <code>i</code>, or <code>NameArena.NONE</code>. */
+    int name(int i) {
+        return names.get(i);
+    }
+
+    /** Returns the number of neighbors of vertex <code>i</code>. */
+    int degree(int i) {
+        return arcStart.get(i + 1) - arcStart.get(i);
+    }
+
+    /** Returns the number of the <code>k</code>-th neighbor of vertex <code>i</code>. */
+    int neighbor(int i, int k) {
+        if (k < 0 || k >= degree(i)) {
+            throw new IndexOutOfBoundsException("Vertex " + i + " has no neighbor " + k);
+        }
+        return arcTarget.get(arcStart.get(i) + k);
+    }
+
+    /** Returns the OSM IDs of every vertex, ascending, read from the file as iterated. */
+    Iterable<Long> ids() {
+        return new AbstractList<Long>() {
+            @Override
+            public Long get(int i) {
+                return sortedIds.get(i);
+            }
+
+            @Override
+            public int size() {
+                return numNodes;
+            }
+        };
+    }
+
+    /** Returns the OSM IDs of the neighbors of vertex <code>i</code>, read as iterated. */
+    Iterable<Long> adjacent(int i) {
+        int from = arcStart.get(i);
+        int to = arcStart.get(i + 1);
+        return () -> new Iterator<Long>() {
+            private int k = from;
+
+            @Override
+            public boolean hasNext() {
+                return k < to;
+            }
+
+            @Override
+            public Long next() {
+                if (k >= to) {
+                    throw new NoSuchElementException();
+                }
+                k += 1;
+                return ids.get(arcTarget.get(k - 1));
+            }
+        };
+    }
+}
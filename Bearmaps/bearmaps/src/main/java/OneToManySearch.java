@@ -0,0 +1,173 @@
+import java.util.Arrays;
+
+/**
+ * Dijkstra searches from single sources to one fixed set of target vertices over the
+ * chain-compressed junction graph, used to fill rows of a distance matrix.
+ * <p>
+ * The targets are prepared once per matrix: each target is attached to the junctions it can be
+ * reached through (itself, or both ends of the chain it lies inside), together with the weight
+ * from that junction to the target. A row search then reads off every target as its junctions
+ * are settled, and stops as soon as all targets are final instead of exploring the whole graph.
+ * Instances are immutable and may be shared by threads computing different rows.
+ */
+class OneToManySearch {
+    private final CompactGraph cg;
+    /** The metric the search minimizes, which ranks routes as the requested metric does. */
+    private final Router.Metric metric;
+    /** Factor from search weights to weights under the requested metric. */
+    private final double scale;
+    private final int bit;
+    /** The weights the targets were attached with; every row searches with the same ones. */
+    private final CompactGraph.Weights weights;
+    private final int[] targets;
+    /** Targets attached to junction j are depTarget[depStart[j]] to depTarget[depStart[j + 1]]. */
+    private final int[] depStart;
+    private final int[] depTarget;
+    /** Weight from the junction to the target for each attachment. */
+    private final double[] depOffset;
+    /** Number of attachments of each target; it is final once that many have been settled. */
+    private final int[] depCount;
+    /** Number of targets with at least one attachment. */
+    private final int numAttached;
+
+    /**
+     * Prepares searches towards <code>targets</code>.
+     *
+     * @param cg      The compact graph to search.
+     * @param targets Vertex indices of the targets; repeats are allowed.
+     * @param metric  The metric to minimize.
+     * @param profile Who is travelling; targets inside chains it may not use are unreachable.
+     */
+    OneToManySearch(CompactGraph cg, int[] targets, Router.Metric metric,
+                    Router.Profile profile) {
+        this.cg = cg;
+        this.metric = profile.searchMetric(metric);
+        this.scale = profile.scale(metric);
+        this.bit = profile.bit();
+        this.targets = targets;
+        this.weights = cg.weights();
+        int mi = this.metric.ordinal();
+        int numJunctions = cg.numJunctions();
+        depStart = new int[numJunctions + 1];
+        depCount = new int[targets.length];
+        int attached = 0;
+        for (int k = 0; k < targets.length; k += 1) {
+            int t = targets[k];
+            int c = cg.vertexChain[t];
+            if (c == CompactGraph.NONE) {
+                depStart[cg.junctionOf[t] + 1] += 1;
+                depCount[k] = 1;
+                attached += 1;
+            } else if ((cg.chainAccess[c] & bit) != 0) {
+                depStart[cg.junctionOf[cg.chainFrom[c]] + 1] += 1;
+                depStart[cg.junctionOf[cg.chainTo[c]] + 1] += 1;
+                depCount[k] = 2;
+                attached += 1;
+            }
+        }
+        numAttached = attached;
+        for (int j = 0; j < numJunctions; j += 1) {
+            depStart[j + 1] += depStart[j];
+        }
+        depTarget = new int[depStart[numJunctions]];
+        depOffset = new double[depTarget.length];
+        int[] fill = Arrays.copyOf(depStart, numJunctions);
+        for (int k = 0; k < targets.length; k += 1) {
+            int t = targets[k];
+            int c = cg.vertexChain[t];
+            if (c == CompactGraph.NONE) {
+                int d = fill[cg.junctionOf[t]]++;
+                depTarget[d] = k;
+                depOffset[d] = 0;
+            } else if (depCount[k] > 0) {
+                double offset = weights.vertexChainOffset[mi][t];
+                int d = fill[cg.junctionOf[cg.chainFrom[c]]]++;
+                depTarget[d] = k;
+                depOffset[d] = offset;
+                d = fill[cg.junctionOf[cg.chainTo[c]]]++;
+                depTarget[d] = k;
+                depOffset[d] = weights.chainWeight[mi][c] - offset;
+            }
+        }
+    }
+
+    /**
+     * Computes the weight of the best path from <code>source</code> to every target.
+     *
+     * @param source The vertex index of the source.
+     * @param out    Receives the weight to target k at <code>out[offset + k]</code>, or
+     *               <code>Float.POSITIVE_INFINITY</code> if it cannot be reached.
+     * @param offset Where this row starts in <code>out</code>.
+     */
+    void run(int source, float[] out, int offset) {
+        int mi = metric.ordinal();
+        double[] arcWeights = weights.jArcWeight[mi];
+        double[] offsets = weights.vertexChainOffset[mi];
+        int numJunctions = cg.numJunctions();
+        double[] dist = new double[numJunctions];
+        Arrays.fill(dist, Double.POSITIVE_INFINITY);
+        boolean[] settled = new boolean[numJunctions];
+        double[] best = new double[targets.length];
+        Arrays.fill(best, Double.POSITIVE_INFINITY);
+        int[] pending = Arrays.copyOf(depCount, depCount.length);
+        int remaining = numAttached;
+
+        /* A target inside the source's own chain can also be reached without leaving it. */
+        int sc = cg.vertexChain[source];
+        boolean allowed = sc == CompactGraph.NONE || (cg.chainAccess[sc] & bit) != 0;
+        for (int k = 0; k < targets.length; k += 1) {
+            if (targets[k] == source) {
+                best[k] = 0;
+            } else if (sc != CompactGraph.NONE && allowed && cg.vertexChain[targets[k]] == sc) {
+                best[k] = Math.abs(offsets[source] - offsets[targets[k]]);
+            }
+        }
+
+        SearchHeap fringe = new SearchHeap(64);
+        if (!allowed) {
+            remaining = 0;
+        } else if (sc == CompactGraph.NONE) {
+            int sj = cg.junctionOf[source];
+            dist[sj] = 0;
+            fringe.push(sj, 0);
+        } else {
+            int fromJ = cg.junctionOf[cg.chainFrom[sc]];
+            int toJ = cg.junctionOf[cg.chainTo[sc]];
+            dist[fromJ] = offsets[source];
+            dist[toJ] = Math.min(dist[toJ], weights.chainWeight[mi][sc] - offsets[source]);
+            fringe.push(fromJ, dist[fromJ]);
+            fringe.push(toJ, dist[toJ]);
+        }
+
+        while (remaining > 0 && !fringe.isEmpty()) {
+            int j = fringe.pop();
+            if (settled[j]) {
+                continue;
+            }
+            settled[j] = true;
+            double d = dist[j];
+            for (int e = depStart[j]; e < depStart[j + 1]; e += 1) {
+                int k = depTarget[e];
+                best[k] = Math.min(best[k], d + depOffset[e]);
+                pending[k] -= 1;
+                if (pending[k] == 0) {
+                    remaining -= 1;
+                }
+            }
+            for (int a = cg.jArcStart[j]; a < cg.jArcStart[j + 1]; a += 1) {
+                if ((cg.chainAccess[cg.jArcChain[a] >> 1] & bit) == 0) {
+                    continue;
+                }
+                int w = cg.jArcTarget[a];
+                double nd = d + arcWeights[a];
+                if (!settled[w] && nd < dist[w]) {
+                    dist[w] = nd;
+                    fringe.push(w, nd);
+                }
+            }
+        }
+        for (int k = 0; k < targets.length; k += 1) {
+            out[offset + k] = (float) (best[k] * scale);
+        }
+    }
+}
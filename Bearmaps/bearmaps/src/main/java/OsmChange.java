@@ -0,0 +1,162 @@
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * The nodes and ways of an OSM change file (<code>.osc</code>), as published by the OSM
+ * replication feeds and written by osmosis and osmium, for <code>GraphDB.withChanges</code>.
+ * <p>
+ * Each element is kept once, as the last of its versions in the file left it. Creating and
+ * modifying are not told apart: either way the file gives the whole element, which replaces
+ * any the graph has. Deleting an element is kept as its ID alone. Relations are skipped, as
+ * they are when a map is loaded.
+ *
+ * @source https://wiki.openstreetmap.org/wiki/OsmChange
+ */
+class OsmChange extends DefaultHandler {
+    /** A node as the change file leaves it. */
+    static class NodeChange {
+        final long id;
+        final boolean deleted;
+        final double lat, lon;
+        /** Keys and values of the node's tags, alternately; empty if deleted. */
+        final List<String> tags = new ArrayList<>();
+
+        NodeChange(long id, boolean deleted, double lat, double lon) {
+            this.id = id;
+            this.deleted = deleted;
+            this.lat = lat;
+            this.lon = lon;
+        }
+    }
+
+    /** A way as the change file leaves it. */
+    static class WayChange {
+        final long id;
+        final boolean deleted;
+        /** The OSM IDs of the way's nodes, in order; empty if deleted. */
+        final List<Long> refs = new ArrayList<>();
+        /** Keys and values of the way's tags, alternately; empty if deleted. */
+        final List<String> tags = new ArrayList<>();
+
+        WayChange(long id, boolean deleted) {
+            this.id = id;
+            this.deleted = deleted;
+        }
+    }
+
+    private final LinkedHashMap<Long, NodeChange> nodes = new LinkedHashMap<>();
+    private final LinkedHashMap<Long, WayChange> ways = new LinkedHashMap<>();
+    /** Whether elements being read are deleted, by the section they are in. */
+    private boolean deleting;
+    private NodeChange node;
+    private WayChange way;
+
+    /**
+     * Reads a change file.
+     *
+     * @param file The file, which may be compressed with gzip or bzip2.
+     * @return Its changes.
+     * @throws IOException If the file cannot be read or is not well-formed XML.
+     */
+    static OsmChange read(File file) throws IOException {
+        try (InputStream in = DecompressingInput.open(file)) {
+            return read(in);
+        }
+    }
+
+    /**
+     * Reads a change file from a stream, which is left open.
+     *
+     * @param in The XML of the change file.
+     * @return Its changes.
+     * @throws IOException If the stream cannot be read or is not well-formed XML.
+     */
+    static OsmChange read(InputStream in) throws IOException {
+        OsmChange change = new OsmChange();
+        try {
+            SAXParserFactory.newInstance().newSAXParser().parse(in, change);
+        } catch (ParserConfigurationException | SAXException | NumberFormatException e) {
+            throw new IOException("Cannot read change file", e);
+        }
+        return change;
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName,
+                             Attributes attributes) {
+        switch (qName) {
+            case "create":
+            case "modify":
+                deleting = false;
+                break;
+            case "delete":
+                deleting = true;
+                break;
+            case "node":
+                /* Deleted nodes need not say where they were. */
+                String lat = attributes.getValue("lat");
+                String lon = attributes.getValue("lon");
+                node = new NodeChange(Long.parseLong(attributes.getValue("id")), deleting,
+                        lat == null ? 0 : Double.parseDouble(lat),
+                        lon == null ? 0 : Double.parseDouble(lon));
+                /* A later version of an element goes after the others. */
+                nodes.remove(node.id);
+                nodes.put(node.id, node);
+                break;
+            case "way":
+                way = new WayChange(Long.parseLong(attributes.getValue("id")), deleting);
+                ways.remove(way.id);
+                ways.put(way.id, way);
+                break;
+            case "nd":
+                if (way != null && !way.deleted) {
+                    way.refs.add(Long.parseLong(attributes.getValue("ref")));
+                }
+                break;
+            case "tag":
+                List<String> tags = node != null ? node.tags : way != null ? way.tags : null;
+                if (tags != null && !deleting) {
+                    tags.add(attributes.getValue("k"));
+                    tags.add(attributes.getValue("v"));
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) {
+        if (qName.equals("node")) {
+            node = null;
+        } else if (qName.equals("way")) {
+            way = null;
+        }
+    }
+
+    /** Returns the changed nodes, each once, in the order of their last versions in the file. */
+    Collection<NodeChange> nodes() {
+        return nodes.values();
+    }
+
+    /** Returns the changed ways, each once, in the order of their last versions in the file. */
+    Collection<WayChange> ways() {
+        return ways.values();
+    }
+
+    /** Returns the number of nodes and ways the file changes. */
+    int size() {
+        return nodes.size() + ways.size();
+    }
+}
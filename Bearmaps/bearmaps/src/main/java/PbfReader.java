@@ -0,0 +1,476 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads OSM PBF files, the binary alternative to OSM XML, into a graph.
+ * <p>
+ * A PBF file is a sequence of blobs, each a zlib-compressed Protocol Buffers message of a few
+ * thousand nodes or ways with their own table of strings. Blobs are read from the file in
+ * order on the calling thread and handed to a <code>ForkJoinPool</code>, whose threads
+ * inflate and decode them into flat arrays. The calling thread then feeds each decoded block
+ * to a <code>GraphBuildingHandler</code> in file order, through the same entity methods the
+ * XML parser uses, so both formats build the same graph. Decoding runs a bounded number of
+ * blocks ahead, so memory stays proportional to the number of threads rather than to the
+ * file.
+ * <p>
+ * Nodes may be stored one message each or as dense nodes, whose ids, coordinates and tags are
+ * packed in parallel arrays with ids and coordinates delta-coded; both are read. Relations and
+ * metadata are skipped.
+ *
+ * @source https://wiki.openstreetmap.org/wiki/PBF_Format
+ */
+class PbfReader {
+    /** Largest blob header and blob, in bytes, that the format allows. */
+    private static final int MAX_HEADER_BYTES = 64 * 1024;
+    private static final int MAX_BLOB_BYTES = 32 * 1024 * 1024;
+    /** Features a file may require that this reader supports. */
+    private static final Set<String> SUPPORTED_FEATURES = Set.of("OsmSchema-V0.6", "DenseNodes");
+    /** Blocks decoded ahead of the one being added, per thread of the pool. */
+    private static final int BLOCKS_AHEAD_PER_THREAD = 2;
+    /** Nanodegrees per unit of a raw coordinate unless a block says otherwise. */
+    private static final int DEFAULT_GRANULARITY = 100;
+
+    /**
+     * Reads a PBF file, feeding its nodes and ways to <code>handler</code> in file order.
+     *
+     * @param file    The file.
+     * @param handler The handler building the graph.
+     * @param pool    The threads that decode blocks.
+     * @throws IOException If the file cannot be read, is malformed, or requires a feature this
+     *                     reader does not support.
+     */
+    static void read(File file, GraphBuildingHandler handler, ForkJoinPool pool)
+            throws IOException {
+        read(file, pool, block -> block.addTo(handler));
+    }
+
+    /**
+     * Reads a PBF file, handing its decoded blocks to <code>sink</code> in file order on the
+     * calling thread.
+     *
+     * @param file The file.
+     * @param pool The threads that decode blocks.
+     * @param sink Takes each block.
+     * @throws IOException If the file cannot be read, is malformed, or requires a feature this
+     *                     reader does not support.
+     */
+    static void read(File file, ForkJoinPool pool, Consumer<Block> sink) throws IOException {
+        int maxAhead = BLOCKS_AHEAD_PER_THREAD * pool.getParallelism();
+        ArrayDeque<CompletableFuture<Block>> ahead = new ArrayDeque<>();
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            while (true) {
+                int headerLength;
+                try {
+                    headerLength = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (headerLength < 0 || headerLength > MAX_HEADER_BYTES) {
+                    throw new IOException("Bad blob header length " + headerLength);
+                }
+                byte[] header = new byte[headerLength];
+                in.readFully(header);
+                String type = null;
+                long dataSize = -1;
+                ProtoReader h = new ProtoReader(header);
+                for (int field = h.next(); field != 0; field = h.next()) {
+                    if (field == 1) {
+                        type = h.string();
+                    } else if (field == 3) {
+                        dataSize = h.varint();
+                    } else {
+                        h.skip();
+                    }
+                }
+                if (type == null || dataSize < 0 || dataSize > MAX_BLOB_BYTES) {
+                    throw new IOException("Bad blob header in " + file);
+                }
+                byte[] blob = new byte[(int) dataSize];
+                in.readFully(blob);
+                if (type.equals("OSMHeader")) {
+                    checkHeader(inflate(blob));
+                } else if (type.equals("OSMData")) {
+                    ahead.add(CompletableFuture.supplyAsync(() -> {
+                        try {
+                            return decode(inflate(blob));
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }, pool));
+                    if (ahead.size() >= maxAhead) {
+                        sink.accept(join(ahead.poll()));
+                    }
+                }
+                /* Blobs of other types may be skipped, as the format says. */
+            }
+            while (!ahead.isEmpty()) {
+                sink.accept(join(ahead.poll()));
+            }
+        }
+    }
+
+    /** Waits for a block, rethrowing the exception that decoding it threw, if any. */
+    private static Block join(CompletableFuture<Block> future) throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw e;
+        }
+    }
+
+    /** Returns the message a blob holds, inflating it if it is compressed. */
+    private static byte[] inflate(byte[] blob) throws IOException {
+        ProtoReader r = new ProtoReader(blob);
+        long rawSize = -1;
+        byte[] zlib = null;
+        for (int field = r.next(); field != 0; field = r.next()) {
+            if (field == 1) {
+                return r.bytes();
+            } else if (field == 2) {
+                rawSize = r.varint();
+            } else if (field == 3) {
+                zlib = r.bytes();
+            } else if (field >= 4 && field <= 7) {
+                throw new IOException("Unsupported blob compression, field " + field);
+            } else {
+                r.skip();
+            }
+        }
+        if (zlib == null || rawSize < 0 || rawSize > MAX_BLOB_BYTES) {
+            throw new IOException("Blob has no data");
+        }
+        byte[] out = new byte[(int) rawSize];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(zlib);
+            int n = 0;
+            while (n < out.length && !inflater.finished()) {
+                int got = inflater.inflate(out, n, out.length - n);
+                if (got == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                n += got;
+            }
+            if (n != out.length) {
+                throw new IOException("Blob inflated to " + n + " bytes, not " + rawSize);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt blob", e);
+        } finally {
+            inflater.end();
+        }
+        return out;
+    }
+
+    /** Rejects a file whose header requires a feature this reader does not support. */
+    private static void checkHeader(byte[] headerBlock) throws IOException {
+        ProtoReader r = new ProtoReader(headerBlock);
+        for (int field = r.next(); field != 0; field = r.next()) {
+            if (field == 4) {
+                String feature = r.string();
+                if (!SUPPORTED_FEATURES.contains(feature)) {
+                    throw new IOException("Unsupported PBF feature " + feature);
+                }
+            } else {
+                r.skip();
+            }
+        }
+    }
+
+    /**
+     * Decodes a primitive block into its nodes and ways. The coordinate granularity and
+     * offsets come after the groups in the message, so groups are decoded once they are read.
+     */
+    static Block decode(byte[] data) throws IOException {
+        ProtoReader r = new ProtoReader(data);
+        String[] strings = new String[0];
+        List<ProtoReader> groups = new ArrayList<>();
+        long granularity = DEFAULT_GRANULARITY;
+        long latOffset = 0;
+        long lonOffset = 0;
+        for (int field = r.next(); field != 0; field = r.next()) {
+            if (field == 1) {
+                strings = strings(r.message());
+            } else if (field == 2) {
+                groups.add(r.message());
+            } else if (field == 17) {
+                granularity = r.varint();
+            } else if (field == 19) {
+                latOffset = r.varint();
+            } else if (field == 20) {
+                lonOffset = r.varint();
+            } else {
+                r.skip();
+            }
+        }
+        Block block = new Block(strings, granularity, latOffset, lonOffset);
+        for (ProtoReader group : groups) {
+            for (int field = group.next(); field != 0; field = group.next()) {
+                if (field == 1) {
+                    block.node(group.message());
+                } else if (field == 2) {
+                    block.denseNodes(group.message());
+                } else if (field == 3) {
+                    block.way(group.message());
+                } else {
+                    group.skip();
+                }
+            }
+        }
+        return block;
+    }
+
+    private static String[] strings(ProtoReader table) throws IOException {
+        List<String> strings = new ArrayList<>();
+        for (int field = table.next(); field != 0; field = table.next()) {
+            if (field == 1) {
+                strings.add(table.string());
+            } else {
+                table.skip();
+            }
+        }
+        return strings.toArray(new String[0]);
+    }
+
+    /**
+     * The nodes and ways of one primitive block as flat arrays, with tags as pairs of indexes
+     * into the block's strings.
+     */
+    static class Block {
+        private final String[] strings;
+        private final long granularity, latOffset, lonOffset;
+        private int numNodes;
+        private long[] nodeIds = new long[16];
+        private double[] nodeLats = new double[16];
+        private double[] nodeLons = new double[16];
+        /** Tags of node i are nodeTags[2 * nodeTagEnd[i - 1]] up to 2 * nodeTagEnd[i]. */
+        private int[] nodeTagEnd = new int[16];
+        private int[] nodeTags = new int[16];
+        private int numWays;
+        private long[] wayIds = new long[16];
+        /** Nodes of way i are wayRefs[wayRefEnd[i - 1]] up to wayRefEnd[i]. */
+        private int[] wayRefEnd = new int[16];
+        private long[] wayRefs = new long[16];
+        private int[] wayTagEnd = new int[16];
+        private int[] wayTags = new int[16];
+
+        Block(String[] strings, long granularity, long latOffset, long lonOffset) {
+            this.strings = strings;
+            this.granularity = granularity;
+            this.latOffset = latOffset;
+            this.lonOffset = lonOffset;
+        }
+
+        /** Returns the number of nodes in the block. */
+        int numNodes() {
+            return numNodes;
+        }
+
+        /** Returns the number of ways in the block. */
+        int numWays() {
+            return numWays;
+        }
+
+        /** Converts a raw coordinate to degrees; dividing keeps decimal values exact. */
+        private double degrees(long offset, long raw) {
+            return (offset + granularity * raw) / 1e9;
+        }
+
+        private void addNode(long id, long rawLat, long rawLon) {
+            if (numNodes == nodeIds.length) {
+                nodeIds = Arrays.copyOf(nodeIds, 2 * numNodes);
+                nodeLats = Arrays.copyOf(nodeLats, 2 * numNodes);
+                nodeLons = Arrays.copyOf(nodeLons, 2 * numNodes);
+                nodeTagEnd = Arrays.copyOf(nodeTagEnd, 2 * numNodes);
+            }
+            nodeIds[numNodes] = id;
+            nodeLats[numNodes] = degrees(latOffset, rawLat);
+            nodeLons[numNodes] = degrees(lonOffset, rawLon);
+            nodeTagEnd[numNodes] = numNodes == 0 ? 0 : nodeTagEnd[numNodes - 1];
+            numNodes += 1;
+        }
+
+        private void addNodeTag(long k, long v) throws IOException {
+            int end = nodeTagEnd[numNodes - 1];
+            if (2 * end + 2 > nodeTags.length) {
+                nodeTags = Arrays.copyOf(nodeTags, 2 * nodeTags.length);
+            }
+            nodeTags[2 * end] = stringIndex(k);
+            nodeTags[2 * end + 1] = stringIndex(v);
+            nodeTagEnd[numNodes - 1] = end + 1;
+        }
+
+        private int stringIndex(long i) throws IOException {
+            if (i < 0 || i >= strings.length) {
+                throw new IOException("String index " + i + " out of range");
+            }
+            return (int) i;
+        }
+
+        /** Decodes a node stored as a message of its own. */
+        void node(ProtoReader r) throws IOException {
+            long id = 0;
+            long lat = 0;
+            long lon = 0;
+            ProtoReader keys = null;
+            ProtoReader vals = null;
+            for (int field = r.next(); field != 0; field = r.next()) {
+                if (field == 1) {
+                    id = r.sint();
+                } else if (field == 2) {
+                    keys = r.packed();
+                } else if (field == 3) {
+                    vals = r.packed();
+                } else if (field == 8) {
+                    lat = r.sint();
+                } else if (field == 9) {
+                    lon = r.sint();
+                } else {
+                    r.skip();
+                }
+            }
+            addNode(id, lat, lon);
+            while (keys != null && vals != null && keys.hasMore() && vals.hasMore()) {
+                addNodeTag(keys.varint(), vals.varint());
+            }
+        }
+
+        /**
+         * Decodes dense nodes: parallel packed arrays of delta-coded ids, latitudes and
+         * longitudes, and one array of every node's keys and values, each node's ended by 0.
+         */
+        void denseNodes(ProtoReader r) throws IOException {
+            ProtoReader ids = null;
+            ProtoReader lats = null;
+            ProtoReader lons = null;
+            ProtoReader keysVals = null;
+            for (int field = r.next(); field != 0; field = r.next()) {
+                if (field == 1) {
+                    ids = r.packed();
+                } else if (field == 8) {
+                    lats = r.packed();
+                } else if (field == 9) {
+                    lons = r.packed();
+                } else if (field == 10) {
+                    keysVals = r.packed();
+                } else {
+                    r.skip();
+                }
+            }
+            if (ids == null) {
+                return;
+            }
+            if (lats == null || lons == null) {
+                throw new IOException("Dense nodes without coordinates");
+            }
+            long id = 0;
+            long lat = 0;
+            long lon = 0;
+            while (ids.hasMore()) {
+                id += ids.sint();
+                lat += lats.sint();
+                lon += lons.sint();
+                addNode(id, lat, lon);
+                while (keysVals != null && keysVals.hasMore()) {
+                    long k = keysVals.varint();
+                    if (k == 0) {
+                        break;
+                    }
+                    addNodeTag(k, keysVals.varint());
+                }
+            }
+        }
+
+        /** Decodes a way: its id, tags and delta-coded node ids. */
+        void way(ProtoReader r) throws IOException {
+            long id = 0;
+            ProtoReader keys = null;
+            ProtoReader vals = null;
+            ProtoReader refs = null;
+            for (int field = r.next(); field != 0; field = r.next()) {
+                if (field == 1) {
+                    id = r.varint();
+                } else if (field == 2) {
+                    keys = r.packed();
+                } else if (field == 3) {
+                    vals = r.packed();
+                } else if (field == 8) {
+                    refs = r.packed();
+                } else {
+                    r.skip();
+                }
+            }
+            if (numWays == wayIds.length) {
+                wayIds = Arrays.copyOf(wayIds, 2 * numWays);
+                wayRefEnd = Arrays.copyOf(wayRefEnd, 2 * numWays);
+                wayTagEnd = Arrays.copyOf(wayTagEnd, 2 * numWays);
+            }
+            int refEnd = numWays == 0 ? 0 : wayRefEnd[numWays - 1];
+            int tagEnd = numWays == 0 ? 0 : wayTagEnd[numWays - 1];
+            long ref = 0;
+            while (refs != null && refs.hasMore()) {
+                ref += refs.sint();
+                if (refEnd == wayRefs.length) {
+                    wayRefs = Arrays.copyOf(wayRefs, 2 * refEnd);
+                }
+                wayRefs[refEnd] = ref;
+                refEnd += 1;
+            }
+            while (keys != null && vals != null && keys.hasMore() && vals.hasMore()) {
+                if (2 * tagEnd + 2 > wayTags.length) {
+                    wayTags = Arrays.copyOf(wayTags, 2 * wayTags.length);
+                }
+                wayTags[2 * tagEnd] = stringIndex(keys.varint());
+                wayTags[2 * tagEnd + 1] = stringIndex(vals.varint());
+                tagEnd += 1;
+            }
+            wayIds[numWays] = id;
+            wayRefEnd[numWays] = refEnd;
+            wayTagEnd[numWays] = tagEnd;
+            numWays += 1;
+        }
+
+        /** Feeds the block's nodes and then its ways to a handler. */
+        void addTo(GraphBuildingHandler handler) {
+            int tag = 0;
+            for (int i = 0; i < numNodes; i += 1) {
+                handler.node(nodeIds[i], nodeLats[i], nodeLons[i]);
+                for (; tag < nodeTagEnd[i]; tag += 1) {
+                    handler.nodeTag(strings[nodeTags[2 * tag]], strings[nodeTags[2 * tag + 1]]);
+                }
+            }
+            int ref = 0;
+            tag = 0;
+            for (int i = 0; i < numWays; i += 1) {
+                handler.startWay(wayIds[i]);
+                for (; ref < wayRefEnd[i]; ref += 1) {
+                    handler.wayNode(wayRefs[ref]);
+                }
+                for (; tag < wayTagEnd[i]; tag += 1) {
+                    handler.wayTag(strings[wayTags[2 * tag]], strings[wayTags[2 * tag + 1]]);
+                }
+                handler.endWay();
+            }
+        }
+    }
+}
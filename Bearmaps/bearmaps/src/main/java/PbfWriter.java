@@ -0,0 +1,317 @@
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * Converts OSM XML to OSM PBF, as read by <code>PbfReader</code>, so a map can be given in
+ * either format: nodes are written as dense nodes and ways with their tags and node IDs, a
+ * few thousand to a zlib-compressed block. Relations and metadata are dropped, since the
+ * graph does not use them.
+ *
+ * @source https://wiki.openstreetmap.org/wiki/PBF_Format
+ */
+class PbfWriter extends DefaultHandler {
+    /** Nodes or ways per block; the format suggests at most 8000. */
+    private static final int ENTITIES_PER_BLOCK = 8000;
+    /** Nanodegrees per unit of a raw coordinate, enough for the 7 decimals OSM keeps. */
+    private static final int GRANULARITY = 100;
+
+    private final DataOutputStream out;
+    /** Strings of the block being collected, each once, by index; index 0 is "". */
+    private final HashMap<String, Integer> stringIndex = new HashMap<>();
+    private final List<String> strings = new ArrayList<>();
+    private int numNodes;
+    private long[] nodeIds = new long[ENTITIES_PER_BLOCK];
+    private long[] nodeLats = new long[ENTITIES_PER_BLOCK];
+    private long[] nodeLons = new long[ENTITIES_PER_BLOCK];
+    /** Keys and values of each node, each node's ended by 0, as dense nodes store them. */
+    private int[] keysVals = new int[64];
+    private int numKeysVals;
+    private final List<Message> ways = new ArrayList<>();
+    /** The element whose tags are being read: "node", "way" or something ignored. */
+    private String active = "";
+    private long wayId;
+    private final List<Long> wayRefs = new ArrayList<>();
+    private final List<String> wayTags = new ArrayList<>();
+
+    private PbfWriter(DataOutputStream out) {
+        this.out = out;
+        clearStrings();
+    }
+
+    /**
+     * Converts an OSM XML file to PBF.
+     *
+     * @param xml The OSM XML file, which may be compressed with gzip or bzip2.
+     * @param pbf The PBF file to write, replaced if it exists.
+     * @throws IOException If either file cannot be accessed or the XML is malformed.
+     */
+    static void convert(File xml, File pbf) throws IOException {
+        try (InputStream in = DecompressingInput.open(xml);
+             DataOutputStream out = new DataOutputStream(
+                     new BufferedOutputStream(new FileOutputStream(pbf), 1 << 16))) {
+            PbfWriter writer = new PbfWriter(out);
+            writer.writeHeader();
+            SAXParserFactory.newInstance().newSAXParser().parse(in, writer);
+            writer.flush();
+        } catch (ParserConfigurationException | SAXException e) {
+            throw new IOException("Cannot convert " + xml, e);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName,
+                             Attributes attributes) {
+        if (qName.equals("node")) {
+            if (!ways.isEmpty() || numNodes == ENTITIES_PER_BLOCK) {
+                flush();
+            }
+            active = qName;
+            nodeIds[numNodes] = Long.parseLong(attributes.getValue("id"));
+            nodeLats[numNodes] = raw(Double.parseDouble(attributes.getValue("lat")));
+            nodeLons[numNodes] = raw(Double.parseDouble(attributes.getValue("lon")));
+            numNodes += 1;
+        } else if (qName.equals("way")) {
+            if (numNodes > 0 || ways.size() == ENTITIES_PER_BLOCK) {
+                flush();
+            }
+            active = qName;
+            wayId = Long.parseLong(attributes.getValue("id"));
+            wayRefs.clear();
+            wayTags.clear();
+        } else if (qName.equals("nd") && active.equals("way")) {
+            wayRefs.add(Long.parseLong(attributes.getValue("ref")));
+        } else if (qName.equals("tag") && active.equals("node")) {
+            addKeyVal(string(attributes.getValue("k")));
+            addKeyVal(string(attributes.getValue("v")));
+        } else if (qName.equals("tag") && active.equals("way")) {
+            wayTags.add(attributes.getValue("k"));
+            wayTags.add(attributes.getValue("v"));
+        } else if (!qName.equals("nd") && !qName.equals("tag")) {
+            active = "";
+        }
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) {
+        if (qName.equals("node")) {
+            addKeyVal(0);
+            active = "";
+        } else if (qName.equals("way")) {
+            Message way = new Message();
+            way.varint(1, wayId);
+            int[] keys = new int[wayTags.size() / 2];
+            int[] vals = new int[keys.length];
+            for (int i = 0; i < keys.length; i += 1) {
+                keys[i] = string(wayTags.get(2 * i));
+                vals[i] = string(wayTags.get(2 * i + 1));
+            }
+            way.packed(2, keys, keys.length);
+            way.packed(3, vals, vals.length);
+            long[] refs = new long[wayRefs.size()];
+            for (int i = 0; i < refs.length; i += 1) {
+                refs[i] = wayRefs.get(i);
+            }
+            way.packedDeltas(8, refs, refs.length);
+            ways.add(way);
+            active = "";
+        }
+    }
+
+    private static long raw(double degrees) {
+        return Math.round(degrees * 1e9 / GRANULARITY);
+    }
+
+    private void addKeyVal(int s) {
+        if (numKeysVals == keysVals.length) {
+            keysVals = Arrays.copyOf(keysVals, 2 * numKeysVals);
+        }
+        keysVals[numKeysVals] = s;
+        numKeysVals += 1;
+    }
+
+    private int string(String s) {
+        Integer i = stringIndex.get(s);
+        if (i == null) {
+            i = strings.size();
+            stringIndex.put(s, i);
+            strings.add(s);
+        }
+        return i;
+    }
+
+    private void clearStrings() {
+        stringIndex.clear();
+        strings.clear();
+        string("");
+    }
+
+    private void writeHeader() throws IOException {
+        Message header = new Message();
+        header.string(4, "OsmSchema-V0.6");
+        header.string(4, "DenseNodes");
+        header.string(16, "bearmaps");
+        writeBlob("OSMHeader", header);
+    }
+
+    /** Writes the nodes or ways collected so far as one block. */
+    private void flush() {
+        if (numNodes == 0 && ways.isEmpty()) {
+            return;
+        }
+        Message group = new Message();
+        if (numNodes > 0) {
+            Message dense = new Message();
+            dense.packedDeltas(1, nodeIds, numNodes);
+            dense.packedDeltas(8, nodeLats, numNodes);
+            dense.packedDeltas(9, nodeLons, numNodes);
+            dense.packed(10, keysVals, numKeysVals);
+            group.message(2, dense);
+        }
+        for (Message way : ways) {
+            group.message(3, way);
+        }
+        Message table = new Message();
+        for (String s : strings) {
+            table.string(1, s);
+        }
+        Message block = new Message();
+        block.message(1, table);
+        block.message(2, group);
+        block.varint(17, GRANULARITY);
+        try {
+            writeBlob("OSMData", block);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        numNodes = 0;
+        numKeysVals = 0;
+        ways.clear();
+        clearStrings();
+    }
+
+    /** Writes a message as a zlib-compressed blob, preceded by its header and the length. */
+    private void writeBlob(String type, Message data) throws IOException {
+        Deflater deflater = new Deflater();
+        deflater.setInput(data.buf, 0, data.size);
+        deflater.finish();
+        byte[] zlib = new byte[data.size + 64];
+        int zlibSize = 0;
+        while (!deflater.finished()) {
+            if (zlibSize == zlib.length) {
+                zlib = Arrays.copyOf(zlib, 2 * zlib.length);
+            }
+            zlibSize += deflater.deflate(zlib, zlibSize, zlib.length - zlibSize);
+        }
+        deflater.end();
+        Message blob = new Message();
+        blob.varint(2, data.size);
+        blob.bytes(3, zlib, zlibSize);
+        Message header = new Message();
+        header.string(1, type);
+        header.varint(3, blob.size);
+        out.writeInt(header.size);
+        out.write(header.buf, 0, header.size);
+        out.write(blob.buf, 0, blob.size);
+    }
+
+    /** A Protocol Buffers message being written, the counterpart of <code>ProtoReader</code>. */
+    private static class Message {
+        private byte[] buf = new byte[64];
+        private int size;
+
+        private void ensure(int more) {
+            if (size + more > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(2 * buf.length, size + more));
+            }
+        }
+
+        private void raw(long v) {
+            ensure(10);
+            while ((v & ~0x7fL) != 0) {
+                buf[size] = (byte) ((v & 0x7f) | 0x80);
+                size += 1;
+                v >>>= 7;
+            }
+            buf[size] = (byte) v;
+            size += 1;
+        }
+
+        private void key(int field, int wireType) {
+            raw((long) field << 3 | wireType);
+        }
+
+        void varint(int field, long v) {
+            key(field, ProtoReader.VARINT);
+            raw(v);
+        }
+
+        void bytes(int field, byte[] b, int length) {
+            key(field, ProtoReader.LENGTH_DELIMITED);
+            raw(length);
+            ensure(length);
+            System.arraycopy(b, 0, buf, size, length);
+            size += length;
+        }
+
+        void string(int field, String s) {
+            byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+            bytes(field, utf8, utf8.length);
+        }
+
+        void message(int field, Message m) {
+            bytes(field, m.buf, m.size);
+        }
+
+        /** Writes the first <code>n</code> values as a packed repeated varint field. */
+        void packed(int field, int[] values, int n) {
+            Message m = new Message();
+            for (int i = 0; i < n; i += 1) {
+                m.raw(values[i]);
+            }
+            message(field, m);
+        }
+
+        /** Writes the differences of the first <code>n</code> values as packed sint64. */
+        void packedDeltas(int field, long[] values, int n) {
+            Message m = new Message();
+            long previous = 0;
+            for (int i = 0; i < n; i += 1) {
+                long delta = values[i] - previous;
+                m.raw((delta << 1) ^ (delta >> 63));
+                previous = values[i];
+            }
+            message(field, m);
+        }
+    }
+
+    /**
+     * Converts an OSM XML file to PBF.
+     * Usage: <code>PbfWriter osm-xml-file output-pbf-file</code>.
+     */
+    public static void main(String[] args) throws IOException {
+        long start = System.nanoTime();
+        convert(new File(args[0]), new File(args[1]));
+        System.out.printf("Converted %d bytes of XML to %d bytes of PBF in %.0f ms.%n",
+                new File(args[0]).length(), new File(args[1]).length(),
+                (System.nanoTime() - start) / 1e6);
+    }
+}
@@ -0,0 +1,152 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Finds the location names whose cleaned form starts with a cleaned prefix.
+ * <p>
+ * Names are sorted by cleaned form, so the names matching a prefix are one contiguous range,
+ * found by binary search and copied out. Autocomplete asks for the same few short prefixes
+ * over and over, and those match the most names, so the results of every prefix of up to
+ * <code>HOT_PREFIX_LENGTH</code> characters are computed once when the index is built. Each
+ * is a view of its range of the sorted name handles rather than a copy, decoding names only
+ * as they are read, so the cache holds at most <code>HOT_PREFIX_LENGTH</code> small objects
+ * per name and at most one per possible prefix. Longer prefixes are compared with the cleaned
+ * forms stored in the <code>NameArena</code>, without cleaning or decoding any name.
+ * Instances are immutable.
+ */
+class PrefixIndex {
+    /** Results of prefixes up to this many characters long are precomputed. */
+    static final int HOT_PREFIX_LENGTH = 3;
+    /** Names copied between checks for cancellation. */
+    private static final int CANCEL_CHECK_INTERVAL = 1024;
+
+    private final NameArena arena;
+    /** Handles of full names, ordered by cleaned name and then by full name. */
+    private final int[] names;
+    /** Handles of the cleaned form of each name. */
+    private final int[] cleaned;
+    /** Results of each short cleaned prefix that some name starts with. */
+    private final HashMap<String, List<String>> hot = new HashMap<>();
+
+    /**
+     * Indexes names for prefix search, storing them in an arena of its own.
+     *
+     * @param fullNames The names; each one is returned as given.
+     */
+    PrefixIndex(List<String> fullNames) {
+        this(new NameArena(), fullNames);
+    }
+
+    private PrefixIndex(NameArena arena, List<String> fullNames) {
+        this(arena, arena.internAll(fullNames));
+    }
+
+    /**
+     * Indexes interned names for prefix search and precomputes the results of short prefixes.
+     *
+     * @param arena     The arena the names are interned in.
+     * @param fullNames The handles of the names; each name is returned as interned.
+     */
+    PrefixIndex(NameArena arena, int[] fullNames) {
+        this.arena = arena;
+        int n = fullNames.length;
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i += 1) {
+            order[i] = fullNames[i];
+        }
+        Arrays.sort(order, (a, b) -> {
+            int c = arena.compare(arena.cleaned(a), arena.cleaned(b));
+            return c != 0 ? c : arena.compare(a, b);
+        });
+        names = new int[n];
+        cleaned = new int[n];
+        for (int i = 0; i < n; i += 1) {
+            names[i] = order[i];
+            cleaned[i] = arena.cleaned(order[i]);
+        }
+
+        for (int length = 1; length <= HOT_PREFIX_LENGTH; length += 1) {
+            int start = 0;
+            while (start < n) {
+                if (arena.length(cleaned[start]) < length) {
+                    start += 1;
+                    continue;
+                }
+                byte[] prefix = new byte[length];
+                for (int j = 0; j < length; j += 1) {
+                    prefix[j] = arena.byteAt(cleaned[start], j);
+                }
+                int end = start + 1;
+                while (end < n && arena.startsWith(cleaned[end], prefix)) {
+                    end += 1;
+                }
+                hot.put(new String(prefix, StandardCharsets.US_ASCII),
+                        arena.view(names, start, end));
+                start = end;
+            }
+        }
+    }
+
+    /**
+     * Returns the names whose cleaned form starts with the cleaned prefix, ordered by cleaned
+     * name. Short prefixes are answered from the precomputed results.
+     *
+     * @param prefix    The prefix, in any case and with or without punctuation, or null.
+     * @param cancelled Checked now and then while copying out a long list of names; once it
+     *                  returns true the search stops and returns what it has so far.
+     * @return The full names, in a list the caller must not modify.
+     */
+    List<String> search(String prefix, BooleanSupplier cancelled) {
+        String p = prefix == null ? "" : GraphDB.cleanString(prefix);
+        if (p.isEmpty()) {
+            return Collections.emptyList();
+        }
+        if (p.length() <= HOT_PREFIX_LENGTH) {
+            return hot.getOrDefault(p, Collections.emptyList());
+        }
+        return copyRange(p, cancelled);
+    }
+
+    /**
+     * Returns a copy of the names whose cleaned form starts with <code>p</code>, which must
+     * be clean, without looking at the precomputed results.
+     */
+    List<String> copyRange(String p, BooleanSupplier cancelled) {
+        byte[] prefix = p.getBytes(StandardCharsets.US_ASCII);
+        int start = lowerBound(prefix);
+        List<String> result = new ArrayList<>();
+        for (int i = start; i < names.length && arena.startsWith(cleaned[i], prefix); i += 1) {
+            if ((i - start) % CANCEL_CHECK_INTERVAL == CANCEL_CHECK_INTERVAL - 1
+                    && cancelled.getAsBoolean()) {
+                break;
+            }
+            result.add(arena.get(names[i]));
+        }
+        return result;
+    }
+
+    /** Returns the first position whose cleaned name is not less than <code>p</code>. */
+    private int lowerBound(byte[] p) {
+        int lo = 0;
+        int hi = cleaned.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (arena.compare(cleaned[mid], p) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /** Returns the number of precomputed prefixes. */
+    int numHotPrefixes() {
+        return hot.size();
+    }
+}
@@ -0,0 +1,159 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads the fields of one Protocol Buffers message from a range of a byte array, as the
+ * OSM PBF format needs: varints, zigzag-coded signed varints, length-delimited fields and
+ * packed repeated numbers. Fields are read in the order they appear, and callers skip the
+ * ones they do not know.
+ *
+ * @source https://protobuf.dev/programming-guides/encoding/
+ */
+class ProtoReader {
+    static final int VARINT = 0;
+    static final int FIXED64 = 1;
+    static final int LENGTH_DELIMITED = 2;
+    static final int FIXED32 = 5;
+
+    private final byte[] buf;
+    private int pos;
+    private final int limit;
+    /** Wire type of the field whose key was read last. */
+    private int wireType;
+
+    /**
+     * Reads the message in <code>buf[from]</code> up to <code>buf[to]</code>.
+     *
+     * @param buf  The bytes.
+     * @param from The offset of the first byte of the message.
+     * @param to   The offset after its last byte.
+     */
+    ProtoReader(byte[] buf, int from, int to) {
+        this.buf = buf;
+        this.pos = from;
+        this.limit = to;
+    }
+
+    /** Reads a whole array as one message. */
+    ProtoReader(byte[] buf) {
+        this(buf, 0, buf.length);
+    }
+
+    /**
+     * Reads the key of the next field.
+     *
+     * @return The field number, or 0 at the end of the message.
+     * @throws IOException If the message is truncated.
+     */
+    int next() throws IOException {
+        if (pos >= limit) {
+            return 0;
+        }
+        long key = varint();
+        wireType = (int) (key & 7);
+        return (int) (key >>> 3);
+    }
+
+    /** Reads a varint, as used for int32, int64, uint32, uint64, bool and enum fields. */
+    long varint() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (pos >= limit) {
+                throw new IOException("Truncated varint");
+            }
+            byte b = buf[pos];
+            pos += 1;
+            value |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    /** Reads a zigzag-coded varint, as used for sint32 and sint64 fields. */
+    long sint() throws IOException {
+        long v = varint();
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    /** Reads the length of a length-delimited field and returns the offset after its value. */
+    private int delimited() throws IOException {
+        long length = varint();
+        if (length < 0 || length > limit - pos) {
+            throw new IOException("Truncated field");
+        }
+        return pos + (int) length;
+    }
+
+    /** Reads a length-delimited field as a message. */
+    ProtoReader message() throws IOException {
+        int end = delimited();
+        ProtoReader inner = new ProtoReader(buf, pos, end);
+        pos = end;
+        return inner;
+    }
+
+    /** Reads a length-delimited field as UTF-8 text. */
+    String string() throws IOException {
+        int end = delimited();
+        String s = new String(buf, pos, end - pos, StandardCharsets.UTF_8);
+        pos = end;
+        return s;
+    }
+
+    /** Reads a length-delimited field as a copy of its bytes. */
+    byte[] bytes() throws IOException {
+        int end = delimited();
+        byte[] b = Arrays.copyOfRange(buf, pos, end);
+        pos = end;
+        return b;
+    }
+
+    /**
+     * Reads a packed repeated field, returning a reader whose <code>varint</code> or
+     * <code>sint</code> calls return its values in turn while <code>hasMore</code> holds. A
+     * repeated field that was not packed gives its one value the same way.
+     */
+    ProtoReader packed() throws IOException {
+        if (wireType == LENGTH_DELIMITED) {
+            return message();
+        }
+        int from = pos;
+        varint();
+        return new ProtoReader(buf, from, pos);
+    }
+
+    /** Returns whether any bytes of the message are left to read. */
+    boolean hasMore() {
+        return pos < limit;
+    }
+
+    /** Skips the value of the field whose key was read last. */
+    void skip() throws IOException {
+        switch (wireType) {
+            case VARINT:
+                varint();
+                break;
+            case FIXED64:
+                skipBytes(8);
+                break;
+            case LENGTH_DELIMITED:
+                pos = delimited();
+                break;
+            case FIXED32:
+                skipBytes(4);
+                break;
+            default:
+                throw new IOException("Unsupported wire type " + wireType);
+        }
+    }
+
+    private void skipBytes(int n) throws IOException {
+        if (n > limit - pos) {
+            throw new IOException("Truncated field");
+        }
+        pos += n;
+    }
+}
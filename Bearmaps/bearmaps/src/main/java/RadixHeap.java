@@ -0,0 +1,97 @@
+import java.util.Arrays;
+
+/**
+ * A monotone radix heap of <code>int</code> items keyed by non-negative <code>double</code>
+ * priorities. The bit patterns of non-negative doubles sort the same way as their values, so
+ * the priorities are bucketed by the highest bit in which they differ from the last popped
+ * priority. Every item moves to a lower bucket at most 64 times, and no comparisons between
+ * items are needed except when a bucket is emptied.
+ * <p>
+ * Like Dijkstra's algorithm itself, the heap requires that a pushed priority is never smaller
+ * than the last popped one.
+ */
+class RadixHeap {
+    private static final int NUM_BUCKETS = 65;
+
+    private final long[][] keys = new long[NUM_BUCKETS][];
+    private final int[][] items = new int[NUM_BUCKETS][];
+    private final int[] sizes = new int[NUM_BUCKETS];
+    private long last;
+    private int size;
+
+    RadixHeap() {
+        for (int b = 0; b < NUM_BUCKETS; b += 1) {
+            keys[b] = new long[4];
+            items[b] = new int[4];
+        }
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /** Removes every item and resets the last popped priority to 0, keeping the buckets. */
+    void clear() {
+        Arrays.fill(sizes, 0);
+        size = 0;
+        last = 0;
+    }
+
+    /**
+     * Adds <code>item</code> with priority <code>key</code>, which must be at least the last
+     * popped priority.
+     */
+    void push(int item, double key) {
+        long bits = Double.doubleToRawLongBits(key);
+        append(bucket(bits), bits, item);
+        size += 1;
+    }
+
+    /**
+     * Removes and returns an item with the smallest priority. The heap must not be empty.
+     *
+     * @return The removed item; its priority is then available from <code>lastKey</code>.
+     */
+    int pop() {
+        if (sizes[0] == 0) {
+            int b = 1;
+            while (sizes[b] == 0) {
+                b += 1;
+            }
+            long min = keys[b][0];
+            for (int i = 1; i < sizes[b]; i += 1) {
+                min = Math.min(min, keys[b][i]);
+            }
+            last = min;
+            int count = sizes[b];
+            sizes[b] = 0;
+            for (int i = 0; i < count; i += 1) {
+                long k = keys[b][i];
+                append(bucket(k), k, items[b][i]);
+            }
+        }
+        size -= 1;
+        sizes[0] -= 1;
+        return items[0][sizes[0]];
+    }
+
+    /** Returns the priority of the most recently popped item. */
+    double lastKey() {
+        return Double.longBitsToDouble(last);
+    }
+
+    private int bucket(long bits) {
+        return bits == last ? 0 : 64 - Long.numberOfLeadingZeros(bits ^ last);
+    }
+
+    private void append(int b, long key, int item) {
+        int n = sizes[b];
+        if (n == keys[b].length) {
+            keys[b] = Arrays.copyOf(keys[b], n * 2);
+            items[b] = Arrays.copyOf(items[b], n * 2);
+        }
+        keys[b][n] = key;
+        items[b][n] = item;
+        sizes[b] = n + 1;
+    }
+}
@@ -0,0 +1,166 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Finds the named way and the named location closest to a coordinate, fast enough to run on
+ * every map click or GPS fix.
+ * <p>
+ * Each segment between consecutive nodes of a named way goes into one
+ * <code>SegmentGrid</code>, and every named location into another as a segment of length
+ * zero. Names stay in the graph's <code>NameArena</code>, referred to by the handles the ways
+ * and locations already have, rather than as one <code>String</code> per segment. A lookup
+ * scans a few grid cells and decodes only the name it returns. Instances are immutable and
+ * built once per graph.
+ */
+class ReverseGeocoder {
+    /** Segments or locations per grid cell to aim for. */
+    private static final double PER_CELL = 2;
+
+    /** A named way or location found near a coordinate, for serialization by Gson. */
+    static class Match {
+        /** The OSM ID of the way or node. */
+        final long id;
+        final String name;
+        /** The closest point of the way, or the location itself. */
+        final double lon, lat;
+        /** How far that point is from the coordinate looked up, in miles. */
+        final double distance;
+
+        Match(long id, String name, double lon, double lat, double distance) {
+            this.id = id;
+            this.name = name;
+            this.lon = lon;
+            this.lat = lat;
+            this.distance = distance;
+        }
+    }
+
+    private final NameArena names;
+    private final SegmentGrid ways;
+    /** OSM ID of the k-th named way. */
+    private final long[] wayIDs;
+    /** Name handle of the k-th named way. */
+    private final int[] wayNames;
+    /** Index of the named way each segment belongs to. */
+    private final int[] segmentWay;
+    private final SegmentGrid locations;
+    private final long[] locationIDs;
+    private final double[] locationLons, locationLats;
+    private final int[] locationNames;
+
+    /**
+     * Indexes the named ways and named locations of a graph.
+     *
+     * @param g The graph, already cleaned.
+     */
+    ReverseGeocoder(GraphDB g) {
+        names = g.getNames();
+        List<Long> ids = new ArrayList<>();
+        int numSegments = 0;
+        for (int w = 0; w < g.numWays(); w += 1) {
+            GraphDB.Way way = g.way(w);
+            if (way.name != NameArena.NONE && way.nodes.size() > 1) {
+                ids.add(way.id);
+                numSegments += way.nodes.size() - 1;
+            }
+        }
+        wayIDs = new long[ids.size()];
+        wayNames = new int[ids.size()];
+        segmentWay = new int[numSegments];
+        double[] coords = new double[4 * numSegments];
+        int k = 0;
+        int s = 0;
+        for (int w = 0; w < g.numWays(); w += 1) {
+            GraphDB.Way way = g.way(w);
+            if (way.name == NameArena.NONE || way.nodes.size() < 2) {
+                continue;
+            }
+            wayIDs[k] = way.id;
+            wayNames[k] = way.name;
+            double prevX = 0;
+            double prevY = 0;
+            for (int i = 0; i < way.nodes.size(); i += 1) {
+                long v = way.nodes.get(i);
+                double x = GraphDB.projectToX(g.lon(v), g.lat(v));
+                double y = GraphDB.projectToY(g.lon(v), g.lat(v));
+                if (i > 0) {
+                    coords[4 * s] = prevX;
+                    coords[4 * s + 1] = prevY;
+                    coords[4 * s + 2] = x;
+                    coords[4 * s + 3] = y;
+                    segmentWay[s] = k;
+                    s += 1;
+                }
+                prevX = x;
+                prevY = y;
+            }
+            k += 1;
+        }
+        ways = new SegmentGrid(coords, numSegments, PER_CELL);
+
+        List<GraphDB.Node> named = g.namedLocations();
+        int n = named.size();
+        locationIDs = new long[n];
+        locationLons = new double[n];
+        locationLats = new double[n];
+        locationNames = new int[n];
+        double[] points = new double[4 * n];
+        for (int i = 0; i < n; i += 1) {
+            GraphDB.Node node = named.get(i);
+            locationIDs[i] = node.id;
+            locationLons[i] = node.lon;
+            locationLats[i] = node.lat;
+            locationNames[i] = node.name;
+            points[4 * i] = GraphDB.projectToX(node.lon, node.lat);
+            points[4 * i + 1] = GraphDB.projectToY(node.lon, node.lat);
+            points[4 * i + 2] = points[4 * i];
+            points[4 * i + 3] = points[4 * i + 1];
+        }
+        locations = new SegmentGrid(points, n, PER_CELL);
+    }
+
+    /**
+     * Returns the named way closest to a coordinate, with the closest point on it.
+     *
+     * @param lon The longitude of the coordinate.
+     * @param lat The latitude of the coordinate.
+     * @return The closest named way, or null if the map has none.
+     */
+    Match nearestWay(double lon, double lat) {
+        double x = GraphDB.projectToX(lon, lat);
+        double y = GraphDB.projectToY(lon, lat);
+        int s = ways.nearest(x, y);
+        if (s < 0) {
+            return null;
+        }
+        double[] point = ways.closestPoint(s, x, y);
+        int k = segmentWay[s];
+        return new Match(wayIDs[k], names.get(wayNames[k]),
+                GraphDB.unprojectLon(point[0], point[1]), GraphDB.unprojectLat(point[0], point[1]),
+                ways.distance(s, x, y) * GraphDB.R);
+    }
+
+    /**
+     * Returns the named location closest to a coordinate.
+     *
+     * @param lon The longitude of the coordinate.
+     * @param lat The latitude of the coordinate.
+     * @return The closest named location, or null if the map has none.
+     */
+    Match nearestLocation(double lon, double lat) {
+        double x = GraphDB.projectToX(lon, lat);
+        double y = GraphDB.projectToY(lon, lat);
+        int i = locations.nearest(x, y);
+        if (i < 0) {
+            return null;
+        }
+        return new Match(locationIDs[i], names.get(locationNames[i]), locationLons[i],
+                locationLats[i], locations.distance(i, x, y) * GraphDB.R);
+    }
+
+    /** Returns the bytes the indexes take, not counting object headers or the shared names. */
+    long bytes() {
+        return ways.bytes() + locations.bytes() + 12L * wayIDs.length
+                + 4L * segmentWay.length + 28L * locationIDs.length;
+    }
+}
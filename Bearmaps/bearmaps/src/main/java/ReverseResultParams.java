@@ -0,0 +1,22 @@
+/**
+ * The ReverseResultParams contains the named way and the named location closest to a
+ * coordinate, found by ReverseGeocoder, for serialization by Gson.
+ *
+ * The fields in this class cannot be accessed as it is only used to serialize results in MapServer.
+ */
+class ReverseResultParams {
+    /** The closest named way and the closest point on it, or null if the map has none. */
+    private final ReverseGeocoder.Match way;
+    /** The closest named location, or null if the map has none. */
+    private final ReverseGeocoder.Match location;
+
+    /**
+     * Constructs a ReverseResultParams.
+     * @param way The closest named way, or null.
+     * @param location The closest named location, or null.
+     */
+    ReverseResultParams(ReverseGeocoder.Match way, ReverseGeocoder.Match location) {
+        this.way = way;
+        this.location = location;
+    }
+}
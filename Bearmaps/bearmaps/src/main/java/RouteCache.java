@@ -0,0 +1,304 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, thread-safe least-recently-used cache in front of <code>Router.shortestPath</code>.
+ * Routes are keyed by the snapped start and destination vertices, the profile, the metric
+ * the profile searches with and the version of its weights, so every request that snaps to
+ * the same pair of vertices shares one entry until the weights change. Paths are stored as
+ * <code>int[]</code> vertex indices into the graph's <code>CompactGraph</code>.
+ * <p>
+ * Concurrent misses on the same key are single-flighted: the first caller computes the route
+ * and the rest wait for its result. The cache holds routes of one graph version at a time. It
+ * drops every entry the first time it is asked about a newer graph, as after a reload, and
+ * requests still running on an older graph are answered without their routes being kept.
+ */
+public class RouteCache {
+    /** Approximate bytes used by one entry besides its path: key, map entry and array header. */
+    private static final long ENTRY_OVERHEAD_BYTES = 96;
+
+    private final int maxEntries;
+    private final long maxBytes;
+    /** Completed routes, in access order so the eldest entry is the least recently used. */
+    private final LinkedHashMap<Key, int[]> entries;
+    /** Routes currently being computed, so concurrent misses on a key wait for one search. */
+    private final ConcurrentHashMap<Key, CompletableFuture<int[]>> loading;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    /** Version of the graph the cached routes belong to; guarded by <code>entries</code>. */
+    private long graphVersion;
+    /** Bumped on every invalidation so loads started earlier are not stored. */
+    private long generation;
+    private long bytes;
+
+    /**
+     * Creates an empty route cache.
+     *
+     * @param maxEntries The most routes to keep.
+     * @param maxBytes   The most bytes of estimated memory the kept routes may use.
+     */
+    public RouteCache(int maxEntries, long maxBytes) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+        this.loading = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Returns the best route between two coordinates, snapping both with
+     * <code>g.closest</code> and computing the route only if it is not already cached.
+     *
+     * @param g       <code>GraphDB</code> data source.
+     * @param stlon   The longitude of the starting coordinate.
+     * @param stlat   The latitude of the starting coordinate.
+     * @param destlon The longitude of the destination coordinate.
+     * @param destlat The latitude of the destination coordinate.
+     * @param metric  Whether to minimize distance or travel time.
+     * @return The <code>List</code> of vertex IDs along the route.
+     */
+    public List<Long> shortestPath(GraphDB g, double stlon, double stlat,
+                                   double destlon, double destlat, Router.Metric metric) {
+        return shortestPath(g, stlon, stlat, destlon, destlat, metric, Router.Profile.DRIVE);
+    }
+
+    /**
+     * Returns the best route for <code>profile</code> between two coordinates, snapping both
+     * to vertices the profile may use and computing the route only if it is not cached.
+     *
+     * @param profile Who is travelling.
+     * @return The <code>List</code> of vertex IDs along the route.
+     */
+    public List<Long> shortestPath(GraphDB g, double stlon, double stlat,
+                                   double destlon, double destlat, Router.Metric metric,
+                                   Router.Profile profile) {
+        return shortestPath(g, g.closest(stlon, stlat, profile),
+                g.closest(destlon, destlat, profile), metric, profile);
+    }
+
+    /**
+     * Returns the best route between two vertices, computing it only if it is not cached.
+     *
+     * @param g      <code>GraphDB</code> data source.
+     * @param stID   The ID of the starting vertex.
+     * @param destID The ID of the destination vertex.
+     * @param metric Whether to minimize distance or travel time.
+     * @return The <code>List</code> of vertex IDs along the route.
+     */
+    public List<Long> shortestPath(GraphDB g, long stID, long destID, Router.Metric metric) {
+        return shortestPath(g, stID, destID, metric, Router.Profile.DRIVE);
+    }
+
+    /**
+     * Returns the best route for <code>profile</code> between two vertices, computing it only
+     * if it is not cached.
+     *
+     * @param profile Who is travelling.
+     * @return The <code>List</code> of vertex IDs along the route.
+     */
+    public List<Long> shortestPath(GraphDB g, long stID, long destID, Router.Metric metric,
+                                   Router.Profile profile) {
+        Router.Metric search = profile.searchMetric(metric);
+        Key key = new Key(stID, destID, search, profile, g.version(),
+                g.getCompactGraph().weights().version(search));
+        long startGeneration;
+        synchronized (entries) {
+            if (g.version() > graphVersion) {
+                clear();
+                graphVersion = g.version();
+            }
+            startGeneration = generation;
+            int[] path = entries.get(key);
+            if (path != null) {
+                hits.incrementAndGet();
+                return expand(g, path);
+            }
+        }
+        misses.incrementAndGet();
+
+        CompletableFuture<int[]> mine = new CompletableFuture<>();
+        CompletableFuture<int[]> theirs = loading.putIfAbsent(key, mine);
+        if (theirs != null) {
+            return expand(g, theirs.join());
+        }
+        try {
+            int[] path = compress(g, Router.shortestPath(g, stID, destID, metric, profile,
+                    null));
+            mine.complete(path);
+            store(key, path, startGeneration);
+            return expand(g, path);
+        } catch (RuntimeException e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(key, mine);
+        }
+    }
+
+    /** Drops every cached route, for example after the graph has been reloaded. */
+    public void invalidate() {
+        synchronized (entries) {
+            clear();
+        }
+    }
+
+    /** Returns the number of lookups answered from the cache. */
+    public long hits() {
+        return hits.get();
+    }
+
+    /** Returns the number of lookups that had to compute or wait for a route. */
+    public long misses() {
+        return misses.get();
+    }
+
+    /** Returns the fraction of lookups answered from the cache, or 0 before any lookup. */
+    public double hitRate() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0.0 : (double) h / total;
+    }
+
+    /** Returns the number of routes currently cached. */
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /** Returns the estimated number of bytes used by the cached routes. */
+    public long memoryBytes() {
+        synchronized (entries) {
+            return bytes;
+        }
+    }
+
+    /** Returns a snapshot of the cache statistics, ready for serialization by Gson. */
+    public Stats stats() {
+        synchronized (entries) {
+            return new Stats(hits.get(), misses.get(), evictions.get(), hitRate(),
+                    entries.size(), bytes);
+        }
+    }
+
+    /**
+     * Stores a computed path unless it is for an older graph or the cache was invalidated
+     * while it was being computed.
+     */
+    private void store(Key key, int[] path, long startGeneration) {
+        synchronized (entries) {
+            if (key.graphVersion != graphVersion || generation != startGeneration) {
+                return;
+            }
+            int[] old = entries.put(key, path);
+            if (old != null) {
+                bytes -= entryBytes(old);
+            }
+            bytes += entryBytes(path);
+            while (!entries.isEmpty() && (entries.size() > maxEntries || bytes > maxBytes)) {
+                Map.Entry<Key, int[]> eldest = entries.entrySet().iterator().next();
+                bytes -= entryBytes(eldest.getValue());
+                entries.remove(eldest.getKey());
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /** Empties the cache. The caller must hold the lock on <code>entries</code>. */
+    private void clear() {
+        entries.clear();
+        bytes = 0;
+        generation += 1;
+    }
+
+    private static long entryBytes(int[] path) {
+        return ENTRY_OVERHEAD_BYTES + 4L * path.length;
+    }
+
+    /** Converts a route of vertex IDs into vertex indices of the graph's compact form. */
+    private static int[] compress(GraphDB g, List<Long> route) {
+        CompactGraph cg = g.getCompactGraph();
+        int[] path = new int[route.size()];
+        for (int i = 0; i < path.length; i += 1) {
+            path[i] = cg.indexOf(route.get(i));
+        }
+        return path;
+    }
+
+    /** Converts vertex indices back into a fresh, caller-owned list of vertex IDs. */
+    private static List<Long> expand(GraphDB g, int[] path) {
+        CompactGraph cg = g.getCompactGraph();
+        List<Long> route = new ArrayList<>(path.length);
+        for (int v : path) {
+            route.add(cg.id(v));
+        }
+        return route;
+    }
+
+    /**
+     * A cache key: the snapped start and destination vertices, the metric searched, the
+     * profile and the versions of the graph and its weights, so routes computed before a
+     * reload or a weight change are never served after it, and a request on an older graph
+     * never waits for a route of a newer one.
+     */
+    private static final class Key {
+        private final long start;
+        private final long dest;
+        private final Router.Metric metric;
+        private final Router.Profile profile;
+        private final long graphVersion;
+        private final long version;
+
+        private Key(long start, long dest, Router.Metric metric, Router.Profile profile,
+                    long graphVersion, long version) {
+            this.start = start;
+            this.dest = dest;
+            this.metric = metric;
+            this.profile = profile;
+            this.graphVersion = graphVersion;
+            this.version = version;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return start == k.start && dest == k.dest && metric == k.metric
+                    && profile == k.profile && graphVersion == k.graphVersion
+                    && version == k.version;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(start, dest, metric, profile, graphVersion, version);
+        }
+    }
+
+    /** A snapshot of the cache statistics. */
+    static class Stats {
+        final long hits;
+        final long misses;
+        final long evictions;
+        final double hitRate;
+        final int entries;
+        final long memoryBytes;
+
+        Stats(long hits, long misses, long evictions, double hitRate, int entries,
+              long memoryBytes) {
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.hitRate = hitRate;
+            this.entries = entries;
+            this.memoryBytes = memoryBytes;
+        }
+    }
+}
@@ -1,3 +1,7 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -19,6 +23,24 @@ public class RouteRequestParams {
     public final double endLat;
     /** The end point longitude. */
     public final double endLon;
+    /** Whether the route should minimize distance or travel time. */
+    public final Router.Metric metric;
+    /** Who is travelling: a driver, a cyclist or a pedestrian. */
+    public final Router.Profile profile;
+    /** OSM ids of closed ways the route must not use. */
+    public final long[] avoidWays;
+    /**
+     * Areas the route must stay out of, each a polygon given as alternating longitudes and
+     * latitudes of its corners.
+     */
+    public final List<double[]> avoidAreas;
+    /** How many alternative routes to return besides the best one. */
+    public final int alternatives;
+    /**
+     * Stops to visit between the start and the end, in any order, as alternating longitudes
+     * and latitudes.
+     */
+    public final double[] waypoints;
 
     /**
      * Validate and return a parameter map of the required request parameters.
@@ -42,26 +64,159 @@ public class RouteRequestParams {
                 }
             }
         }
+        if (req.containsKey("metric")) {
+            try {
+                builder.setMetric(Router.Metric.valueOf(req.get("metric")[0].toUpperCase()));
+            } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+                throw new IllegalArgumentException("Incorrect parameters: unknown metric.");
+            }
+        }
+        if (req.containsKey("profile")) {
+            try {
+                builder.setProfile(Router.Profile.valueOf(req.get("profile")[0].toUpperCase()));
+            } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+                throw new IllegalArgumentException("Incorrect parameters: unknown profile.");
+            }
+        }
+        if (req.containsKey("alternatives")) {
+            try {
+                builder.setAlternatives(Integer.parseInt(req.get("alternatives")[0]));
+            } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+                throw new IllegalArgumentException(
+                        "Incorrect parameters: unable to parse alternatives.");
+            }
+        }
+        if (req.containsKey("waypoints")) {
+            double[] waypoints = parseWaypoints(req.get("waypoints"));
+            for (int i = 0; i < waypoints.length; i += 2) {
+                builder.addWaypoint(waypoints[i], waypoints[i + 1]);
+            }
+        }
+        if (req.containsKey("avoid_ways")) {
+            builder.setAvoidWays(parseWays(req.get("avoid_ways")));
+        }
+        if (req.containsKey("avoid_areas")) {
+            for (double[] area : parseAreas(req.get("avoid_areas"))) {
+                builder.addAvoidArea(area);
+            }
+        }
         return builder.create();
     }
 
+    /** Parses comma-separated way ids such as "1122,224666". */
+    private static long[] parseWays(String[] values) {
+        try {
+            String value = values[0].trim();
+            if (value.isEmpty()) {
+                return new long[0];
+            }
+            String[] parts = value.split(",");
+            long[] ways = new long[parts.length];
+            for (int i = 0; i < parts.length; i += 1) {
+                ways[i] = Long.parseLong(parts[i].trim());
+            }
+            return ways;
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            throw new IllegalArgumentException("Incorrect parameters: unable to parse avoid_ways.");
+        }
+    }
+
+    /**
+     * Parses polygons written as "lon,lat;lon,lat;lon,lat", with several polygons separated
+     * by "|".
+     */
+    private static List<double[]> parseAreas(String[] values) {
+        List<double[]> areas = new ArrayList<>();
+        try {
+            for (String polygon : values[0].split("\\|")) {
+                if (polygon.trim().isEmpty()) {
+                    continue;
+                }
+                String[] corners = polygon.split(";");
+                double[] area = new double[2 * corners.length];
+                for (int i = 0; i < corners.length; i += 1) {
+                    String[] lonLat = corners[i].split(",");
+                    if (lonLat.length != 2) {
+                        throw new NumberFormatException(corners[i]);
+                    }
+                    area[2 * i] = Double.parseDouble(lonLat[0].trim());
+                    area[2 * i + 1] = Double.parseDouble(lonLat[1].trim());
+                }
+                areas.add(area);
+            }
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            throw new IllegalArgumentException(
+                    "Incorrect parameters: unable to parse avoid_areas.");
+        }
+        return areas;
+    }
+
+    /** Parses stops written as "lon,lat;lon,lat". */
+    private static double[] parseWaypoints(String[] values) {
+        try {
+            String value = values[0].trim();
+            if (value.isEmpty()) {
+                return new double[0];
+            }
+            String[] stops = value.split(";");
+            double[] waypoints = new double[2 * stops.length];
+            for (int i = 0; i < stops.length; i += 1) {
+                String[] lonLat = stops[i].split(",");
+                if (lonLat.length != 2) {
+                    throw new NumberFormatException(stops[i]);
+                }
+                waypoints[2 * i] = Double.parseDouble(lonLat[0].trim());
+                waypoints[2 * i + 1] = Double.parseDouble(lonLat[1].trim());
+            }
+            return waypoints;
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            throw new IllegalArgumentException("Incorrect parameters: unable to parse waypoints.");
+        }
+    }
+
+    /** Returns whether the request avoids any way or area. */
+    public boolean hasAvoid() {
+        return avoidWays.length > 0 || !avoidAreas.isEmpty();
+    }
+
+    /** Returns whether the request has stops to visit between its start and end. */
+    public boolean hasWaypoints() {
+        return waypoints.length > 0;
+    }
+
     /**
      * Constructor with private access to prevent direct instantiation of a RasterResultParams
      * instance. Use the the factory method, from, instead.
      */
     private RouteRequestParams() {
-        this(0.0, 0.0, 0.0, 0.0);
+        this(0.0, 0.0, 0.0, 0.0, Router.Metric.DISTANCE, Router.Profile.DRIVE, new long[0],
+                Collections.emptyList(), 0, new double[0]);
     }
 
-    private RouteRequestParams(double startLat, double startLon, double endLat, double endLon) {
+    private RouteRequestParams(double startLat, double startLon, double endLat, double endLon,
+                               Router.Metric metric, Router.Profile profile, long[] avoidWays,
+                               List<double[]> avoidAreas, int alternatives,
+                               double[] waypoints) {
         this.startLat = startLat;
         this.startLon = startLon;
         this.endLat = endLat;
         this.endLon = endLon;
+        this.metric = metric;
+        this.profile = profile;
+        this.avoidWays = avoidWays;
+        this.avoidAreas = avoidAreas;
+        this.alternatives = alternatives;
+        this.waypoints = waypoints;
     }
 
     public static class Builder {
         private double startLat, startLon, endLat, endLon;
+        private Router.Metric metric = Router.Metric.DISTANCE;
+        private Router.Profile profile = Router.Profile.DRIVE;
+        private long[] avoidWays = new long[0];
+        private List<double[]> avoidAreas = new ArrayList<>();
+        private int alternatives;
+        private double[] waypoints = new double[0];
 
         /**
          * Creates a RouteRequestParams.Builder instance that can be used to build
@@ -71,7 +226,14 @@ public class RouteRequestParams {
         }
 
         public RouteRequestParams create() {
-            return new RouteRequestParams(startLat, startLon, endLat, endLon);
+            if (waypoints.length > 0 && (alternatives > 0 || avoidWays.length > 0
+                    || !avoidAreas.isEmpty())) {
+                throw new IllegalArgumentException("Incorrect parameters: waypoints cannot be "
+                        + "combined with alternatives or avoids.");
+            }
+            return new RouteRequestParams(startLat, startLon, endLat, endLon, metric, profile,
+                    avoidWays.clone(), Collections.unmodifiableList(new ArrayList<>(avoidAreas)),
+                    alternatives, waypoints.clone());
         }
 
         public Builder setStartLat(double value) {
@@ -94,6 +256,67 @@ public class RouteRequestParams {
             return this;
         }
 
+        public Builder setMetric(Router.Metric value) {
+            this.metric = value;
+            return this;
+        }
+
+        public Builder setProfile(Router.Profile value) {
+            this.profile = value;
+            return this;
+        }
+
+        public Builder setAvoidWays(long... wayIDs) {
+            this.avoidWays = wayIDs.clone();
+            return this;
+        }
+
+        /**
+         * Adds an area to avoid.
+         *
+         * @param lonLats Alternating longitudes and latitudes of at least three corners.
+         */
+        public Builder addAvoidArea(double... lonLats) {
+            if (lonLats.length < 6 || lonLats.length % 2 != 0) {
+                throw new IllegalArgumentException(
+                        "Incorrect parameters: an avoid area needs at least three corners.");
+            }
+            this.avoidAreas.add(lonLats.clone());
+            return this;
+        }
+
+        /**
+         * Sets how many alternative routes to return besides the best one.
+         *
+         * @param value Between 0 and <code>MAX_ALTERNATIVES</code>.
+         */
+        public Builder setAlternatives(int value) {
+            if (value < 0 || value > MAX_ALTERNATIVES) {
+                throw new IllegalArgumentException(String.format(
+                        "Incorrect parameters: alternatives must be between 0 and %d.",
+                        MAX_ALTERNATIVES));
+            }
+            this.alternatives = value;
+            return this;
+        }
+
+        /**
+         * Adds a stop to visit between the start and the end.
+         *
+         * @param lon The longitude of the stop.
+         * @param lat The latitude of the stop.
+         */
+        public Builder addWaypoint(double lon, double lat) {
+            if (waypoints.length == 2 * MAX_WAYPOINTS) {
+                throw new IllegalArgumentException(String.format(
+                        "Incorrect parameters: at most %d waypoints.", MAX_WAYPOINTS));
+            }
+            waypoints = Arrays.copyOf(waypoints, waypoints.length + 2);
+            waypoints[waypoints.length - 2] = lon;
+            waypoints[waypoints.length - 1] = lat;
+            return this;
+        }
+
         private Builder set(String field, double value) {
             switch (field) {
                 case "start_lat":
@@ -116,6 +339,11 @@ public class RouteRequestParams {
         }
     }
 
+    /** The most alternative routes one request may ask for. */
+    public static final int MAX_ALTERNATIVES = 3;
+    /** The most stops one request may visit between its start and end. */
+    public static final int MAX_WAYPOINTS = 25;
+
     /** Route requests to the server must have the following keys in the params map. */
     private static final String[] REQUIRED_PARAMS = {
         "start_lat", "start_lon", "end_lat", "end_lon"
@@ -11,19 +11,33 @@ class RouteResultParams {
     private final boolean routingSuccess;
     /** The HTML-friendly String representation of the navigation directions. */
     private final String directions;
+    /**
+     * The HTML-friendly directions of each alternative route, or null when none were asked for.
+     */
+    private final String[] alternatives;
+    /**
+     * The order the waypoints are visited in, as indices into the request's waypoints, or null
+     * when the request had none.
+     */
+    private final int[] waypointOrder;
 
     /** Private constructor to prevent direct instantiation of a RouteResultParams instance. */
     private RouteResultParams() {
-        this(false, "");
+        this(false, "", null, null);
     }
 
     /**
      * Constructs a RouteResultParams instance and sets the routingSuccess and distance fields.
      * @param routingSuccess The routingSuccess field.
      * @param directions The directions field.
+     * @param alternatives The alternatives field.
+     * @param waypointOrder The waypointOrder field.
      */
-    RouteResultParams(boolean routingSuccess, String directions) {
+    RouteResultParams(boolean routingSuccess, String directions, String[] alternatives,
+                      int[] waypointOrder) {
         this.routingSuccess = routingSuccess;
         this.directions = directions;
+        this.alternatives = alternatives;
+        this.waypointOrder = waypointOrder;
     }
 }
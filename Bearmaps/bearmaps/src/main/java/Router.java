@@ -1,10 +1,10 @@
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.LinkedList;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Objects;
-import java.util.PriorityQueue;
+import java.util.stream.IntStream;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -27,84 +27,488 @@ public class Router {
     public static List<Long> shortestPath(GraphDB g,
                                           double stlon, double stlat,
                                           double destlon, double destlat) {
-        // ODO
-
-        //find the closest nodes for st and dest (kdtree)
-        //do A* search from st node to dest node
-        //getting our nodes
-        long stID = g.closest(stlon, stlat);
-        long destID = g.closest(destlon, destlat);
-        //GraphDB.Node stNode = g.getNodeMap().get(stID);
-        //GraphDB.Node destNode = g.getNodeMap().get(destID);
-
-        HashMap<Long, Double> distanceFromStart = new HashMap<>();
-        //heuristic doesn't change after this
-        HashMap<Long, Double> heuristicDisttoDest = new HashMap<>();
-        for (long id : g.getNodeMap().keySet()) {
-            heuristicDisttoDest.put(id, g.distance(id, destID));
-        }
-        LinkedList<Long> toRtn = new LinkedList<>();
-        //fringe with access to comparator
-        PriorityQueue<Long> fringe = new PriorityQueue<>(g.getNodeMap().size(),
-            (o1, o2) -> Double.compare((distanceFromStart.get(o1) + heuristicDisttoDest.get(o1)),
-                    (distanceFromStart.get(o2) + heuristicDisttoDest.get(o2))));
-        //for our completed
-        HashSet<Long> visited = new HashSet();
-        //initialize
-        for (long id : g.getNodeMap().keySet()) {
-            distanceFromStart.put(id, Double.MAX_VALUE);
-
-        }
-        fringe.add(stID);
-        distanceFromStart.put(stID, 0.000);
-        HashMap<Long, Long> predecessorVertex = new HashMap<>();
+        return shortestPath(g, stlon, stlat, destlon, destlat, Metric.DISTANCE);
+    }
 
-        while (!fringe.isEmpty()) {
+    /**
+     * Return a <code>List</code> of vertex IDs corresponding to the best path from a given
+     * starting coordinate and destination coordinate under the given metric.
+     *
+     * @param g       <code>GraphDB</code> data source.
+     * @param stlon   The longitude of the starting coordinate.
+     * @param stlat   The latitude of the starting coordinate.
+     * @param destlon The longitude of the destination coordinate.
+     * @param destlat The latitude of the destination coordinate.
+     * @param metric  Whether to minimize distance or travel time.
+     * @return The <code>List</code> of vertex IDs corresponding to the best path.
+     */
+    public static List<Long> shortestPath(GraphDB g,
+                                          double stlon, double stlat,
+                                          double destlon, double destlat, Metric metric) {
+        return shortestPath(g, stlon, stlat, destlon, destlat, metric, Profile.DRIVE);
+    }
+
+    /**
+     * Return a <code>List</code> of vertex IDs corresponding to the best path for
+     * <code>profile</code> from a given starting coordinate and destination coordinate. Both
+     * coordinates snap to the closest vertex the profile may use.
+     *
+     * @param g       <code>GraphDB</code> data source.
+     * @param stlon   The longitude of the starting coordinate.
+     * @param stlat   The latitude of the starting coordinate.
+     * @param destlon The longitude of the destination coordinate.
+     * @param destlat The latitude of the destination coordinate.
+     * @param metric  Whether to minimize distance or travel time.
+     * @param profile Who is travelling.
+     * @return The <code>List</code> of vertex IDs corresponding to the best path.
+     */
+    public static List<Long> shortestPath(GraphDB g,
+                                          double stlon, double stlat,
+                                          double destlon, double destlat, Metric metric,
+                                          Profile profile) {
+        long stID = g.closest(stlon, stlat, profile);
+        long destID = g.closest(destlon, destlat, profile);
+        return shortestPath(g, stID, destID, metric, profile, null);
+    }
 
-            long currVertex = fringe.poll();
+    /**
+     * Return a <code>List</code> of vertex IDs corresponding to the best path from a given
+     * starting coordinate and destination coordinate that stays off the closed ways and out of
+     * the areas given in <code>params</code>.
+     *
+     * @param g      <code>GraphDB</code> data source.
+     * @param params The route request, including what to avoid.
+     * @return The <code>List</code> of vertex IDs along the route, or an empty list if every
+     * route is blocked.
+     */
+    public static List<Long> shortestPath(GraphDB g, RouteRequestParams params) {
+        long stID = g.closest(params.startLon, params.startLat, params.profile);
+        long destID = g.closest(params.endLon, params.endLat, params.profile);
+        return shortestPath(g, stID, destID, params.metric, params.profile, avoidSet(g, params));
+    }
 
-            if (visited.contains(currVertex)) {
-                continue;
+    /**
+     * Return up to <code>k</code> meaningfully different routes from a given starting
+     * coordinate to a given destination coordinate, the shortest first. Every alternative is
+     * at most <code>AlternativeRoutes.MAX_STRETCH</code> times as long as the shortest route
+     * and shares at most <code>AlternativeRoutes.MAX_SHARING</code> of its length with each
+     * route before it.
+     *
+     * @param g       <code>GraphDB</code> data source.
+     * @param stlon   The longitude of the starting coordinate.
+     * @param stlat   The latitude of the starting coordinate.
+     * @param destlon The longitude of the destination coordinate.
+     * @param destlat The latitude of the destination coordinate.
+     * @param k       The largest number of routes to return, counting the shortest one.
+     * @return The routes as lists of vertex IDs, or an empty list if there is no route.
+     */
+    public static List<List<Long>> alternatives(GraphDB g,
+                                                double stlon, double stlat,
+                                                double destlon, double destlat, int k) {
+        long stID = g.closest(stlon, stlat, Profile.DRIVE);
+        long destID = g.closest(destlon, destlat, Profile.DRIVE);
+        return AlternativeRoutes.find(g, stID, destID, Metric.DISTANCE, Profile.DRIVE, null, k);
+    }
+
+    /**
+     * Return up to <code>k</code> meaningfully different routes for the request in
+     * <code>params</code>, the best first, as in <code>alternatives</code>. All of them use
+     * the request's metric and profile and stay off what it avoids.
+     *
+     * @param g      <code>GraphDB</code> data source.
+     * @param params The route request.
+     * @param k      The largest number of routes to return, counting the best one.
+     * @return The routes as lists of vertex IDs, or an empty list if there is no route.
+     */
+    public static List<List<Long>> alternatives(GraphDB g, RouteRequestParams params, int k) {
+        long stID = g.closest(params.startLon, params.startLat, params.profile);
+        long destID = g.closest(params.endLon, params.endLat, params.profile);
+        return AlternativeRoutes.find(g, stID, destID, params.metric, params.profile,
+                avoidSet(g, params), k);
+    }
+
+    /** Resolves the ways and areas <code>params</code> avoids into this thread's avoid set. */
+    private static AvoidSet avoidSet(GraphDB g, RouteRequestParams params) {
+        AvoidSet avoid = AvoidSet.acquire(g);
+        for (long wayID : params.avoidWays) {
+            avoid.avoidWay(g, wayID);
+        }
+        for (double[] area : params.avoidAreas) {
+            double[] lons = new double[area.length / 2];
+            double[] lats = new double[area.length / 2];
+            for (int i = 0; i < lons.length; i += 1) {
+                lons[i] = area[2 * i];
+                lats[i] = area[2 * i + 1];
             }
-            if (currVertex == destID) {
-                break;
-            } else {
-                visited.add(currVertex);
+            avoid.avoidArea(g, lons, lats);
+        }
+        return avoid;
+    }
+
+    /**
+     * Return a <code>List</code> of vertex IDs corresponding to the shortest path between two
+     * vertices of the graph.
+     * <p>
+     * The A* search runs over the chain-compressed junction graph of
+     * <code>g.getCompactGraph()</code>, so shape points are never pushed onto the fringe. If the
+     * start lies inside a chain, both ends of that chain are seeded; if the destination lies
+     * inside a chain, reaching either end of it yields a candidate route. The search stops once
+     * no entry left in the fringe can beat the best candidate, and the winning route is then
+     * expanded back into every vertex along it.
+     *
+     * @param g      <code>GraphDB</code> data source.
+     * @param stID   The ID of the starting vertex.
+     * @param destID The ID of the destination vertex.
+     * @param metric Whether to minimize distance or travel time.
+     * @return The <code>List</code> of vertex IDs corresponding to the shortest path, or an empty
+     * list if the destination cannot be reached.
+     */
+    static List<Long> shortestPath(GraphDB g, long stID, long destID, Metric metric) {
+        return shortestPath(g, stID, destID, metric, Profile.DRIVE, null);
+    }
+
+    /**
+     * Return the best path between two vertices for <code>profile</code> as in
+     * <code>shortestPath</code>, using no road segment that the profile may not use or that
+     * <code>avoid</code> blocks. Search arcs over such chains are skipped, and the chains
+     * holding the start and destination are only left through unblocked sides.
+     *
+     * @param profile Who is travelling.
+     * @param avoid   What to avoid, or null to use every road.
+     * @return The route, or an empty list if the profile may not use the start or destination,
+     * either is avoided, or every route between them is blocked.
+     */
+    static List<Long> shortestPath(GraphDB g, long stID, long destID, Metric metric,
+                                   Profile profile, AvoidSet avoid) {
+        CompactGraph cg = g.getCompactGraph();
+        int s = cg.indexOf(stID);
+        int t = cg.indexOf(destID);
+        List<Long> path = new ArrayList<>();
+        if (s == CompactGraph.NONE || t == CompactGraph.NONE) {
+            return path;
+        }
+        if (s != t && (!cg.allows(s, profile) || !cg.allows(t, profile))) {
+            return path;
+        }
+        if (avoid != null && avoid.isEmpty()) {
+            avoid = null;
+        }
+        if (avoid != null && (avoid.blocksVertex(s) || avoid.blocksVertex(t))) {
+            return path;
+        }
+        path.add(stID);
+        if (s == t) {
+            return path;
+        }
+
+        int numJunctions = cg.numJunctions();
+        double[] dist = new double[numJunctions];
+        Arrays.fill(dist, Double.POSITIVE_INFINITY);
+        int[] pred = new int[numJunctions];
+        boolean[] settled = new boolean[numJunctions];
+        SearchHeap fringe = new SearchHeap(64);
+        metric = profile.searchMetric(metric);
+        int mi = metric.ordinal();
+        int bit = profile.bit();
+        CompactGraph.Weights cw = cg.weights();
+        double[] weights = cw.jArcWeight[mi];
+        double[] offsets = cw.vertexChainOffset[mi];
+        double tx = cg.unitX[t];
+        double ty = cg.unitY[t];
+        double tz = cg.unitZ[t];
+
+        int sc = cg.vertexChain[s];
+        int tc = cg.vertexChain[t];
+        int tj = cg.junctionOf[t];
+        int tFromJ = CompactGraph.NONE;
+        int tToJ = CompactGraph.NONE;
+        double tFromDist = 0;
+        double tToDist = 0;
+        if (tc != CompactGraph.NONE) {
+            tFromJ = cg.junctionOf[cg.chainFrom[tc]];
+            tToJ = cg.junctionOf[cg.chainTo[tc]];
+            tFromDist = offsets[t];
+            tToDist = cw.chainWeight[mi][tc] - tFromDist;
+            if (avoid != null) {
+                int pos = cg.vertexChainPos[t];
+                if (avoid.blocksChainBetween(tc, 0, pos)) {
+                    tFromJ = CompactGraph.NONE;
+                }
+                if (avoid.blocksChainBetween(tc, pos, cg.chainSize(tc))) {
+                    tToJ = CompactGraph.NONE;
+                }
+            }
+        }
+
+        double best = Double.POSITIVE_INFINITY;
+        int bestJ = CompactGraph.NONE;
+        boolean bestViaFrom = false;
+        boolean direct = false;
+        if (sc != CompactGraph.NONE && sc == tc && (avoid == null || !avoid.blocksChainBetween(
+                sc, cg.vertexChainPos[s], cg.vertexChainPos[t]))) {
+            best = Math.abs(offsets[s] - offsets[t]);
+            direct = true;
+        }
+
+        if (sc == CompactGraph.NONE) {
+            int sj = cg.junctionOf[s];
+            dist[sj] = 0;
+            pred[sj] = SEED_START;
+            fringe.push(sj, cw.lowerBound(s, tx, ty, tz, metric));
+        } else {
+            double toFrom = offsets[s];
+            double toTo = cw.chainWeight[mi][sc] - toFrom;
+            int fromJ = cg.junctionOf[cg.chainFrom[sc]];
+            int toJ = cg.junctionOf[cg.chainTo[sc]];
+            int pos = cg.vertexChainPos[s];
+            if (avoid == null || !avoid.blocksChainBetween(sc, 0, pos)) {
+                dist[fromJ] = toFrom;
+                pred[fromJ] = SEED_CHAIN_FROM;
+                fringe.push(fromJ, toFrom + cw.lowerBound(cg.chainFrom[sc], tx, ty, tz, metric));
+            }
+            if (toTo < dist[toJ]
+                    && (avoid == null || !avoid.blocksChainBetween(sc, pos, cg.chainSize(sc)))) {
+                dist[toJ] = toTo;
+                pred[toJ] = SEED_CHAIN_TO;
+                fringe.push(toJ, toTo + cw.lowerBound(cg.chainTo[sc], tx, ty, tz, metric));
             }
-            List<Long> vsNeighbors = (List) g.adjacent(currVertex);
+        }
 
-            for (long neighbor : vsNeighbors) {
-                if (visited.contains(neighbor)) {
+        while (!fringe.isEmpty()) {
+            if (fringe.minKey() >= best) {
+                break;
+            }
+            int j = fringe.pop();
+            if (settled[j]) {
+                continue;
+            }
+            settled[j] = true;
+            double d = dist[j];
+            if (j == tj) {
+                best = d;
+                bestJ = j;
+                direct = false;
+            }
+            if (j == tFromJ && d + tFromDist < best) {
+                best = d + tFromDist;
+                bestJ = j;
+                bestViaFrom = true;
+                direct = false;
+            }
+            if (j == tToJ && d + tToDist < best) {
+                best = d + tToDist;
+                bestJ = j;
+                bestViaFrom = false;
+                direct = false;
+            }
+            for (int a = cg.jArcStart[j]; a < cg.jArcStart[j + 1]; a += 1) {
+                int c = cg.jArcChain[a] >> 1;
+                if ((cg.chainAccess[c] & bit) == 0 || avoid != null && avoid.blocksChain(c)) {
                     continue;
                 }
-                if (!fringe.contains(neighbor)) {
-                    //fringe and distance are always interconnected
-                    distanceFromStart.put(neighbor,
-                            distanceFromStart.get(currVertex) + g.distance(currVertex, neighbor));
-                    predecessorVertex.put(neighbor, currVertex);
-                    //add after update bc the comparisons you make are based on updated distances
-                    fringe.add(neighbor);
-                } else if (distanceFromStart.get(neighbor)
-                        >
-                        distanceFromStart.get(currVertex) + g.distance(currVertex, neighbor)) {
-                    distanceFromStart.put(neighbor,
-                            distanceFromStart.get(currVertex) + g.distance(currVertex, neighbor));
-                    predecessorVertex.put(neighbor, currVertex);
-                    fringe.add(neighbor);
+                int w = cg.jArcTarget[a];
+                double nd = d + weights[a];
+                if (!settled[w] && nd < dist[w]) {
+                    dist[w] = nd;
+                    pred[w] = a;
+                    fringe.push(w, nd + cw.lowerBound(cg.junctions[w], tx, ty, tz, metric));
                 }
             }
         }
-        long index = destID;
-        while (index != stID) {
-            toRtn.addFirst(index);
-            if (predecessorVertex == null) {
-                toRtn.addFirst(stID);
-                return toRtn;
+
+        if (best == Double.POSITIVE_INFINITY) {
+            return new ArrayList<>();
+        }
+        if (direct) {
+            cg.appendChain(path, sc, cg.vertexChainPos[s], cg.vertexChainPos[t]);
+            return path;
+        }
+
+        /* Walk the predecessor arcs back to the seed, then expand every chain going forward. */
+        List<Integer> arcs = new ArrayList<>();
+        int j = bestJ;
+        while (pred[j] >= 0) {
+            arcs.add(pred[j]);
+            j = sourceJunction(cg, pred[j]);
+        }
+        if (pred[j] == SEED_CHAIN_FROM) {
+            cg.appendChain(path, sc, cg.vertexChainPos[s], 0);
+        } else if (pred[j] == SEED_CHAIN_TO) {
+            cg.appendChain(path, sc, cg.vertexChainPos[s], cg.chainSize(sc));
+        }
+        for (int i = arcs.size() - 1; i >= 0; i -= 1) {
+            int code = cg.jArcChain[arcs.get(i)];
+            int c = code >> 1;
+            if ((code & 1) == 0) {
+                cg.appendChain(path, c, 0, cg.chainSize(c));
+            } else {
+                cg.appendChain(path, c, cg.chainSize(c), 0);
             }
-            index = predecessorVertex.get(index);
         }
-        toRtn.addFirst(stID);
-        return toRtn;
+        if (tc != CompactGraph.NONE) {
+            int end = bestViaFrom ? 0 : cg.chainSize(tc);
+            cg.appendChain(path, tc, end, cg.vertexChainPos[t]);
+        }
+        return path;
+    }
+
+    /**
+     * Return the N-by-M matrix of best-path weights from every source coordinate to every
+     * destination coordinate. Every coordinate is snapped to the graph once; then each row is a
+     * single one-to-many search that stops when all destinations are settled, and rows are
+     * computed in parallel.
+     *
+     * @param g        <code>GraphDB</code> data source.
+     * @param stlons   The longitudes of the N starting coordinates.
+     * @param stlats   The latitudes of the N starting coordinates.
+     * @param destlons The longitudes of the M destination coordinates.
+     * @param destlats The latitudes of the M destination coordinates.
+     * @param metric   Whether to minimize distance or travel time.
+     * @return The weights in row-major order, so the weight from source i to destination j is at
+     * <code>i * M + j</code>; unreachable pairs are <code>Float.POSITIVE_INFINITY</code>.
+     */
+    public static float[] distanceMatrix(GraphDB g, double[] stlons, double[] stlats,
+                                         double[] destlons, double[] destlats, Metric metric) {
+        return distanceMatrix(g, stlons, stlats, destlons, destlats, metric, Profile.DRIVE);
+    }
+
+    /**
+     * Return the matrix of best-path weights for <code>profile</code>, as in
+     * <code>distanceMatrix</code>, snapping every coordinate to a vertex the profile may use.
+     *
+     * @param profile Who is travelling.
+     * @return The N * M weights in row-major order.
+     */
+    public static float[] distanceMatrix(GraphDB g, double[] stlons, double[] stlats,
+                                         double[] destlons, double[] destlats, Metric metric,
+                                         Profile profile) {
+        return distanceMatrix(g, snap(g, stlons, stlats, profile),
+                snap(g, destlons, destlats, profile), metric, profile);
+    }
+
+    /**
+     * Return the matrix of best-path driving weights between vertices, as in
+     * <code>distanceMatrix</code> on coordinates.
+     *
+     * @return The N * M weights in row-major order.
+     */
+    static float[] distanceMatrix(GraphDB g, long[] stIDs, long[] destIDs, Metric metric) {
+        return distanceMatrix(g, stIDs, destIDs, metric, Profile.DRIVE);
+    }
+
+    /**
+     * Return the matrix of best-path weights from every source vertex to every destination
+     * vertex, as in <code>distanceMatrix</code> on coordinates.
+     *
+     * @param g       <code>GraphDB</code> data source.
+     * @param stIDs   The IDs of the N starting vertices.
+     * @param destIDs The IDs of the M destination vertices.
+     * @param metric  Whether to minimize distance or travel time.
+     * @param profile Who is travelling.
+     * @return The N * M weights in row-major order.
+     */
+    static float[] distanceMatrix(GraphDB g, long[] stIDs, long[] destIDs, Metric metric,
+                                  Profile profile) {
+        CompactGraph cg = g.getCompactGraph();
+        int[] sources = new int[stIDs.length];
+        for (int i = 0; i < sources.length; i += 1) {
+            sources[i] = cg.indexOf(stIDs[i]);
+        }
+        int[] targets = new int[destIDs.length];
+        for (int i = 0; i < targets.length; i += 1) {
+            targets[i] = cg.indexOf(destIDs[i]);
+        }
+        OneToManySearch search = new OneToManySearch(cg, targets, metric, profile);
+        int cols = targets.length;
+        float[] matrix = new float[sources.length * cols];
+        IntStream.range(0, sources.length).parallel()
+                .forEach(i -> search.run(sources[i], matrix, i * cols));
+        return matrix;
+    }
+
+    /**
+     * Return the weight of the best path between two coordinates without building the path,
+     * for callers such as ETA estimates that only need the number.
+     *
+     * @param g       <code>GraphDB</code> data source.
+     * @param stlon   The longitude of the starting coordinate.
+     * @param stlat   The latitude of the starting coordinate.
+     * @param destlon The longitude of the destination coordinate.
+     * @param destlat The latitude of the destination coordinate.
+     * @param metric  Whether to measure distance or travel time.
+     * @return The weight in miles or seconds, or <code>Double.POSITIVE_INFINITY</code> if the
+     * destination cannot be reached.
+     */
+    public static double distanceOnly(GraphDB g, double stlon, double stlat,
+                                      double destlon, double destlat, Metric metric) {
+        return distanceOnly(g, stlon, stlat, destlon, destlat, metric, Profile.DRIVE);
+    }
+
+    /**
+     * Return the weight of the best path for <code>profile</code> between two coordinates, as
+     * in <code>distanceOnly</code>.
+     *
+     * @param profile Who is travelling.
+     * @return The weight in miles or seconds, or <code>Double.POSITIVE_INFINITY</code>.
+     */
+    public static double distanceOnly(GraphDB g, double stlon, double stlat,
+                                      double destlon, double destlat, Metric metric,
+                                      Profile profile) {
+        return distanceOnly(g, g.closest(stlon, stlat, profile),
+                g.closest(destlon, destlat, profile), metric, profile);
+    }
+
+    /** Return the weight of the best driving path between two vertices. */
+    static double distanceOnly(GraphDB g, long stID, long destID, Metric metric) {
+        return distanceOnly(g, stID, destID, metric, Profile.DRIVE);
+    }
+
+    /**
+     * Return the weight of the best path between two vertices. Hub labels only cover driving;
+     * if labels for the metric and the current weights are attached to <code>g</code> and both
+     * vertices are drivable this merges two labels, and otherwise it runs one search.
+     *
+     * @param g       <code>GraphDB</code> data source.
+     * @param stID    The ID of the starting vertex.
+     * @param destID  The ID of the destination vertex.
+     * @param metric  Whether to measure distance or travel time.
+     * @param profile Who is travelling.
+     * @return The weight in miles or seconds, or <code>Double.POSITIVE_INFINITY</code>.
+     */
+    static double distanceOnly(GraphDB g, long stID, long destID, Metric metric,
+                               Profile profile) {
+        CompactGraph cg = g.getCompactGraph();
+        CompactGraph.Weights cw = cg.weights();
+        int s = cg.indexOf(stID);
+        int t = cg.indexOf(destID);
+        HubLabels labels = profile == Profile.DRIVE ? g.getHubLabels(metric, cw) : null;
+        if (labels == null || !cg.allows(s, profile) || !cg.allows(t, profile)) {
+            return distanceMatrix(g, new long[]{stID}, new long[]{destID}, metric, profile)[0];
+        }
+        return labels.distance(cg, cw, s, t);
+    }
+
+    /** Snaps each coordinate to the ID of its closest vertex that the profile may use. */
+    static long[] snap(GraphDB g, double[] lons, double[] lats, Profile profile) {
+        long[] ids = new long[lons.length];
+        IntStream.range(0, ids.length).parallel()
+                .forEach(i -> ids[i] = g.closest(lons[i], lats[i], profile));
+        return ids;
+    }
+
+    /** Predecessor marker for a search that starts on a junction. */
+    static final int SEED_START = -1;
+    /** Predecessor marker for a junction seeded from the start along the start's chain. */
+    static final int SEED_CHAIN_FROM = -2;
+    /** Predecessor marker for a junction seeded from the start against the start's chain. */
+    static final int SEED_CHAIN_TO = -3;
+
+    /** Returns the junction that search arc <code>a</code> leaves from. */
+    static int sourceJunction(CompactGraph cg, int a) {
+        int code = cg.jArcChain[a];
+        int c = code >> 1;
+        int v = (code & 1) == 0 ? cg.chainFrom[c] : cg.chainTo[c];
+        return cg.junctionOf[v];
     }
 
     /**
@@ -116,8 +520,100 @@ public class Router {
      * @return A new <code>List</code> of <code>NavigationDirection</code> objects.
      */
     public static List<NavigationDirection> routeDirections(GraphDB g, List<Long> route) {
-        // TODO
-        return Collections.emptyList();
+        List<NavigationDirection> directions = new ArrayList<>();
+        if (route.size() < 2) {
+            return directions;
+        }
+        /* Way names and bearings come from the per-arc tables, so this is one pass with no
+         * trigonometry; only a pair of vertices that is not an edge falls back to computing. */
+        CompactGraph cg = g.getCompactGraph();
+        NavigationDirection current = null;
+        double prevBearing = 0;
+        int prev = cg.indexOf(route.get(0));
+        for (int i = 1; i < route.size(); i += 1) {
+            int v = cg.indexOf(route.get(i));
+            int a = prev == CompactGraph.NONE ? CompactGraph.NONE : cg.findArc(prev, v);
+            String way;
+            double bearing;
+            double distance;
+            if (a != CompactGraph.NONE) {
+                way = cg.wayName(a);
+                bearing = cg.arcBearing[a];
+                distance = cg.arcLength[a];
+            } else {
+                way = NavigationDirection.UNKNOWN_ROAD;
+                bearing = g.bearing(route.get(i - 1), route.get(i));
+                distance = g.distance(route.get(i - 1), route.get(i));
+            }
+            if (current == null) {
+                current = new NavigationDirection();
+                current.direction = NavigationDirection.START;
+                current.way = way;
+            } else if (!current.way.equals(way)) {
+                directions.add(current);
+                current = new NavigationDirection();
+                current.direction = NavigationDirection.turn(prevBearing, bearing);
+                current.way = way;
+            }
+            current.distance += distance;
+            prevBearing = bearing;
+            prev = v;
+        }
+        directions.add(current);
+        return directions;
+    }
+
+    /** The quantity a route search minimizes. */
+    public enum Metric {
+        /** Total length in miles. */
+        DISTANCE,
+        /** Total travel time in seconds, driving every edge at its speed limit. */
+        TIME
+    }
+
+    /**
+     * Who travels a route. Every road segment stores which profiles may use it, so all profiles
+     * share one graph. Cyclists and pedestrians move at a steady speed, so their fastest route
+     * is their shortest one and their travel times are distances scaled by that speed.
+     */
+    public enum Profile {
+        /** Driving, at each road's speed limit. */
+        DRIVE(0),
+        /** Cycling, at a steady 12 miles per hour. */
+        BIKE(12),
+        /** Walking, at a steady 3 miles per hour. */
+        WALK(3);
+
+        /** Travel speed in miles per hour, or 0 to use each road's speed limit. */
+        final double speedMph;
+
+        Profile(double speedMph) {
+            this.speedMph = speedMph;
+        }
+
+        /** Returns the bit of this profile in a road segment's access mask. */
+        int bit() {
+            return 1 << ordinal();
+        }
+
+        /**
+         * Returns the metric whose weights rank routes for this profile the same way
+         * <code>metric</code> does.
+         */
+        Metric searchMetric(Metric metric) {
+            return speedMph == 0 ? metric : Metric.DISTANCE;
+        }
+
+        /**
+         * Returns the factor that turns weights under <code>searchMetric(metric)</code> into
+         * weights under <code>metric</code>.
+         */
+        double scale(Metric metric) {
+            if (speedMph == 0 || metric == Metric.DISTANCE) {
+                return 1;
+            }
+            return CompactGraph.SECONDS_PER_HOUR / speedMph;
+        }
     }
 
     /**
@@ -153,6 +649,11 @@ public class Router {
             DIRECTIONS[SHARP_RIGHT] = "Sharp right";
         }
 
+        /**
+         * The way name used for roads that have no name.
+         */
+        public static final String UNKNOWN_ROAD = "";
+
         /**
          * The direction represented.
          */
@@ -213,6 +714,51 @@ public class Router {
             }
         }
 
+        /**
+         * Returns the direction to take when turning from a road with bearing
+         * <code>prevBearing</code> onto one with bearing <code>currBearing</code>.
+         *
+         * @param prevBearing The bearing of the last edge before the turn, in degrees.
+         * @param currBearing The bearing of the first edge after the turn, in degrees.
+         * @return One of the integer direction constants, other than <code>START</code>.
+         */
+        static int turn(double prevBearing, double currBearing) {
+            double relative = currBearing - prevBearing;
+            if (relative > 180) {
+                relative -= 360;
+            } else if (relative < -180) {
+                relative += 360;
+            }
+            double absolute = Math.abs(relative);
+            boolean left = relative < 0;
+            if (absolute <= 15) {
+                return STRAIGHT;
+            } else if (absolute <= 30) {
+                return left ? SLIGHT_LEFT : SLIGHT_RIGHT;
+            } else if (absolute <= 100) {
+                return left ? LEFT : RIGHT;
+            } else {
+                return left ? SHARP_LEFT : SHARP_RIGHT;
+            }
+        }
+
+        /**
+         * Appends the same text as <code>toString</code> onto <code>sb</code> without building
+         * an intermediate <code>String</code>. The distance is rounded to thousandths the way
+         * <code>%.3f</code> rounds it, half up on its shortest decimal form, so the two agree on
+         * ties such as 64.5885.
+         *
+         * @param sb The builder to append to.
+         * @return <code>sb</code>.
+         */
+        StringBuilder appendTo(StringBuilder sb) {
+            return sb.append(DIRECTIONS[direction]).append(" on ").append(way)
+                    .append(" and continue for ")
+                    .append(BigDecimal.valueOf(distance).setScale(3, RoundingMode.HALF_UP)
+                            .toPlainString())
+                    .append(" miles.");
+        }
+
         public String toString() {
             return String.format("%s on %s and continue for %.3f miles.",
                     DIRECTIONS[direction], way, distance);
@@ -0,0 +1,731 @@
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * This class provides a main method for timing the routing code on a real map. It loads the
+ * graph given as the first argument (Berkeley by default) and reports the latency of the
+ * different kinds of routing queries at random points inside the map bounds.
+ */
+public class RouterBenchmark {
+    private static final String OSM_DB_PATH = "../library-su18/bearmaps/berkeley-2018.osm.xml";
+    private static final int MATRIX_SIZE = 100;
+    private static final int ISOCHRONE_REPEATS = 10;
+    /** Passes over the query pairs when timing alternatives; only the last one is reported. */
+    private static final int ALTERNATIVE_REPEATS = 10;
+    private static final int MULTI_STOP_REPEATS = 20;
+    private static final int ONE_TO_ALL_SOURCES = 20;
+    private static final int REVERSE_QUERIES = 100_000;
+    private static final int NEARBY_QUERIES = 100_000;
+    private static final int NEARBY_K = 10;
+    /** Names in the synthetic infix search index, and names typed into it. */
+    private static final int SEARCH_NAMES = 100_000;
+    private static final int SEARCH_TYPED = 2000;
+    private static final String[] SEARCH_WORDS = {
+        "Wheeler", "Hall", "Doe", "Library", "Sather", "Gate", "Tower", "Cafe", "Strada",
+        "Peet's", "Coffee", "Berkeley", "Bowl", "Memorial", "Stadium", "Haas", "Pavilion",
+        "Street", "Avenue", "Shattuck", "Telegraph", "Main", "Stacks", "Evans", "Soda", "Cory",
+        "North", "South", "Park", "Garden", "Market", "Center", "Plaza", "School", "Church"
+    };
+    /** Locations per category in the synthetic category indexes. */
+    private static final int NEARBY_PER_CATEGORY = 200;
+    /** Standard deviation of the noise added to simulated GPS traces, in degrees of latitude. */
+    private static final double GPS_NOISE_DEGREES = 5 / 111_320.0;
+    /** One way in this many gets a speed override. */
+    private static final int OVERRIDE_FRACTION = 10;
+    /** Arcs spanning fewer vertex numbers than this count as local in the locality report. */
+    private static final int LOCAL_SPAN = 64;
+    /** Times each way of reading the map is repeated; the fastest is reported. */
+    private static final int INGEST_REPEATS = 3;
+    /** Ways changed by each change file applied to the graph. */
+    private static final int[] CHANGE_SIZES = {10, 100, 1000};
+    private static final long SEED = 61;
+
+    public static void main(String[] args)
+            throws IOException, ParserConfigurationException, SAXException {
+        String path = args.length > 0 ? args[0] : OSM_DB_PATH;
+        long start = System.nanoTime();
+        GraphDB g = new GraphDB(path);
+        System.out.printf("Loaded %s in %.0f ms.%n", path, millisSince(start));
+
+        Random random = new Random(SEED);
+        double[] lons = randomLons(random, MATRIX_SIZE);
+        double[] lats = randomLats(random, MATRIX_SIZE);
+        benchmarkProfiles(g, lons, lats);
+        benchmarkAlternatives(g, lons, lats);
+        benchmarkMultiStop(g, random);
+        benchmarkMatching(g, lons, lats, random);
+        benchmarkReverse(g, random);
+        benchmarkNearby(g, random);
+        benchmarkSearch(g, random);
+        benchmarkPrefix(random);
+        benchmarkMatrix(g, lons, lats);
+        benchmarkIsochrones(g, lons, lats);
+        benchmarkDeltaStepping(g, lons, lats);
+        benchmarkHubLabels(g, lons, lats);
+        benchmarkOverrides(g, random);
+        benchmarkChanges(g, random);
+        benchmarkIngest(path);
+        benchmarkCompressedInput(path);
+    }
+
+    /**
+     * Reports how much of the shared graph each profile may use and the memory its access
+     * masks take, and times route queries for every profile.
+     */
+    private static void benchmarkProfiles(GraphDB g, double[] lons, double[] lats) {
+        CompactGraph cg = g.getCompactGraph();
+        long accessBytes = cg.arcAccess.length + cg.chainAccess.length;
+        System.out.printf("Shared graph: %d vertices, %d arcs, %d junctions; access masks take "
+                        + "%d bytes (%.2f per arc).%n", cg.numVertices(), cg.numArcs(),
+                cg.numJunctions(), accessBytes, (double) accessBytes / cg.numArcs());
+        long span = 0;
+        int near = 0;
+        for (int v = 0; v < cg.numVertices(); v += 1) {
+            for (int a = cg.arcStart(v); a < cg.arcStart(v + 1); a += 1) {
+                span += Math.abs(cg.arcTarget(a) - v);
+                near += Math.abs(cg.arcTarget(a) - v) < LOCAL_SPAN ? 1 : 0;
+            }
+        }
+        System.out.printf("Vertex order: arcs span %.0f vertex numbers on average; %.1f%% span "
+                + "fewer than %d.%n", (double) span / cg.numArcs(), 100.0 * near / cg.numArcs(),
+                LOCAL_SPAN);
+        int n = lons.length;
+        for (Router.Profile profile : Router.Profile.values()) {
+            int arcs = 0;
+            for (int a = 0; a < cg.numArcs(); a += 1) {
+                if ((cg.arcAccess[a] & profile.bit()) != 0) {
+                    arcs += 1;
+                }
+            }
+            long start = System.nanoTime();
+            for (int i = 0; i < n; i += 1) {
+                Router.shortestPath(g, lons[i], lats[i], lons[n - 1 - i], lats[n - 1 - i],
+                        Router.Metric.TIME, profile);
+            }
+            System.out.printf("%s: %d arcs usable, %.2f ms per route.%n", profile, arcs,
+                    millisSince(start) / n);
+        }
+    }
+
+    /**
+     * Times three-route alternative queries against single route queries over the same pairs,
+     * and counts how many alternatives were found.
+     */
+    private static void benchmarkAlternatives(GraphDB g, double[] lons, double[] lats) {
+        int n = lons.length;
+        double routeMillis = 0;
+        double alternativeMillis = 0;
+        int found = 0;
+        for (int rep = 0; rep < ALTERNATIVE_REPEATS; rep += 1) {
+            long start = System.nanoTime();
+            for (int i = 0; i < n; i += 1) {
+                Router.shortestPath(g, lons[i], lats[i], lons[n - 1 - i], lats[n - 1 - i]);
+            }
+            routeMillis = millisSince(start) / n;
+            found = 0;
+            start = System.nanoTime();
+            for (int i = 0; i < n; i += 1) {
+                found += Router.alternatives(g, lons[i], lats[i], lons[n - 1 - i],
+                        lats[n - 1 - i], 3).size() - 1;
+            }
+            alternativeMillis = millisSince(start) / n;
+        }
+        System.out.printf("Alternatives: %.2f ms per query for up to 3 routes, %.2f ms per "
+                        + "single route (%.1fx); %.2f alternatives found per query.%n",
+                alternativeMillis, routeMillis, alternativeMillis / routeMillis,
+                (double) found / n);
+    }
+
+    /**
+     * Times routes through the most waypoints a request may have, with the stops spread over
+     * the whole map and with them clustered in a tenth of it, and splits out the matrix.
+     */
+    private static void benchmarkMultiStop(GraphDB g, Random random) {
+        int n = RouteRequestParams.MAX_WAYPOINTS + 2;
+        for (double spread : new double[]{1.0, 0.1}) {
+            double matrixMillis = 0;
+            double totalMillis = 0;
+            for (int rep = 0; rep < MULTI_STOP_REPEATS; rep += 1) {
+                double[] lons = randomLons(random, n);
+                double[] lats = randomLats(random, n);
+                RouteRequestParams.Builder builder = new RouteRequestParams.Builder()
+                        .setMetric(Router.Metric.TIME);
+                for (int i = 0; i < n; i += 1) {
+                    lons[i] = lons[0] + (lons[i] - lons[0]) * spread;
+                    lats[i] = lats[0] + (lats[i] - lats[0]) * spread;
+                    if (i > 0 && i < n - 1) {
+                        builder.addWaypoint(lons[i], lats[i]);
+                    }
+                }
+                RouteRequestParams params = builder.setStartLon(lons[0]).setStartLat(lats[0])
+                        .setEndLon(lons[n - 1]).setEndLat(lats[n - 1]).create();
+                long start = System.nanoTime();
+                Router.distanceMatrix(g, lons, lats, lons, lats, Router.Metric.TIME);
+                matrixMillis += millisSince(start);
+                start = System.nanoTime();
+                MultiStopRoute.compute(g, params);
+                totalMillis += millisSince(start);
+            }
+            System.out.printf("%d waypoints over %.0f%% of the map: %.1f ms end to end, of "
+                            + "which the matrix takes %.1f ms.%n", n - 2, 100 * spread,
+                    totalMillis / MULTI_STOP_REPEATS, matrixMillis / MULTI_STOP_REPEATS);
+        }
+    }
+
+    /**
+     * Simulates GPS traces by adding noise to every vertex along routes between the query
+     * pairs, then reports how fast they are matched and how many points are matched to the
+     * vertex they came from. The first pass warms up and only the second is timed.
+     */
+    private static void benchmarkMatching(GraphDB g, double[] lons, double[] lats,
+                                          Random random) {
+        int n = lons.length;
+        List<double[][]> traces = new ArrayList<>();
+        List<List<Long>> truths = new ArrayList<>();
+        int numPoints = 0;
+        for (int i = 0; i < n; i += 1) {
+            List<Long> route = Router.shortestPath(g, lons[i], lats[i], lons[n - 1 - i],
+                    lats[n - 1 - i]);
+            double[][] trace = new double[route.size()][];
+            for (int k = 0; k < trace.length; k += 1) {
+                double lat = g.lat(route.get(k));
+                double lonNoise = GPS_NOISE_DEGREES / Math.cos(Math.toRadians(lat));
+                trace[k] = new double[]{g.lon(route.get(k)) + random.nextGaussian() * lonNoise,
+                    lat + random.nextGaussian() * GPS_NOISE_DEGREES};
+            }
+            traces.add(trace);
+            truths.add(route);
+            numPoints += trace.length;
+        }
+        /* Points matched to the vertex they came from, and to any vertex of their route. */
+        int[] correct = new int[2];
+        long start = 0;
+        for (int rep = 0; rep < 2; rep += 1) {
+            Arrays.fill(correct, 0);
+            start = System.nanoTime();
+            for (int i = 0; i < n; i += 1) {
+                List<Long> truth = truths.get(i);
+                Set<Long> onRoute = new HashSet<>(truth);
+                MapMatcher matcher = new MapMatcher(g, Router.Profile.DRIVE, (index, id) -> {
+                    correct[0] += truth.get(index) == id ? 1 : 0;
+                    correct[1] += onRoute.contains(id) ? 1 : 0;
+                });
+                for (double[] point : traces.get(i)) {
+                    matcher.add(point[0], point[1]);
+                }
+                matcher.finish();
+            }
+        }
+        double millis = millisSince(start);
+        System.out.printf("Map matching: %d points in %.0f ms (%.0f points/sec); %.1f%% "
+                        + "matched to the vertex they came from, %.1f%% to their route.%n",
+                numPoints, millis, numPoints / millis * 1000, 100.0 * correct[0] / numPoints,
+                100.0 * correct[1] / numPoints);
+    }
+
+    /**
+     * Times reverse geocoding of random points, looking up both the closest named way and the
+     * closest named location. The first pass warms up and only the second is timed.
+     */
+    private static void benchmarkReverse(GraphDB g, Random random) {
+        ReverseGeocoder geocoder = g.getReverseGeocoder();
+        double[] lons = randomLons(random, REVERSE_QUERIES);
+        double[] lats = randomLats(random, REVERSE_QUERIES);
+        long start = 0;
+        for (int rep = 0; rep < 2; rep += 1) {
+            start = System.nanoTime();
+            for (int i = 0; i < REVERSE_QUERIES; i += 1) {
+                geocoder.nearestWay(lons[i], lats[i]);
+                geocoder.nearestLocation(lons[i], lats[i]);
+            }
+        }
+        System.out.printf("Reverse geocoding: %.2f us per lookup; index takes %.1f MB, and the "
+                        + "%d names it shares with the graph %.2f MB.%n",
+                millisSince(start) * 1000 / REVERSE_QUERIES, geocoder.bytes() / 1e6,
+                g.getNames().size(), g.getNames().bytes() / 1e6);
+    }
+
+    /**
+     * Times top-k category queries on the map, then on synthetic indexes with the same number
+     * of locations per category and ever more categories, to show that latency depends on the
+     * size of the category and not on how many others there are.
+     */
+    private static void benchmarkNearby(GraphDB g, Random random) {
+        CategoryIndex index = g.getCategoryIndex();
+        if (index.numCategories() > 0) {
+            String[] names = new String[NEARBY_QUERIES];
+            Arrays.fill(names, "cafe");
+            timeNearby("map, cafe", index, names, random);
+        }
+        for (int numCategories = 10; numCategories <= 1000; numCategories *= 10) {
+            int n = numCategories * NEARBY_PER_CATEGORY;
+            double[] lons = randomLons(random, n);
+            double[] lats = randomLats(random, n);
+            List<GraphDB.Node> nodes = new ArrayList<>();
+            List<String> categories = new ArrayList<>();
+            for (int i = 0; i < n; i += 1) {
+                nodes.add(new GraphDB.Node(i, lats[i], lons[i]));
+                categories.add("category " + i % numCategories);
+            }
+            CategoryIndex synthetic = new CategoryIndex(nodes, categories, new NameArena());
+            String[] names = new String[NEARBY_QUERIES];
+            for (int i = 0; i < NEARBY_QUERIES; i += 1) {
+                names[i] = "category " + random.nextInt(numCategories);
+            }
+            timeNearby(numCategories + " categories", synthetic, names, random);
+        }
+    }
+
+    /** Times one query per category name at random points; the first pass warms up. */
+    private static void timeNearby(String label, CategoryIndex index, String[] names,
+                                   Random random) {
+        double[] lons = randomLons(random, names.length);
+        double[] lats = randomLats(random, names.length);
+        long start = 0;
+        for (int rep = 0; rep < 2; rep += 1) {
+            start = System.nanoTime();
+            for (int i = 0; i < names.length; i += 1) {
+                index.nearest(names[i], lons[i], lats[i], NEARBY_K);
+            }
+        }
+        System.out.printf("Nearby (%s): %.2f us per top-%d query; index takes %.1f MB.%n",
+                label, millisSince(start) * 1000 / names.length, NEARBY_K,
+                index.bytes() / 1e6);
+    }
+
+    /**
+     * Reports the size of the infix search index and its latency per keystroke, on the map's
+     * names and on synthetic names made of common words, typing each name from the start of a
+     * random word one character at a time.
+     */
+    private static void benchmarkSearch(GraphDB g, Random random) {
+        timeSearch("map", g.getSubstringIndex(), g.locationNames(), random);
+        List<String> names = syntheticNames(random);
+        long start = System.nanoTime();
+        SubstringIndex index = new SubstringIndex(names);
+        System.out.printf("Built infix search index over %d names in %.0f ms.%n", names.size(),
+                millisSince(start));
+        timeSearch("synthetic", index, names, random);
+    }
+
+    /** Returns <code>SEARCH_NAMES</code> names of one to three common words and a number. */
+    private static List<String> syntheticNames(Random random) {
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < SEARCH_NAMES; i += 1) {
+            StringBuilder name = new StringBuilder();
+            int words = 1 + random.nextInt(3);
+            for (int w = 0; w < words; w += 1) {
+                name.append(w > 0 ? " " : "")
+                        .append(SEARCH_WORDS[random.nextInt(SEARCH_WORDS.length)]);
+            }
+            names.add(name.append(" ").append(i).toString());
+        }
+        return names;
+    }
+
+    /**
+     * Times prefix search over synthetic names for every keystroke of typing random names
+     * from the start, with the precomputed results of short prefixes and without them.
+     */
+    private static void benchmarkPrefix(Random random) {
+        List<String> names = syntheticNames(random);
+        long start = System.nanoTime();
+        PrefixIndex index = new PrefixIndex(names);
+        System.out.printf("Built prefix search index over %d names with %d precomputed "
+                + "prefixes in %.0f ms.%n", names.size(), index.numHotPrefixes(),
+                millisSince(start));
+        List<String> typed = new ArrayList<>();
+        for (int i = 0; i < SEARCH_TYPED; i += 1) {
+            String name = GraphDB.cleanString(names.get(random.nextInt(names.size())));
+            for (int end = 1; end <= name.length(); end += 1) {
+                typed.add(name.substring(0, end));
+            }
+        }
+        long[] hot = new long[typed.size()];
+        long[] cold = new long[typed.size()];
+        for (int rep = 0; rep < 2; rep += 1) {
+            for (int i = 0; i < typed.size(); i += 1) {
+                long t = System.nanoTime();
+                index.search(typed.get(i), () -> false);
+                hot[i] = System.nanoTime() - t;
+                t = System.nanoTime();
+                index.copyRange(typed.get(i), () -> false);
+                cold[i] = System.nanoTime() - t;
+            }
+        }
+        Arrays.sort(hot);
+        Arrays.sort(cold);
+        System.out.printf("Prefix search over %d keystrokes: p50 %.1f us, p99 %.1f us with "
+                        + "short prefixes precomputed; p50 %.1f us, p99 %.1f us without.%n",
+                typed.size(), hot[hot.length / 2] / 1e3, hot[(int) (hot.length * 0.99)] / 1e3,
+                cold[cold.length / 2] / 1e3, cold[(int) (cold.length * 0.99)] / 1e3);
+    }
+
+    /** Times every keystroke of typing random names; the first pass warms up. */
+    private static void timeSearch(String label, SubstringIndex index, List<String> names,
+                                   Random random) {
+        if (names.isEmpty()) {
+            return;
+        }
+        List<String> typed = new ArrayList<>();
+        for (int i = 0; i < SEARCH_TYPED; i += 1) {
+            String name = GraphDB.cleanString(names.get(random.nextInt(names.size())));
+            int from = name.lastIndexOf(' ', random.nextInt(name.length())) + 1;
+            for (int end = from + 1; end <= name.length(); end += 1) {
+                typed.add(name.substring(from, end));
+            }
+        }
+        long[] nanos = new long[typed.size()];
+        for (int rep = 0; rep < 2; rep += 1) {
+            for (int i = 0; i < typed.size(); i += 1) {
+                long start = System.nanoTime();
+                index.search(typed.get(i), GraphDB.MAX_SUBSTRING_RESULTS);
+                nanos[i] = System.nanoTime() - start;
+            }
+        }
+        Arrays.sort(nanos);
+        System.out.printf("Infix search (%s, %d names): p50 %.1f us, p99 %.1f us per keystroke "
+                        + "over %d keystrokes; posting lists take %.2f MB (%.2f MB as ints).%n",
+                label, index.size(), nanos[nanos.length / 2] / 1e3,
+                nanos[(int) (nanos.length * 0.99)] / 1e3, nanos.length, index.bytes() / 1e6,
+                index.uncompressedBytes() / 1e6);
+    }
+
+    /** Times an N-by-N distance matrix against N * N separate route queries. */
+    private static void benchmarkMatrix(GraphDB g, double[] lons, double[] lats) {
+        int n = lons.length;
+        Router.distanceMatrix(g, lons, lats, lons, lats, Router.Metric.DISTANCE);
+        long start = System.nanoTime();
+        Router.distanceMatrix(g, lons, lats, lons, lats, Router.Metric.DISTANCE);
+        double matrixMillis = millisSince(start);
+
+        start = System.nanoTime();
+        for (int i = 0; i < n; i += 1) {
+            for (int j = 0; j < n; j += 1) {
+                Router.shortestPath(g, lons[i], lats[i], lons[j], lats[j]);
+            }
+        }
+        double routeMillis = millisSince(start);
+        System.out.printf("%dx%d distance matrix: %.1f ms; %d route queries: %.1f ms.%n",
+                n, n, matrixMillis, n * n, routeMillis);
+    }
+
+    /** Times one-mile isochrones around each of the given points. */
+    private static void benchmarkIsochrones(GraphDB g, double[] lons, double[] lats) {
+        long reachable = 0;
+        long start = System.nanoTime();
+        for (int rep = 0; rep < ISOCHRONE_REPEATS; rep += 1) {
+            for (int i = 0; i < lons.length; i += 1) {
+                reachable += Isochrone.compute(g, lons[i], lats[i], 1.0,
+                        Router.Metric.DISTANCE).size();
+            }
+        }
+        int count = ISOCHRONE_REPEATS * lons.length;
+        double seconds = millisSince(start) / 1000;
+        System.out.printf("%d one-mile isochrones: %.0f per second, %d vertices on average.%n",
+                count, count / seconds, reachable / count);
+    }
+
+    /**
+     * Times one-to-all searches with delta-stepping on pools of 1, 2, 4, ... threads up to the
+     * number of available processors, against a sequential unbounded Dijkstra search.
+     */
+    private static void benchmarkDeltaStepping(GraphDB g, double[] lons, double[] lats) {
+        int sources = Math.min(ONE_TO_ALL_SOURCES, lons.length);
+        long[] ids = new long[sources];
+        for (int i = 0; i < sources; i += 1) {
+            ids[i] = g.closest(lons[i], lats[i], Router.Profile.DRIVE);
+        }
+        Isochrone.compute(g, ids[0], Double.POSITIVE_INFINITY, Router.Metric.DISTANCE);
+        long start = System.nanoTime();
+        for (long id : ids) {
+            Isochrone.compute(g, id, Double.POSITIVE_INFINITY, Router.Metric.DISTANCE);
+        }
+        double dijkstraMillis = millisSince(start) / sources;
+        System.out.printf("One-to-all Dijkstra: %.2f ms per source.%n", dijkstraMillis);
+
+        int maxThreads = Runtime.getRuntime().availableProcessors();
+        double oneThreadMillis = 0;
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            try {
+                DeltaStepping.distances(g, ids[0], Router.Metric.DISTANCE, pool);
+                start = System.nanoTime();
+                for (long id : ids) {
+                    DeltaStepping.distances(g, id, Router.Metric.DISTANCE, pool);
+                }
+            } finally {
+                pool.shutdown();
+            }
+            double millis = millisSince(start) / sources;
+            if (threads == 1) {
+                oneThreadMillis = millis;
+            }
+            System.out.printf("Delta-stepping, %d thread(s): %.2f ms per source, "
+                    + "speedup %.2fx over 1 thread.%n", threads, millis, oneThreadMillis / millis);
+        }
+    }
+
+    /** Builds hub labels and times distance-only queries from them against A* searches. */
+    private static void benchmarkHubLabels(GraphDB g, double[] lons, double[] lats) {
+        CompactGraph cg = g.getCompactGraph();
+        long start = System.nanoTime();
+        HubLabels labels = HubLabels.build(cg, Router.Metric.DISTANCE);
+        System.out.printf("Hub labels built in %.0f ms: %.1f entries and %.1f bytes per "
+                        + "junction, %.1f bytes per vertex.%n", millisSince(start),
+                labels.averageLabelSize(), (double) labels.sizeBytes() / cg.numJunctions(),
+                (double) labels.sizeBytes() / cg.numVertices());
+        g.setHubLabels(labels);
+
+        int n = lons.length;
+        long[] ids = new long[n];
+        for (int i = 0; i < n; i += 1) {
+            ids[i] = g.closest(lons[i], lats[i], Router.Profile.DRIVE);
+        }
+        double sum = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < n; i += 1) {
+            for (int j = 0; j < n; j += 1) {
+                sum += Router.distanceOnly(g, ids[i], ids[j], Router.Metric.DISTANCE);
+            }
+        }
+        double labelMicros = millisSince(start) * 1000 / (n * n);
+        start = System.nanoTime();
+        for (int i = 0; i < n; i += 1) {
+            for (int j = 0; j < n; j += 1) {
+                Router.shortestPath(g, ids[i], ids[j], Router.Metric.DISTANCE);
+            }
+        }
+        double searchMicros = millisSince(start) * 1000 / (n * n);
+        System.out.printf("Distance-only query: %.2f us from hub labels, %.1f us by A* "
+                + "(checksum %.1f).%n", labelMicros, searchMicros, sum);
+    }
+
+    /**
+     * Times applying a batch of speed overrides to a tenth of the ways, and rebuilding the
+     * travel-time hub labels for the new weights.
+     */
+    private static void benchmarkOverrides(GraphDB g, Random random) {
+        WeightOverrides batch = new WeightOverrides();
+        for (int k = 0; k < g.numWays(); k += 1) {
+            if (random.nextInt(OVERRIDE_FRACTION) == 0) {
+                batch.setWaySpeed(g.way(k).id, 5 + random.nextInt(60));
+            }
+        }
+        long start = System.nanoTime();
+        g.applyWeightOverrides(batch);
+        double applyMillis = millisSince(start);
+        start = System.nanoTime();
+        HubLabels labels = HubLabels.build(g.getCompactGraph(), Router.Metric.TIME);
+        System.out.printf("Applied %d way speed overrides in %.1f ms; rebuilt travel-time hub "
+                        + "labels in %.0f ms (%.1f entries per junction).%n", batch.size(),
+                applyMillis, millisSince(start), labels.averageLabelSize());
+        g.clearWeightOverrides();
+    }
+
+    /**
+     * Times applying change files of growing size to the graph, each changing as many ways:
+     * half of them existing ways given a new speed limit with one node moved, half new ways
+     * joining two vertices through a new node.
+     */
+    private static void benchmarkChanges(GraphDB g, Random random) throws IOException {
+        List<Long> vertices = new ArrayList<>();
+        for (long v : g.vertices()) {
+            vertices.add(v);
+        }
+        for (int size : CHANGE_SIZES) {
+            StringBuilder create = new StringBuilder();
+            StringBuilder modify = new StringBuilder();
+            long newId = -1;
+            for (int k = 0; k < size; k += 1) {
+                if (k % 2 == 0) {
+                    GraphDB.Way way = g.way(random.nextInt(g.numWays()));
+                    if (way.nodes.size() < 3
+                            || way.highwayClass == GraphBuildingHandler.OTHER_CLASS) {
+                        k -= 1;
+                        continue;
+                    }
+                    long moved = way.nodes.get(1);
+                    modify.append(String.format("<node id=\"%d\" lat=\"%.7f\" lon=\"%.7f\"/>",
+                            moved, g.lat(moved) + 1e-5, g.lon(moved)));
+                    modify.append(String.format("<way id=\"%d\">", way.id));
+                    for (long ref : way.nodes) {
+                        modify.append(String.format("<nd ref=\"%d\"/>", ref));
+                    }
+                    modify.append(String.format("<tag k=\"highway\" v=\"%s\"/>"
+                                    + "<tag k=\"maxspeed\" v=\"%d mph\"/></way>",
+                            GraphBuildingHandler.HIGHWAY_CLASSES.get(way.highwayClass),
+                            5 + random.nextInt(60)));
+                } else {
+                    long from = vertices.get(random.nextInt(vertices.size()));
+                    long to = vertices.get(random.nextInt(vertices.size()));
+                    create.append(String.format("<node id=\"%d\" lat=\"%.7f\" lon=\"%.7f\"/>",
+                            newId, (g.lat(from) + g.lat(to)) / 2, (g.lon(from) + g.lon(to)) / 2));
+                    create.append(String.format("<way id=\"%d\"><nd ref=\"%d\"/>"
+                                    + "<nd ref=\"%d\"/><nd ref=\"%d\"/>"
+                                    + "<tag k=\"highway\" v=\"residential\"/></way>",
+                            newId, from, newId, to));
+                    newId -= 1;
+                }
+            }
+            String osc = "<osmChange version=\"0.6\"><create>" + create + "</create><modify>"
+                    + modify + "</modify></osmChange>";
+            long start = System.nanoTime();
+            OsmChange change = OsmChange.read(new ByteArrayInputStream(
+                    osc.getBytes(StandardCharsets.UTF_8)));
+            double parseMillis = millisSince(start);
+            double[] applyMillis = new double[1];
+            long applyStart = System.nanoTime();
+            GraphDB next = g.withChanges(change, phase -> {
+                if (phase.equals("indexing")) {
+                    applyMillis[0] = millisSince(applyStart);
+                }
+            });
+            double totalMillis = millisSince(applyStart);
+            GraphDB.ChangeStats stats = next.changeStats();
+            System.out.printf("Applied a change file of %d ways and %d elements in %.0f ms: "
+                            + "%.0f ms parsing, %.0f ms changing %d of %d nodes, %.0f ms "
+                            + "indexing.%n", size, stats.elements, parseMillis + totalMillis,
+                    parseMillis, applyMillis[0], stats.copiedNodes, vertices.size(),
+                    totalMillis - applyMillis[0]);
+        }
+    }
+
+    /**
+     * Converts the map to PBF and compares reading the two formats: parsing alone, with the
+     * PBF blocks decoded on one thread and on the common pool, and loading a whole graph,
+     * which adds the same cleaning and indexing to both.
+     */
+    private static void benchmarkIngest(String path)
+            throws IOException, ParserConfigurationException, SAXException {
+        File xml = new File(path);
+        File pbf = File.createTempFile("ingest", ".osm.pbf");
+        pbf.deleteOnExit();
+        long start = System.nanoTime();
+        PbfWriter.convert(xml, pbf);
+        System.out.printf("Converted %.1f MB of XML to %.1f MB of PBF in %.0f ms.%n",
+                xml.length() / 1e6, pbf.length() / 1e6, millisSince(start));
+
+        ForkJoinPool oneThread = new ForkJoinPool(1);
+        double xmlParse = Double.MAX_VALUE;
+        double pbfParse = Double.MAX_VALUE;
+        double pbfParallel = Double.MAX_VALUE;
+        double xmlLoad = Double.MAX_VALUE;
+        double pbfLoad = Double.MAX_VALUE;
+        long[] entities = new long[1];
+        for (int r = 0; r < INGEST_REPEATS; r += 1) {
+            start = System.nanoTime();
+            SAXParserFactory.newInstance().newSAXParser().parse(xml, new DefaultHandler());
+            xmlParse = Math.min(xmlParse, millisSince(start));
+            entities[0] = 0;
+            start = System.nanoTime();
+            PbfReader.read(pbf, oneThread,
+                    block -> entities[0] += block.numNodes() + block.numWays());
+            pbfParse = Math.min(pbfParse, millisSince(start));
+            start = System.nanoTime();
+            PbfReader.read(pbf, ForkJoinPool.commonPool(), block -> { });
+            pbfParallel = Math.min(pbfParallel, millisSince(start));
+            start = System.nanoTime();
+            new GraphDB(path);
+            xmlLoad = Math.min(xmlLoad, millisSince(start));
+            start = System.nanoTime();
+            new GraphDB(pbf.getPath());
+            pbfLoad = Math.min(pbfLoad, millisSince(start));
+        }
+        oneThread.shutdown();
+        System.out.printf("Parsed %d nodes and ways in %.0f ms from XML, %.0f ms from PBF on one "
+                        + "thread, %.0f ms from PBF on %d; loaded the graph in %.0f ms from XML, "
+                        + "%.0f ms from PBF.%n", entities[0], xmlParse, pbfParse, pbfParallel,
+                ForkJoinPool.commonPool().getParallelism(), xmlLoad, pbfLoad);
+    }
+
+    /**
+     * Compresses the map with gzip and bzip2 and times parsing each, decompressing on the
+     * parsing thread and on a thread of its own through the pipe of
+     * <code>DecompressingInput</code>.
+     */
+    private static void benchmarkCompressedInput(String path)
+            throws IOException, ParserConfigurationException, SAXException {
+        File xml = new File(path);
+        File gzip = File.createTempFile("ingest", ".osm.xml.gz");
+        gzip.deleteOnExit();
+        File bzip2 = File.createTempFile("ingest", ".osm.xml.bz2");
+        bzip2.deleteOnExit();
+        try (OutputStream gz = new GZIPOutputStream(new FileOutputStream(gzip));
+             OutputStream bz = new BZip2CompressorOutputStream(new FileOutputStream(bzip2))) {
+            byte[] bytes = Files.readAllBytes(xml.toPath());
+            gz.write(bytes);
+            bz.write(bytes);
+        }
+        SAXParser parser = SAXParserFactory.newInstance().newSAXParser();
+        double[] inline = {Double.MAX_VALUE, Double.MAX_VALUE};
+        double[] piped = {Double.MAX_VALUE, Double.MAX_VALUE};
+        for (int r = 0; r < INGEST_REPEATS; r += 1) {
+            for (int k = 0; k < 2; k += 1) {
+                File file = k == 0 ? gzip : bzip2;
+                long start = System.nanoTime();
+                try (InputStream raw = new BufferedInputStream(new FileInputStream(file));
+                     InputStream in = k == 0 ? new GZIPInputStream(raw)
+                             : new BZip2CompressorInputStream(raw, true)) {
+                    parser.parse(in, new DefaultHandler());
+                }
+                inline[k] = Math.min(inline[k], millisSince(start));
+                start = System.nanoTime();
+                try (InputStream in = DecompressingInput.open(file)) {
+                    parser.parse(in, new DefaultHandler());
+                }
+                piped[k] = Math.min(piped[k], millisSince(start));
+            }
+        }
+        System.out.printf("Parsed %.1f MB of gzip in %.0f ms decompressing inline, %.0f ms "
+                        + "through a %d KB pipe; %.1f MB of bzip2 in %.0f ms inline, %.0f ms "
+                        + "piped.%n", gzip.length() / 1e6, inline[0], piped[0],
+                DecompressingInput.CHUNKS * DecompressingInput.CHUNK_BYTES / 1024,
+                bzip2.length() / 1e6, inline[1], piped[1]);
+    }
+
+    static double[] randomLons(Random random, int n) {
+        double[] lons = new double[n];
+        for (int i = 0; i < n; i += 1) {
+            lons[i] = MapServer.ROOT_ULLON + random.nextDouble() * MapServer.ROOT_LON_DELTA;
+        }
+        return lons;
+    }
+
+    static double[] randomLats(Random random, int n) {
+        double[] lats = new double[n];
+        for (int i = 0; i < n; i += 1) {
+            lats[i] = MapServer.ROOT_LRLAT + random.nextDouble() * MapServer.ROOT_LAT_DELTA;
+        }
+        return lats;
+    }
+
+    static double millisSince(long start) {
+        return (System.nanoTime() - start) / 1e6;
+    }
+}
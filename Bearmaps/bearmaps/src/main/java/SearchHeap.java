@@ -0,0 +1,104 @@
+import java.util.Arrays;
+
+/**
+ * A binary min-heap of <code>int</code> items keyed by <code>double</code> priorities, stored in
+ * two parallel primitive arrays so that searches do not box every vertex they touch.
+ * <p>
+ * There is no decrease-key operation. Searches push an item again whenever its priority
+ * improves and skip the stale copies when they are popped.
+ */
+class SearchHeap {
+    private double[] keys;
+    private int[] items;
+    private int size;
+
+    /**
+     * Creates an empty heap.
+     *
+     * @param capacity The initial capacity; the heap grows as needed.
+     */
+    SearchHeap(int capacity) {
+        keys = new double[Math.max(capacity, 16)];
+        items = new int[keys.length];
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /** Removes every item, keeping the allocated arrays for reuse. */
+    void clear() {
+        size = 0;
+    }
+
+    /** Returns the smallest priority in the heap. The heap must not be empty. */
+    double minKey() {
+        return keys[0];
+    }
+
+    /** Returns the item with the smallest priority. The heap must not be empty. */
+    int min() {
+        return items[0];
+    }
+
+    /**
+     * Adds <code>item</code> with priority <code>key</code>.
+     *
+     * @param item The item to add.
+     * @param key  Its priority.
+     */
+    void push(int item, double key) {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            items = Arrays.copyOf(items, size * 2);
+        }
+        int i = size;
+        size += 1;
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (keys[parent] <= key) {
+                break;
+            }
+            keys[i] = keys[parent];
+            items[i] = items[parent];
+            i = parent;
+        }
+        keys[i] = key;
+        items[i] = item;
+    }
+
+    /**
+     * Removes and returns the item with the smallest priority. The heap must not be empty.
+     *
+     * @return The removed item.
+     */
+    int pop() {
+        int top = items[0];
+        size -= 1;
+        double key = keys[size];
+        int item = items[size];
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && keys[child + 1] < keys[child]) {
+                child += 1;
+            }
+            if (key <= keys[child]) {
+                break;
+            }
+            keys[i] = keys[child];
+            items[i] = items[child];
+            i = child;
+        }
+        keys[i] = key;
+        items[i] = item;
+        return top;
+    }
+}
@@ -0,0 +1,69 @@
+import java.util.Arrays;
+
+/**
+ * Per-thread scratch arrays for searches over the junction graph of one
+ * <code>CompactGraph</code>. Entries are tagged with the number of the search that wrote them,
+ * so starting a new search is O(1) instead of refilling arrays the size of the graph.
+ */
+class SearchWorkspace {
+    private static final ThreadLocal<SearchWorkspace> CURRENT = new ThreadLocal<>();
+
+    /** The graph these arrays are sized for. */
+    final CompactGraph graph;
+    /** A monotone heap for Dijkstra-style searches. */
+    final RadixHeap heap = new RadixHeap();
+    private final double[] dist;
+    private final int[] distMark;
+    private final int[] settledMark;
+    private int epoch;
+
+    private SearchWorkspace(CompactGraph graph) {
+        this.graph = graph;
+        int n = graph.numJunctions();
+        dist = new double[n];
+        distMark = new int[n];
+        settledMark = new int[n];
+    }
+
+    /**
+     * Returns this thread's workspace for <code>cg</code>, reset for a new search. A workspace
+     * for a different graph is replaced.
+     */
+    static SearchWorkspace acquire(CompactGraph cg) {
+        SearchWorkspace ws = CURRENT.get();
+        if (ws == null || ws.graph != cg) {
+            ws = new SearchWorkspace(cg);
+            CURRENT.set(ws);
+        }
+        ws.reset();
+        return ws;
+    }
+
+    private void reset() {
+        heap.clear();
+        epoch += 1;
+        if (epoch == Integer.MAX_VALUE) {
+            Arrays.fill(distMark, 0);
+            Arrays.fill(settledMark, 0);
+            epoch = 1;
+        }
+    }
+
+    /** Returns the tentative distance of junction j, or infinity if it has not been reached. */
+    double dist(int j) {
+        return distMark[j] == epoch ? dist[j] : Double.POSITIVE_INFINITY;
+    }
+
+    void setDist(int j, double d) {
+        dist[j] = d;
+        distMark[j] = epoch;
+    }
+
+    boolean isSettled(int j) {
+        return settledMark[j] == epoch;
+    }
+
+    void settle(int j) {
+        settledMark[j] = epoch;
+    }
+}
@@ -0,0 +1,228 @@
+import java.util.Arrays;
+
+/**
+ * An immutable uniform grid over line segments in the projected plane of
+ * <code>GraphDB.projectToX</code> and <code>GraphDB.projectToY</code>, answering which segment
+ * is closest to a point. Points are stored as segments of length zero.
+ * <p>
+ * Every segment is listed in each cell its bounding box overlaps, in one array ordered by
+ * cell. A query scans rings of cells around the point's cell, growing outwards, and stops as
+ * soon as the closest segment found is nearer than any cell not yet scanned. Coordinates are
+ * kept as <code>float</code> offsets from the corner of the grid, which is exact to well under
+ * a millimeter across a city.
+ */
+class SegmentGrid {
+    /** The smallest side of a cell in projected units, about 6 millimeters. */
+    private static final double MIN_CELL_SIZE = 1e-9;
+    /** The most cells along either side of the grid. */
+    private static final int MAX_CELLS_PER_SIDE = 4096;
+    /** Cell coordinates of a query are clamped to this so ring arithmetic cannot overflow. */
+    private static final int FAR_CELLS = 1 << 28;
+    private final double originX, originY;
+    private final double cellSize;
+    private final int cols, rows;
+    /** x1, y1, x2, y2 of segment i at 4 * i, relative to the origin. */
+    private final float[] coords;
+    /** Segments in cell (cx, cy) are cellItems[cellStart[c]] to cellItems[cellStart[c + 1]]. */
+    private final int[] cellStart;
+    private final int[] cellItems;
+
+    /**
+     * Builds a grid over <code>n</code> segments, with cells sized so that the average cell
+     * of the bounding box would hold <code>perCell</code> segments if each were a point.
+     *
+     * @param coords  x1, y1, x2, y2 of each segment in projected units, 4 per segment.
+     * @param n       The number of segments.
+     * @param perCell The number of segments per cell to aim for.
+     */
+    SegmentGrid(double[] coords, int n, double perCell) {
+        double minX = Double.POSITIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < n; i += 1) {
+            minX = Math.min(minX, Math.min(coords[4 * i], coords[4 * i + 2]));
+            maxX = Math.max(maxX, Math.max(coords[4 * i], coords[4 * i + 2]));
+            minY = Math.min(minY, Math.min(coords[4 * i + 1], coords[4 * i + 3]));
+            maxY = Math.max(maxY, Math.max(coords[4 * i + 1], coords[4 * i + 3]));
+        }
+        if (n == 0) {
+            minX = 0;
+            minY = 0;
+            maxX = 0;
+            maxY = 0;
+        }
+        this.originX = minX;
+        this.originY = minY;
+        /* A grid over points on one line has no area, so bound its cells by count too. */
+        this.cellSize = Math.max(MIN_CELL_SIZE, Math.max(
+                Math.sqrt((maxX - minX) * (maxY - minY) * perCell / Math.max(n, 1)),
+                Math.max(maxX - minX, maxY - minY) / MAX_CELLS_PER_SIDE));
+        this.cols = (int) ((maxX - minX) / cellSize) + 1;
+        this.rows = (int) ((maxY - minY) / cellSize) + 1;
+        this.coords = new float[4 * n];
+        for (int i = 0; i < n; i += 1) {
+            this.coords[4 * i] = (float) (coords[4 * i] - minX);
+            this.coords[4 * i + 1] = (float) (coords[4 * i + 1] - minY);
+            this.coords[4 * i + 2] = (float) (coords[4 * i + 2] - minX);
+            this.coords[4 * i + 3] = (float) (coords[4 * i + 3] - minY);
+        }
+
+        /* Count the segments in each cell, then fill them in, as in a CSR graph. */
+        cellStart = new int[cols * rows + 1];
+        for (int i = 0; i < n; i += 1) {
+            for (int c : cells(i)) {
+                cellStart[c + 1] += 1;
+            }
+        }
+        for (int c = 0; c < cols * rows; c += 1) {
+            cellStart[c + 1] += cellStart[c];
+        }
+        cellItems = new int[cellStart[cols * rows]];
+        int[] fill = Arrays.copyOf(cellStart, cols * rows);
+        for (int i = 0; i < n; i += 1) {
+            for (int c : cells(i)) {
+                cellItems[fill[c]] = i;
+                fill[c] += 1;
+            }
+        }
+    }
+
+    /** Returns the cells the bounding box of segment <code>i</code> overlaps. */
+    private int[] cells(int i) {
+        int cx1 = cellX(Math.min(coords[4 * i], coords[4 * i + 2]));
+        int cx2 = cellX(Math.max(coords[4 * i], coords[4 * i + 2]));
+        int cy1 = cellY(Math.min(coords[4 * i + 1], coords[4 * i + 3]));
+        int cy2 = cellY(Math.max(coords[4 * i + 1], coords[4 * i + 3]));
+        int[] cells = new int[(cx2 - cx1 + 1) * (cy2 - cy1 + 1)];
+        int k = 0;
+        for (int cy = cy1; cy <= cy2; cy += 1) {
+            for (int cx = cx1; cx <= cx2; cx += 1) {
+                cells[k] = cy * cols + cx;
+                k += 1;
+            }
+        }
+        return cells;
+    }
+
+    private int cellX(double x) {
+        return Math.max(0, Math.min(cols - 1, (int) Math.floor(x / cellSize)));
+    }
+
+    private int cellY(double y) {
+        return Math.max(0, Math.min(rows - 1, (int) Math.floor(y / cellSize)));
+    }
+
+    /**
+     * Returns the segment closest to a point.
+     *
+     * @param x The projected x-coordinate of the point.
+     * @param y The projected y-coordinate of the point.
+     * @return The index of the closest segment, or -1 if there are none.
+     */
+    int nearest(double x, double y) {
+        if (cellItems.length == 0) {
+            return -1;
+        }
+        double px = x - originX;
+        double py = y - originY;
+        int cx = (int) Math.max(-FAR_CELLS, Math.min(FAR_CELLS, Math.floor(px / cellSize)));
+        int cy = (int) Math.max(-FAR_CELLS, Math.min(FAR_CELLS, Math.floor(py / cellSize)));
+        int best = -1;
+        double[] bestDist = {Double.POSITIVE_INFINITY};
+        /* Rings closer than the grid itself hold no cells. */
+        int first = Math.max(Math.max(-cx, cx - cols + 1), Math.max(-cy, cy - rows + 1));
+        for (int r = Math.max(0, first); ; r += 1) {
+            int x1 = Math.max(0, cx - r);
+            int x2 = Math.min(cols - 1, cx + r);
+            int y1 = Math.max(0, cy - r);
+            int y2 = Math.min(rows - 1, cy + r);
+            for (int gy = y1; gy <= y2; gy += 1) {
+                if (gy == cy - r || gy == cy + r) {
+                    for (int gx = x1; gx <= x2; gx += 1) {
+                        best = scan(gy * cols + gx, px, py, best, bestDist);
+                    }
+                    continue;
+                }
+                /* Between the ring's top and bottom rows only its two side columns are new. */
+                if (cx - r >= 0 && cx - r < cols) {
+                    best = scan(gy * cols + cx - r, px, py, best, bestDist);
+                }
+                if (cx + r >= 0 && cx + r < cols) {
+                    best = scan(gy * cols + cx + r, px, py, best, bestDist);
+                }
+            }
+            if (x1 == 0 && y1 == 0 && x2 == cols - 1 && y2 == rows - 1) {
+                return best;
+            }
+            /* Segments not yet seen lie wholly outside the square of scanned cells. */
+            double margin = Math.min(Math.min(px - (cx - r) * cellSize,
+                    (cx + r + 1) * cellSize - px),
+                    Math.min(py - (cy - r) * cellSize, (cy + r + 1) * cellSize - py));
+            if (best >= 0 && bestDist[0] <= margin * margin) {
+                return best;
+            }
+        }
+    }
+
+    /**
+     * Checks the segments in cell <code>c</code> against the closest one so far, whose squared
+     * distance is in <code>bestDist[0]</code>, and returns the closest one after.
+     */
+    private int scan(int c, double px, double py, int best, double[] bestDist) {
+        for (int k = cellStart[c]; k < cellStart[c + 1]; k += 1) {
+            int i = cellItems[k];
+            double d = squaredDistance(i, px, py);
+            if (d < bestDist[0]) {
+                bestDist[0] = d;
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    /** Returns the distance in projected units from a point to segment <code>i</code>. */
+    double distance(int i, double x, double y) {
+        return Math.sqrt(squaredDistance(i, x - originX, y - originY));
+    }
+
+    /**
+     * Returns the projected x- and y-coordinates of the point on segment <code>i</code>
+     * closest to (x, y).
+     */
+    double[] closestPoint(int i, double x, double y) {
+        double t = fractionRelative(i, x - originX, y - originY);
+        return new double[]{
+            originX + coords[4 * i] + t * (coords[4 * i + 2] - coords[4 * i]),
+            originY + coords[4 * i + 1] + t * (coords[4 * i + 3] - coords[4 * i + 1])
+        };
+    }
+
+    /**
+     * Returns how far along segment <code>i</code> the point on it closest to (px, py), given
+     * relative to the origin, lies, from 0 at its first end to 1 at its second.
+     */
+    private double fractionRelative(int i, double px, double py) {
+        double x1 = coords[4 * i];
+        double y1 = coords[4 * i + 1];
+        double dx = coords[4 * i + 2] - x1;
+        double dy = coords[4 * i + 3] - y1;
+        double length = dx * dx + dy * dy;
+        if (length == 0) {
+            return 0;
+        }
+        return Math.max(0, Math.min(1, ((px - x1) * dx + (py - y1) * dy) / length));
+    }
+
+    private double squaredDistance(int i, double px, double py) {
+        double t = fractionRelative(i, px, py);
+        double dx = coords[4 * i] + t * (coords[4 * i + 2] - coords[4 * i]) - px;
+        double dy = coords[4 * i + 1] + t * (coords[4 * i + 3] - coords[4 * i + 1]) - py;
+        return dx * dx + dy * dy;
+    }
+
+    /** Returns the bytes the grid's arrays take, not counting object headers. */
+    long bytes() {
+        return 4L * (coords.length + cellStart.length + cellItems.length);
+    }
+}
@@ -0,0 +1,436 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Finds the location names whose cleaned form contains a cleaned query anywhere, so that
+ * "wheeler" finds "Wheeler Hall" and "hall" finds it too.
+ * <p>
+ * Cleaned names only hold spaces and the letters a to z, so each of their bigrams and
+ * trigrams, the runs of two and three consecutive characters, has one of 27 * 27 or
+ * 27 * 27 * 27 codes. The index keeps, for every such gram, the sorted list of names
+ * containing it, with a space put before each name so that the grams of a space and a query
+ * find the names with a word starting with the query. Each list is cut into blocks of
+ * <code>BLOCK</code> names: the first name of a block is kept as a plain int next to the
+ * block's byte offset, and the others as varint-coded gaps from the name before. A query
+ * walks the shortest list of its grams and looks each name up in the others, galloping over
+ * their block heads to skip whole blocks and decoding only the blocks that may hold it. The
+ * names in every list are then checked for the query itself, since holding its grams does
+ * not mean holding it.
+ * <p>
+ * Names are numbered from shortest to longest, so within one tier of the ranking the
+ * candidates come best first and a query can stop as soon as it has enough. Names with a word
+ * starting with the query rank first, so they are looked for first, and names holding it
+ * only mid-word are looked for only if there are too few.
+ * <p>
+ * Names are handles into a <code>NameArena</code>, and candidates are checked against the
+ * cleaned forms stored there, so a query allocates nothing per name it looks at and decodes
+ * only the names it returns. Instances are immutable.
+ */
+class SubstringIndex {
+    /** Names decoded together; a block's first name is stored whole. */
+    private static final int BLOCK = 32;
+    /** Names walked between checks for cancellation. */
+    private static final int CANCEL_CHECK_INTERVAL = 1024;
+    private static final int ALPHABET = 27;
+    /** Trigrams have codes below this, and bigrams the codes after. */
+    private static final int NUM_TRIGRAMS = ALPHABET * ALPHABET * ALPHABET;
+    private static final int NUM_GRAMS = NUM_TRIGRAMS + ALPHABET * ALPHABET;
+
+    private final NameArena arena;
+    /** Handles of full names, ordered by length, then by cleaned name and then by full name. */
+    private final int[] names;
+    /** Handles of the cleaned form of each name. */
+    private final int[] cleaned;
+    /** The blocks of gram t are blockStart[t] to blockStart[t + 1]. */
+    private final int[] blockStart;
+    /** Number of names containing each gram. */
+    private final int[] postingCount;
+    /** First name of each block. */
+    private final int[] blockFirst;
+    /** Offset in <code>gaps</code> of each block's varint gaps. */
+    private final int[] blockOffset;
+    private final byte[] gaps;
+
+    /**
+     * Indexes names for substring search, storing them in an arena of its own.
+     *
+     * @param fullNames The names; each one is returned as given.
+     */
+    SubstringIndex(List<String> fullNames) {
+        this(new NameArena(), fullNames);
+    }
+
+    private SubstringIndex(NameArena arena, List<String> fullNames) {
+        this(arena, arena.internAll(fullNames));
+    }
+
+    /**
+     * Indexes interned names for substring search.
+     *
+     * @param arena     The arena the names are interned in.
+     * @param fullNames The handles of the names; each name is returned as interned.
+     */
+    SubstringIndex(NameArena arena, int[] fullNames) {
+        this.arena = arena;
+        int n = fullNames.length;
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i += 1) {
+            order[i] = fullNames[i];
+        }
+        Arrays.sort(order, Comparator.<Integer>comparingInt(h -> arena.length(arena.cleaned(h)))
+                .thenComparing((a, b) -> arena.compare(arena.cleaned(a), arena.cleaned(b)))
+                .thenComparing(arena::compare));
+        names = new int[n];
+        cleaned = new int[n];
+        for (int i = 0; i < n; i += 1) {
+            names[i] = order[i];
+            cleaned[i] = arena.cleaned(order[i]);
+        }
+
+        /* Count the names holding each gram, then fill in the lists, as in a CSR graph. */
+        int[][] grams = new int[n][];
+        postingCount = new int[NUM_GRAMS];
+        for (int i = 0; i < n; i += 1) {
+            /* A leading space makes the starts of words, the first one included, grams. */
+            int length = arena.length(cleaned[i]);
+            byte[] s = new byte[length + 1];
+            s[0] = ' ';
+            for (int j = 0; j < length; j += 1) {
+                s[j + 1] = arena.byteAt(cleaned[i], j);
+            }
+            grams[i] = grams(s, true);
+            for (int t : grams[i]) {
+                postingCount[t] += 1;
+            }
+        }
+        int[] postingStart = new int[NUM_GRAMS + 1];
+        blockStart = new int[NUM_GRAMS + 1];
+        for (int t = 0; t < NUM_GRAMS; t += 1) {
+            postingStart[t + 1] = postingStart[t] + postingCount[t];
+            blockStart[t + 1] = blockStart[t] + (postingCount[t] + BLOCK - 1) / BLOCK;
+        }
+        int[] postings = new int[postingStart[NUM_GRAMS]];
+        int[] fill = Arrays.copyOf(postingStart, NUM_GRAMS);
+        for (int i = 0; i < n; i += 1) {
+            for (int t : grams[i]) {
+                postings[fill[t]] = i;
+                fill[t] += 1;
+            }
+        }
+
+        blockFirst = new int[blockStart[NUM_GRAMS]];
+        blockOffset = new int[blockStart[NUM_GRAMS]];
+        byte[] out = new byte[5 * postings.length];
+        int size = 0;
+        for (int t = 0; t < NUM_GRAMS; t += 1) {
+            for (int p = postingStart[t]; p < postingStart[t + 1]; p += 1) {
+                int b = blockStart[t] + (p - postingStart[t]) / BLOCK;
+                if ((p - postingStart[t]) % BLOCK == 0) {
+                    blockFirst[b] = postings[p];
+                    blockOffset[b] = size;
+                    continue;
+                }
+                for (int gap = postings[p] - postings[p - 1]; ; gap >>>= 7) {
+                    if (gap < 0x80) {
+                        out[size] = (byte) gap;
+                        size += 1;
+                        break;
+                    }
+                    out[size] = (byte) (gap & 0x7f | 0x80);
+                    size += 1;
+                }
+            }
+        }
+        gaps = Arrays.copyOf(out, size);
+    }
+
+    /**
+     * Returns the distinct gram codes of a cleaned string in increasing order: its trigrams,
+     * and also its bigrams if <code>withBigrams</code> is set or it has no trigram.
+     */
+    private static int[] grams(byte[] s, boolean withBigrams) {
+        boolean bigrams = withBigrams || s.length < 3;
+        int[] codes = new int[Math.max(0, s.length - 2) + (bigrams ? s.length : 0)];
+        int k = 0;
+        for (int i = 0; i + 3 <= s.length; i += 1) {
+            codes[k] = (code(s[i]) * ALPHABET + code(s[i + 1])) * ALPHABET + code(s[i + 2]);
+            k += 1;
+        }
+        for (int i = 0; bigrams && i + 2 <= s.length; i += 1) {
+            codes[k] = NUM_TRIGRAMS + code(s[i]) * ALPHABET + code(s[i + 1]);
+            k += 1;
+        }
+        Arrays.sort(codes, 0, k);
+        int distinct = 0;
+        for (int i = 0; i < k; i += 1) {
+            if (i == 0 || codes[i] != codes[i - 1]) {
+                codes[distinct] = codes[i];
+                distinct += 1;
+            }
+        }
+        return Arrays.copyOf(codes, distinct);
+    }
+
+    /** Returns 0 for a space and 1 to 26 for the letters a to z. */
+    private static int code(byte c) {
+        return c == ' ' ? 0 : c - 'a' + 1;
+    }
+
+    /**
+     * Returns the names whose cleaned form contains the cleaned query, best first: names that
+     * start with it, then names with a word that starts with it, then the rest, each group
+     * from shortest to longest and then alphabetically. A query of one character only
+     * matches at the start of a word.
+     *
+     * @param query The query, in any case and with or without punctuation, or null.
+     * @param limit The most names to return.
+     * @return Up to <code>limit</code> full names.
+     */
+    List<String> search(String query, int limit) {
+        return search(query, limit, () -> false);
+    }
+
+    /**
+     * Returns the names whose cleaned form contains the cleaned query, best first, giving up
+     * early once <code>cancelled</code> returns true.
+     *
+     * @param query     The query, in any case and with or without punctuation, or null.
+     * @param limit     The most names to return.
+     * @param cancelled Checked now and then during the search.
+     * @return Up to <code>limit</code> full names, possibly not the best ones if cancelled.
+     */
+    List<String> search(String query, int limit, BooleanSupplier cancelled) {
+        String cleanQuery = query == null ? "" : GraphDB.cleanString(query);
+        if (cleanQuery.isEmpty() || limit <= 0) {
+            return new ArrayList<>();
+        }
+        byte[] q = cleanQuery.getBytes(StandardCharsets.US_ASCII);
+        byte[] wordStart = (" " + cleanQuery).getBytes(StandardCharsets.US_ASCII);
+        Best best = new Best(limit);
+        /*
+         * Names with a word starting with the query hold the grams of a space and the query,
+         * a rarer set than the query's own. Look there first, and for the names that only
+         * hold the query mid-word only if that found too few. A single letter mid-word says
+         * too little to be worth a scan of every name, so it is not looked for.
+         */
+        offerAll(wordStart, q, wordStart, 0, 1, best, cancelled);
+        if (best.size < limit && q.length > 1 && !cancelled.getAsBoolean()) {
+            offerAll(q, q, wordStart, 2, 2, best, cancelled);
+        }
+        return best.names();
+    }
+
+    /**
+     * Offers the names holding every gram of <code>grams</code> that match <code>q</code> in
+     * tiers <code>minTier</code> to <code>maxTier</code>: 0 if they start with it, 1 if a
+     * later word does, and 2 if they only hold it mid-word. The shortest list leads and each
+     * of its names is looked up in the others, so the walk can stop as soon as no later name
+     * could be kept, or once <code>cancelled</code> returns true. <code>grams</code> must be
+     * at least two characters long, and <code>wordStart</code> is a space and <code>q</code>.
+     */
+    private void offerAll(byte[] grams, byte[] q, byte[] wordStart, int minTier, int maxTier,
+                          Best best, BooleanSupplier cancelled) {
+        int[] codes = grams(grams, false);
+        Cursor[] cursors = new Cursor[codes.length];
+        for (int i = 0; i < codes.length; i += 1) {
+            cursors[i] = new Cursor(codes[i]);
+        }
+        Arrays.sort(cursors, Comparator.comparingInt(c -> postingCount[c.gram]));
+        for (int walked = 1; ; walked += 1) {
+            if (walked % CANCEL_CHECK_INTERVAL == 0 && cancelled.getAsBoolean()) {
+                return;
+            }
+            if (best.isFull() && best.worstTier() <= minTier) {
+                /* Later names are as long or longer, so no better in any tier. */
+                return;
+            }
+            int i = cursors[0].next();
+            if (i < 0) {
+                return;
+            }
+            boolean all = true;
+            for (int c = 1; c < cursors.length && all; c += 1) {
+                all = cursors[c].contains(i);
+            }
+            if (!all) {
+                continue;
+            }
+            int c = cleaned[i];
+            int tier = arena.startsWith(c, q) ? 0 : arena.indexOf(c, wordStart) >= 0 ? 1
+                    : arena.indexOf(c, q) >= 0 ? 2 : -1;
+            if (tier >= minTier && tier <= maxTier) {
+                best.offer((long) tier << 32 | i);
+            }
+        }
+    }
+
+    /** The best matches so far, as a max-heap of rank keys, so only those are ever sorted. */
+    private class Best {
+        private final long[] keys;
+        private int size;
+
+        Best(int limit) {
+            keys = new long[limit];
+        }
+
+        boolean isFull() {
+            return size == keys.length;
+        }
+
+        /** Returns the tier of the worst match kept. */
+        int worstTier() {
+            return (int) (keys[0] >>> 32);
+        }
+
+        void offer(long key) {
+            if (size < keys.length) {
+                int j = size;
+                size += 1;
+                while (j > 0 && keys[(j - 1) / 2] < key) {
+                    keys[j] = keys[(j - 1) / 2];
+                    j = (j - 1) / 2;
+                }
+                keys[j] = key;
+            } else if (key < keys[0]) {
+                int j = 0;
+                while (2 * j + 1 < size) {
+                    int child = 2 * j + 1;
+                    if (child + 1 < size && keys[child + 1] > keys[child]) {
+                        child += 1;
+                    }
+                    if (keys[child] <= key) {
+                        break;
+                    }
+                    keys[j] = keys[child];
+                    j = child;
+                }
+                keys[j] = key;
+            }
+        }
+
+        /** Returns the full names of the matches, best first. */
+        List<String> names() {
+            long[] ranked = Arrays.copyOf(keys, size);
+            Arrays.sort(ranked);
+            List<String> result = new ArrayList<>();
+            for (long key : ranked) {
+                result.add(arena.get(names[(int) key]));
+            }
+            return result;
+        }
+    }
+
+    /** A position in the posting list of one gram, decoding a block at a time. */
+    private class Cursor {
+        private final int gram;
+        private final int end;
+        private final int[] block = new int[BLOCK];
+        /** The block decoded into <code>block</code>, and its length. */
+        private int b;
+        private int count;
+        private int pos;
+
+        Cursor(int gram) {
+            this.gram = gram;
+            this.end = blockStart[gram + 1];
+            this.b = blockStart[gram];
+            this.count = b < end ? decode(b) : 0;
+        }
+
+        /** Decodes block <code>b</code> and returns its length. */
+        private int decode(int b) {
+            int n = Math.min(BLOCK, postingCount[gram] - (b - blockStart[gram]) * BLOCK);
+            int at = blockOffset[b];
+            int value = blockFirst[b];
+            block[0] = value;
+            for (int i = 1; i < n; i += 1) {
+                int gap = 0;
+                for (int shift = 0; ; shift += 7) {
+                    byte x = gaps[at];
+                    at += 1;
+                    gap |= (x & 0x7f) << shift;
+                    if (x >= 0) {
+                        break;
+                    }
+                }
+                value += gap;
+                block[i] = value;
+            }
+            pos = 0;
+            return n;
+        }
+
+        /** Returns the next name of the list, or -1 past its end. */
+        int next() {
+            if (pos == count) {
+                if (b + 1 >= end) {
+                    return -1;
+                }
+                b += 1;
+                count = decode(b);
+            }
+            pos += 1;
+            return block[pos - 1];
+        }
+
+        /**
+         * Returns whether the list holds name <code>v</code>, which must not be below any name
+         * asked about before. The block that may hold it is found by galloping over the block
+         * heads from the current block, and is decoded only if it is a different one.
+         */
+        boolean contains(int v) {
+            if (count == 0 || block[0] > v) {
+                return false;
+            }
+            int step = 1;
+            int lo = b;
+            int hi = b + 1;
+            while (hi < end && blockFirst[hi] <= v) {
+                lo = hi;
+                hi += step;
+                step *= 2;
+            }
+            hi = Math.min(hi, end);
+            while (hi - lo > 1) {
+                int mid = (lo + hi) >>> 1;
+                if (blockFirst[mid] <= v) {
+                    lo = mid;
+                } else {
+                    hi = mid;
+                }
+            }
+            if (lo != b) {
+                b = lo;
+                count = decode(b);
+            }
+            while (pos < count && block[pos] < v) {
+                pos += 1;
+            }
+            return pos < count && block[pos] == v;
+        }
+    }
+
+    /** Returns the number of names indexed. */
+    int size() {
+        return names.length;
+    }
+
+    /** Returns the bytes the posting lists take, not counting the names themselves. */
+    long bytes() {
+        return 4L * (blockStart.length + postingCount.length + blockFirst.length
+                + blockOffset.length) + gaps.length;
+    }
+
+    /** Returns the bytes the posting lists would take as plain int arrays, for comparison. */
+    long uncompressedBytes() {
+        long postings = 0;
+        for (int c : postingCount) {
+            postings += c;
+        }
+        return 4L * (NUM_GRAMS + 1 + postings);
+    }
+}
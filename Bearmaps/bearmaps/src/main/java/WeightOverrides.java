@@ -0,0 +1,89 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A batch of travel speed overrides, for example from a live traffic feed, to apply to a
+ * <code>GraphDB</code> with <code>applyWeightOverrides</code>. A speed can be set for every
+ * segment of a way, or for the single road segment between two adjacent vertices; a segment
+ * override wins over a way override in the same batch. Overrides change travel times only,
+ * since distances do not depend on speed.
+ */
+public class WeightOverrides {
+    private final Map<Long, Float> waySpeeds = new HashMap<>();
+    private final List<long[]> edges = new ArrayList<>();
+    private final List<Float> edgeSpeeds = new ArrayList<>();
+
+    /**
+     * Sets the speed of every segment of a way.
+     *
+     * @param wayID The OSM id of the way.
+     * @param mph   The new speed in miles per hour; must be positive.
+     * @return This batch, for chaining.
+     */
+    public WeightOverrides setWaySpeed(long wayID, double mph) {
+        waySpeeds.put(wayID, checkSpeed(mph));
+        return this;
+    }
+
+    /**
+     * Sets the speed of the road segment between two adjacent vertices, in both directions.
+     * Pairs that are not adjacent in the graph are ignored when the batch is applied.
+     *
+     * @param fromID The OSM id of one end of the segment.
+     * @param toID   The OSM id of the other end.
+     * @param mph    The new speed in miles per hour; must be positive.
+     * @return This batch, for chaining.
+     */
+    public WeightOverrides setEdgeSpeed(long fromID, long toID, double mph) {
+        edges.add(new long[]{fromID, toID});
+        edgeSpeeds.add(checkSpeed(mph));
+        return this;
+    }
+
+    /** Returns the number of overrides in the batch. */
+    public int size() {
+        return waySpeeds.size() + edges.size();
+    }
+
+    private static float checkSpeed(double mph) {
+        if (!(mph > 0) || Double.isInfinite(mph)) {
+            throw new IllegalArgumentException("Speed must be positive and finite: " + mph);
+        }
+        return (float) mph;
+    }
+
+    /**
+     * Returns the overridden speed of each way index, or NaN where the batch leaves it alone.
+     *
+     * @param wayIds The OSM id of each way index.
+     */
+    float[] waySpeeds(long[] wayIds) {
+        float[] speeds = new float[wayIds.length];
+        Arrays.fill(speeds, Float.NaN);
+        if (waySpeeds.isEmpty()) {
+            return speeds;
+        }
+        for (int k = 0; k < wayIds.length; k += 1) {
+            Float speed = waySpeeds.get(wayIds[k]);
+            if (speed != null) {
+                speeds[k] = speed;
+            }
+        }
+        return speeds;
+    }
+
+    /** Calls <code>consumer</code> with every segment override, in the order they were set. */
+    void forEachEdge(EdgeConsumer consumer) {
+        for (int i = 0; i < edges.size(); i += 1) {
+            consumer.accept(edges.get(i)[0], edges.get(i)[1], edgeSpeeds.get(i));
+        }
+    }
+
+    /** Receives one segment override. */
+    interface EdgeConsumer {
+        void accept(long fromID, long toID, float mph);
+    }
+}
@@ -325,7 +325,7 @@ $(function() {
 
     /* Make search bar do autocomplete things */
     $('#tags').autocomplete({
-          source: search,
+          source: search + '?infix=true',
           minLength: 2,
           select: function (event, ui) {
               $.get({
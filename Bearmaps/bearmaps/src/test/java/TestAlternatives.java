@@ -0,0 +1,112 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for plateau-based alternative routes on the tiny graph.
+ */
+public class TestAlternatives {
+    private static final String OSM_DB_PATH_TINY = "../library-su18/bearmaps/tiny-clean.osm.xml";
+    private static final List<Long> NORTHWEST = Arrays.asList(22L, 46L, 66L);
+    private static GraphDB graphTiny;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        graphTiny = new GraphDB(OSM_DB_PATH_TINY);
+        initialized = true;
+    }
+
+    @Test
+    public void testBestRouteComesFirst() {
+        List<List<Long>> routes = Router.alternatives(graphTiny, -122.27, 37.84, -122.23, 37.88, 3);
+        assertEquals(NORTHWEST, routes.get(0));
+        assertEquals(Router.shortestPath(graphTiny, -122.25, 37.83, -122.25, 37.88),
+                Router.alternatives(graphTiny, -122.25, 37.83, -122.25, 37.88, 3).get(0));
+    }
+
+    @Test
+    public void testFindsDisjointDetour() {
+        List<List<Long>> routes = Router.alternatives(graphTiny, -122.24, 37.87, -122.25, 37.88, 3);
+        assertEquals(2, routes.size());
+        assertEquals(Arrays.asList(55L, 63L, 66L, 46L), routes.get(0));
+        assertEquals(Arrays.asList(55L, 22L, 46L), routes.get(1));
+    }
+
+    @Test
+    public void testRejectsLongDetour() {
+        /* The scenic route from 22 to 66 is about 1.5 times as long as the best one. */
+        List<List<Long>> routes = Router.alternatives(graphTiny, -122.27, 37.84, -122.23, 37.88, 3);
+        assertEquals(Arrays.asList(NORTHWEST), routes);
+    }
+
+    @Test
+    public void testOneRouteWhenOnlyOneAsked() {
+        List<List<Long>> routes = Router.alternatives(graphTiny, -122.27, 37.84, -122.23, 37.88, 1);
+        assertEquals(1, routes.size());
+        assertEquals(NORTHWEST, routes.get(0));
+    }
+
+    @Test
+    public void testAlternativesAreSimpleAndDistinct() {
+        double[][] pairs = {
+            {-122.27, 37.84, -122.23, 37.88},
+            {-122.25, 37.83, -122.25, 37.88},
+            {-122.28, 37.83, -122.24, 37.87},
+            {-122.23, 37.88, -122.27, 37.84},
+        };
+        for (double[] p : pairs) {
+            List<List<Long>> routes = Router.alternatives(graphTiny, p[0], p[1], p[2], p[3], 4);
+            for (int i = 0; i < routes.size(); i += 1) {
+                List<Long> route = routes.get(i);
+                assertEquals(route.size(), new HashSet<>(route).size());
+                assertEquals(routes.get(0).get(0), route.get(0));
+                assertEquals(routes.get(0).get(routes.get(0).size() - 1),
+                        route.get(route.size() - 1));
+                for (int j = 0; j < i; j += 1) {
+                    assertNotEquals(routes.get(j), route);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testUnreachableGivesNoRoutes() {
+        RouteRequestParams params = new RouteRequestParams.Builder()
+                .setStartLon(-122.27).setStartLat(37.84)
+                .setEndLon(-122.23).setEndLat(37.88)
+                .addAvoidArea(-122.235, 37.875, -122.225, 37.875, -122.225, 37.885,
+                        -122.235, 37.885)
+                .create();
+        assertTrue(Router.alternatives(graphTiny, params, 3).isEmpty());
+    }
+
+    @Test
+    public void testAlternativesParam() {
+        Map<String, String[]> query = new HashMap<>();
+        query.put("start_lon", new String[]{"-122.27"});
+        query.put("start_lat", new String[]{"37.84"});
+        query.put("end_lon", new String[]{"-122.23"});
+        query.put("end_lat", new String[]{"37.88"});
+        assertEquals(0, RouteRequestParams.from(query).alternatives);
+        query.put("alternatives", new String[]{"2"});
+        assertEquals(2, RouteRequestParams.from(query).alternatives);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTooManyAlternatives() {
+        new RouteRequestParams.Builder().setAlternatives(RouteRequestParams.MAX_ALTERNATIVES + 1);
+    }
+}
@@ -0,0 +1,120 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for routing around closed ways and avoided areas on the tiny graph.
+ */
+public class TestAvoid {
+    private static final String OSM_DB_PATH_TINY = "../library-su18/bearmaps/tiny-clean.osm.xml";
+    private static final long NORTHWEST_WAY = 224666L;
+    private static final List<Long> NORTHWEST = Arrays.asList(22L, 46L, 66L);
+    private static final List<Long> SCENIC = Arrays.asList(22L, 55L, 63L, 66L);
+    private static GraphDB graphTiny;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        graphTiny = new GraphDB(OSM_DB_PATH_TINY);
+        initialized = true;
+    }
+
+    /** Returns a request from vertex 22 to vertex 66. */
+    private static RouteRequestParams.Builder from22To66() {
+        return new RouteRequestParams.Builder()
+                .setStartLon(-122.27).setStartLat(37.84)
+                .setEndLon(-122.23).setEndLat(37.88);
+    }
+
+    /** Returns the corners of a small square around a point. */
+    private static double[] squareAround(double lon, double lat) {
+        double h = 0.002;
+        return new double[]{lon - h, lat - h, lon + h, lat - h, lon + h, lat + h, lon - h, lat + h};
+    }
+
+    @Test
+    public void testNothingAvoided() {
+        assertEquals(NORTHWEST, Router.shortestPath(graphTiny, from22To66().create()));
+    }
+
+    @Test
+    public void testClosedWay() {
+        RouteRequestParams params = from22To66().setAvoidWays(NORTHWEST_WAY).create();
+        assertEquals(SCENIC, Router.shortestPath(graphTiny, params));
+    }
+
+    @Test
+    public void testAvoidArea() {
+        RouteRequestParams params = from22To66().addAvoidArea(squareAround(-122.25, 37.88))
+                .create();
+        assertEquals(SCENIC, Router.shortestPath(graphTiny, params));
+    }
+
+    @Test
+    public void testAreaAndClosedWay() {
+        RouteRequestParams params = from22To66().setAvoidWays(NORTHWEST_WAY)
+                .addAvoidArea(squareAround(-122.24, 37.87)).create();
+        assertEquals(Arrays.asList(22L, 11L, 41L, 63L, 66L),
+                Router.shortestPath(graphTiny, params));
+    }
+
+    @Test
+    public void testAvoidedDestination() {
+        RouteRequestParams params = from22To66().addAvoidArea(squareAround(-122.23, 37.88))
+                .create();
+        assertTrue(Router.shortestPath(graphTiny, params).isEmpty());
+    }
+
+    @Test
+    public void testPooledSetIsCleared() {
+        AvoidSet first = AvoidSet.acquire(graphTiny);
+        first.avoidWay(graphTiny, NORTHWEST_WAY);
+        assertFalse(first.isEmpty());
+        AvoidSet second = AvoidSet.acquire(graphTiny);
+        assertSame(first, second);
+        assertTrue(second.isEmpty());
+        for (int c = 0; c < graphTiny.getCompactGraph().chainFrom.length; c += 1) {
+            assertFalse(second.blocksChain(c));
+        }
+    }
+
+    @Test
+    public void testParseRequest() {
+        Map<String, String[]> req = new HashMap<>();
+        req.put("start_lon", new String[]{"-122.27"});
+        req.put("start_lat", new String[]{"37.84"});
+        req.put("end_lon", new String[]{"-122.23"});
+        req.put("end_lat", new String[]{"37.88"});
+        req.put("avoid_ways", new String[]{"224666, 1122"});
+        req.put("avoid_areas", new String[]{"-122.3,37.8;-122.2,37.8;-122.2,37.9|1,1;2,1;2,2"});
+        RouteRequestParams params = RouteRequestParams.from(req);
+        assertTrue(params.hasAvoid());
+        assertEquals(2, params.avoidWays.length);
+        assertEquals(1122L, params.avoidWays[1]);
+        assertEquals(2, params.avoidAreas.size());
+        assertEquals(6, params.avoidAreas.get(1).length);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsDegenerateArea() {
+        Map<String, String[]> req = new HashMap<>();
+        req.put("start_lon", new String[]{"-122.27"});
+        req.put("start_lat", new String[]{"37.84"});
+        req.put("end_lon", new String[]{"-122.23"});
+        req.put("end_lat", new String[]{"37.88"});
+        req.put("avoid_areas", new String[]{"-122.3,37.8;-122.2,37.8"});
+        RouteRequestParams.from(req);
+    }
+}
@@ -0,0 +1,140 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the chain-compressed search graph on the tiny graph. Only 22 and 63 have more than
+ * two neighbors, so every other vertex is the interior of one of three chains between them.
+ */
+public class TestCompactGraph {
+    private static final String OSM_DB_PATH_TINY = "../library-su18/bearmaps/tiny-clean.osm.xml";
+    private static GraphDB graphTiny;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        graphTiny = new GraphDB(OSM_DB_PATH_TINY);
+        initialized = true;
+    }
+
+    @Test
+    public void testCounts() {
+        CompactGraph cg = graphTiny.getCompactGraph();
+        assertEquals(7, cg.numVertices());
+        assertEquals(16, cg.numArcs());
+        assertEquals(2, cg.numJunctions());
+        assertEquals(6, cg.numJunctionArcs());
+    }
+
+    @Test
+    public void testJunctions() {
+        CompactGraph cg = graphTiny.getCompactGraph();
+        for (long id : graphTiny.vertices()) {
+            int v = cg.indexOf(id);
+            boolean junction = id == 22L || id == 63L;
+            assertEquals(junction, cg.junctionOf[v] != CompactGraph.NONE);
+            assertEquals(junction, cg.vertexChain[v] == CompactGraph.NONE);
+        }
+    }
+
+    @Test
+    public void testHilbertOrder() {
+        CompactGraph cg = graphTiny.getCompactGraph();
+        for (int v = 0; v < cg.numVertices(); v += 1) {
+            assertEquals(v, cg.indexOf(cg.id(v)));
+        }
+        assertEquals(CompactGraph.NONE, cg.indexOf(12345L));
+        /* Consecutive positions along the curve are neighboring cells, and none repeats. */
+        int side = 64;
+        boolean[] seen = new boolean[side * side];
+        long[][] cells = new long[side * side][];
+        for (int x = 0; x < side; x += 1) {
+            for (int y = 0; y < side; y += 1) {
+                long d = CompactGraph.hilbertIndex(x, y);
+                assertTrue(d < (long) side * side);
+                assertTrue(!seen[(int) d]);
+                seen[(int) d] = true;
+                cells[(int) d] = new long[]{x, y};
+            }
+        }
+        for (int d = 1; d < side * side; d += 1) {
+            assertEquals(1, Math.abs(cells[d][0] - cells[d - 1][0])
+                    + Math.abs(cells[d][1] - cells[d - 1][1]));
+        }
+    }
+
+    @Test
+    public void testChainLengthsMatchEdges() {
+        CompactGraph cg = graphTiny.getCompactGraph();
+        double total = 0;
+        for (int c = 0; c < cg.chainFrom.length; c += 1) {
+            List<Long> path = new ArrayList<>();
+            path.add(cg.id(cg.chainFrom[c]));
+            cg.appendChain(path, c, 0, cg.chainSize(c));
+            double length = 0;
+            for (int i = 0; i < path.size() - 1; i += 1) {
+                length += graphTiny.distance(path.get(i), path.get(i + 1));
+            }
+            assertEquals(length,
+                    cg.weights().chainWeight[Router.Metric.DISTANCE.ordinal()][c], 1e-6);
+            total += length;
+        }
+        assertTrue(total > 0);
+    }
+
+    @Test
+    public void testSameChain() {
+        List<Long> expected = new ArrayList<>();
+        expected.add(11L);
+        expected.add(41L);
+        assertEquals(expected, Router.shortestPath(graphTiny, 11L, 41L, Router.Metric.DISTANCE));
+    }
+
+    @Test
+    public void testJunctionToJunction() {
+        List<Long> expected = new ArrayList<>();
+        expected.add(22L);
+        expected.add(55L);
+        expected.add(63L);
+        assertEquals(expected, Router.shortestPath(graphTiny, 22L, 63L, Router.Metric.DISTANCE));
+    }
+
+    @Test
+    public void testEdgeAttributes() {
+        CompactGraph cg = graphTiny.getCompactGraph();
+        int a = cg.findArc(cg.indexOf(22L), cg.indexOf(46L));
+        assertEquals(25, cg.arcSpeed[a] & 0xFF);
+        assertEquals(GraphBuildingHandler.highwayClass("tertiary"), cg.arcClass[a]);
+        assertEquals(224666L, graphTiny.way(cg.arcWay[a]).id);
+        assertEquals((double) cg.arcLength[a] / 25 * 3600, cg.arcWeight(a, Router.Metric.TIME),
+                1e-6);
+    }
+
+    @Test
+    public void testSpeedParsing() {
+        byte residential = GraphBuildingHandler.highwayClass("residential");
+        assertEquals(25, GraphBuildingHandler.speedMph("25 mph", residential));
+        assertEquals(31, GraphBuildingHandler.speedMph("50", residential));
+        assertEquals(25, GraphBuildingHandler.speedMph("signals", residential));
+        assertEquals(25, GraphBuildingHandler.speedMph(null, residential));
+        assertEquals(GraphBuildingHandler.OTHER_CLASS,
+                GraphBuildingHandler.highwayClass("proposed"));
+    }
+
+    @Test
+    public void testTimeMetric() {
+        List<Long> expected = new ArrayList<>();
+        expected.add(22L);
+        expected.add(46L);
+        expected.add(66L);
+        assertEquals(expected, Router.shortestPath(graphTiny, 22L, 66L, Router.Metric.TIME));
+    }
+}
@@ -0,0 +1,139 @@
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+/** Checks that compressed maps are read as their XML, through the decompressing pipe. */
+public class TestDecompressingInput {
+    private static final String OSM_DB_PATH_TINY = "../library-su18/bearmaps/tiny-clean.osm.xml";
+    private static byte[] tinyXml;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        tinyXml = Files.readAllBytes(new File(OSM_DB_PATH_TINY).toPath());
+        initialized = true;
+    }
+
+    private static File write(String suffix, byte[] bytes, boolean bzip2) throws IOException {
+        File file = File.createTempFile("tiny", suffix);
+        file.deleteOnExit();
+        try (OutputStream out = bzip2
+                ? new BZip2CompressorOutputStream(new FileOutputStream(file))
+                : new GZIPOutputStream(new FileOutputStream(file))) {
+            out.write(bytes);
+        }
+        return file;
+    }
+
+    private static List<Long> list(Iterable<Long> ids) {
+        List<Long> result = new ArrayList<>();
+        for (long id : ids) {
+            result.add(id);
+        }
+        return result;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[777];
+        for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testCompressedMaps() throws IOException {
+        GraphDB plain = new GraphDB(OSM_DB_PATH_TINY);
+        List<Long> vertices = list(plain.vertices());
+        /* The last is gzip under a plain name, told apart by its first bytes. */
+        File[] files = {write(".osm.xml.gz", tinyXml, false),
+            write(".osm.xml.bz2", tinyXml, true), write(".osm.xml", tinyXml, false)};
+        for (File file : files) {
+            try (InputStream in = DecompressingInput.open(file)) {
+                assertArrayEquals(tinyXml, readAll(in));
+            }
+            GraphDB g = new GraphDB(file.getPath());
+            assertEquals(vertices, list(g.vertices()));
+            for (long v : vertices) {
+                assertEquals(plain.lon(v), g.lon(v), 0);
+                assertEquals(plain.lat(v), g.lat(v), 0);
+                assertEquals(list(plain.adjacent(v)), list(g.adjacent(v)));
+            }
+        }
+    }
+
+    @Test
+    public void testPipe() throws IOException {
+        byte[] bytes = new byte[1 << 20];
+        new Random(43).nextBytes(bytes);
+        /* Far more chunks than the pipe holds, read a byte or a buffer at a time. */
+        try (InputStream in = new DecompressingInput.Pipe(new ByteArrayInputStream(bytes),
+                "random", 1000)) {
+            assertEquals(bytes[0] & 0xff, in.read());
+            byte[] rest = readAll(in);
+            assertArrayEquals(Arrays.copyOfRange(bytes, 1, bytes.length), rest);
+            assertEquals(-1, in.read());
+        }
+    }
+
+    @Test
+    public void testCorruptFile() throws IOException {
+        File file = write(".osm.xml.gz", tinyXml, false);
+        byte[] gzip = Files.readAllBytes(file.toPath());
+        Files.write(file.toPath(), Arrays.copyOf(gzip, gzip.length / 2));
+        try (InputStream in = DecompressingInput.open(file)) {
+            readAll(in);
+            fail();
+        } catch (IOException expected) {
+            /* The decompressing thread's failure reaches the reader. */
+        }
+    }
+
+    @Test
+    public void testCloseStopsThread() throws Exception {
+        InputStream endless = new InputStream() {
+            @Override
+            public int read() {
+                return 'x';
+            }
+        };
+        InputStream in = new DecompressingInput.Pipe(endless, "endless", 1000);
+        assertEquals('x', in.read());
+        in.close();
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            if (t.getName().equals("decompress endless")) {
+                t.join(10_000);
+                assertFalse(t.isAlive());
+            }
+        }
+        try {
+            in.read();
+            fail();
+        } catch (IOException expected) {
+            /* Closed. */
+        }
+    }
+}
@@ -0,0 +1,64 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks delta-stepping one-to-all searches on the tiny graph against the distance matrix,
+ * for bucket widths from much smaller than any edge to larger than the whole graph.
+ */
+public class TestDeltaStepping {
+    private static final String OSM_DB_PATH_TINY = "../library-su18/bearmaps/tiny-clean.osm.xml";
+    private static final long[] VERTICES = {11L, 22L, 41L, 46L, 55L, 63L, 66L};
+    private static final double[] DELTAS = {0.01, 0.3, 1, 100};
+    private static GraphDB graphTiny;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        graphTiny = new GraphDB(OSM_DB_PATH_TINY);
+        initialized = true;
+    }
+
+    @Test
+    public void testMatchesDistanceMatrix() {
+        CompactGraph cg = graphTiny.getCompactGraph();
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            for (Router.Metric metric : Router.Metric.values()) {
+                float[] expected = Router.distanceMatrix(graphTiny, VERTICES, VERTICES, metric);
+                for (double delta : DELTAS) {
+                    DeltaStepping search = new DeltaStepping(cg, metric, delta, pool);
+                    for (int i = 0; i < VERTICES.length; i += 1) {
+                        double[] dist = search.vertexDistances(cg.indexOf(VERTICES[i]), metric);
+                        for (int j = 0; j < VERTICES.length; j += 1) {
+                            assertEquals(metric + " " + VERTICES[i] + " to " + VERTICES[j],
+                                    expected[i * VERTICES.length + j],
+                                    dist[cg.indexOf(VERTICES[j])], 1e-4);
+                        }
+                    }
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testDefaultDelta() {
+        double[] dist = DeltaStepping.distances(graphTiny, 41L, Router.Metric.DISTANCE,
+                ForkJoinPool.commonPool());
+        CompactGraph cg = graphTiny.getCompactGraph();
+        assertEquals(0, dist[cg.indexOf(41L)], 0);
+        float[] expected = Router.distanceMatrix(graphTiny, new long[]{41L}, VERTICES,
+                Router.Metric.DISTANCE);
+        for (int j = 0; j < VERTICES.length; j += 1) {
+            assertEquals(expected[j], dist[cg.indexOf(VERTICES[j])], 1e-4);
+        }
+    }
+}
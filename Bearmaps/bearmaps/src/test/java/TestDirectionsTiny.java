@@ -0,0 +1,81 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Basic tests for routeDirections on the tiny graph, whose way names and bearings can be checked
+ * by hand.
+ */
+public class TestDirectionsTiny {
+    private static final String OSM_DB_PATH_TINY = "../library-su18/bearmaps/tiny-clean.osm.xml";
+    private static GraphDB graphTiny;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        graphTiny = new GraphDB(OSM_DB_PATH_TINY);
+        initialized = true;
+    }
+
+    @Test
+    public void test41to46() {
+        List<Long> route = List.of(41L, 63L, 66L, 46L);
+        List<Router.NavigationDirection> actual = Router.routeDirections(graphTiny, route);
+        assertEquals(3, actual.size());
+
+        assertEquals(Router.NavigationDirection.START, actual.get(0).direction);
+        assertEquals("11/41/63 southeast side highway", actual.get(0).way);
+        assertEquals(graphTiny.distance(41L, 63L), actual.get(0).distance, 1e-6);
+
+        assertEquals(Router.NavigationDirection.LEFT, actual.get(1).direction);
+        assertEquals("scenic 22/55/63/66 highway", actual.get(1).way);
+
+        assertEquals(Router.NavigationDirection.LEFT, actual.get(2).direction);
+        assertEquals("22/46/66 northwest side highway", actual.get(2).way);
+        assertEquals(graphTiny.distance(66L, 46L), actual.get(2).distance, 1e-6);
+    }
+
+    @Test
+    public void testSameWayMerges() {
+        List<Long> route = List.of(22L, 46L, 66L);
+        List<Router.NavigationDirection> actual = Router.routeDirections(graphTiny, route);
+        assertEquals(1, actual.size());
+        assertEquals(graphTiny.distance(22L, 46L) + graphTiny.distance(46L, 66L),
+                actual.get(0).distance, 1e-6);
+    }
+
+    @Test
+    public void testAppendToMatchesToString() {
+        for (Router.NavigationDirection d
+                : Router.routeDirections(graphTiny, List.of(41L, 63L, 66L, 46L))) {
+            assertEquals(d.toString(), d.appendTo(new StringBuilder()).toString());
+        }
+        Router.NavigationDirection d = new Router.NavigationDirection();
+        d.way = "Main Street";
+        double[] ties = {64.5885, 0.0005, 1.0005, 0.1235, 12.3455, 0.9995, 0, 1e-9, 1234.5};
+        for (double distance : ties) {
+            d.distance = distance;
+            assertEquals(d.toString(), d.appendTo(new StringBuilder()).toString());
+        }
+        for (int i = 0; i < 100000; i += 1) {
+            d.distance = i / 10000.0 + 0.00005;
+            assertEquals(d.toString(), d.appendTo(new StringBuilder()).toString());
+        }
+    }
+
+    @Test
+    public void testTurns() {
+        assertEquals(Router.NavigationDirection.STRAIGHT, Router.NavigationDirection.turn(350, 5));
+        assertEquals(Router.NavigationDirection.SLIGHT_RIGHT,
+                Router.NavigationDirection.turn(0, 20));
+        assertEquals(Router.NavigationDirection.LEFT, Router.NavigationDirection.turn(90, 0));
+        assertEquals(Router.NavigationDirection.SHARP_LEFT,
+                Router.NavigationDirection.turn(10, -150));
+    }
+}
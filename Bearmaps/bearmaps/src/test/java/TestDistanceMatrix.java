@@ -0,0 +1,60 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the many-to-many distance matrix against individual shortest-path queries on the tiny
+ * graph, whose vertices cover both junctions and chain interiors.
+ */
+public class TestDistanceMatrix {
+    private static final String OSM_DB_PATH_TINY = "../library-su18/bearmaps/tiny-clean.osm.xml";
+    private static final long[] VERTICES = {11L, 22L, 41L, 46L, 55L, 63L, 66L};
+    private static GraphDB graphTiny;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        graphTiny = new GraphDB(OSM_DB_PATH_TINY);
+        initialized = true;
+    }
+
+    @Test
+    public void testMatchesShortestPaths() {
+        float[] matrix = Router.distanceMatrix(graphTiny, VERTICES, VERTICES,
+                Router.Metric.DISTANCE);
+        assertEquals(VERTICES.length * VERTICES.length, matrix.length);
+        for (int i = 0; i < VERTICES.length; i += 1) {
+            for (int j = 0; j < VERTICES.length; j += 1) {
+                List<Long> path = Router.shortestPath(graphTiny, VERTICES[i], VERTICES[j],
+                        Router.Metric.DISTANCE);
+                assertEquals(pathLength(path), matrix[i * VERTICES.length + j], 1e-5);
+            }
+        }
+    }
+
+    @Test
+    public void testCoordinatesAreSnapped() {
+        double[] stlons = {-122.2701};
+        double[] stlats = {37.8401};
+        double[] destlons = {-122.2299, -122.28};
+        double[] destlats = {37.8799, 37.83};
+        float[] matrix = Router.distanceMatrix(graphTiny, stlons, stlats, destlons, destlats,
+                Router.Metric.DISTANCE);
+        assertEquals(pathLength(List.of(22L, 46L, 66L)), matrix[0], 1e-5);
+        assertEquals(graphTiny.distance(22L, 11L), matrix[1], 1e-5);
+    }
+
+    private static double pathLength(List<Long> path) {
+        double length = 0;
+        for (int i = 0; i < path.size() - 1; i += 1) {
+            length += graphTiny.distance(path.get(i), path.get(i + 1));
+        }
+        return length;
+    }
+}
@@ -1,7 +1,14 @@
 import org.junit.Before;
 import org.junit.Test;
+import org.xml.sax.Attributes;
+import org.xml.sax.helpers.DefaultHandler;
 
+import javax.xml.parsers.SAXParserFactory;
+import java.io.File;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 import static org.junit.Assert.assertEquals;
 
@@ -39,11 +46,14 @@ public class TestGraphBuilding {
      * 1. Be sure to only add ways that are valid. (Especially if you have 374535 nodes after clean)
      * 2. Depending on the graph implementation, edges may be directed or undirected. Remember that
      * all roads are two-way for this project and to add both edges if you're using directed edges.
+     *
+     * The graph also keeps the ways closed to cars for cyclists and pedestrians, so the counts
+     * below are of the vertices that can be driven from; these are the vertices of the original
+     * car-only graph, as <code>testDrivableMatchesWhitelist</code> checks.
      */
     @Test
     public void testNodeCount() {
-        Iterable<Long> ids = graph.vertices();
-        int numberOfNodes = countIterableItems(ids);
+        int numberOfNodes = countDrivable(graph);
         assertEquals("Your graph should have 25176 nodes after cleaning. Consider removing the call"
                 + " to clean and seeing if you get 399287 nodes as expected as a sanity check on"
                 + "  your results before calling clean.", 25176, numberOfNodes);
@@ -51,12 +61,13 @@ public class TestGraphBuilding {
 
     @Test
     public void testNodeCountSmall() {
-        Iterable<Long> ids = graphSmall.vertices();
         //assertEquals(graph, graphSmall);
-        int numberOfNodes = countIterableItems(ids);
+        int numberOfNodes = countDrivable(graphSmall);
         assertEquals("Your graph should have 21 nodes after cleaning. Consider removing the call"
                 + " to clean and seeing if you get 250 nodes as expected as a sanity check on"
                 + "  your results before calling clean.", 21, numberOfNodes);
+        /* Footways and other ways closed to cars are kept for the other profiles. */
+        assertEquals(27, countIterableItems(graphSmall.vertices()));
 
     }
 
@@ -131,6 +142,66 @@ public class TestGraphBuilding {
         assertEquals(2252623344L, graphSmall.closest(lon, lat));
     }
 
+    /**
+     * Driving is allowed on exactly the highway types the car-only graph was built from,
+     * whatever the access tags of a way say, so the drivable vertices are the nodes of those
+     * ways.
+     */
+    @Test
+    public void testDrivableMatchesWhitelist() throws Exception {
+        Set<String> whitelist = Set.of("motorway", "trunk", "primary", "secondary", "tertiary",
+                "unclassified", "residential", "living_street", "motorway_link", "trunk_link",
+                "primary_link", "secondary_link", "tertiary_link");
+        Set<Long> expected = new HashSet<>();
+        SAXParserFactory.newInstance().newSAXParser().parse(new File(OSM_DB_PATH_SMALL),
+                new DefaultHandler() {
+                    private List<Long> nodes = new ArrayList<>();
+                    private String highway;
+
+                    @Override
+                    public void startElement(String uri, String localName, String qName,
+                                             Attributes attributes) {
+                        if (qName.equals("way")) {
+                            nodes = new ArrayList<>();
+                            highway = null;
+                        } else if (qName.equals("nd")) {
+                            nodes.add(Long.parseLong(attributes.getValue("ref")));
+                        } else if (qName.equals("tag")
+                                && attributes.getValue("k").equals("highway")) {
+                            highway = attributes.getValue("v");
+                        }
+                    }
+
+                    @Override
+                    public void endElement(String uri, String localName, String qName) {
+                        if (qName.equals("way") && highway != null
+                                && whitelist.contains(highway) && nodes.size() > 1) {
+                            expected.addAll(nodes);
+                        }
+                    }
+                });
+        CompactGraph cg = graphSmall.getCompactGraph();
+        Set<Long> actual = new HashSet<>();
+        for (int v = 0; v < cg.numVertices(); v += 1) {
+            if (cg.allows(v, Router.Profile.DRIVE)) {
+                actual.add(cg.id(v));
+            }
+        }
+        assertEquals(expected, actual);
+    }
+
+    /** Counts the vertices of <code>g</code> that can be driven from. */
+    static int countDrivable(GraphDB g) {
+        CompactGraph cg = g.getCompactGraph();
+        int n = 0;
+        for (int v = 0; v < cg.numVertices(); v += 1) {
+            if (cg.allows(v, Router.Profile.DRIVE)) {
+                n += 1;
+            }
+        }
+        return n;
+    }
+
     static <Item> int countIterableItems(Iterable<Item> it) {
         int N = 0;
         for (Item x : it) {
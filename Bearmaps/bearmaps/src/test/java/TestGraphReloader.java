@@ -0,0 +1,146 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for rebuilding the tiny graph in the background, or applying a change file to it, and
+ * swapping the new graph in.
+ */
+public class TestGraphReloader {
+    private static final String OSM_DB_PATH_TINY = "../library-su18/bearmaps/tiny-clean.osm.xml";
+    private static GraphDB graphTiny;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        graphTiny = new GraphDB(OSM_DB_PATH_TINY);
+        initialized = true;
+    }
+
+    @Test
+    public void testSwapAfterPrepared() throws Exception {
+        CountDownLatch prepared = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        GraphReloader reloader = new GraphReloader(OSM_DB_PATH_TINY, graphTiny, g -> {
+            prepared.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        CompletableFuture<GraphDB> reload = reloader.reload();
+        assertTrue(prepared.await(30, TimeUnit.SECONDS));
+        /* Built but not yet published: requests still get the old graph. */
+        assertSame(graphTiny, reloader.graph());
+        assertEquals(GraphReloader.State.RUNNING, reloader.status().state);
+        assertEquals("preparing", reloader.status().phase);
+        assertSame(reload, reloader.reload());
+        release.countDown();
+
+        GraphDB next = reload.get(30, TimeUnit.SECONDS);
+        assertSame(next, reloader.graph());
+        assertNotSame(graphTiny, next);
+        assertTrue(next.version() > graphTiny.version());
+        assertEquals(GraphReloader.State.DONE, reloader.status().state);
+        assertEquals(next.version(), reloader.status().graphVersion);
+        /* Both versions answer alike, so requests on either get the same route. */
+        assertEquals(Router.shortestPath(graphTiny, 41L, 46L, Router.Metric.DISTANCE),
+                Router.shortestPath(next, 41L, 46L, Router.Metric.DISTANCE));
+    }
+
+    @Test
+    public void testFailedReloadKeepsGraph() throws Exception {
+        GraphReloader reloader = new GraphReloader("no/such/map.osm.xml", graphTiny, g -> { });
+        try {
+            reloader.reload().get(30, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException expected) {
+            /* The missing file makes a graph without vertices, which is not published. */
+        }
+        assertSame(graphTiny, reloader.graph());
+        assertEquals(GraphReloader.State.FAILED, reloader.status().state);
+        assertEquals(graphTiny.version(), reloader.status().graphVersion);
+        assertNotNull(reloader.status().error);
+    }
+
+    @Test
+    public void testApplyChanges() throws Exception {
+        String osc = "<osmChange version=\"0.6\"><create><way id=\"900\">"
+                + "<nd ref=\"41\"/><nd ref=\"46\"/><tag k=\"highway\" v=\"residential\"/>"
+                + "</way></create></osmChange>";
+        OsmChange change = OsmChange.read(new ByteArrayInputStream(
+                osc.getBytes(StandardCharsets.UTF_8)));
+        GraphReloader reloader = new GraphReloader(OSM_DB_PATH_TINY, graphTiny, g -> { });
+        GraphDB next = reloader.apply(change).get(30, TimeUnit.SECONDS);
+        assertSame(next, reloader.graph());
+        assertTrue(next.version() > graphTiny.version());
+        assertEquals(GraphReloader.State.DONE, reloader.status().state);
+        assertEquals(1, reloader.status().changes.elements);
+        /* The new way joins the two vertices directly, in the new graph only. */
+        assertTrue(((List<Long>) next.adjacent(41)).contains(46L));
+        assertFalse(((List<Long>) graphTiny.adjacent(41)).contains(46L));
+        assertEquals(List.of(41L, 46L),
+                Router.shortestPath(next, 41L, 46L, Router.Metric.DISTANCE));
+    }
+
+    @Test
+    public void testChangesWaitTheirTurn() throws Exception {
+        CountDownLatch prepared = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        GraphReloader reloader = new GraphReloader(OSM_DB_PATH_TINY, graphTiny, g -> {
+            prepared.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        CompletableFuture<GraphDB> first = reloader.apply(way(900, 41, 46));
+        assertTrue(prepared.await(30, TimeUnit.SECONDS));
+        /* Sent while the first is still running: queued, not dropped. */
+        CompletableFuture<GraphDB> second = reloader.apply(way(901, 46, 41));
+        CompletableFuture<GraphDB> reload = reloader.reload();
+        assertNotSame(first, second);
+        assertSame(reload, reloader.reload());
+        assertEquals(2, reloader.status().waiting);
+        release.countDown();
+
+        GraphDB afterFirst = first.get(30, TimeUnit.SECONDS);
+        GraphDB afterSecond = second.get(30, TimeUnit.SECONDS);
+        /* The second is applied to the graph the first published, so both ways are there. */
+        assertTrue(afterSecond.version() > afterFirst.version());
+        assertEquals(2, ((List<Long>) afterSecond.adjacent(41)).stream()
+                .filter(w -> w == 46L).count());
+        GraphDB reloaded = reload.get(30, TimeUnit.SECONDS);
+        assertSame(reloaded, reloader.graph());
+        assertTrue(reloaded.version() > afterSecond.version());
+        assertEquals(0, reloader.status().waiting);
+    }
+
+    /** Returns a change file creating a residential way from <code>a</code> to <code>b</code>. */
+    private static OsmChange way(long id, long a, long b) throws Exception {
+        String osc = "<osmChange version=\"0.6\"><create><way id=\"" + id + "\">"
+                + "<nd ref=\"" + a + "\"/><nd ref=\"" + b + "\"/>"
+                + "<tag k=\"highway\" v=\"residential\"/></way></create></osmChange>";
+        return OsmChange.read(new ByteArrayInputStream(osc.getBytes(StandardCharsets.UTF_8)));
+    }
+}
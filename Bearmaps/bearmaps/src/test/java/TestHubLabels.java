@@ -0,0 +1,83 @@
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks hub-label distances on the tiny graph against the distance matrix, both freshly
+ * built and after a round trip through a memory-mapped file.
+ */
+public class TestHubLabels {
+    private static final String OSM_DB_PATH_TINY = "../library-su18/bearmaps/tiny-clean.osm.xml";
+    private static final long[] VERTICES = {11L, 22L, 41L, 46L, 55L, 63L, 66L};
+    private static GraphDB graphTiny;
+    private static boolean initialized = false;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        graphTiny = new GraphDB(OSM_DB_PATH_TINY);
+        initialized = true;
+    }
+
+    private static void assertMatchesMatrix(HubLabels labels, Router.Metric metric) {
+        CompactGraph cg = graphTiny.getCompactGraph();
+        float[] expected = Router.distanceMatrix(graphTiny, VERTICES, VERTICES, metric);
+        for (int i = 0; i < VERTICES.length; i += 1) {
+            for (int j = 0; j < VERTICES.length; j += 1) {
+                assertEquals(metric + " " + VERTICES[i] + " to " + VERTICES[j],
+                        expected[i * VERTICES.length + j],
+                        labels.distance(cg, cg.weights(), cg.indexOf(VERTICES[i]),
+                                cg.indexOf(VERTICES[j])),
+                        1e-4);
+            }
+        }
+    }
+
+    @Test
+    public void testMatchesDistanceMatrix() {
+        for (Router.Metric metric : Router.Metric.values()) {
+            HubLabels labels = HubLabels.build(graphTiny.getCompactGraph(), metric);
+            assertTrue(labels.matches(graphTiny.getCompactGraph(),
+                    graphTiny.getCompactGraph().weights()));
+            assertTrue(labels.averageLabelSize() >= 1);
+            assertMatchesMatrix(labels, metric);
+        }
+    }
+
+    @Test
+    public void testMappedFile() throws Exception {
+        HubLabels built = HubLabels.build(graphTiny.getCompactGraph(), Router.Metric.TIME);
+        File file = folder.newFile("tiny.time.hl");
+        built.write(file);
+        assertEquals(built.sizeBytes(), file.length());
+        HubLabels mapped = HubLabels.map(file);
+        assertSame(Router.Metric.TIME, mapped.metric());
+        assertEquals(built.numEntries(), mapped.numEntries());
+        assertTrue(mapped.matches(graphTiny.getCompactGraph(),
+                graphTiny.getCompactGraph().weights()));
+        assertMatchesMatrix(mapped, Router.Metric.TIME);
+    }
+
+    @Test
+    public void testDistanceOnly() {
+        GraphDB g = new GraphDB(OSM_DB_PATH_TINY);
+        assertNull(g.getHubLabels(Router.Metric.DISTANCE, g.getCompactGraph().weights()));
+        double searched = Router.distanceOnly(g, 22L, 66L, Router.Metric.DISTANCE);
+        g.setHubLabels(HubLabels.build(g.getCompactGraph(), Router.Metric.DISTANCE));
+        assertEquals(searched, Router.distanceOnly(g, 22L, 66L, Router.Metric.DISTANCE), 1e-4);
+        assertEquals(0, Router.distanceOnly(g, 41L, 41L, Router.Metric.DISTANCE), 0);
+    }
+}
@@ -0,0 +1,63 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks isochrones on the tiny graph against the distance matrix, which gives the exact
+ * weight from the origin to every vertex.
+ */
+public class TestIsochrone {
+    private static final String OSM_DB_PATH_TINY = "../library-su18/bearmaps/tiny-clean.osm.xml";
+    private static final long[] VERTICES = {11L, 22L, 41L, 46L, 55L, 63L, 66L};
+    private static GraphDB graphTiny;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        graphTiny = new GraphDB(OSM_DB_PATH_TINY);
+        initialized = true;
+    }
+
+    @Test
+    public void testMatchesDistances() {
+        for (long origin : VERTICES) {
+            float[] dist = Router.distanceMatrix(graphTiny, new long[]{origin}, VERTICES,
+                    Router.Metric.DISTANCE);
+            for (double budget : new double[]{0, 0.5, 1, 2, 3, 5, 10}) {
+                Set<Long> expected = new HashSet<>();
+                for (int i = 0; i < VERTICES.length; i += 1) {
+                    if (dist[i] <= budget) {
+                        expected.add(VERTICES[i]);
+                    }
+                }
+                Set<Long> actual = new HashSet<>();
+                long[] vertices = Isochrone.compute(graphTiny, origin, budget,
+                        Router.Metric.DISTANCE).vertices();
+                for (long v : vertices) {
+                    actual.add(v);
+                }
+                assertEquals("origin " + origin + ", budget " + budget, expected, actual);
+                assertEquals(expected.size(), vertices.length);
+            }
+        }
+    }
+
+    @Test
+    public void testPolygon() {
+        Isochrone all = Isochrone.compute(graphTiny, 63L, 100, Router.Metric.DISTANCE);
+        assertEquals(VERTICES.length, all.size());
+        assertEquals(VERTICES.length - 1, all.polygon().size());
+        Isochrone alone = Isochrone.compute(graphTiny, 63L, 0, Router.Metric.DISTANCE);
+        assertTrue(Arrays.equals(new long[]{63L}, alone.vertices()));
+        assertTrue(alone.polygon().isEmpty());
+    }
+}
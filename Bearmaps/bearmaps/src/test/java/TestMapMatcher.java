@@ -0,0 +1,149 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for matching GPS traces to the graph, on the tiny graph and on two parallel streets
+ * 30 meters apart whose vertices are 20 meters apart, joined at both ends.
+ */
+public class TestMapMatcher {
+    private static final String OSM_DB_PATH_TINY = "../library-su18/bearmaps/tiny-clean.osm.xml";
+    /** Vertices per street; the south street has IDs 1 to this, the north one 101 onwards. */
+    private static final int STREET_VERTICES = 60;
+    private static final double SOUTH_LAT = 37.87;
+    private static final double NORTH_LAT = 37.87027;
+    private static final double WEST_LON = -122.26;
+    private static final double LON_STEP = 0.00023;
+    private static GraphDB graphTiny;
+    private static GraphDB graphStreets;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        graphTiny = new GraphDB(OSM_DB_PATH_TINY);
+        graphStreets = new GraphDB(writeStreets().getPath());
+        initialized = true;
+    }
+
+    private static File writeStreets() throws IOException {
+        StringBuilder osm = new StringBuilder("<?xml version='1.0' encoding='UTF-8'?>\n");
+        osm.append("<osm version=\"0.6\">\n");
+        for (int i = 0; i < STREET_VERTICES; i += 1) {
+            double lon = WEST_LON + i * LON_STEP;
+            osm.append(String.format("<node id=\"%d\" lat=\"%.6f\" lon=\"%.6f\"/>%n",
+                    i + 1, SOUTH_LAT, lon));
+            osm.append(String.format("<node id=\"%d\" lat=\"%.6f\" lon=\"%.6f\"/>%n",
+                    i + 101, NORTH_LAT, lon));
+        }
+        for (int street = 0; street < 2; street += 1) {
+            osm.append(String.format("<way id=\"%d\">", 1000 + street));
+            for (int i = 0; i < STREET_VERTICES; i += 1) {
+                osm.append(String.format("<nd ref=\"%d\"/>", i + 1 + 100 * street));
+            }
+            osm.append("<tag k=\"highway\" v=\"residential\"/></way>\n");
+        }
+        osm.append("<way id=\"2000\"><nd ref=\"1\"/><nd ref=\"101\"/>");
+        osm.append("<tag k=\"highway\" v=\"residential\"/></way>\n");
+        osm.append(String.format("<way id=\"2001\"><nd ref=\"%d\"/><nd ref=\"%d\"/>",
+                STREET_VERTICES, STREET_VERTICES + 100));
+        osm.append("<tag k=\"highway\" v=\"residential\"/></way>\n</osm>\n");
+        File file = File.createTempFile("streets", ".osm.xml");
+        file.deleteOnExit();
+        try (Writer out = new FileWriter(file)) {
+            out.write(osm.toString());
+        }
+        return file;
+    }
+
+    /** Matches a trace of {lon, lat} points and returns the match of each point in order. */
+    private static long[] match(GraphDB g, double[][] trace) {
+        List<Long> ids = new ArrayList<>();
+        int[] maxWindow = new int[1];
+        MapMatcher matcher = new MapMatcher(g, Router.Profile.DRIVE, (index, id) -> {
+            assertEquals(ids.size(), index);
+            ids.add(id);
+        });
+        for (double[] point : trace) {
+            matcher.add(point[0], point[1]);
+            maxWindow[0] = Math.max(maxWindow[0], matcher.windowSize());
+        }
+        matcher.finish();
+        assertTrue(maxWindow[0] <= MapMatcher.MAX_WINDOW);
+        assertEquals(trace.length, ids.size());
+        long[] result = new long[ids.size()];
+        for (int i = 0; i < result.length; i += 1) {
+            result[i] = ids.get(i);
+        }
+        return result;
+    }
+
+    @Test
+    public void testMatchesNearbyVertices() {
+        double[][] trace = {{-122.2701, 37.8401}, {-122.2499, 37.8802}, {-122.2302, 37.8799}};
+        assertEquals(Arrays.toString(new long[]{22, 46, 66}),
+                Arrays.toString(match(graphTiny, trace)));
+    }
+
+    @Test
+    public void testPointFarFromRoadsIsUnmatched() {
+        double[][] trace = {{-122.2701, 37.8401}, {-122.26, 37.86}, {-122.2499, 37.8802}};
+        assertEquals(Arrays.toString(new long[]{22, MapMatcher.UNMATCHED, 46}),
+                Arrays.toString(match(graphTiny, trace)));
+        assertEquals(0, match(graphTiny, new double[0][]).length);
+    }
+
+    @Test
+    public void testStaysOnTheRoadDriven() {
+        /*
+         * Drive east along the south street, drifting a third of the way towards the north
+         * one, with one fix that lands closer to the north street.
+         */
+        int n = 2 * (STREET_VERTICES - 10);
+        double[][] trace = new double[n][];
+        for (int i = 0; i < n; i += 1) {
+            double lat = SOUTH_LAT + (NORTH_LAT - SOUTH_LAT) * (i % 3) / 6;
+            if (i == n / 2) {
+                lat = SOUTH_LAT + (NORTH_LAT - SOUTH_LAT) * 0.7;
+            }
+            trace[i] = new double[]{WEST_LON + 5 * LON_STEP + i * LON_STEP / 2, lat};
+        }
+        long[] ids = match(graphStreets, trace);
+        for (int i = 0; i < n; i += 1) {
+            assertTrue(ids[i] >= 1 && ids[i] <= STREET_VERTICES);
+            double lon = graphStreets.lon(ids[i]);
+            assertTrue(Math.abs(lon - trace[i][0]) <= LON_STEP);
+            if (i > 0) {
+                assertTrue(ids[i] >= ids[i - 1]);
+            }
+        }
+    }
+
+    @Test
+    public void testStoppedTraceReusesRoutes() {
+        double[][] trace = new double[50][];
+        for (int i = 0; i < trace.length; i += 1) {
+            trace[i] = new double[]{WEST_LON + 20.3 * LON_STEP, SOUTH_LAT + 0.00005};
+        }
+        MapMatcher matcher = new MapMatcher(graphStreets, Router.Profile.DRIVE, (index, id) -> {
+            assertEquals(21, id);
+        });
+        for (double[] point : trace) {
+            matcher.add(point[0], point[1]);
+        }
+        matcher.finish();
+        assertTrue(matcher.routeMissRate() < 0.05);
+    }
+}
@@ -0,0 +1,181 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for ordering stops and routing through them.
+ */
+public class TestMultiStop {
+    private static final String OSM_DB_PATH_TINY = "../library-su18/bearmaps/tiny-clean.osm.xml";
+    private static GraphDB graphTiny;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        graphTiny = new GraphDB(OSM_DB_PATH_TINY);
+        initialized = true;
+    }
+
+    /** Returns the matrix of straight-line distances between points in the plane. */
+    private static float[] planeMatrix(double[] xs, double[] ys) {
+        int n = xs.length;
+        float[] matrix = new float[n * n];
+        for (int i = 0; i < n; i += 1) {
+            for (int j = 0; j < n; j += 1) {
+                matrix[i * n + j] = (float) Math.hypot(xs[i] - xs[j], ys[i] - ys[j]);
+            }
+        }
+        return matrix;
+    }
+
+    /** Returns the weight of the best order by trying every one. */
+    private static double bruteForce(float[] matrix, int n) {
+        int[] tour = new int[n];
+        for (int i = 0; i < n; i += 1) {
+            tour[i] = i;
+        }
+        return permute(matrix, n, tour, 1);
+    }
+
+    private static double permute(float[] matrix, int n, int[] tour, int k) {
+        if (k == n - 1) {
+            return MultiStopRoute.tourWeight(matrix, n, tour);
+        }
+        double best = Double.POSITIVE_INFINITY;
+        for (int i = k; i < n - 1; i += 1) {
+            int tmp = tour[k];
+            tour[k] = tour[i];
+            tour[i] = tmp;
+            best = Math.min(best, permute(matrix, n, tour, k + 1));
+            tour[i] = tour[k];
+            tour[k] = tmp;
+        }
+        return best;
+    }
+
+    private static void assertVisitsAll(int[] tour, int n) {
+        assertEquals(n, tour.length);
+        assertEquals(0, tour[0]);
+        assertEquals(n - 1, tour[n - 1]);
+        int[] sorted = tour.clone();
+        Arrays.sort(sorted);
+        for (int i = 0; i < n; i += 1) {
+            assertEquals(i, sorted[i]);
+        }
+    }
+
+    @Test
+    public void testPointsOnALine() {
+        double[] xs = {0, 5, 2, 9, 1, 7, 3, 10};
+        double[] ys = new double[xs.length];
+        int[] tour = MultiStopRoute.solve(planeMatrix(xs, ys), xs.length,
+                MultiStopRoute.IMPROVE_BUDGET_NANOS);
+        assertArrayEquals(new int[]{0, 4, 2, 6, 1, 5, 3, 7}, tour);
+    }
+
+    @Test
+    public void testCloseToOptimal() {
+        Random random = new Random(38);
+        for (int trial = 0; trial < 20; trial += 1) {
+            int n = 9;
+            double[] xs = new double[n];
+            double[] ys = new double[n];
+            for (int i = 0; i < n; i += 1) {
+                xs[i] = random.nextDouble();
+                ys[i] = random.nextDouble();
+            }
+            float[] matrix = planeMatrix(xs, ys);
+            int[] tour = MultiStopRoute.solve(matrix, n, MultiStopRoute.IMPROVE_BUDGET_NANOS);
+            assertVisitsAll(tour, n);
+            double weight = MultiStopRoute.tourWeight(matrix, n, tour);
+            double insertion = MultiStopRoute.tourWeight(matrix, n,
+                    MultiStopRoute.nearestInsertion(matrix, n));
+            assertTrue(weight <= insertion + 1e-6);
+            assertTrue(weight <= 1.05 * bruteForce(matrix, n));
+        }
+    }
+
+    @Test
+    public void testNoBudgetStillVisitsAll() {
+        Random random = new Random(25);
+        int n = 27;
+        double[] xs = new double[n];
+        double[] ys = new double[n];
+        for (int i = 0; i < n; i += 1) {
+            xs[i] = random.nextDouble();
+            ys[i] = random.nextDouble();
+        }
+        assertVisitsAll(MultiStopRoute.solve(planeMatrix(xs, ys), n, 0), n);
+        assertVisitsAll(MultiStopRoute.solve(planeMatrix(xs, ys), 2, 0), 2);
+    }
+
+    @Test
+    public void testRouteThroughStops() {
+        long[] ids = {22, 41, 11, 55, 66};
+        MultiStopRoute route = MultiStopRoute.compute(graphTiny, ids, Router.Metric.DISTANCE,
+                Router.Profile.DRIVE, MultiStopRoute.IMPROVE_BUDGET_NANOS);
+        List<Long> path = route.path();
+        assertEquals(Long.valueOf(22), path.get(0));
+        assertEquals(Long.valueOf(66), path.get(path.size() - 1));
+        for (long stop : ids) {
+            assertTrue(path.contains(stop));
+        }
+        double walked = 0;
+        for (int i = 1; i < path.size(); i += 1) {
+            boolean adjacent = false;
+            for (long w : graphTiny.adjacent(path.get(i - 1))) {
+                adjacent |= w == path.get(i);
+            }
+            assertTrue(adjacent);
+            walked += graphTiny.distance(path.get(i - 1), path.get(i));
+        }
+        float[] matrix = Router.distanceMatrix(graphTiny, ids, ids, Router.Metric.DISTANCE);
+        assertEquals(bruteForce(matrix, ids.length), route.weight(), 1e-4);
+        assertEquals(route.weight(), walked, 1e-4);
+        int[] order = route.order().clone();
+        Arrays.sort(order);
+        assertArrayEquals(new int[]{0, 1, 2}, order);
+    }
+
+    @Test
+    public void testWaypointsParam() {
+        Map<String, String[]> query = new HashMap<>();
+        query.put("start_lon", new String[]{"-122.27"});
+        query.put("start_lat", new String[]{"37.84"});
+        query.put("end_lon", new String[]{"-122.23"});
+        query.put("end_lat", new String[]{"37.88"});
+        assertFalse(RouteRequestParams.from(query).hasWaypoints());
+        query.put("waypoints", new String[]{"-122.25,37.83; -122.28,37.83"});
+        RouteRequestParams params = RouteRequestParams.from(query);
+        assertArrayEquals(new double[]{-122.25, 37.83, -122.28, 37.83}, params.waypoints, 0);
+        MultiStopRoute route = MultiStopRoute.compute(graphTiny, params);
+        assertEquals(Long.valueOf(22), route.path().get(0));
+        assertEquals(2, route.order().length);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTooManyWaypoints() {
+        RouteRequestParams.Builder builder = new RouteRequestParams.Builder();
+        for (int i = 0; i <= RouteRequestParams.MAX_WAYPOINTS; i += 1) {
+            builder.addWaypoint(-122.25, 37.83);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWaypointsWithAlternatives() {
+        new RouteRequestParams.Builder().addWaypoint(-122.25, 37.83).setAlternatives(1).create();
+    }
+}
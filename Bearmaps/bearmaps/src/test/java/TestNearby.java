@@ -0,0 +1,145 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for finding the closest locations of a category, on a random map of tagged nodes
+ * checked against a scan of every node.
+ */
+public class TestNearby {
+    private static final String[] CATEGORIES = {"cafe", "library", "bakery", "museum"};
+    private static final int PLACES = 400;
+    private static final double MIN_LON = -122.29, MIN_LAT = 37.83, SPAN = 0.05;
+    private static GraphDB graph;
+    /** Projected x, y of each place, indexed by OSM ID minus 1. */
+    private static double[][] places;
+    /** Whether each place is filed under each category. */
+    private static boolean[][] filed;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        graph = new GraphDB(writeRandomMap().getPath());
+        initialized = true;
+    }
+
+    /**
+     * Writes isolated nodes, each a cafe or library amenity, a bakery shop, a museum, or a
+     * cafe that is also a bakery. Every third one has no name, and some shops are just "yes".
+     */
+    private static File writeRandomMap() throws IOException {
+        Random random = new Random(41);
+        StringBuilder osm = new StringBuilder("<?xml version='1.0' encoding='UTF-8'?>\n");
+        osm.append("<osm version=\"0.6\">\n");
+        places = new double[PLACES][];
+        filed = new boolean[PLACES][CATEGORIES.length + 1];
+        for (int p = 0; p < PLACES; p += 1) {
+            double lon = Math.round((MIN_LON + random.nextDouble() * SPAN) * 1e7) / 1e7;
+            double lat = Math.round((MIN_LAT + random.nextDouble() * SPAN) * 1e7) / 1e7;
+            places[p] = new double[]{GraphDB.projectToX(lon, lat), GraphDB.projectToY(lon, lat)};
+            osm.append(String.format("<node id=\"%d\" lat=\"%.7f\" lon=\"%.7f\">", p + 1, lat,
+                    lon));
+            if (p % 3 != 0) {
+                osm.append(String.format("<tag k=\"name\" v=\"Caf\u00e9 %d\"/>", p + 1));
+            }
+            switch (p % 6) {
+                case 0:
+                    osm.append("<tag k=\"amenity\" v=\"cafe\"/>");
+                    filed[p][0] = true;
+                    break;
+                case 1:
+                    osm.append("<tag k=\"amenity\" v=\"library\"/>");
+                    filed[p][1] = true;
+                    break;
+                case 2:
+                    osm.append("<tag k=\"shop\" v=\"bakery\"/>");
+                    filed[p][2] = true;
+                    break;
+                case 3:
+                    osm.append("<tag k=\"tourism\" v=\"museum\"/>");
+                    filed[p][3] = true;
+                    break;
+                case 4:
+                    osm.append("<tag k=\"amenity\" v=\"cafe\"/><tag k=\"shop\" v=\"bakery\"/>");
+                    filed[p][0] = true;
+                    filed[p][2] = true;
+                    break;
+                default:
+                    osm.append("<tag k=\"shop\" v=\"yes\"/>");
+                    filed[p][4] = true;
+                    break;
+            }
+            osm.append("</node>\n");
+        }
+        osm.append("</osm>\n");
+        File file = File.createTempFile("nearby", ".osm.xml");
+        file.deleteOnExit();
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(file),
+                StandardCharsets.UTF_8)) {
+            out.write(osm.toString());
+        }
+        return file;
+    }
+
+    @Test
+    public void testMatchesFullScan() {
+        CategoryIndex index = graph.getCategoryIndex();
+        assertEquals(CATEGORIES.length + 1, index.numCategories());
+        Random random = new Random(42);
+        for (int q = 0; q < 500; q += 1) {
+            int c = random.nextInt(CATEGORIES.length + 1);
+            String category = c < CATEGORIES.length ? CATEGORIES[c] : "shop";
+            int k = 1 + random.nextInt(20);
+            /* Include points well outside the map. */
+            double lon = MIN_LON - SPAN + random.nextDouble() * 3 * SPAN;
+            double lat = MIN_LAT - SPAN + random.nextDouble() * 3 * SPAN;
+            double x = GraphDB.projectToX(lon, lat);
+            double y = GraphDB.projectToY(lon, lat);
+            List<Double> expected = new ArrayList<>();
+            for (int p = 0; p < PLACES; p += 1) {
+                if (filed[p][c]) {
+                    expected.add(Math.hypot(places[p][0] - x, places[p][1] - y) * GraphDB.R);
+                }
+            }
+            Collections.sort(expected);
+            List<ReverseGeocoder.Match> found = index.nearest(category, lon, lat, k);
+            assertEquals(Math.min(k, expected.size()), found.size());
+            for (int i = 0; i < found.size(); i += 1) {
+                ReverseGeocoder.Match m = found.get(i);
+                assertEquals(expected.get(i), m.distance, 1e-9);
+                int p = (int) m.id - 1;
+                assertTrue(filed[p][c]);
+                if (p % 3 == 0) {
+                    assertNull(m.name);
+                } else {
+                    assertEquals("Caf\u00e9 " + m.id, m.name);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testUnknownCategory() {
+        CategoryIndex index = graph.getCategoryIndex();
+        assertTrue(index.nearest("zoo", MIN_LON, MIN_LAT, 5).isEmpty());
+        assertTrue(index.nearest("cafe", MIN_LON, MIN_LAT, 0).isEmpty());
+        assertEquals(PLACES / 3, index.nearest("cafe", MIN_LON, MIN_LAT, 1000).size());
+    }
+}
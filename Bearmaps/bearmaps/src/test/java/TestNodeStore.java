@@ -0,0 +1,195 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that a graph parsed into a memory-mapped node store answers as one with a node map
+ * does, and the spill of sorted runs its nodes go through while it is parsed.
+ */
+public class TestNodeStore {
+    private static final String OSM_DB_PATH_TINY = "../library-su18/bearmaps/tiny-clean.osm.xml";
+    private static GraphDB graphTiny;
+    private static GraphDB storedTiny;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        graphTiny = new GraphDB(OSM_DB_PATH_TINY);
+        File store = File.createTempFile("tiny", ".nodes");
+        store.deleteOnExit();
+        storedTiny = new GraphDB(OSM_DB_PATH_TINY, store);
+        initialized = true;
+    }
+
+    private static List<Long> list(Iterable<Long> ids) {
+        List<Long> result = new ArrayList<>();
+        for (long id : ids) {
+            result.add(id);
+        }
+        return result;
+    }
+
+    /** Returns the IDs ascending, each once, as a node store keeps one arc per neighbor. */
+    private static List<Long> distinct(Iterable<Long> ids) {
+        return list(ids).stream().distinct().sorted().collect(Collectors.toList());
+    }
+
+    /** Writes an OSM XML map to a temporary file. */
+    private static File map(String xml) throws IOException {
+        File file = File.createTempFile("map", ".osm.xml");
+        file.deleteOnExit();
+        try (Writer out = new FileWriter(file)) {
+            out.write("<?xml version=\"1.0\"?><osm version=\"0.6\">" + xml + "</osm>");
+        }
+        return file;
+    }
+
+    @Test
+    public void testSameGraph() {
+        assertNull(storedTiny.getNodeMap());
+        assertNotNull(storedTiny.getNodeStore());
+        List<Long> vertices = list(graphTiny.vertices());
+        vertices.sort(null);
+        assertEquals(vertices, list(storedTiny.vertices()));
+        for (long v : vertices) {
+            assertEquals(graphTiny.lon(v), storedTiny.lon(v), 0);
+            assertEquals(graphTiny.lat(v), storedTiny.lat(v), 0);
+            assertEquals(distinct(graphTiny.adjacent(v)), distinct(storedTiny.adjacent(v)));
+            for (long w : vertices) {
+                assertEquals(Router.shortestPath(graphTiny, graphTiny.lon(v), graphTiny.lat(v),
+                        graphTiny.lon(w), graphTiny.lat(w)),
+                        Router.shortestPath(storedTiny, storedTiny.lon(v), storedTiny.lat(v),
+                                storedTiny.lon(w), storedTiny.lat(w)));
+            }
+        }
+        assertEquals(graphTiny.closest(-122.24, 37.88), storedTiny.closest(-122.24, 37.88));
+    }
+
+    @Test
+    public void testCompactGraphReadsStore() {
+        CompactGraph heap = graphTiny.getCompactGraph();
+        CompactGraph stored = storedTiny.getCompactGraph();
+        assertNull(heap.store());
+        assertEquals(storedTiny.getNodeStore(), stored.store());
+        /* Both number the vertices in the same Hilbert order and keep the same arcs. */
+        assertEquals(heap.numVertices(), stored.numVertices());
+        assertEquals(heap.numArcs(), stored.numArcs());
+        for (int v = 0; v < heap.numVertices(); v += 1) {
+            assertEquals(heap.id(v), stored.id(v));
+            assertEquals(heap.arcStart(v), stored.arcStart(v));
+        }
+        for (int a = 0; a < heap.numArcs(); a += 1) {
+            assertEquals(heap.arcTarget(a), stored.arcTarget(a));
+            assertEquals(heap.arcWay[a], stored.arcWay[a]);
+        }
+    }
+
+    @Test
+    public void testChangesRefused() {
+        try {
+            storedTiny.withChanges(new OsmChange(), phase -> { });
+            fail();
+        } catch (IllegalStateException expected) {
+            /* No vertices on the heap to copy. */
+        }
+        GraphReloader reloader = new GraphReloader(OSM_DB_PATH_TINY,
+                storedTiny.getNodeStore().file().getParentFile(), storedTiny, g -> { });
+        try {
+            reloader.apply(new OsmChange());
+            fail();
+        } catch (IllegalStateException expected) {
+            /* Refused before it is queued. */
+        }
+        assertEquals(GraphReloader.State.IDLE, reloader.status().state);
+    }
+
+    @Test
+    public void testWayOverMissingNodeLeftOut() throws IOException {
+        File file = map("<node id=\"1\" lat=\"37.87\" lon=\"-122.26\"/>"
+                + "<node id=\"2\" lat=\"37.88\" lon=\"-122.26\"/>"
+                + "<node id=\"3\" lat=\"37.88\" lon=\"-122.25\"><tag k=\"name\" v=\"Top\"/>"
+                + "</node>"
+                + "<way id=\"10\"><nd ref=\"1\"/><nd ref=\"2\"/><nd ref=\"3\"/>"
+                + "<tag k=\"highway\" v=\"residential\"/></way>"
+                + "<way id=\"11\"><nd ref=\"3\"/><nd ref=\"99\"/>"
+                + "<tag k=\"highway\" v=\"residential\"/></way>"
+                + "<way id=\"12\"><nd ref=\"98\"/><tag k=\"highway\" v=\"residential\"/></way>");
+        File store = File.createTempFile("missing", ".nodes");
+        store.deleteOnExit();
+        GraphDB g = new GraphDB(file.getPath(), store);
+        assertEquals(List.of(1L, 2L, 3L), list(g.vertices()));
+        assertEquals(List.of(2L), list(g.adjacent(3)));
+        assertEquals(List.of(1L, 2L, 3L), Router.shortestPath(g, 1L, 3L,
+                Router.Metric.DISTANCE));
+        assertEquals(List.of("Top"), g.locationNames());
+        assertEquals(-1, g.getCompactGraph().indexOf(99));
+    }
+
+    @Test
+    public void testSpillMergesRuns() throws IOException {
+        File dir = new File(System.getProperty("java.io.tmpdir"));
+        long[] ids = {7, 3, 9, 1, 3, 8, 2, 7};
+        try (NodeSpill spill = new NodeSpill(dir, 3)) {
+            for (int i = 0; i < ids.length; i += 1) {
+                spill.add(ids[i], i, -i);
+            }
+            long[] wanted = {1, 3, 4, 7, 9};
+            double[] lats = new double[wanted.length];
+            double[] lons = new double[wanted.length];
+            spill.lookup(wanted, lats, lons);
+            assertEquals(3, spill.numRuns());
+            assertEquals(3, lats[0], 0);
+            /* A node given twice keeps its later coordinates, even from another run. */
+            assertEquals(4, lats[1], 0);
+            assertEquals(-4, lons[1], 0);
+            assertTrue(Double.isNaN(lats[2]));
+            assertEquals(7, lats[3], 0);
+            assertEquals(2, lats[4], 0);
+        }
+    }
+
+    @Test
+    public void testBoundsChecked() throws IOException {
+        NodeStore store = storedTiny.getNodeStore();
+        assertEquals(-1, store.indexOf(12345));
+        try {
+            storedTiny.lon(12345);
+            fail();
+        } catch (IndexOutOfBoundsException expected) {
+            /* No vertex has that ID. */
+        }
+        try {
+            store.neighbor(0, store.degree(0));
+            fail();
+        } catch (IndexOutOfBoundsException expected) {
+            /* Past the vertex's own neighbors. */
+        }
+        File garbage = File.createTempFile("garbage", ".nodes");
+        garbage.deleteOnExit();
+        try (Writer out = new FileWriter(garbage)) {
+            out.write("not a node store, but long enough to hold a header");
+        }
+        try {
+            NodeStore.map(garbage);
+            fail();
+        } catch (IOException expected) {
+            /* Rejected by its header. */
+        }
+    }
+}
@@ -0,0 +1,414 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that applying a change file to a graph makes the graph that loading the changed map
+ * would, and leaves the graph it was applied to as it was. The map is a random street grid
+ * with dead-end spurs and points of interest, which two rounds of random edits move, retag,
+ * reroute, create and delete.
+ */
+public class TestOsmChange {
+    private static final String OSM_DB_PATH_TINY = "../library-su18/bearmaps/tiny-clean.osm.xml";
+    private static final int SIDE = 20;
+    private static final int SPURS = 10;
+    private static final int POIS = 20;
+    private static final String[] HIGHWAYS = {"residential", "primary", "footway", "cycleway",
+        "service"};
+    private static final double MIN_LON = -122.29, MIN_LAT = 37.83, STEP = 0.0005;
+    /** The map being edited: nodes as {lat, lon}, and tags as keys and values alternately. */
+    private static TreeMap<Long, double[]> nodes;
+    private static Map<Long, List<String>> nodeTags;
+    private static LinkedHashMap<Long, List<Long>> wayRefs;
+    private static Map<Long, List<String>> wayTags;
+    private static long nextNodeId;
+    private static long nextWayId;
+    private static GraphDB graphTiny;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        graphTiny = new GraphDB(OSM_DB_PATH_TINY);
+        initialized = true;
+    }
+
+    private static long nodeId(int i) {
+        return 1_000_000_000L + 7L * i;
+    }
+
+    /** Makes the grid, its spurs and its points of interest. */
+    private static void makeMap(Random random) {
+        nodes = new TreeMap<>();
+        nodeTags = new HashMap<>();
+        wayRefs = new LinkedHashMap<>();
+        wayTags = new HashMap<>();
+        nextNodeId = 4_000_000_000L;
+        nextWayId = 20_000;
+        for (int i = 0; i < SIDE * SIDE; i += 1) {
+            putNode(nodeId(i), MIN_LAT + (i / SIDE) * STEP, MIN_LON + (i % SIDE) * STEP);
+            if (random.nextInt(15) == 0) {
+                nodeTags.put(nodeId(i), List.of("name", "Corner " + i, "shop", "yes"));
+            }
+        }
+        for (int w = 0; w < 2 * SIDE; w += 1) {
+            List<Long> refs = new ArrayList<>();
+            for (int k = 0; k < SIDE; k += 1) {
+                refs.add(nodeId(w < SIDE ? w * SIDE + k : k * SIDE + w - SIDE));
+            }
+            wayRefs.put(5000L + w, refs);
+            wayTags.put(5000L + w, randomWayTags(random, w));
+        }
+        for (int s = 0; s < SPURS; s += 1) {
+            long from = nodeId(random.nextInt(SIDE * SIDE));
+            List<Long> refs = new ArrayList<>(List.of(from));
+            for (int j = 1; j <= 2; j += 1) {
+                long id = 2_000_000_000L + 10 * s + j;
+                putNode(id, nodes.get(from)[0] + j * STEP / 4, nodes.get(from)[1] + STEP / 5);
+                refs.add(id);
+            }
+            wayRefs.put(9000L + s, refs);
+            wayTags.put(9000L + s, List.of("highway", "service"));
+        }
+        for (int p = 0; p < POIS; p += 1) {
+            long id = 3_000_000_000L + p;
+            putNode(id, MIN_LAT + random.nextDouble() * SIDE * STEP,
+                    MIN_LON + random.nextDouble() * SIDE * STEP);
+            nodeTags.put(id, List.of("name", "Cafe " + p, "amenity", "cafe"));
+        }
+    }
+
+    private static void putNode(long id, double lat, double lon) {
+        nodes.put(id, new double[]{lat, lon});
+        nodeTags.putIfAbsent(id, List.of());
+    }
+
+    private static List<String> randomWayTags(Random random, long w) {
+        List<String> tags = new ArrayList<>(List.of("highway",
+                HIGHWAYS[random.nextInt(HIGHWAYS.length)]));
+        if (random.nextBoolean()) {
+            tags.addAll(List.of("name", "Street " + w + " " + random.nextInt(100)));
+        }
+        if (random.nextInt(3) == 0) {
+            tags.addAll(List.of("maxspeed", 10 + random.nextInt(50) + " mph"));
+        }
+        if (random.nextInt(8) == 0) {
+            tags.addAll(List.of("access", "no"));
+        }
+        return tags;
+    }
+
+    private static String nodeXml(long id) {
+        double[] c = nodes.get(id);
+        StringBuilder xml = new StringBuilder(String.format(
+                "<node id=\"%d\" lat=\"%.7f\" lon=\"%.7f\">", id, c[0], c[1]));
+        tagsXml(xml, nodeTags.get(id));
+        return xml.append("</node>\n").toString();
+    }
+
+    private static String wayXml(long id) {
+        StringBuilder xml = new StringBuilder(String.format("<way id=\"%d\">", id));
+        for (long ref : wayRefs.get(id)) {
+            xml.append(String.format("<nd ref=\"%d\"/>", ref));
+        }
+        tagsXml(xml, wayTags.get(id));
+        return xml.append("</way>\n").toString();
+    }
+
+    private static void tagsXml(StringBuilder xml, List<String> tags) {
+        for (int i = 0; i < tags.size(); i += 2) {
+            xml.append(String.format("<tag k=\"%s\" v=\"%s\"/>", tags.get(i), tags.get(i + 1)));
+        }
+    }
+
+    /** Writes the whole map as it is now, and returns the graph loaded from it. */
+    private static GraphDB load() throws IOException {
+        StringBuilder osm = new StringBuilder("<?xml version='1.0' encoding='UTF-8'?>\n");
+        osm.append("<osm version=\"0.6\">\n");
+        for (long id : nodes.keySet()) {
+            osm.append(nodeXml(id));
+        }
+        for (long id : wayRefs.keySet()) {
+            osm.append(wayXml(id));
+        }
+        osm.append("</osm>\n");
+        File file = File.createTempFile("change", ".osm.xml");
+        file.deleteOnExit();
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(file),
+                StandardCharsets.UTF_8)) {
+            out.write(osm.toString());
+        }
+        return new GraphDB(file.getPath());
+    }
+
+    /**
+     * Edits the map at random and returns the change file of the edits. Nodes on no road are
+     * not in a graph, so a changed way's nodes that are not in <code>current</code> are given
+     * in the change file too, as they would be if they had been edited.
+     */
+    private static OsmChange edit(Random random, GraphDB current) throws IOException {
+        StringBuilder create = new StringBuilder();
+        StringBuilder modify = new StringBuilder();
+        StringBuilder delete = new StringBuilder();
+        List<Long> created = new ArrayList<>();
+        for (int k = 0; k < 10; k += 1) {
+            long id = nodeId(random.nextInt(SIDE * SIDE));
+            double[] c = nodes.get(id);
+            c[0] += (random.nextDouble() - 0.5) * STEP;
+            c[1] += (random.nextDouble() - 0.5) * STEP;
+            modify.append(nodeXml(id));
+        }
+        List<Long> changedWays = new ArrayList<>();
+        for (int k = 0; k < 8; k += 1) {
+            long w = 5000L + random.nextInt(2 * SIDE);
+            List<Long> refs = wayRefs.get(w);
+            if (refs == null) {
+                continue;
+            }
+            wayTags.put(w, randomWayTags(random, w));
+            if (random.nextBoolean()) {
+                /* Reroute through a new node. */
+                int i = 1 + random.nextInt(refs.size() - 2);
+                double[] c = nodes.get(refs.get(i));
+                long id = nextNodeId++;
+                putNode(id, c[0] + STEP / 3, c[1] + STEP / 3);
+                created.add(id);
+                refs.add(i + 1, id);
+                create.append(nodeXml(id));
+            }
+            changedWays.add(w);
+        }
+        for (int k = 0; k < 3; k += 1) {
+            long from = nodeId(random.nextInt(SIDE * SIDE));
+            long to = nodeId(random.nextInt(SIDE * SIDE));
+            long id = nextNodeId++;
+            putNode(id, (nodes.get(from)[0] + nodes.get(to)[0]) / 2,
+                    (nodes.get(from)[1] + nodes.get(to)[1]) / 2);
+            created.add(id);
+            create.append(nodeXml(id));
+            long w = nextWayId++;
+            wayRefs.put(w, new ArrayList<>(List.of(from, id, to)));
+            wayTags.put(w, List.of("highway", "residential", "name", "New " + w));
+            changedWays.add(w);
+        }
+        for (long w : changedWays) {
+            for (long ref : wayRefs.get(w)) {
+                if (!created.contains(ref) && !current.getNodeMap().containsKey(ref)) {
+                    modify.append(nodeXml(ref));
+                }
+            }
+            (w >= 20_000 ? create : modify).append(wayXml(w));
+        }
+        for (int k = 0; k < 3; k += 1) {
+            long w = 5000L + random.nextInt(2 * SIDE);
+            if (wayRefs.remove(w) != null) {
+                delete.append(String.format("<way id=\"%d\"/>\n", w));
+            }
+        }
+        for (int s = 0; s < SPURS; s += 1) {
+            long w = 9000L + s;
+            if (random.nextInt(4) == 0 && wayRefs.containsKey(w)) {
+                /* The nodes first, as some tools order deletions. */
+                for (long ref : wayRefs.remove(w).subList(1, 3)) {
+                    nodes.remove(ref);
+                    delete.append(String.format("<node id=\"%d\"/>\n", ref));
+                }
+                delete.append(String.format("<way id=\"%d\"/>\n", w));
+            }
+        }
+        List<Long> pois = new ArrayList<>(nodes.subMap(3_000_000_000L, 4_000_000_000L).keySet());
+        Collections.shuffle(pois, random);
+        nodeTags.put(pois.get(0), List.of("name", "Renamed " + pois.get(0), "amenity",
+                "restaurant"));
+        modify.append(nodeXml(pois.get(0)));
+        nodes.remove(pois.get(1));
+        delete.append(String.format("<node id=\"%d\"/>\n", pois.get(1)));
+        for (long id = nodeId(0); id < nodeId(SIDE * SIDE); id += 7) {
+            if (!nodeTags.get(id).isEmpty()) {
+                nodeTags.put(id, List.of());
+                modify.append(nodeXml(id));
+                break;
+            }
+        }
+        long poi = 3_000_000_000L + POIS + random.nextInt(1000);
+        putNode(poi, MIN_LAT + STEP, MIN_LON + STEP);
+        nodeTags.put(poi, List.of("name", "New Cafe " + poi, "amenity", "cafe"));
+        create.append(nodeXml(poi));
+
+        String osc = "<?xml version='1.0' encoding='UTF-8'?>\n<osmChange version=\"0.6\">\n"
+                + "<create>\n" + create + "</create>\n<modify>\n" + modify + "</modify>\n"
+                + "<delete>\n" + delete + "</delete>\n</osmChange>\n";
+        return OsmChange.read(new ByteArrayInputStream(osc.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static List<Long> sorted(Iterable<Long> ids) {
+        List<Long> result = new ArrayList<>();
+        for (long id : ids) {
+            result.add(id);
+        }
+        result.sort(null);
+        return result;
+    }
+
+    private static String name(GraphDB g, int handle) {
+        return handle == NameArena.NONE ? null : g.getNames().get(handle);
+    }
+
+    /** Checks that two graphs have the same vertices, edges, ways, locations and indexes. */
+    private static void assertSameGraph(GraphDB expected, GraphDB actual, Random random) {
+        List<Long> vertices = sorted(expected.vertices());
+        assertEquals(vertices, sorted(actual.vertices()));
+        for (long v : vertices) {
+            assertEquals(expected.lon(v), actual.lon(v), 0);
+            assertEquals(expected.lat(v), actual.lat(v), 0);
+            assertEquals(sorted(expected.adjacent(v)), sorted(actual.adjacent(v)));
+        }
+        int live = 0;
+        for (int k = 0; k < actual.numWays(); k += 1) {
+            if (!actual.way(k).nodes.isEmpty()) {
+                live += 1;
+            }
+        }
+        assertEquals(expected.numWays(), live);
+        for (int k = 0; k < expected.numWays(); k += 1) {
+            GraphDB.Way a = expected.way(k);
+            GraphDB.Way b = actual.way(actual.wayIndex(a.id));
+            assertEquals(a.nodes, b.nodes);
+            assertEquals(name(expected, a.name), name(actual, b.name));
+            assertEquals(a.highwayClass, b.highwayClass);
+            assertEquals(a.speedMph, b.speedMph);
+            assertEquals(a.access, b.access);
+        }
+        List<String> names = new ArrayList<>(expected.locationNames());
+        List<String> actualNames = new ArrayList<>(actual.locationNames());
+        names.sort(null);
+        actualNames.sort(null);
+        assertEquals(names, actualNames);
+        assertEquals(expected.getLocationsByPrefix("c"), actual.getLocationsByPrefix("c"));
+        assertEquals(expected.getCompactGraph().numVertices(),
+                actual.getCompactGraph().numVertices());
+        for (int k = 0; k < 100; k += 1) {
+            double lon = MIN_LON + random.nextDouble() * SIDE * STEP;
+            double lat = MIN_LAT + random.nextDouble() * SIDE * STEP;
+            assertEquals(expected.closest(lon, lat), actual.closest(lon, lat));
+            for (Router.Profile profile : Router.Profile.values()) {
+                assertEquals(expected.closest(lon, lat, profile),
+                        actual.closest(lon, lat, profile));
+            }
+            List<Long> within = new ArrayList<>();
+            List<Long> actualWithin = new ArrayList<>();
+            expected.verticesWithin(lon, lat, 0.1, within::add);
+            actual.verticesWithin(lon, lat, 0.1, actualWithin::add);
+            assertEquals(sorted(within), sorted(actualWithin));
+            for (String category : new String[]{"cafe", "restaurant", "shop"}) {
+                List<ReverseGeocoder.Match> a = expected.getCategoryIndex().nearest(category,
+                        lon, lat, 3);
+                List<ReverseGeocoder.Match> b = actual.getCategoryIndex().nearest(category,
+                        lon, lat, 3);
+                assertEquals(a.size(), b.size());
+                for (int i = 0; i < a.size(); i += 1) {
+                    assertEquals(a.get(i).id, b.get(i).id);
+                }
+            }
+            long from = vertices.get(random.nextInt(vertices.size()));
+            long to = vertices.get(random.nextInt(vertices.size()));
+            assertEquals(length(expected, Router.shortestPath(expected, from, to,
+                    Router.Metric.DISTANCE)), length(actual, Router.shortestPath(actual, from,
+                    to, Router.Metric.DISTANCE)), 1e-9);
+        }
+    }
+
+    private static double length(GraphDB g, List<Long> path) {
+        double length = 0;
+        for (int i = 1; i < path.size(); i += 1) {
+            length += g.distance(path.get(i - 1), path.get(i));
+        }
+        return length;
+    }
+
+    @Test
+    public void testSameAsLoadingChangedMap() throws IOException {
+        Random random = new Random(50);
+        makeMap(random);
+        GraphDB graph = load();
+        for (int round = 0; round < 2; round += 1) {
+            List<Long> vertices = sorted(graph.vertices());
+            Map<Long, List<Long>> adjacency = new HashMap<>();
+            for (long v : vertices) {
+                adjacency.put(v, sorted(graph.adjacent(v)));
+            }
+            List<String> locations = new ArrayList<>(graph.locationNames());
+            long[] closest = new long[50];
+            Random points = new Random(round);
+            for (int k = 0; k < closest.length; k += 1) {
+                closest[k] = graph.closest(MIN_LON + points.nextDouble() * SIDE * STEP,
+                        MIN_LAT + points.nextDouble() * SIDE * STEP);
+            }
+
+            OsmChange change = edit(random, graph);
+            GraphDB next = graph.withChanges(change, phase -> { });
+            assertTrue(next.version() > graph.version());
+            assertSameGraph(load(), next, random);
+            GraphDB.ChangeStats stats = next.changeStats();
+            assertEquals(change.size(), stats.elements);
+            assertEquals(0, stats.skippedWays);
+            assertTrue(stats.movedVertices > 0);
+            assertTrue(stats.addedVertices > 0);
+            assertTrue(stats.copiedNodes < vertices.size() / 2);
+
+            /* The graph the changes were applied to is as it was. */
+            assertEquals(vertices, sorted(graph.vertices()));
+            for (long v : vertices) {
+                assertEquals(adjacency.get(v), sorted(graph.adjacent(v)));
+            }
+            assertEquals(locations, graph.locationNames());
+            points = new Random(round);
+            for (int k = 0; k < closest.length; k += 1) {
+                assertEquals(closest[k], graph.closest(MIN_LON + points.nextDouble() * SIDE
+                        * STEP, MIN_LAT + points.nextDouble() * SIDE * STEP));
+            }
+            graph = next;
+        }
+    }
+
+    @Test
+    public void testNodesNotInGraph() throws IOException {
+        String osc = "<osmChange version=\"0.6\"><create>"
+                + "<way id=\"900\"><nd ref=\"41\"/><nd ref=\"999999\"/>"
+                + "<tag k=\"highway\" v=\"residential\"/></way>"
+                + "</create><delete><node id=\"41\"/></delete></osmChange>";
+        OsmChange change = OsmChange.read(new ByteArrayInputStream(
+                osc.getBytes(StandardCharsets.UTF_8)));
+        GraphDB next = graphTiny.withChanges(change, phase -> { });
+        /* The way needs a node the graph does not have, and node 41 is on a way. */
+        assertEquals(1, next.changeStats().skippedWays);
+        assertEquals(1, next.changeStats().skippedDeletions);
+        assertEquals(-1, next.wayIndex(900));
+        assertEquals(sorted(graphTiny.vertices()), sorted(next.vertices()));
+        assertEquals(sorted(graphTiny.adjacent(41)), sorted(next.adjacent(41)));
+        assertNotEquals(graphTiny.version(), next.version());
+        assertFalse(next.changeStats().rebuiltIndexes.contains("kd-tree"));
+    }
+}
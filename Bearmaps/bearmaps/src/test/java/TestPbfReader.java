@@ -0,0 +1,246 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that a map read from OSM PBF makes the same graph as the OSM XML it was converted
+ * from, for the tiny map and for a random street grid of tagged nodes and ways that spans
+ * several blocks.
+ */
+public class TestPbfReader {
+    private static final String OSM_DB_PATH_TINY = "../library-su18/bearmaps/tiny-clean.osm.xml";
+    /** Intersections on each side of the random grid; more than one block of nodes. */
+    private static final int SIDE = 100;
+    private static final String[] HIGHWAYS = {"residential", "primary", "footway", "cycleway",
+        "service", "motorway"};
+    private static final double MIN_LON = -122.29, MIN_LAT = 37.83, STEP = 0.0005;
+    private static File gridXml;
+    private static File gridPbf;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        gridXml = writeRandomGrid();
+        gridPbf = File.createTempFile("grid", ".osm.pbf");
+        gridPbf.deleteOnExit();
+        PbfWriter.convert(gridXml, gridPbf);
+        initialized = true;
+    }
+
+    /**
+     * Writes a grid of streets with IDs in shuffled order and with gaps, so ID deltas are of
+     * both signs. Some intersections are named places or shops, and the streets have random
+     * names, highway types, speed limits and access restrictions.
+     */
+    private static File writeRandomGrid() throws IOException {
+        Random random = new Random(47);
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < SIDE * SIDE; i += 1) {
+            order.add(i);
+        }
+        Collections.shuffle(order, random);
+        StringBuilder osm = new StringBuilder("<?xml version='1.0' encoding='UTF-8'?>\n");
+        osm.append("<osm version=\"0.6\">\n");
+        for (int i : order) {
+            double lon = MIN_LON + (i % SIDE) * STEP;
+            double lat = MIN_LAT + (i / SIDE) * STEP;
+            osm.append(String.format("<node id=\"%d\" lat=\"%.7f\" lon=\"%.7f\">", nodeId(i), lat,
+                    lon));
+            if (random.nextInt(20) == 0) {
+                osm.append(String.format("<tag k=\"name\" v=\"Caf\u00e9 %d\"/>", i));
+                osm.append("<tag k=\"amenity\" v=\"cafe\"/>");
+            } else if (random.nextInt(40) == 0) {
+                osm.append("<tag k=\"shop\" v=\"yes\"/>");
+            }
+            osm.append("</node>\n");
+        }
+        for (int w = 0; w < 2 * SIDE; w += 1) {
+            osm.append(String.format("<way id=\"%d\">", 5000 + 3 * w));
+            for (int k = 0; k < SIDE; k += 1) {
+                int i = w < SIDE ? w * SIDE + k : k * SIDE + w - SIDE;
+                osm.append(String.format("<nd ref=\"%d\"/>", nodeId(i)));
+            }
+            osm.append(String.format("<tag k=\"highway\" v=\"%s\"/>",
+                    HIGHWAYS[random.nextInt(HIGHWAYS.length)]));
+            if (random.nextBoolean()) {
+                osm.append(String.format("<tag k=\"name\" v=\"Street %d\"/>", w));
+            }
+            if (random.nextInt(3) == 0) {
+                osm.append(String.format("<tag k=\"maxspeed\" v=\"%d mph\"/>",
+                        10 + random.nextInt(50)));
+            }
+            if (random.nextInt(10) == 0) {
+                osm.append("<tag k=\"access\" v=\"no\"/>");
+            } else if (random.nextInt(5) == 0) {
+                osm.append("<tag k=\"foot\" v=\"no\"/>");
+            }
+            osm.append("</way>\n");
+        }
+        osm.append("</osm>\n");
+        File file = File.createTempFile("grid", ".osm.xml");
+        file.deleteOnExit();
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(file),
+                StandardCharsets.UTF_8)) {
+            out.write(osm.toString());
+        }
+        return file;
+    }
+
+    private static long nodeId(int i) {
+        return 1_000_000_000L + 7L * i;
+    }
+
+    private static List<Long> list(Iterable<Long> ids) {
+        List<Long> result = new ArrayList<>();
+        for (long id : ids) {
+            result.add(id);
+        }
+        return result;
+    }
+
+    private static String name(GraphDB g, int handle) {
+        return handle == NameArena.NONE ? null : g.getNames().get(handle);
+    }
+
+    /** Checks that two graphs have the same vertices, edges, ways and locations. */
+    private static void assertSameGraph(GraphDB expected, GraphDB actual) {
+        List<Long> vertices = list(expected.vertices());
+        vertices.sort(null);
+        List<Long> actualVertices = list(actual.vertices());
+        actualVertices.sort(null);
+        assertEquals(vertices, actualVertices);
+        for (long v : vertices) {
+            assertEquals(expected.lon(v), actual.lon(v), 0);
+            assertEquals(expected.lat(v), actual.lat(v), 0);
+            assertEquals(list(expected.adjacent(v)), list(actual.adjacent(v)));
+        }
+        assertEquals(expected.numWays(), actual.numWays());
+        for (int k = 0; k < expected.numWays(); k += 1) {
+            GraphDB.Way a = expected.way(k);
+            GraphDB.Way b = actual.way(k);
+            assertEquals(a.id, b.id);
+            assertEquals(a.nodes, b.nodes);
+            assertEquals(name(expected, a.name), name(actual, b.name));
+            assertEquals(a.highwayClass, b.highwayClass);
+            assertEquals(a.speedMph, b.speedMph);
+            assertEquals(a.access, b.access);
+        }
+        List<String> names = new ArrayList<>(expected.locationNames());
+        List<String> actualNames = new ArrayList<>(actual.locationNames());
+        names.sort(null);
+        actualNames.sort(null);
+        assertEquals(names, actualNames);
+    }
+
+    @Test
+    public void testTiny() throws IOException {
+        File pbf = File.createTempFile("tiny", ".osm.pbf");
+        pbf.deleteOnExit();
+        PbfWriter.convert(new File(OSM_DB_PATH_TINY), pbf);
+        assertSameGraph(new GraphDB(OSM_DB_PATH_TINY), new GraphDB(pbf.getPath()));
+    }
+
+    @Test
+    public void testGrid() {
+        GraphDB fromXml = new GraphDB(gridXml.getPath());
+        GraphDB fromPbf = new GraphDB(gridPbf.getPath());
+        assertTrue(fromPbf.numWays() > 0);
+        assertFalse(fromPbf.locationNames().isEmpty());
+        assertSameGraph(fromXml, fromPbf);
+        double lon = MIN_LON + SIDE / 3 * STEP;
+        double lat = MIN_LAT + SIDE / 2 * STEP;
+        for (String category : new String[]{"cafe", "shop"}) {
+            List<ReverseGeocoder.Match> a = fromXml.getCategoryIndex().nearest(category, lon,
+                    lat, 5);
+            List<ReverseGeocoder.Match> b = fromPbf.getCategoryIndex().nearest(category, lon,
+                    lat, 5);
+            assertEquals(5, b.size());
+            for (int i = 0; i < a.size(); i += 1) {
+                assertEquals(a.get(i).id, b.get(i).id);
+            }
+        }
+    }
+
+    @Test
+    public void testBlocksInOrder() throws IOException {
+        int[] counts = new int[2];
+        List<Integer> nodeBlocks = new ArrayList<>();
+        PbfReader.read(gridPbf, new ForkJoinPool(3), block -> {
+            counts[0] += block.numNodes();
+            counts[1] += block.numWays();
+            nodeBlocks.add(block.numNodes());
+        });
+        assertEquals(SIDE * SIDE, counts[0]);
+        assertEquals(2 * SIDE, counts[1]);
+        assertTrue(nodeBlocks.size() > 2);
+        /* Full blocks of nodes come first, then the rest, then the ways. */
+        assertEquals(0, (int) nodeBlocks.get(nodeBlocks.size() - 1));
+    }
+
+    @Test
+    public void testProtoReader() throws IOException {
+        /* Field 1 varint 300, field 2 sint -3, field 3 packed sint -1 and 64, field 4 fixed32. */
+        byte[] message = {0x08, (byte) 0xac, 0x02, 0x10, 0x05, 0x1a, 0x03, 0x01, (byte) 0x80,
+            0x01, 0x25, 1, 2, 3, 4, 0x28, 0x07};
+        ProtoReader r = new ProtoReader(message);
+        assertEquals(1, r.next());
+        assertEquals(300, r.varint());
+        assertEquals(2, r.next());
+        assertEquals(-3, r.sint());
+        assertEquals(3, r.next());
+        ProtoReader packed = r.packed();
+        assertEquals(-1, packed.sint());
+        assertEquals(64, packed.sint());
+        assertFalse(packed.hasMore());
+        assertEquals(4, r.next());
+        r.skip();
+        assertEquals(5, r.next());
+        assertEquals(7, r.varint());
+        assertEquals(0, r.next());
+
+        ProtoReader truncated = new ProtoReader(new byte[]{0x0a, 0x05, 1, 2});
+        assertEquals(1, truncated.next());
+        try {
+            truncated.message();
+            fail();
+        } catch (IOException expected) {
+            /* The field claims more bytes than the message has. */
+        }
+    }
+
+    @Test
+    public void testTruncatedFile() throws IOException {
+        File cut = File.createTempFile("cut", ".osm.pbf");
+        cut.deleteOnExit();
+        PbfWriter.convert(gridXml, cut);
+        try (RandomAccessFile raf = new RandomAccessFile(cut, "rw")) {
+            raf.setLength(raf.length() - 10);
+        }
+        try {
+            PbfReader.read(cut, ForkJoinPool.commonPool(), block -> { });
+            fail();
+        } catch (IOException expected) {
+            /* The last blob ends early. */
+        }
+    }
+}
@@ -0,0 +1,103 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for prefix search over location names, with and without the precomputed results of
+ * short prefixes, checked against a scan of every name.
+ */
+public class TestPrefixIndex {
+    private static final int NAMES = 3000;
+    private static final String LETTERS = "abcst ";
+    private static List<String> names;
+    private static List<String> cleanedNames;
+    private static PrefixIndex index;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() {
+        if (initialized) {
+            return;
+        }
+        Random random = new Random(43);
+        names = new ArrayList<>();
+        for (int i = 0; i < NAMES; i += 1) {
+            StringBuilder name = new StringBuilder();
+            int length = 1 + random.nextInt(8);
+            for (int c = 0; c < length; c += 1) {
+                char letter = LETTERS.charAt(random.nextInt(LETTERS.length()));
+                name.append(random.nextBoolean() ? Character.toUpperCase(letter) : letter);
+            }
+            names.add(name.append(random.nextInt(10) == 0 ? "!" : "").toString());
+        }
+        cleanedNames = new ArrayList<>();
+        for (String name : names) {
+            cleanedNames.add(GraphDB.cleanString(name));
+        }
+        index = new PrefixIndex(names);
+        initialized = true;
+    }
+
+    /** Returns what the index should answer, by cleaning and checking every name. */
+    private static List<String> scan(String prefix) {
+        String p = GraphDB.cleanString(prefix);
+        List<String[]> found = new ArrayList<>();
+        for (int i = 0; i < names.size(); i += 1) {
+            String c = cleanedNames.get(i);
+            if (!p.isEmpty() && c.startsWith(p)) {
+                found.add(new String[]{c, names.get(i)});
+            }
+        }
+        found.sort(Comparator.<String[], String>comparing(f -> f[0]).thenComparing(f -> f[1]));
+        List<String> result = new ArrayList<>();
+        for (String[] f : found) {
+            result.add(f[1]);
+        }
+        return result;
+    }
+
+    @Test
+    public void testMatchesFullScan() {
+        List<String> prefixes = new ArrayList<>();
+        prefixes.add("");
+        for (int length = 1; length <= 4; length += 1) {
+            List<String> longer = new ArrayList<>();
+            for (String p : prefixes) {
+                for (char c : LETTERS.toCharArray()) {
+                    longer.add(p + c);
+                }
+            }
+            for (String p : longer) {
+                List<String> expected = scan(p);
+                assertEquals(p, expected, index.search(p, () -> false));
+                assertEquals(p, expected, index.search(p.toUpperCase() + "?", () -> false));
+                assertEquals(p, expected, index.copyRange(p, () -> false));
+            }
+            prefixes = longer;
+        }
+        assertTrue(index.search("", () -> false).isEmpty());
+        assertTrue(index.search(null, () -> false).isEmpty());
+        assertTrue(index.search("z", () -> false).isEmpty());
+        assertTrue(index.numHotPrefixes() <= LETTERS.length() * 43);
+    }
+
+    @Test
+    public void testCancelled() {
+        /* Short prefixes are precomputed, so only longer ones can be cut short. */
+        assertEquals(scan("a"), index.search("a", () -> true));
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < 5000; i += 1) {
+            names.add("Long Street " + i);
+        }
+        PrefixIndex many = new PrefixIndex(names);
+        assertEquals(5000, many.search("long st", () -> false).size());
+        assertTrue(many.search("long st", () -> true).size() < 5000);
+    }
+}
@@ -0,0 +1,198 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for routing drivers, cyclists and pedestrians over one shared graph, built from a small
+ * OSM file with a residential street, a footway shortcut, a motorway and a cycleway.
+ */
+public class TestProfiles {
+    private static final String OSM = String.join("\n",
+            "<?xml version='1.0' encoding='UTF-8'?>",
+            "<osm version=\"0.6\">",
+            "<node id=\"1\" lat=\"37.870\" lon=\"-122.26\"/>",
+            "<node id=\"2\" lat=\"37.880\" lon=\"-122.25\"/>",
+            "<node id=\"3\" lat=\"37.870\" lon=\"-122.24\"/>",
+            "<node id=\"4\" lat=\"37.870\" lon=\"-122.25\"/>",
+            "<node id=\"5\" lat=\"37.870\" lon=\"-122.23\"/>",
+            "<node id=\"6\" lat=\"37.860\" lon=\"-122.26\"/>",
+            "<node id=\"7\" lat=\"37.860\" lon=\"-122.25\"/>",
+            "<node id=\"8\" lat=\"37.860\" lon=\"-122.24\"/>",
+            "<node id=\"9\" lat=\"37.850\" lon=\"-122.26\"/>",
+            "<way id=\"100\"><nd ref=\"1\"/><nd ref=\"2\"/><nd ref=\"3\"/>",
+            "<tag k=\"highway\" v=\"residential\"/><tag k=\"name\" v=\"Main Street\"/></way>",
+            "<way id=\"200\"><nd ref=\"1\"/><nd ref=\"4\"/><nd ref=\"3\"/>",
+            "<tag k=\"highway\" v=\"footway\"/><tag k=\"name\" v=\"Shortcut\"/></way>",
+            "<way id=\"300\"><nd ref=\"3\"/><nd ref=\"5\"/>",
+            "<tag k=\"highway\" v=\"motorway\"/></way>",
+            "<way id=\"400\"><nd ref=\"1\"/><nd ref=\"6\"/><nd ref=\"7\"/>",
+            "<tag k=\"highway\" v=\"cycleway\"/></way>",
+            "<way id=\"500\"><nd ref=\"7\"/><nd ref=\"8\"/><nd ref=\"3\"/>",
+            "<tag k=\"highway\" v=\"service\"/><tag k=\"access\" v=\"private\"/>",
+            "<tag k=\"bicycle\" v=\"yes\"/><tag k=\"foot\" v=\"yes\"/></way>",
+            "<way id=\"600\"><nd ref=\"6\"/><nd ref=\"9\"/>",
+            "<tag k=\"highway\" v=\"construction\"/></way>",
+            "</osm>");
+    private static GraphDB graph;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        graph = new GraphDB(writeOsm().getPath());
+        initialized = true;
+    }
+
+    private static File writeOsm() throws IOException {
+        File file = File.createTempFile("profiles", ".osm.xml");
+        file.deleteOnExit();
+        try (Writer out = new FileWriter(file)) {
+            out.write(OSM);
+        }
+        return file;
+    }
+
+    private static List<Long> route(long from, long to, Router.Profile profile) {
+        return Router.shortestPath(graph, from, to, Router.Metric.DISTANCE, profile, null);
+    }
+
+    @Test
+    public void testOneSharedGraph() {
+        CompactGraph cg = graph.getCompactGraph();
+        assertEquals(8, cg.numVertices());
+        assertEquals(CompactGraph.NONE, cg.indexOf(9L));
+        assertTrue(cg.allows(cg.indexOf(4L), Router.Profile.WALK));
+        assertFalse(cg.allows(cg.indexOf(4L), Router.Profile.DRIVE));
+        assertFalse(cg.allows(cg.indexOf(4L), Router.Profile.BIKE));
+    }
+
+    @Test
+    public void testEachProfileUsesItsRoads() {
+        assertEquals(Arrays.asList(1L, 2L, 3L), route(1, 3, Router.Profile.DRIVE));
+        assertEquals(Arrays.asList(1L, 4L, 3L), route(1, 3, Router.Profile.WALK));
+        assertEquals(Arrays.asList(1L, 2L, 3L), route(1, 3, Router.Profile.BIKE));
+        assertEquals(Arrays.asList(1L, 2L, 3L, 5L), route(1, 5, Router.Profile.DRIVE));
+        assertEquals(Collections.emptyList(), route(1, 5, Router.Profile.WALK));
+        assertEquals(Arrays.asList(3L, 8L, 7L), route(3, 7, Router.Profile.BIKE));
+        assertEquals(Arrays.asList(3L, 8L, 7L), route(3, 7, Router.Profile.WALK));
+        assertEquals(Collections.emptyList(), route(3, 7, Router.Profile.DRIVE));
+    }
+
+    @Test
+    public void testAccessChangesSplitChains() {
+        CompactGraph cg = graph.getCompactGraph();
+        /* Vertex 7 joins the cycleway to a service road open to cyclists and pedestrians. */
+        assertNotEquals(CompactGraph.NONE, cg.junctionOf[cg.indexOf(7L)]);
+        for (int c = 0; c < cg.chainFrom.length; c += 1) {
+            for (int i = cg.chainStart[c]; i < cg.chainStart[c + 1]; i += 1) {
+                assertEquals(cg.chainAccess[c], cg.arcAccess[cg.chainArcs[i]]);
+            }
+        }
+    }
+
+    @Test
+    public void testSnapToUsableVertex() {
+        assertEquals(4L, graph.closest(-122.25, 37.8705, Router.Profile.WALK));
+        assertNotEquals(4L, graph.closest(-122.25, 37.8705, Router.Profile.DRIVE));
+        assertEquals(graph.closest(-122.2301, 37.87), graph.closest(-122.2301, 37.87,
+                Router.Profile.DRIVE));
+    }
+
+    @Test
+    public void testTimesAtProfileSpeed() {
+        long[] from = {1L};
+        long[] to = {3L};
+        float miles = Router.distanceMatrix(graph, from, to, Router.Metric.DISTANCE,
+                Router.Profile.WALK)[0];
+        float seconds = Router.distanceMatrix(graph, from, to, Router.Metric.TIME,
+                Router.Profile.WALK)[0];
+        assertEquals(miles / 3 * 3600, seconds, 1e-2);
+        assertEquals(seconds, Router.distanceOnly(graph, 1L, 3L, Router.Metric.TIME,
+                Router.Profile.WALK), 1e-2);
+        assertEquals(Float.POSITIVE_INFINITY, Router.distanceMatrix(graph, from, new long[]{5L},
+                Router.Metric.TIME, Router.Profile.WALK)[0], 0);
+    }
+
+    @Test
+    public void testIsochrone() {
+        List<Long> walk = asList(Isochrone.compute(graph, 1L, Double.POSITIVE_INFINITY,
+                Router.Metric.DISTANCE, Router.Profile.WALK).vertices());
+        assertTrue(walk.contains(4L));
+        assertFalse(walk.contains(5L));
+        List<Long> drive = asList(Isochrone.compute(graph, 1L, Double.POSITIVE_INFINITY,
+                Router.Metric.DISTANCE).vertices());
+        assertTrue(drive.contains(5L));
+        assertFalse(drive.contains(4L));
+    }
+
+    @Test
+    public void testAccessTags() {
+        byte residential = GraphBuildingHandler.highwayClass("residential");
+        byte footway = GraphBuildingHandler.highwayClass("footway");
+        byte motorway = GraphBuildingHandler.highwayClass("motorway");
+        byte service = GraphBuildingHandler.highwayClass("service");
+        int drive = Router.Profile.DRIVE.bit();
+        int bike = Router.Profile.BIKE.bit();
+        int walk = Router.Profile.WALK.bit();
+        assertEquals(drive | bike | walk,
+                GraphBuildingHandler.access(residential, null, null, null));
+        /* Access tags narrow cycling and walking only; driving keeps its highway classes. */
+        assertEquals(drive, GraphBuildingHandler.access(residential, "private", null, null));
+        assertEquals(drive | walk, GraphBuildingHandler.access(residential, "no", "yes", null));
+        assertEquals(bike | walk, GraphBuildingHandler.access(footway, null, null, "yes"));
+        assertEquals(drive, GraphBuildingHandler.access(motorway, null, "no", "no"));
+        assertEquals(bike | walk, GraphBuildingHandler.access(service, "private", "yes", "yes"));
+        assertEquals(0, GraphBuildingHandler.access(service, "no", null, null));
+        assertEquals(0, GraphBuildingHandler.access(GraphBuildingHandler.OTHER_CLASS, null,
+                "yes", null));
+    }
+
+    @Test
+    public void testParseProfile() {
+        Map<String, String[]> req = new HashMap<>();
+        req.put("start_lon", new String[]{"-122.26"});
+        req.put("start_lat", new String[]{"37.87"});
+        req.put("end_lon", new String[]{"-122.24"});
+        req.put("end_lat", new String[]{"37.87"});
+        assertEquals(Router.Profile.DRIVE, RouteRequestParams.from(req).profile);
+        req.put("profile", new String[]{"walk"});
+        RouteRequestParams params = RouteRequestParams.from(req);
+        assertEquals(Router.Profile.WALK, params.profile);
+        assertEquals(Arrays.asList(1L, 4L, 3L), Router.shortestPath(graph, params));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownProfile() {
+        Map<String, String[]> req = new HashMap<>();
+        req.put("start_lon", new String[]{"-122.26"});
+        req.put("start_lat", new String[]{"37.87"});
+        req.put("end_lon", new String[]{"-122.24"});
+        req.put("end_lat", new String[]{"37.87"});
+        req.put("profile", new String[]{"hovercraft"});
+        RouteRequestParams.from(req);
+    }
+
+    private static List<Long> asList(long[] ids) {
+        Long[] boxed = new Long[ids.length];
+        for (int i = 0; i < ids.length; i += 1) {
+            boxed[i] = ids[i];
+        }
+        return Arrays.asList(boxed);
+    }
+}
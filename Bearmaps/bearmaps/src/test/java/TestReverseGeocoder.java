@@ -0,0 +1,203 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests for finding the closest named way and named location, on the tiny graph and on a
+ * random map checked against a scan of every way and location.
+ */
+public class TestReverseGeocoder {
+    private static final String OSM_DB_PATH_TINY = "../library-su18/bearmaps/tiny-clean.osm.xml";
+    private static final int WAYS = 40;
+    private static final int NODES_PER_WAY = 6;
+    private static final int PLACES = 25;
+    private static final double MIN_LON = -122.29, MIN_LAT = 37.83, SPAN = 0.05;
+    private static GraphDB graphTiny;
+    private static GraphDB graphRandom;
+    /** Projected x1, y1, x2, y2 of every named segment of the random map. */
+    private static double[][] namedSegments;
+    /** Projected x, y of every named location of the random map. */
+    private static double[][] places;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        graphTiny = new GraphDB(OSM_DB_PATH_TINY);
+        graphRandom = new GraphDB(writeRandomMap().getPath());
+        initialized = true;
+    }
+
+    /** Writes ways in random directions, every other one named, and named isolated nodes. */
+    private static File writeRandomMap() throws IOException {
+        Random random = new Random(40);
+        StringBuilder osm = new StringBuilder("<?xml version='1.0' encoding='UTF-8'?>\n");
+        osm.append("<osm version=\"0.6\">\n");
+        namedSegments = new double[WAYS / 2 * (NODES_PER_WAY - 1)][];
+        int s = 0;
+        for (int w = 0; w < WAYS; w += 1) {
+            double lon = round(MIN_LON + random.nextDouble() * SPAN);
+            double lat = round(MIN_LAT + random.nextDouble() * SPAN);
+            StringBuilder way = new StringBuilder(String.format("<way id=\"%d\">", 1000 + w));
+            for (int i = 0; i < NODES_PER_WAY; i += 1) {
+                long id = w * NODES_PER_WAY + i + 1;
+                osm.append(String.format("<node id=\"%d\" lat=\"%.7f\" lon=\"%.7f\"/>%n",
+                        id, lat, lon));
+                way.append(String.format("<nd ref=\"%d\"/>", id));
+                double nextLon = round(lon + (random.nextDouble() - 0.5) * SPAN / 5);
+                double nextLat = round(lat + (random.nextDouble() - 0.5) * SPAN / 5);
+                if (w % 2 == 0 && i < NODES_PER_WAY - 1) {
+                    namedSegments[s] = new double[]{
+                        GraphDB.projectToX(lon, lat), GraphDB.projectToY(lon, lat),
+                        GraphDB.projectToX(nextLon, nextLat), GraphDB.projectToY(nextLon, nextLat)
+                    };
+                    s += 1;
+                }
+                lon = nextLon;
+                lat = nextLat;
+            }
+            way.append("<tag k=\"highway\" v=\"residential\"/>");
+            if (w % 2 == 0) {
+                way.append(String.format("<tag k=\"name\" v=\"Street %d\"/>", w));
+            }
+            osm.append(way).append("</way>\n");
+        }
+        places = new double[PLACES][];
+        for (int p = 0; p < PLACES; p += 1) {
+            double lon = round(MIN_LON + random.nextDouble() * SPAN);
+            double lat = round(MIN_LAT + random.nextDouble() * SPAN);
+            places[p] = new double[]{GraphDB.projectToX(lon, lat), GraphDB.projectToY(lon, lat)};
+            osm.append(String.format("<node id=\"%d\" lat=\"%.7f\" lon=\"%.7f\">", 5000 + p,
+                    lat, lon));
+            osm.append(String.format("<tag k=\"name\" v=\"Caf\u00e9 %d\"/></node>%n", p));
+        }
+        osm.append("</osm>\n");
+        File file = File.createTempFile("reverse", ".osm.xml");
+        file.deleteOnExit();
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(file),
+                StandardCharsets.UTF_8)) {
+            out.write(osm.toString());
+        }
+        return file;
+    }
+
+    /** Rounds a coordinate to the 7 decimals it is written with. */
+    private static double round(double degrees) {
+        return Math.round(degrees * 1e7) / 1e7;
+    }
+
+    private static double segmentDistance(double[] seg, double x, double y) {
+        double dx = seg[2] - seg[0];
+        double dy = seg[3] - seg[1];
+        double length = dx * dx + dy * dy;
+        double t = length == 0 ? 0
+                : Math.max(0, Math.min(1, ((x - seg[0]) * dx + (y - seg[1]) * dy) / length));
+        return Math.hypot(seg[0] + t * dx - x, seg[1] + t * dy - y) * GraphDB.R;
+    }
+
+    @Test
+    public void testTinyGraph() {
+        ReverseGeocoder geocoder = graphTiny.getReverseGeocoder();
+        ReverseGeocoder.Match way = geocoder.nearestWay(-122.24, 37.881);
+        assertEquals("22/46/66 northwest side highway", way.name);
+        assertEquals(37.88, way.lat, 1e-3);
+        assertEquals(-122.24, way.lon, 1e-3);
+        assertEquals(GraphDB.distance(-122.24, 37.881, way.lon, way.lat), way.distance, 1e-3);
+        assertNull(geocoder.nearestLocation(-122.24, 37.881));
+    }
+
+    @Test
+    public void testMatchesFullScan() {
+        ReverseGeocoder geocoder = graphRandom.getReverseGeocoder();
+        Random random = new Random(41);
+        for (int q = 0; q < 2000; q += 1) {
+            /* Include points well outside the map, where the grid search starts off it. */
+            double lon = MIN_LON - SPAN + random.nextDouble() * 3 * SPAN;
+            double lat = MIN_LAT - SPAN + random.nextDouble() * 3 * SPAN;
+            double x = GraphDB.projectToX(lon, lat);
+            double y = GraphDB.projectToY(lon, lat);
+            double bestWay = Double.POSITIVE_INFINITY;
+            for (double[] seg : namedSegments) {
+                bestWay = Math.min(bestWay, segmentDistance(seg, x, y));
+            }
+            double bestPlace = Double.POSITIVE_INFINITY;
+            for (double[] p : places) {
+                bestPlace = Math.min(bestPlace, Math.hypot(p[0] - x, p[1] - y) * GraphDB.R);
+            }
+            ReverseGeocoder.Match way = geocoder.nearestWay(lon, lat);
+            ReverseGeocoder.Match place = geocoder.nearestLocation(lon, lat);
+            assertEquals(bestWay, way.distance, 1e-6);
+            assertEquals(bestPlace, place.distance, 1e-6);
+            assertEquals(Integer.parseInt(way.name.substring("Street ".length())) + 1000,
+                    way.id);
+            assertEquals("Caf\u00e9 " + (place.id - 5000), place.name);
+        }
+    }
+
+    @Test
+    public void testUnprojectInvertsProject() {
+        double x = GraphDB.projectToX(-122.2634, 37.8712);
+        double y = GraphDB.projectToY(-122.2634, 37.8712);
+        assertEquals(-122.2634, GraphDB.unprojectLon(x, y), 1e-9);
+        assertEquals(37.8712, GraphDB.unprojectLat(x, y), 1e-9);
+    }
+
+    @Test
+    public void testNameArena() {
+        NameArena arena = new NameArena();
+        for (int i = 0; i < 1000; i += 1) {
+            assertEquals(i, arena.add("Name \u00fc " + i));
+        }
+        arena.trim();
+        assertEquals("Name \u00fc 0", arena.get(0));
+        assertEquals("Name \u00fc 999", arena.get(999));
+        NameArena empty = new NameArena();
+        assertEquals("", empty.get(empty.add("")));
+        assertNotNull(graphRandom.getReverseGeocoder().nearestWay(MIN_LON, MIN_LAT));
+    }
+
+    @Test
+    public void testNameArenaIntern() {
+        NameArena arena = new NameArena();
+        Random random = new Random(44);
+        String[] words = {"Caf\u00e9", "Wheeler", "HALL", "st.", "22/46", "", " "};
+        for (int i = 0; i < 5000; i += 1) {
+            String name = words[random.nextInt(words.length)] + " "
+                    + words[random.nextInt(words.length)] + random.nextInt(50);
+            int h = arena.intern(name);
+            assertEquals(h, arena.intern(name));
+            assertEquals(name, arena.get(h));
+            String cleaned = GraphDB.cleanString(name);
+            int c = arena.cleaned(h);
+            assertEquals(cleaned, arena.get(c));
+            assertEquals(c, arena.cleaned(c));
+            byte[] q = cleaned.substring(cleaned.length() / 2).getBytes(StandardCharsets.UTF_8);
+            assertEquals(cleaned.indexOf(new String(q, StandardCharsets.UTF_8)),
+                    arena.indexOf(c, q));
+            assertEquals(Integer.signum(cleaned.compareTo("m")),
+                    Integer.signum(arena.compare(c, "m".getBytes(StandardCharsets.UTF_8))));
+        }
+        assertEquals("caf wheeler", GraphDB.cleanString("Caf\u00e9 Wheeler-22!"));
+        int h = arena.intern("Wheeler Hall");
+        int before = arena.size();
+        arena.trim();
+        assertEquals(h, arena.intern("Wheeler Hall"));
+        assertEquals(before, arena.size());
+        int k = arena.intern("Wheeler Hall!");
+        assertEquals("Wheeler Hall!", arena.get(k));
+        assertEquals(arena.cleaned(h), arena.cleaned(k));
+    }
+}
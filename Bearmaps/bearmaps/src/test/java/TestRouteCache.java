@@ -0,0 +1,96 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests for the LRU route cache on the tiny graph.
+ */
+public class TestRouteCache {
+    private static final String OSM_DB_PATH_TINY = "../library-su18/bearmaps/tiny-clean.osm.xml";
+    private static GraphDB graphTiny;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        graphTiny = new GraphDB(OSM_DB_PATH_TINY);
+        initialized = true;
+    }
+
+    @Test
+    public void testHitReturnsSameRoute() {
+        RouteCache cache = new RouteCache(10, 1 << 20);
+        List<Long> first = cache.shortestPath(graphTiny, 41L, 46L, Router.Metric.DISTANCE);
+        List<Long> second = cache.shortestPath(graphTiny, 41L, 46L, Router.Metric.DISTANCE);
+        assertEquals(Router.shortestPath(graphTiny, 41L, 46L, Router.Metric.DISTANCE), first);
+        assertEquals(first, second);
+        assertEquals(1, cache.hits());
+        assertEquals(1, cache.misses());
+        assertEquals(0.5, cache.hitRate(), 1e-9);
+    }
+
+    @Test
+    public void testSnappedCoordinatesShareEntry() {
+        RouteCache cache = new RouteCache(10, 1 << 20);
+        cache.shortestPath(graphTiny, -122.27, 37.84, -122.23, 37.88, Router.Metric.DISTANCE);
+        cache.shortestPath(graphTiny, -122.2701, 37.8401, -122.2299, 37.8799,
+                Router.Metric.DISTANCE);
+        assertEquals(1, cache.hits());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testMetricIsPartOfKey() {
+        RouteCache cache = new RouteCache(10, 1 << 20);
+        cache.shortestPath(graphTiny, 22L, 66L, Router.Metric.DISTANCE);
+        cache.shortestPath(graphTiny, 22L, 66L, Router.Metric.TIME);
+        assertEquals(0, cache.hits());
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        RouteCache cache = new RouteCache(2, 1 << 20);
+        cache.shortestPath(graphTiny, 11L, 66L, Router.Metric.DISTANCE);
+        cache.shortestPath(graphTiny, 22L, 66L, Router.Metric.DISTANCE);
+        cache.shortestPath(graphTiny, 11L, 66L, Router.Metric.DISTANCE);
+        cache.shortestPath(graphTiny, 41L, 66L, Router.Metric.DISTANCE);
+        assertEquals(2, cache.size());
+        cache.shortestPath(graphTiny, 11L, 66L, Router.Metric.DISTANCE);
+        assertEquals(2, cache.hits());
+        cache.shortestPath(graphTiny, 22L, 66L, Router.Metric.DISTANCE);
+        assertEquals(2, cache.hits());
+    }
+
+    @Test
+    public void testNewGraphInvalidates() {
+        RouteCache cache = new RouteCache(10, 1 << 20);
+        cache.shortestPath(graphTiny, 41L, 46L, Router.Metric.DISTANCE);
+        GraphDB reloaded = new GraphDB(OSM_DB_PATH_TINY);
+        cache.shortestPath(reloaded, 41L, 46L, Router.Metric.DISTANCE);
+        assertEquals(0, cache.hits());
+        assertEquals(1, cache.size());
+        cache.invalidate();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.memoryBytes());
+    }
+
+    @Test
+    public void testOlderGraphNotCached() {
+        GraphDB older = new GraphDB(OSM_DB_PATH_TINY);
+        GraphDB newer = new GraphDB(OSM_DB_PATH_TINY);
+        RouteCache cache = new RouteCache(10, 1 << 20);
+        List<Long> route = cache.shortestPath(newer, 41L, 46L, Router.Metric.DISTANCE);
+        /* A request that started before the reload is answered but leaves the cache alone. */
+        assertEquals(route, cache.shortestPath(older, 41L, 46L, Router.Metric.DISTANCE));
+        assertEquals(0, cache.hits());
+        assertEquals(1, cache.size());
+        cache.shortestPath(newer, 41L, 46L, Router.Metric.DISTANCE);
+        assertEquals(1, cache.hits());
+    }
+}
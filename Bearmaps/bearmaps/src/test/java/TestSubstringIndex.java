@@ -0,0 +1,106 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for infix search over location names, checked against a scan of every name.
+ */
+public class TestSubstringIndex {
+    private static final String[] WORDS = {
+        "Wheeler", "Hall", "Doe", "Library", "Sather", "Gate", "Tower", "Cafe", "Strada",
+        "Peet's", "Coffee", "Berkeley", "Bowl", "Memorial", "Stadium", "Haas", "Pavilion",
+        "St.", "Ave", "Shattuck", "Telegraph", "Main", "Stacks", "Evans", "Soda", "Cory"
+    };
+    private static final int NAMES = 5000;
+    private static List<String> names;
+    private static List<String> cleanedNames;
+    private static SubstringIndex index;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() {
+        if (initialized) {
+            return;
+        }
+        Random random = new Random(42);
+        names = new ArrayList<>();
+        for (int i = 0; i < NAMES; i += 1) {
+            StringBuilder name = new StringBuilder();
+            int words = 1 + random.nextInt(3);
+            for (int w = 0; w < words; w += 1) {
+                name.append(w > 0 ? " " : "").append(WORDS[random.nextInt(WORDS.length)]);
+            }
+            /* Many names share their words, so posting lists span many blocks. */
+            name.append(" ").append(i);
+            names.add(name.toString());
+        }
+        names.add("Wheeler Hall");
+        names.add("WHEELER HALL!");
+        cleanedNames = new ArrayList<>();
+        for (String name : names) {
+            cleanedNames.add(GraphDB.cleanString(name));
+        }
+        index = new SubstringIndex(names);
+        initialized = true;
+    }
+
+    /** Returns what the index should answer, by cleaning and checking every name. */
+    private static List<String> scan(String query, int limit) {
+        String q = GraphDB.cleanString(query);
+        List<String[]> found = new ArrayList<>();
+        for (int i = 0; i < names.size(); i += 1) {
+            String c = cleanedNames.get(i);
+            if (c.contains(q)) {
+                int tier = c.startsWith(q) ? 0 : c.contains(" " + q) ? 1 : 2;
+                if (tier == 2 && q.length() == 1) {
+                    continue;
+                }
+                found.add(new String[]{Integer.toString(tier), c, names.get(i)});
+            }
+        }
+        found.sort(Comparator.<String[]>comparingInt(f -> Integer.parseInt(f[0]))
+                .thenComparingInt(f -> f[1].length()).thenComparing(f -> f[1])
+                .thenComparing(f -> f[2]));
+        List<String> result = new ArrayList<>();
+        for (int i = 0; i < Math.min(limit, found.size()); i += 1) {
+            result.add(found.get(i)[2]);
+        }
+        return result;
+    }
+
+    @Test
+    public void testMatchesFullScan() {
+        Random random = new Random(43);
+        for (int q = 0; q < 200; q += 1) {
+            /* Type part of a random name, from a random place, one key at a time. */
+            String name = cleanedNames.get(random.nextInt(names.size()));
+            int from = random.nextInt(name.length());
+            int to = Math.min(name.length(), from + 1 + random.nextInt(12));
+            for (int end = from + 1; end <= to; end += 1) {
+                String query = name.substring(from, end);
+                assertEquals(query, scan(query, 50), index.search(query, 50));
+            }
+        }
+        assertEquals(scan("tower 12", NAMES), index.search("tower 12", NAMES));
+    }
+
+    @Test
+    public void testCleansQuery() {
+        List<String> found = index.search("WHEELER h", 2);
+        assertEquals(2, found.size());
+        assertTrue(found.contains("Wheeler Hall"));
+        assertTrue(found.contains("WHEELER HALL!"));
+        assertEquals(index.search("peets cof", 50), index.search("Peet's Cof!", 50));
+        assertTrue(index.search("", 50).isEmpty());
+        assertTrue(index.search(null, 50).isEmpty());
+        assertTrue(index.search("xyz", 50).isEmpty());
+        assertTrue(index.bytes() < index.uncompressedBytes());
+    }
+}
@@ -0,0 +1,125 @@
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Tests for live speed overrides on the tiny graph. Each test loads its own graph, since
+ * overrides change it.
+ */
+public class TestWeightOverrides {
+    private static final String OSM_DB_PATH_TINY = "../library-su18/bearmaps/tiny-clean.osm.xml";
+    private static final long NORTHWEST_WAY = 224666L;
+    private static final List<Long> NORTHWEST = Arrays.asList(22L, 46L, 66L);
+    private static final List<Long> SCENIC = Arrays.asList(22L, 55L, 63L, 66L);
+
+    @Test
+    public void testWayOverrideChangesRoute() {
+        GraphDB g = new GraphDB(OSM_DB_PATH_TINY);
+        assertEquals(NORTHWEST, Router.shortestPath(g, 22L, 66L, Router.Metric.TIME));
+        g.applyWeightOverrides(new WeightOverrides().setWaySpeed(NORTHWEST_WAY, 1));
+        assertEquals(SCENIC, Router.shortestPath(g, 22L, 66L, Router.Metric.TIME));
+        assertEquals(NORTHWEST, Router.shortestPath(g, 22L, 66L, Router.Metric.DISTANCE));
+        g.clearWeightOverrides();
+        assertEquals(NORTHWEST, Router.shortestPath(g, 22L, 66L, Router.Metric.TIME));
+    }
+
+    @Test
+    public void testEdgeOverrideChangesRoute() {
+        GraphDB g = new GraphDB(OSM_DB_PATH_TINY);
+        g.applyWeightOverrides(new WeightOverrides().setEdgeSpeed(66L, 46L, 1));
+        assertEquals(SCENIC, Router.shortestPath(g, 22L, 66L, Router.Metric.TIME));
+        assertEquals(Arrays.asList(66L, 63L, 55L, 22L),
+                Router.shortestPath(g, 66L, 22L, Router.Metric.TIME));
+    }
+
+    @Test
+    public void testReadersKeepTheirSnapshot() {
+        GraphDB g = new GraphDB(OSM_DB_PATH_TINY);
+        CompactGraph cg = g.getCompactGraph();
+        int time = Router.Metric.TIME.ordinal();
+        int dist = Router.Metric.DISTANCE.ordinal();
+        CompactGraph.Weights before = cg.weights();
+        double[] timeWeights = before.jArcWeight[time].clone();
+        g.applyWeightOverrides(new WeightOverrides().setWaySpeed(NORTHWEST_WAY, 5));
+        CompactGraph.Weights after = cg.weights();
+
+        assertArrayEquals(timeWeights, before.jArcWeight[time], 0);
+        assertNotEquals(before.version(Router.Metric.TIME), after.version(Router.Metric.TIME));
+        assertEquals(before.version(Router.Metric.DISTANCE), after.version(Router.Metric.DISTANCE));
+        assertSame(before.jArcWeight[dist], after.jArcWeight[dist]);
+        for (int c = 0; c < cg.chainFrom.length; c += 1) {
+            double sum = 0;
+            for (int i = cg.chainStart[c]; i < cg.chainStart[c + 1]; i += 1) {
+                sum += after.arcWeight(cg.chainArcs[i], Router.Metric.TIME);
+            }
+            assertEquals(sum, after.chainWeight[time][c], 1e-9);
+        }
+    }
+
+    @Test
+    public void testOverridesOutliveChanges() throws IOException {
+        GraphDB g = new GraphDB(OSM_DB_PATH_TINY);
+        g.applyWeightOverrides(new WeightOverrides().setWaySpeed(NORTHWEST_WAY, 1));
+        String osc = "<osmChange version=\"0.6\"><create>"
+                + "<node id=\"-1\" lat=\"37.88\" lon=\"-122.24\"/></create></osmChange>";
+        GraphDB next = g.withChanges(OsmChange.read(new ByteArrayInputStream(
+                osc.getBytes(StandardCharsets.UTF_8))), phase -> { });
+        /* Both segments of the way, in both directions. */
+        assertEquals(4, next.changeStats().carriedOverrides);
+        assertEquals(SCENIC, Router.shortestPath(next, 22L, 66L, Router.Metric.TIME));
+        next.clearWeightOverrides();
+        assertEquals(NORTHWEST, Router.shortestPath(next, 22L, 66L, Router.Metric.TIME));
+        assertEquals(SCENIC, Router.shortestPath(g, 22L, 66L, Router.Metric.TIME));
+    }
+
+    @Test
+    public void testEmptyBatchKeepsWeights() {
+        GraphDB g = new GraphDB(OSM_DB_PATH_TINY);
+        CompactGraph.Weights before = g.getCompactGraph().weights();
+        g.applyWeightOverrides(new WeightOverrides().setWaySpeed(-1L, 10));
+        assertSame(before, g.getCompactGraph().weights());
+    }
+
+    @Test
+    public void testRouteCacheSeesNewWeights() {
+        GraphDB g = new GraphDB(OSM_DB_PATH_TINY);
+        RouteCache cache = new RouteCache(10, 1 << 20);
+        assertEquals(NORTHWEST, cache.shortestPath(g, 22L, 66L, Router.Metric.TIME));
+        g.applyWeightOverrides(new WeightOverrides().setWaySpeed(NORTHWEST_WAY, 1));
+        assertEquals(SCENIC, cache.shortestPath(g, 22L, 66L, Router.Metric.TIME));
+    }
+
+    @Test
+    public void testHubLabelsRebuilt() throws Exception {
+        GraphDB g = new GraphDB(OSM_DB_PATH_TINY);
+        CompactGraph cg = g.getCompactGraph();
+        g.setHubLabels(HubLabels.build(cg, Router.Metric.TIME));
+        g.applyWeightOverrides(new WeightOverrides().setWaySpeed(NORTHWEST_WAY, 1));
+        double expected = Router.distanceMatrix(g, new long[]{22L}, new long[]{66L},
+                Router.Metric.TIME)[0];
+        assertEquals(expected, Router.distanceOnly(g, 22L, 66L, Router.Metric.TIME), 1e-3);
+        for (int wait = 0; wait < 100; wait += 1) {
+            if (g.getHubLabels(Router.Metric.TIME, cg.weights()) != null) {
+                break;
+            }
+            Thread.sleep(50);
+        }
+        assertNotNull(g.getHubLabels(Router.Metric.TIME, cg.weights()));
+        assertEquals(expected, Router.distanceOnly(g, 22L, 66L, Router.Metric.TIME), 1e-3);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsNonPositiveSpeed() {
+        new WeightOverrides().setWaySpeed(NORTHWEST_WAY, 0);
+    }
+}